@@ -45,6 +45,27 @@ public class Application {
 		getDefaultFileSet();
 	}
 
+	/**
+	 * Constructor that starts with the given {@link FileSet} instead of reading the saved one, for when the saved
+	 * one is loaded in the background by a {@link FileSetLoader}.
+	 * 
+	 * @param fileSet the {@link FileSet} to start with
+	 * @throws NullPointerException if the passed {@link FileSet} is null.
+	 */
+	public Application(FileSet fileSet) {
+		setCurrentFileSet(fileSet);
+	}
+
+	/**
+	 * Returns where the default {@link FileSet} is stored: a file named <code>DefaultFileSet</code> in a
+	 * sub-directory named <code>Mirror</code> within the user's home directory.
+	 * 
+	 * @return the path of the default {@link FileSet}
+	 */
+	public static Path defaultFileSetPath() {
+		return Paths.get(System.getProperty("user.home")).resolve("Mirror").resolve("DefaultFileSet");
+	}
+
 	/**
 	 * Method to retrieve the current {@link FileSet} from the application context.
 	 * <br /><br />
@@ -77,9 +98,7 @@ public class Application {
 	 * @throws Exception if the sub-directory or file does not exist or is not readable (for example due to bad permissions).
 	 */
 	private void getDefaultFileSet() throws Exception {
-		Path defaultFileSet = Paths.get(System.getProperty("user.home"));
-		defaultFileSet = defaultFileSet.resolve("Mirror");
-		defaultFileSet = defaultFileSet.resolve("DefaultFileSet");
+		Path defaultFileSet = defaultFileSetPath();
 		if (Files.isReadable(defaultFileSet)) {
 			try {
 				mCurrentFileSet = FileSet.read(defaultFileSet.toAbsolutePath().toString());
@@ -98,26 +117,31 @@ public class Application {
 	 * @throws IOException if the file or sub-directory doesn't exist or if the file is unreadable (for example due to bad permissions).
 	 */
 	public void saveDefaultFileSet() throws IOException {
-		Path defaultFSPath = Paths.get(System.getProperty("user.home"));
-		defaultFSPath = defaultFSPath.resolve("Mirror");
-		defaultFSPath = defaultFSPath.resolve("DefaultFileSet");
-		FileSet.save(defaultFSPath.toString(), mCurrentFileSet);
+		FileSet.save(defaultFileSetPath().toString(), mCurrentFileSet);
 	}
 
 	/**
 	 * Called by the JVM at runtime to launch the application. Upon execution, <code>main()</code> will attempt to create and open the
-	 * User Interface.
+	 * User Interface. The window is shown straight away with an empty {@link FileSet}, and the saved one is loaded into it in the
+	 * background. When command line arguments are supplied, the backup is run without a user interface instead.
 	 * @param args - Standard command line arguments
+	 * @see CommandLine
 	 * @throws ClassNotFoundException
 	 * @throws InstantiationException
 	 * @throws IllegalClassException
 	 * @throws UnsupportedLookAndFeelException
 	 */
 	public static void main(String args[]) {
+		if (args.length > 0) {
+			CommandLine.main(args);
+			return;
+		}
 		javax.swing.SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				try {
-					new UIViewController(new Application()).setVisible(true);
+					UIViewController view = new UIViewController(new Application(new FileSet()));
+					view.setVisible(true);
+					view.loadFileSet(defaultFileSetPath());
 				} catch (ClassNotFoundException | InstantiationException | IllegalAccessException
 						| UnsupportedLookAndFeelException e) {
 					e.printStackTrace();
@@ -0,0 +1,676 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import core.BackupPlan;
+import core.BackupPlanner;
+import core.CopyOrder;
+import core.FailureReport;
+import core.FileOps;
+import core.FileOpsMessageHandler;
+import core.FileSet;
+import core.FileStateCache;
+import core.JobManager;
+import core.MirrorClient;
+import core.MirrorReceiver;
+import core.MirrorWatcher;
+import core.PerformanceReport;
+import core.Progress;
+import core.RetentionPolicy;
+import core.Throttle;
+
+/**
+ * Runs a backup without the user interface. {@link Application#main(String[])} hands control to this class
+ * whenever command line arguments are supplied.
+ * <br /><br />
+ * While the backup runs, commands typed on standard input adjust it on the fly:
+ * <ul>
+ * <li><code>rate &lt;size&gt;</code> - limit bytes per second (0 for unlimited)</li>
+ * <li><code>files &lt;count&gt;</code> - limit files per second (0 for unlimited)</li>
+ * <li><code>burst &lt;size&gt;</code> - set the burst size</li>
+ * <li><code>metrics</code> - print the live {@link core.Metrics} as JSON</li>
+ * <li><code>pause</code> - stop copying for now, within one chunk of each file</li>
+ * <li><code>resume</code> - carry on after <code>pause</code></li>
+ * <li><code>cancel</code> - stop the backup, keeping the files copied so far; <code>--watch</code> with the
+ * same name copies the rest later</li>
+ * </ul>
+ * Sizes accept an optional <code>K</code>, <code>M</code> or <code>G</code> suffix.
+ * <br /><br />
+ * With <code>--watch</code> the backup is kept up to date after it completes: changed sources are mirrored
+ * into it by a {@link MirrorWatcher} until <code>cancel</code> is typed. If a backup of that name already
+ * exists it is brought up to date instead of copied again. With <code>--in-place</code> large files that
+ * changed have only their changed blocks rewritten.
+ * <br /><br />
+ * The <code>--keep-</code> options set a {@link RetentionPolicy}: once the backup completes without errors,
+ * older backups of the same sources that no rule keeps are removed. The removal starts once the backup has
+ * reported completion and is limited to <code>--prune-files-per-sec</code> files and folders per second.
+ * <br /><br />
+ * With <code>--dry-run</code> nothing is copied: the {@link BackupPlan} of the backup is printed, with the
+ * files and bytes it would copy, how long it is expected to take and what would fail. <code>--save-plan</code>
+ * saves the plan, and <code>--plan</code> runs a saved plan without scanning the sources again.
+ * <br /><br />
+ * With <code>--receive</code> this machine accepts backups sent to a <code>mirror://</code> address. The
+ * receiver listens on the loopback interface unless <code>--bind</code> names another, and only accepts
+ * clients that send its <code>--token</code>, which may instead be set in the <code>MIRROR_TOKEN</code>
+ * environment variable.
+ * <br /><br />
+ * Files that fail to copy are retried a few times while the rest of the backup carries on. The files that
+ * still could not be copied are listed when the backup ends, and the exit status is then 1.
+ *
+ * <p>Requirement 1.1.4.1: The user shall have the capability of executing a backup on demand.</p>
+ *
+ * @author Greg Palen
+ * @version 1.0
+ *
+ */
+public class CommandLine implements FileOpsMessageHandler, MirrorWatcher.Listener {
+
+	/**	Text printed when the arguments cannot be understood.
+	 *
+	 */
+	private static final String USAGE = "Usage: Mirror --run [--fileset <file>] [--name <backup name>]\n"
+			+ "                     [--bytes-per-sec <size>] [--files-per-sec <count>] [--burst <size>]\n"
+			+ "                     [--order insertion|largest_first|newest_first|physical] [--adaptive]\n"
+			+ "                     [--sync] [--metrics-json <file>] [--watch]\n"
+			+ "                     [--include <rule>]... [--exclude <rule>]... [--save-profile <name>]\n"
+			+ "                     [--also-to <directory>]... [--encrypt] [--in-place]\n"
+			+ "                     [--keep-last <count>] [--keep-daily <count>] [--keep-weekly <count>]\n"
+			+ "                     [--keep-monthly <count>] [--prune-files-per-sec <count>]\n"
+			+ "                     [--dry-run [--save-plan <file>]] [--plan <file>]\n"
+			+ "       Mirror --run --profile <name>... [--jobs <count>] [--workers <count>]\n"
+			+ "                     [--bytes-per-sec <size>] [--files-per-sec <count>]\n"
+			+ "       Mirror --receive <directory> [--port <port>] [--bind <address>] [--token <secret>]";
+
+	/**	The options setting the {@link RetentionPolicy}, in the order of its constructor.
+	 *
+	 */
+	private static final List<String> KEEP_OPTIONS = Arrays.asList("--keep-last", "--keep-daily", "--keep-weekly",
+			"--keep-monthly");
+
+	/**	The {@link FileSet} to back up.
+	 *
+	 */
+	private final FileSet mFileSet;
+
+	/**	The running operation; set once {@link #run()} starts it.
+	 *
+	 */
+	private FileOps mOps;
+
+	/**	The running watcher in <code>--watch</code> mode, or null.
+	 *
+	 */
+	private volatile MirrorWatcher mWatcher;
+
+	/**	Released when the operation reports completion.
+	 *
+	 */
+	private final CountDownLatch mDone = new CountDownLatch(1);
+
+	/**	Reads commands from standard input; started once.
+	 *
+	 */
+	private Thread mConsole;
+
+	/**	Time the last rate and time left line was printed, from {@link System#nanoTime()}.
+	 *
+	 */
+	private long mLastRateLine = System.nanoTime();
+
+	/**	Shortest time between two rate and time left lines, in nanoseconds.
+	 *
+	 */
+	private static final long RATE_LINE_INTERVAL_NANOS = 1000000000L;
+
+	/**	File the final metrics are written to as JSON, or null.
+	 *
+	 */
+	private String mMetricsFile;
+
+	/**	Plan of the backup made beforehand, or null to scan the sources.
+	 *
+	 */
+	private BackupPlan mPlan;
+
+	/**	The files the backup could not copy, once it has ended.
+	 *
+	 */
+	private volatile FailureReport mFailures;
+
+	/**	Constructor that takes the {@link FileSet} to back up.
+	 *
+	 * @param fileSet the {@link FileSet} to back up.
+	 */
+	public CommandLine(FileSet fileSet) {
+		mFileSet = fileSet;
+	}
+
+	/**	Sets a file that receives the metrics of the backup as JSON once it finishes.
+	 *
+	 * @param metricsFile path of the file to write, or null for none.
+	 */
+	public void setMetricsFile(String metricsFile) {
+		mMetricsFile = metricsFile;
+	}
+
+	/**	Sets a plan made beforehand, so the backup copies its files without scanning the sources.
+	 *
+	 * @param plan the plan, or null to scan the sources.
+	 * @see FileOps#setPlan(BackupPlan)
+	 */
+	public void setPlan(BackupPlan plan) {
+		mPlan = plan;
+	}
+
+	/**	Reads the passphrase of an encrypted backup from the <code>MIRROR_PASSPHRASE</code> environment variable
+	 * or, if it is not set, from the console.
+	 *
+	 * @return char[]	The passphrase.
+	 * @throws Exception if there is neither.
+	 */
+	private static char[] readPassphrase() throws Exception {
+		String passphrase = System.getenv("MIRROR_PASSPHRASE");
+		if (passphrase != null) {
+			return passphrase.toCharArray();
+		}
+		if (System.console() == null) {
+			throw new Exception("The backup is encrypted - set MIRROR_PASSPHRASE or run from a console.");
+		}
+		return System.console().readPassword("Passphrase: ");
+	}
+
+	/**	Parses the command line, runs the backup and waits for it to finish.
+	 *
+	 * @param args the command line arguments passed to {@link Application#main(String[])}.
+	 */
+	public static void main(String[] args) {
+		try {
+			FileSet fileSet = null;
+			String name = null, metricsFile = null;
+			Long bytesPerSecond = null, filesPerSecond = null, burstBytes = null, pruneFilesPerSecond = null;
+			CopyOrder order = null;
+			List<String> includes = new ArrayList<String>(), excludes = new ArrayList<String>();
+			List<String> profiles = new ArrayList<String>(), alsoTo = new ArrayList<String>();
+			String saveProfile = null, receive = null, savePlan = null, planFile = null;
+			String bind = null, token = System.getenv(MirrorClient.TOKEN_VARIABLE);
+			int port = MirrorClient.DEFAULT_PORT;
+			int jobs = JobManager.DEFAULT_CONCURRENT_JOBS, workers = JobManager.DEFAULT_WORKERS;
+			int[] keep = null;
+			boolean run = false, adaptive = false, sync = false, watch = false, encrypt = false, inPlace = false;
+			boolean dryRun = false;
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--run")) {
+					run = true;
+				} else if (arg.equals("--adaptive")) {
+					adaptive = true;
+				} else if (arg.equals("--sync")) {
+					sync = true;
+				} else if (arg.equals("--watch")) {
+					watch = true;
+				} else if (arg.equals("--encrypt")) {
+					encrypt = true;
+				} else if (arg.equals("--in-place")) {
+					inPlace = true;
+				} else if (arg.equals("--dry-run")) {
+					dryRun = true;
+				} else if (arg.equals("--save-plan") && i + 1 < args.length) {
+					savePlan = args[++i];
+				} else if (arg.equals("--plan") && i + 1 < args.length) {
+					planFile = args[++i];
+				} else if (arg.equals("--fileset") && i + 1 < args.length) {
+					fileSet = FileSet.read(args[++i]);
+				} else if (arg.equals("--name") && i + 1 < args.length) {
+					name = args[++i];
+				} else if (arg.equals("--bytes-per-sec") && i + 1 < args.length) {
+					bytesPerSecond = parseSize(args[++i]);
+				} else if (arg.equals("--files-per-sec") && i + 1 < args.length) {
+					filesPerSecond = Long.parseLong(args[++i]);
+				} else if (arg.equals("--prune-files-per-sec") && i + 1 < args.length) {
+					pruneFilesPerSecond = Long.parseLong(args[++i]);
+				} else if (arg.equals("--burst") && i + 1 < args.length) {
+					burstBytes = parseSize(args[++i]);
+				} else if (arg.equals("--metrics-json") && i + 1 < args.length) {
+					metricsFile = args[++i];
+				} else if (arg.equals("--include") && i + 1 < args.length) {
+					includes.add(args[++i]);
+				} else if (arg.equals("--exclude") && i + 1 < args.length) {
+					excludes.add(args[++i]);
+				} else if (arg.equals("--also-to") && i + 1 < args.length) {
+					alsoTo.add(args[++i]);
+				} else if (arg.equals("--receive") && i + 1 < args.length) {
+					receive = args[++i];
+				} else if (arg.equals("--port") && i + 1 < args.length) {
+					port = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--bind") && i + 1 < args.length) {
+					bind = args[++i];
+				} else if (arg.equals("--token") && i + 1 < args.length) {
+					token = args[++i];
+				} else if (arg.equals("--profile") && i + 1 < args.length) {
+					profiles.add(args[++i]);
+				} else if (arg.equals("--save-profile") && i + 1 < args.length) {
+					saveProfile = args[++i];
+				} else if (arg.equals("--jobs") && i + 1 < args.length) {
+					jobs = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--workers") && i + 1 < args.length) {
+					workers = Integer.parseInt(args[++i]);
+				} else if (KEEP_OPTIONS.contains(arg) && i + 1 < args.length) {
+					if (keep == null) keep = new int[KEEP_OPTIONS.size()];
+					keep[KEEP_OPTIONS.indexOf(arg)] = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--order") && i + 1 < args.length) {
+					order = CopyOrder.valueOf(args[++i].toUpperCase(Locale.ROOT));
+				} else {
+					System.err.println(USAGE);
+					System.exit(2);
+				}
+			}
+			if (receive != null) {
+				if (token == null || token.isEmpty()) {
+					System.err.println("A receiver needs a token: give --token or set " + MirrorClient.TOKEN_VARIABLE);
+					System.exit(2);
+				}
+				MirrorReceiver receiver = new MirrorReceiver(Paths.get(receive),
+						bind != null ? InetAddress.getByName(bind) : null, port, token);
+				System.out.println("Receiving backups into " + receive + " on " + receiver.getAddress().getHostAddress()
+						+ " port " + receiver.getPort());
+				receiver.run();
+				System.exit(0);
+			}
+			if (!run && !dryRun && saveProfile == null) {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			if (!profiles.isEmpty()) {
+				JobManager manager = new JobManager(JobManager.DEFAULT_DIRECTORY, jobs, workers);
+				manager.setBandwidthBudget(bytesPerSecond != null ? bytesPerSecond : 0,
+						filesPerSecond != null ? filesPerSecond : 0);
+				System.exit(runJobs(manager, profiles) ? 0 : 1);
+			}
+			if (fileSet == null) {
+				fileSet = new Application().getCurrentFileSet();
+			}
+			fileSet.setName(name != null ? name : "Backup" + new SimpleDateFormat("MM.dd.yy-HH.mm").format(new Date()));
+			if (bytesPerSecond != null) fileSet.setBytesPerSecond(bytesPerSecond);
+			if (filesPerSecond != null) fileSet.setFilesPerSecond(filesPerSecond);
+			if (burstBytes != null) fileSet.setBurstBytes(burstBytes);
+			if (order != null) fileSet.setCopyOrder(order);
+			if (adaptive) fileSet.setAdaptiveConcurrency(true);
+			if (sync) fileSet.setSyncFiles(true);
+			if (encrypt) fileSet.setEncrypted(true);
+			if (inPlace) fileSet.setUpdateInPlace(true);
+			if (keep != null) fileSet.setRetentionPolicy(new RetentionPolicy(keep[0], keep[1], keep[2], keep[3]));
+			if (pruneFilesPerSecond != null) fileSet.setPruneFilesPerSecond(pruneFilesPerSecond);
+			for (String rule : includes) fileSet.addInclude(rule);
+			for (String rule : excludes) fileSet.addExclude(rule);
+			for (String destination : alsoTo) fileSet.addDestination(destination);
+
+			if (saveProfile != null) {
+				new JobManager().saveProfile(saveProfile, fileSet);
+				System.out.println("Saved profile " + saveProfile + " to " + JobManager.DEFAULT_DIRECTORY);
+				if (!run && !dryRun) System.exit(0);
+			}
+
+			if (dryRun) {
+				BackupPlan plan = new BackupPlanner().plan(fileSet);
+				System.out.print(plan);
+				if (savePlan != null) {
+					plan.save(Paths.get(savePlan));
+					System.out.println("Saved plan to " + savePlan);
+				}
+				System.exit(plan.getProblems().isEmpty() ? 0 : 1);
+			}
+
+			CommandLine commandLine = new CommandLine(fileSet);
+			commandLine.setMetricsFile(metricsFile);
+			if (planFile != null) {
+				commandLine.setPlan(BackupPlan.load(Paths.get(planFile)));
+			}
+			if (watch) {
+				commandLine.watch();
+			} else {
+				commandLine.run();
+			}
+			System.exit(commandLine.hasFailures() ? 1 : 0);
+		} catch (Exception e) {
+			System.err.println("Backup failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**	Runs saved profiles concurrently under the budgets of a {@link JobManager}, printing each change of
+	 * state and, about once a second, the progress of every job.
+	 *
+	 * @param manager The {@link JobManager} to run the profiles with.
+	 * @param profiles The names of the profiles to run.
+	 * @return boolean	True if every job succeeded.
+	 * @throws Exception if a profile cannot be read or is not a valid backup.
+	 */
+	public static boolean runJobs(final JobManager manager, List<String> profiles) throws Exception {
+		manager.addListener(new JobManager.Listener() {
+			private long mLastLine = System.nanoTime();
+			private final Map<JobManager.Job, JobManager.State> mStates = new HashMap<JobManager.Job, JobManager.State>();
+
+			public synchronized void jobChanged(JobManager.Job job) {
+				if (mStates.put(job, job.getState()) != job.getState()) {
+					System.out.println(job.getName() + ": " + job.getState().name().toLowerCase(Locale.ROOT)
+							+ (job.getError() != null ? " (" + job.getError().getMessage() + ")" : ""));
+				}
+				long now = System.nanoTime();
+				if (now - mLastLine >= RATE_LINE_INTERVAL_NANOS) {
+					mLastLine = now;
+					StringBuilder line = new StringBuilder();
+					for (JobManager.Job each : manager.getJobs()) {
+						if (line.length() > 0) line.append(" | ");
+						line.append(each);
+					}
+					System.out.println(line);
+				}
+			}
+		});
+		for (String profile : profiles) {
+			manager.submit(profile);
+		}
+		manager.shutdown();
+		manager.awaitAll();
+		boolean succeeded = true;
+		for (JobManager.Job job : manager.getJobs()) {
+			FailureReport failures = job.getFailureReport();
+			if (!failures.isEmpty()) {
+				System.out.print(job.getName() + ": " + failures);
+				succeeded = false;
+			}
+			succeeded &= job.getState() == JobManager.State.SUCCEEDED;
+		}
+		return succeeded;
+	}
+
+	/**	Starts the backup, listens for commands on standard input and blocks until the backup completes.
+	 *
+	 * @throws Exception if the backup cannot be started or fails.
+	 */
+	public void run() throws Exception {
+		backUp(null);
+	}
+
+	/**	Takes the backup, keeping a {@link FileStateCache} in the given file.
+	 *
+	 * @param stateFile the file to keep the cache in, or null to not keep one.
+	 * @throws Exception if the backup cannot be started or fails.
+	 */
+	private void backUp(Path stateFile) throws Exception {
+		if (FileOps.backupExists(mFileSet)) {
+			throw new Exception("A backup named " + mFileSet.getName() + " already exists.");
+		}
+		mOps = new FileOps(mFileSet, this);
+		mOps.setPlan(mPlan);
+		mOps.setStateFile(stateFile);
+		if (mFileSet.isEncrypted()) {
+			mOps.setPassphrase(readPassphrase());
+		}
+		startConsole();
+
+		System.out.println("Backing up " + mFileSet.getSize() + " file(s) to "
+				+ MirrorClient.describe(mFileSet.getDestination()));
+		mOps.execute();
+		mDone.await();
+		if (mOps.isCancelled()) {
+			System.out.println("Removing partial files...");
+			mOps.awaitStopped(Long.MAX_VALUE);
+		}
+		if (mMetricsFile != null) {
+			Files.write(Paths.get(mMetricsFile), mOps.getMetrics().toJson().getBytes(StandardCharsets.UTF_8));
+		}
+		if (!mOps.isCancelled()) {
+			// surfaces any exception thrown by the copy
+			mOps.get();
+		}
+		mOps.awaitPruned(Long.MAX_VALUE);
+	}
+
+	/**	Takes the backup unless it already exists, then mirrors every change to the sources into it until
+	 * <code>cancel</code> is typed.
+	 *
+	 * @throws Exception if the backup cannot be taken or the sources cannot be watched.
+	 */
+	public void watch() throws Exception {
+		// rejects a backup that cannot be watched before taking it
+		MirrorWatcher watcher = new MirrorWatcher(mFileSet, this);
+		if (!FileOps.backupExists(mFileSet)) {
+			// the watcher starts from the file state the backup records
+			backUp(FileStateCache.fileFor(mFileSet.getName()));
+			if (mOps.isCancelled()) return;
+		}
+		mWatcher = watcher;
+		startConsole();
+		System.out.println("Watching " + mFileSet.getSize() + " file(s) for changes; type cancel to stop.");
+		mWatcher.run();
+		System.out.println("Stopped watching.");
+	}
+
+	/**	Starts reading commands from standard input, once.
+	 *
+	 */
+	private synchronized void startConsole() {
+		if (mConsole != null) return;
+		mConsole = new Thread(new Runnable() {
+			public void run() {
+				readCommands();
+			}
+		}, "Mirror console");
+		mConsole.setDaemon(true);
+		mConsole.start();
+	}
+
+	/**	Reads commands from standard input until it is closed or the backup finishes.
+	 *
+	 */
+	private void readCommands() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] words = line.trim().split("\\s+");
+				if (words[0].isEmpty()) continue;
+				try {
+					handleCommand(words);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+		} catch (Exception e) {
+			// Standard input closed; the backup carries on with its current settings
+		}
+	}
+
+	/**	Applies a single console command to the running operation.
+	 *
+	 * @param words the command followed by its arguments.
+	 * @throws IllegalArgumentException if the command or its argument is not valid.
+	 */
+	private void handleCommand(String[] words) throws IllegalArgumentException {
+		MirrorWatcher watcher = mWatcher;
+		Throttle throttle = watcher != null ? watcher.getThrottle() : mOps.getThrottle();
+		String command = words[0].toLowerCase(Locale.ROOT);
+		if (command.equals("cancel")) {
+			if (watcher != null) {
+				watcher.stop();
+			} else {
+				mOps.cancel(true);
+			}
+			return;
+		}
+		if ((command.equals("pause") || command.equals("resume")) && watcher == null && mOps != null) {
+			if (command.equals("pause")) {
+				mOps.pause();
+				System.out.println("Backup paused; type resume to carry on.");
+			} else {
+				mOps.resume();
+				System.out.println("Backup resumed.");
+			}
+			return;
+		}
+		if (command.equals("metrics") && mOps != null) {
+			System.out.println(mOps.getMetrics().toJson());
+			return;
+		}
+		if (words.length != 2) {
+			throw new IllegalArgumentException("Commands: rate <size>, files <count>, burst <size>, metrics, pause, resume, cancel");
+		}
+		if (command.equals("rate")) {
+			throttle.setBytesPerSecond(parseSize(words[1]));
+		} else if (command.equals("files")) {
+			throttle.setFilesPerSecond(Long.parseLong(words[1]));
+		} else if (command.equals("burst")) {
+			throttle.setBurstBytes(parseSize(words[1]));
+		} else {
+			throw new IllegalArgumentException("Unknown command: " + words[0]);
+		}
+		System.out.println("Limits now " + throttle.getBytesPerSecond() + " bytes/s, "
+				+ throttle.getFilesPerSecond() + " files/s, burst " + throttle.getBurstBytes() + " bytes");
+	}
+
+	/**	Converts a size such as <code>512K</code>, <code>10M</code> or <code>1G</code> into bytes.
+	 *
+	 * @param size the size to convert; a plain number is taken as bytes.
+	 * @return the size in bytes.
+	 * @throws IllegalArgumentException if the size cannot be parsed.
+	 */
+	public static long parseSize(String size) throws IllegalArgumentException {
+		String value = size.trim().toUpperCase(Locale.ROOT);
+		long multiplier = 1;
+		if (value.endsWith("K")) {
+			multiplier = 1024L;
+		} else if (value.endsWith("M")) {
+			multiplier = 1024L * 1024;
+		} else if (value.endsWith("G")) {
+			multiplier = 1024L * 1024 * 1024;
+		}
+		if (multiplier > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			return Long.parseLong(value) * multiplier;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size: " + size);
+		}
+	}
+
+	/**	Prints each file as it finishes copying, every change to the number of copy workers, and about once a
+	 * second the transfer rate and the estimated time left.
+	 *
+	 * @see core.FileOpsMessageHandler#handleProgress(java.util.List)
+	 */
+	@Override
+	public void handleProgress(List<Progress> progressItems) {
+		for (Progress p : progressItems) {
+			if (!p.sourceCopied.isEmpty()) {
+				System.out.println("Copied " + p.sourceCopied);
+			}
+			if (!p.concurrencyDecision.isEmpty()) {
+				System.out.println("Workers: " + p.concurrencyDecision);
+			}
+		}
+		Progress last = progressItems.get(progressItems.size() - 1);
+		long now = System.nanoTime();
+		if (now - mLastRateLine >= RATE_LINE_INTERVAL_NANOS && last.smoothedBytesPerSecond > 0) {
+			mLastRateLine = now;
+			System.out.println(String.format(Locale.ROOT, "%3.0f%%  %s now, %s average, %.0f files/s, %s left",
+					last.totalBytes > 0 ? last.completedBytes * 100.0 / last.totalBytes : 0,
+					Progress.formatRate(last.bytesPerSecond), Progress.formatRate(last.smoothedBytesPerSecond),
+					last.smoothedFilesPerSecond, Progress.formatEta(last.etaSeconds)));
+		}
+	}
+
+	/**	Prints the performance report of the backup and where it was saved.
+	 *
+	 * @see core.FileOpsMessageHandler#handleReport(core.PerformanceReport)
+	 */
+	@Override
+	public void handleReport(PerformanceReport report) {
+		System.out.println();
+		System.out.print(report);
+		if (report.getFile() != null) {
+			System.out.println("Report saved to " + report.getFile());
+		}
+	}
+
+	/**	Prints the files the backup could not copy, if any.
+	 *
+	 * @see core.FileOpsMessageHandler#handleFailures(core.FailureReport)
+	 */
+	@Override
+	public void handleFailures(FailureReport failures) {
+		mFailures = failures;
+		if (!failures.isEmpty() || failures.getRecovered() > 0) {
+			System.out.println();
+			System.out.print(failures);
+		}
+	}
+
+	/**
+	 * @return true if the backup ended without copying every file.
+	 */
+	public boolean hasFailures() {
+		FailureReport failures = mFailures;
+		return failures != null && !failures.isEmpty();
+	}
+
+	/**	Prints each batch of files mirrored in <code>--watch</code> mode.
+	 *
+	 * @see core.MirrorWatcher.Listener#mirrored(java.util.List)
+	 */
+	@Override
+	public void mirrored(List<Path> copied) {
+		for (Path source : copied) {
+			System.out.println("Mirrored " + source);
+		}
+	}
+
+	/**	Reports a file that could not be mirrored in <code>--watch</code> mode.
+	 *
+	 * @see core.MirrorWatcher.Listener#mirrorFailed(java.nio.file.Path, java.lang.Exception)
+	 */
+	@Override
+	public void mirrorFailed(Path source, Exception error) {
+		System.err.println("Failed to mirror " + source + ": " + error.getMessage());
+	}
+
+	/**	Prints each old backup the {@link RetentionPolicy} removed, or could not remove.
+	 *
+	 * @see core.FileOpsMessageHandler#handlePruned(java.nio.file.Path, long, java.io.IOException)
+	 */
+	@Override
+	public void handlePruned(Path oldBackup, long removed, IOException error) {
+		if (error != null) {
+			System.err.println("Unable to remove old backup " + oldBackup + ": " + error.getMessage());
+		} else {
+			System.out.println("Removed old backup " + oldBackup + " (" + removed + " entries)");
+		}
+	}
+
+	/**	Releases {@link #run()} once the backup completes.
+	 *
+	 * @see core.FileOpsMessageHandler#handleCompletion()
+	 */
+	@Override
+	public void handleCompletion() {
+		System.out.println(mOps.isCancelled() ? "Backup cancelled." : "Backup complete.");
+		mDone.countDown();
+	}
+}
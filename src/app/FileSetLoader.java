@@ -0,0 +1,167 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import core.FileSet;
+
+/**
+ * Loads a saved {@link FileSet} on a background thread, so the window can be shown before the saved set has
+ * been read.
+ * <p>
+ * The file is read and each source checked to still exist away from the event dispatch thread. The
+ * {@link Listener} first receives the FileSet with its settings and no sources, and then the sources in
+ * batches as they are checked, so a long list fills in while the user already sees the window. Sources that
+ * no longer exist, for example on a drive that is not connected, are kept and reported at the end, so that
+ * saving the FileSet does not lose them.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0
+ * @see Application#defaultFileSetPath()
+ *
+ */
+public class FileSetLoader extends SwingWorker<FileSet, String> {
+
+	/**
+	 * Receives the loaded {@link FileSet}. Every call is made on the event dispatch thread.
+	 */
+	public interface Listener {
+		/**	Called once the saved settings are known, before any source is added.
+		 *
+		 * @param fileSet The loaded FileSet, without sources yet.
+		 */
+		public void fileSetLoaded(FileSet fileSet);
+
+		/**	Called after a batch of sources was added to the FileSet.
+		 *
+		 * @param fileSet The loaded FileSet.
+		 * @param added The number of sources just added.
+		 */
+		public void sourcesAdded(FileSet fileSet, int added);
+
+		/**	Called when loading ends.
+		 *
+		 * @param fileSet The loaded FileSet, or a new empty one if none could be read.
+		 * @param missing Sources of the saved set that do not exist now; they are kept in the FileSet.
+		 * @param error Why the saved set could not be read, or null.
+		 */
+		public void loadingFinished(FileSet fileSet, List<String> missing, Exception error);
+	}
+
+	private final Path mFile;
+	private final Listener mListener;
+
+	/**	The FileSet being filled, set by the background thread before the first source is published.
+	 *
+	 */
+	private volatile FileSet mFileSet;
+	private final List<String> mMissing = new ArrayList<String>();
+
+	/**	Total size of the files among the sources, added to the FileSet when loading ends.
+	 *
+	 */
+	private volatile long mBytes;
+	private boolean mAnnounced;
+
+	/**	Constructor that prepares loading a saved {@link FileSet}; {@link #execute()} starts it.
+	 *
+	 * @param file The saved FileSet; if it does not exist, a new one named <code>DefaultFileSet</code> is used.
+	 * @param listener Receives the FileSet as it loads.
+	 */
+	public FileSetLoader(Path file, Listener listener) {
+		mFile = file;
+		mListener = listener;
+	}
+
+	/**	Reads the saved FileSet and checks its sources.
+	 *
+	 * @see javax.swing.SwingWorker#doInBackground()
+	 */
+	@Override
+	protected FileSet doInBackground() throws Exception {
+		FileSet fileSet = null;
+		if (Files.isReadable(mFile)) {
+			fileSet = FileSet.read(mFile.toAbsolutePath().toString());
+		}
+		if (fileSet == null) {
+			fileSet = new FileSet("DefaultFileSet");
+		}
+		// nothing listens to the FileSet yet, so its sources can be taken off this thread
+		List<String> sources = fileSet.takeElements();
+		mFileSet = fileSet;
+		long bytes = 0;
+		for (String source : sources) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(Paths.get(source), BasicFileAttributes.class);
+				if (attrs.isRegularFile()) {
+					bytes += attrs.size();
+				}
+			} catch (NoSuchFileException e) {
+				synchronized (mMissing) {
+					mMissing.add(source);
+				}
+			} catch (IOException e) {
+				// it exists but cannot be read now; the backup reports it
+			}
+			// the sources published while the event dispatch thread was busy arrive as one batch
+			publish(source);
+		}
+		mBytes = bytes;
+		return fileSet;
+	}
+
+	/**	Adds a batch of checked sources to the FileSet.
+	 *
+	 * @see javax.swing.SwingWorker#process(java.util.List)
+	 */
+	@Override
+	protected void process(List<String> sources) {
+		announce();
+		mFileSet.addCheckedElements(sources, 0);
+		mListener.sourcesAdded(mFileSet, sources.size());
+	}
+
+	/**	Hands the FileSet over once everything is checked, or a new one if the saved one could not be read.
+	 *
+	 * @see javax.swing.SwingWorker#done()
+	 */
+	@Override
+	protected void done() {
+		Exception error = null;
+		try {
+			get();
+		} catch (ExecutionException e) {
+			error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} catch (InterruptedException e) {
+			error = e;
+		}
+		if (mFileSet == null) {
+			// the saved set could not be read; start over as if there was none
+			mFileSet = new FileSet();
+		}
+		announce();
+		mFileSet.addCheckedElements(new ArrayList<String>(), mBytes);
+		List<String> missing;
+		synchronized (mMissing) {
+			missing = new ArrayList<String>(mMissing);
+		}
+		mListener.loadingFinished(mFileSet, missing, error);
+	}
+
+	private void announce() {
+		if (!mAnnounced) {
+			mAnnounced = true;
+			mListener.fileSetLoaded(mFileSet);
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The BackupEncryption encrypts the files of a backup with AES-256 in GCM mode, using a key derived from a
+ * passphrase.
+ * <p>
+ * The key is derived with PBKDF2 (HMAC-SHA256) from the passphrase and a random salt. The salt, the number of
+ * iterations, the chunk size and a value that tells whether a passphrase is right are stored in the
+ * {@link #MANIFEST_FILE} of the backup; the key itself is never stored.
+ * </p>
+ * <p>
+ * Each file is encrypted in chunks of {@link #CHUNK_SIZE} bytes, each with its own nonce and authentication
+ * tag, so chunks can be encrypted on several cores at once and a damaged or reordered chunk is detected
+ * when it is read. The JDK encrypts with the processor's AES and carry-less multiply instructions where
+ * it has them, so a core encrypts far faster than a disk writes. A file starts with a header holding
+ * a random nonce prefix, followed by its chunks. The last chunk is always shorter than a full one, even
+ * if it is empty, so a truncated file is detected too.
+ * </p>
+ * <p>
+ * AES-256 needs the unlimited strength policy; JREs older than 8u161 only have it with the policy files in
+ * <code>lib</code> installed into the JRE.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FileSet#setEncrypted(boolean)
+ *
+ */
+public class BackupEncryption {
+
+	/**	Name of the file, inside the backup directory, that describes how the backup was encrypted.
+	 *
+	 */
+	public static final String MANIFEST_FILE = ".mirror-encryption";
+
+	/**	Number of plaintext bytes in each chunk.
+	 *
+	 */
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	/**	Number of PBKDF2 iterations for new backups.
+	 *
+	 */
+	public static final int DEFAULT_ITERATIONS = 200000;
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final String KDF = "PBKDF2WithHmacSHA256";
+	private static final int KEY_BITS = 256;
+	private static final int TAG_BYTES = 16;
+	private static final int SALT_BYTES = 16;
+	private static final int PREFIX_BYTES = 8;
+	private static final int FILE_MAGIC = 0x4D454E43;
+	private static final int FILE_VERSION = 1;
+
+	/**	Length of the header at the start of every encrypted file.
+	 *
+	 */
+	public static final int HEADER_BYTES = 4 + 1 + PREFIX_BYTES;
+
+	/**	Threads that encrypt chunks, shared by every backup.
+	 *
+	 */
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Mirror encryption");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**	Chunks of one file that may be encrypting or waiting to be written at the same time.
+	 *
+	 */
+	private static final int MAX_PENDING_CHUNKS = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final SecretKeySpec mKey;
+	private final byte[] mSalt;
+	private final int mIterations;
+	private final byte[] mCheck;
+
+	private final ThreadLocal<Cipher> mCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(CIPHER);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(CIPHER + " is not available", e);
+			}
+		}
+	};
+
+	private BackupEncryption(char[] passphrase, byte[] salt, int iterations) throws IOException {
+		try {
+			if (Cipher.getMaxAllowedKeyLength("AES") < KEY_BITS) {
+				throw new IOException("AES-256 is not allowed by this JRE; install the unlimited strength policy "
+						+ "files from lib into its lib/security directory");
+			}
+			PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 2 * KEY_BITS);
+			byte[] derived = SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+			spec.clearPassword();
+			// the first half is the key, the second tells whether a passphrase is right without revealing it
+			mKey = new SecretKeySpec(Arrays.copyOf(derived, KEY_BITS / 8), "AES");
+			mCheck = Arrays.copyOfRange(derived, KEY_BITS / 8, derived.length);
+			Arrays.fill(derived, (byte) 0);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(KDF + " is not available", e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to derive the encryption key: " + e.getMessage(), e);
+		}
+		mSalt = salt;
+		mIterations = iterations;
+	}
+
+	/**	Derives a new key, with a new random salt, for a new backup.
+	 *
+	 * @param passphrase The passphrase; not kept.
+	 * @return BackupEncryption	The encryption to use for the backup.
+	 * @throws IOException if AES-256 or PBKDF2 is not available.
+	 */
+	public static BackupEncryption create(char[] passphrase) throws IOException {
+		return create(passphrase, DEFAULT_ITERATIONS);
+	}
+
+	/**	Derives a new key with a number of iterations.
+	 *
+	 * @param passphrase The passphrase; not kept.
+	 * @param iterations Number of PBKDF2 iterations; fewer are faster to derive and to guess.
+	 * @return BackupEncryption	The encryption to use for the backup.
+	 * @throws IOException if AES-256 or PBKDF2 is not available.
+	 */
+	public static BackupEncryption create(char[] passphrase, int iterations) throws IOException {
+		byte[] salt = new byte[SALT_BYTES];
+		RANDOM.nextBytes(salt);
+		return new BackupEncryption(passphrase, salt, iterations);
+	}
+
+	/**	Derives the key of an existing backup from its {@link #MANIFEST_FILE}.
+	 *
+	 * @param backupDir The backup directory.
+	 * @param passphrase The passphrase the backup was made with; not kept.
+	 * @return BackupEncryption	The encryption to read the backup with.
+	 * @throws IOException if the backup is not encrypted, its manifest is damaged or the passphrase is wrong.
+	 */
+	public static BackupEncryption open(Path backupDir, char[] passphrase) throws IOException {
+		Path manifest = backupDir.resolve(MANIFEST_FILE);
+		if (!Files.exists(manifest)) {
+			throw new IOException("Backup " + backupDir + " is not encrypted");
+		}
+		Properties properties = new Properties();
+		InputStream in = Files.newInputStream(manifest);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		if (!CIPHER.equals(properties.getProperty("cipher")) || !KDF.equals(properties.getProperty("kdf"))
+				|| !String.valueOf(CHUNK_SIZE).equals(properties.getProperty("chunkSize"))) {
+			throw new IOException("Backup " + backupDir + " was encrypted in a way this version cannot read");
+		}
+		BackupEncryption encryption;
+		try {
+			encryption = new BackupEncryption(passphrase,
+					Base64.getDecoder().decode(properties.getProperty("salt", "")),
+					Integer.parseInt(properties.getProperty("iterations", "")));
+			if (!MessageDigest.isEqual(encryption.mCheck,
+					Base64.getDecoder().decode(properties.getProperty("check", "")))) {
+				throw new IOException("Wrong passphrase for " + backupDir);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Encryption manifest of " + backupDir + " is damaged", e);
+		}
+		return encryption;
+	}
+
+	/**	Writes the {@link #MANIFEST_FILE} describing this encryption.
+	 *
+	 * @param out Where to write it; closed when done.
+	 * @throws IOException if it cannot be written.
+	 */
+	public void writeManifest(OutputStream out) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("cipher", CIPHER);
+		properties.setProperty("kdf", KDF);
+		properties.setProperty("iterations", String.valueOf(mIterations));
+		properties.setProperty("salt", Base64.getEncoder().encodeToString(mSalt));
+		properties.setProperty("chunkSize", String.valueOf(CHUNK_SIZE));
+		properties.setProperty("check", Base64.getEncoder().encodeToString(mCheck));
+		try {
+			properties.store(out, "Mirror backup encryption");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**	Writes the {@link #MANIFEST_FILE} into a backup directory.
+	 *
+	 * @param backupDir The backup directory.
+	 * @throws IOException if it cannot be written.
+	 */
+	public void writeManifest(Path backupDir) throws IOException {
+		writeManifest(Files.newOutputStream(backupDir.resolve(MANIFEST_FILE)));
+	}
+
+	/**	Returns the size of a file once encrypted.
+	 *
+	 * @param plainSize The size of the file.
+	 * @return long	The size of the encrypted file, header and tags included.
+	 */
+	public static long encryptedSize(long plainSize) {
+		return HEADER_BYTES + plainSize + (plainSize / CHUNK_SIZE + 1) * TAG_BYTES;
+	}
+
+	/**	Wraps a stream so everything written to it is encrypted.
+	 *
+	 * @param out The stream receiving the encrypted file; closed when the returned stream is closed.
+	 * @return EncryptingOutputStream	The stream to write the file's contents to.
+	 * @throws IOException if the header cannot be written.
+	 */
+	public EncryptingOutputStream encrypt(OutputStream out) throws IOException {
+		return new EncryptingOutputStream(out);
+	}
+
+	/**	Wraps a stream of an encrypted file so reading it returns the original contents.
+	 *
+	 * @param in The encrypted file; closed when the returned stream is closed.
+	 * @return InputStream	The decrypted contents. Reading fails with an IOException if the file was changed,
+	 * 	truncated or encrypted with another key.
+	 * @throws IOException if the header cannot be read.
+	 */
+	public InputStream decrypt(InputStream in) throws IOException {
+		return new DecryptingInputStream(in);
+	}
+
+	private static byte[] nonce(byte[] prefix, long index) {
+		byte[] nonce = new byte[12];
+		System.arraycopy(prefix, 0, nonce, 0, PREFIX_BYTES);
+		nonce[8] = (byte) (index >>> 24);
+		nonce[9] = (byte) (index >>> 16);
+		nonce[10] = (byte) (index >>> 8);
+		nonce[11] = (byte) index;
+		return nonce;
+	}
+
+	/**	Encrypts or decrypts one chunk. The final flag is authenticated, so a file cut at a chunk boundary
+	 * does not decrypt.
+	 *
+	 */
+	private byte[] crypt(int mode, byte[] prefix, long index, boolean last, byte[] data, int length)
+			throws GeneralSecurityException {
+		Cipher cipher = mCipher.get();
+		cipher.init(mode, mKey, new GCMParameterSpec(TAG_BYTES * 8, nonce(prefix, index)));
+		cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+		return cipher.doFinal(data, 0, length);
+	}
+
+	/**
+	 * Encrypts a file chunk by chunk, with the chunks encrypted on the shared threads and written in order.
+	 */
+	public final class EncryptingOutputStream extends OutputStream {
+		private final OutputStream mOut;
+		private final byte[] mPrefix = new byte[PREFIX_BYTES];
+		private final Deque<Future<byte[]>> mPending = new ArrayDeque<Future<byte[]>>();
+		private byte[] mChunk = new byte[CHUNK_SIZE];
+		private int mFilled;
+		private long mIndex;
+		private boolean mFinished;
+
+		EncryptingOutputStream(OutputStream out) throws IOException {
+			mOut = out;
+			RANDOM.nextBytes(mPrefix);
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(FILE_MAGIC);
+			header.writeByte(FILE_VERSION);
+			header.write(mPrefix);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			while (length > 0) {
+				int part = Math.min(length, CHUNK_SIZE - mFilled);
+				System.arraycopy(buffer, offset, mChunk, mFilled, part);
+				mFilled += part;
+				offset += part;
+				length -= part;
+				if (mFilled == CHUNK_SIZE) {
+					submit(false);
+				}
+			}
+		}
+
+		/**	Encrypts and writes what is left, without closing the underlying stream, so that it can still be
+		 * forced to disk. Further writes are not allowed.
+		 *
+		 * @throws IOException if encrypting or writing fails.
+		 */
+		public void finish() throws IOException {
+			if (mFinished) return;
+			mFinished = true;
+			submit(true);
+			while (!mPending.isEmpty()) {
+				writeNext();
+			}
+			mOut.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				finish();
+			} finally {
+				mOut.close();
+			}
+		}
+
+		private void submit(final boolean last) throws IOException {
+			final byte[] chunk = mChunk;
+			final int length = mFilled;
+			final long index = mIndex++;
+			mPending.addLast(POOL.submit(new Callable<byte[]>() {
+				public byte[] call() throws GeneralSecurityException {
+					return crypt(Cipher.ENCRYPT_MODE, mPrefix, index, last, chunk, length);
+				}
+			}));
+			mChunk = new byte[CHUNK_SIZE];
+			mFilled = 0;
+			while (mPending.size() > MAX_PENDING_CHUNKS) {
+				writeNext();
+			}
+		}
+
+		private void writeNext() throws IOException {
+			try {
+				mOut.write(mPending.removeFirst().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while encrypting", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to encrypt: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**	Decrypts a file chunk by chunk.
+	 *
+	 */
+	private final class DecryptingInputStream extends InputStream {
+		private final DataInputStream mIn;
+		private final byte[] mPrefix = new byte[PREFIX_BYTES];
+		private final byte[] mSealed = new byte[CHUNK_SIZE + TAG_BYTES];
+		private byte[] mChunk = new byte[0];
+		private int mPosition;
+		private long mIndex;
+		private boolean mLast;
+
+		DecryptingInputStream(InputStream in) throws IOException {
+			mIn = new DataInputStream(in);
+			try {
+				if (mIn.readInt() != FILE_MAGIC || mIn.readByte() != FILE_VERSION) {
+					throw new IOException("Not an encrypted backup file");
+				}
+				mIn.readFully(mPrefix);
+			} catch (EOFException e) {
+				throw new IOException("Not an encrypted backup file", e);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			while (mPosition == mChunk.length) {
+				if (mLast) return -1;
+				nextChunk();
+			}
+			int part = Math.min(length, mChunk.length - mPosition);
+			System.arraycopy(mChunk, mPosition, buffer, offset, part);
+			mPosition += part;
+			return part;
+		}
+
+		private void nextChunk() throws IOException {
+			int length = 0;
+			int read;
+			while (length < mSealed.length && (read = mIn.read(mSealed, length, mSealed.length - length)) > 0) {
+				length += read;
+			}
+			if (length < TAG_BYTES) {
+				throw new IOException("Encrypted file is truncated");
+			}
+			// only the last chunk is shorter than a full one
+			mLast = length < mSealed.length;
+			try {
+				mChunk = crypt(Cipher.DECRYPT_MODE, mPrefix, mIndex++, mLast, mSealed, length);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Encrypted file is damaged or was encrypted with another key", e);
+			}
+			mPosition = 0;
+			if (mLast && mIn.read() >= 0) {
+				throw new IOException("Encrypted file has data after its end");
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+		}
+	}
+}
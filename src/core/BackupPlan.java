@@ -0,0 +1,327 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A BackupPlan lists everything a {@link FileOps} operation would do for a {@link FileSet}, worked out by a
+ * {@link BackupPlanner} without touching the destination: the files to copy and their size, the directories
+ * to create, the files that cannot be read, the problems that would stop the backup, and how long it is
+ * expected to take.
+ * <p>
+ * A plan can be saved and handed to {@link FileOps#setPlan(BackupPlan)}, which then copies the files listed
+ * instead of scanning the sources again. The plan records a fingerprint of the sources and rules it was made
+ * for, and is refused for a FileSet that changed since. Files are copied as they are when the backup runs;
+ * files deleted since planning fail like any file that cannot be read.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see BackupPlanner
+ *
+ */
+public class BackupPlan {
+
+	/**
+	 * One file the plan copies.
+	 */
+	public static class Entry {
+		/** Absolute path of the source file. */
+		public final Path source;
+		/** Path of the file relative to the backup directory. */
+		public final String relativePath;
+		/** Size of the file in bytes when planned. */
+		public final long size;
+		/** Last modification time in milliseconds since the epoch when planned. */
+		public final long lastModified;
+		/** The file system's identity of the file, or an empty String if unknown. */
+		public final String fileKey;
+
+		/**	Constructor that records one file to copy.
+		 *
+		 * @param source Absolute path of the source file.
+		 * @param relativePath Path of the file relative to the backup directory.
+		 * @param size Size of the file in bytes.
+		 * @param lastModified Last modification time in milliseconds since the epoch.
+		 * @param fileKey The file system's identity of the file, or null if unknown.
+		 */
+		public Entry(Path source, String relativePath, long size, long lastModified, String fileKey) {
+			this.source = source;
+			this.relativePath = relativePath;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey != null ? fileKey : "";
+		}
+
+		/**	Creates the {@link CopyTask} copying this file into a backup directory.
+		 *
+		 * @param backupDir The backup directory.
+		 * @return CopyTask	The task.
+		 */
+		public CopyTask toTask(Path backupDir) {
+			return new CopyTask(source, relativePath, backupDir.resolve(relativePath), size, lastModified,
+					fileKey.isEmpty() ? null : fileKey);
+		}
+	}
+
+	private static final int MAGIC = 0x4D504C4E; // "MPLN"
+	private static final int VERSION = 1;
+
+	private final String mFingerprint;
+	private final long mCreated;
+	private final long mPackThreshold;
+	private final List<Entry> mEntries;
+	private final Map<String, String> mUnreadable;
+	private final List<String> mProblems;
+	private final double mPredictedSeconds;
+	private long mTotalBytes;
+
+	/**	Constructor that records a finished plan; plans are made by a {@link BackupPlanner} or read by
+	 * {@link #load(Path)}.
+	 *
+	 * @param fingerprint The {@link #fingerprint(FileSet)} of the FileSet planned.
+	 * @param created When the plan was made, in milliseconds since the epoch.
+	 * @param packThreshold Files smaller than this many bytes go into pack files, or 0 if nothing is packed.
+	 * @param entries The files to copy, in the order they are handed to the copy workers.
+	 * @param unreadable The files and folders that cannot be read, each with the reason.
+	 * @param problems Why the backup could not run as planned; empty if it can.
+	 * @param predictedSeconds How long the copy is expected to take, or a negative number if unknown.
+	 */
+	BackupPlan(String fingerprint, long created, long packThreshold, List<Entry> entries,
+			Map<String, String> unreadable, List<String> problems, double predictedSeconds) {
+		mFingerprint = fingerprint;
+		mCreated = created;
+		mPackThreshold = packThreshold;
+		mEntries = Collections.unmodifiableList(entries);
+		mUnreadable = Collections.unmodifiableMap(unreadable);
+		mProblems = Collections.unmodifiableList(problems);
+		mPredictedSeconds = predictedSeconds;
+		for (Entry entry : entries) {
+			mTotalBytes += entry.size;
+		}
+	}
+
+	/**	Returns the fingerprint of the sources and include and exclude rules of a {@link FileSet}. A plan is
+	 * only used for a FileSet with the same fingerprint.
+	 *
+	 * @param files The {@link FileSet}.
+	 * @return String	The fingerprint.
+	 */
+	public static String fingerprint(FileSet files) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			// the order of the sources decides the order of the files, so it is part of the fingerprint
+			for (int i = 0; i < files.getSize(); i++) {
+				update(digest, files.get(i));
+			}
+			update(digest, "\u0001include");
+			for (String rule : files.getIncludes()) {
+				update(digest, rule);
+			}
+			update(digest, "\u0001exclude");
+			for (String rule : files.getExcludes()) {
+				update(digest, rule);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * @return the fingerprint of the FileSet the plan was made for.
+	 * @see #fingerprint(FileSet)
+	 */
+	public String getFingerprint() {
+		return mFingerprint;
+	}
+
+	/**
+	 * @return when the plan was made, in milliseconds since the epoch.
+	 */
+	public long getCreated() {
+		return mCreated;
+	}
+
+	/**
+	 * @return the files to copy, in the order they are handed to the copy workers.
+	 */
+	public List<Entry> getEntries() {
+		return mEntries;
+	}
+
+	/**
+	 * @return the total size of the files to copy in bytes.
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	/**
+	 * @return the files and folders that cannot be read, each mapped to the reason, in the order found.
+	 */
+	public Map<String, String> getUnreadable() {
+		return mUnreadable;
+	}
+
+	/**
+	 * @return why the backup could not run as planned, such as a destination that cannot be written; empty if
+	 * 	it can.
+	 */
+	public List<String> getProblems() {
+		return mProblems;
+	}
+
+	/**
+	 * @return how long the copy is expected to take in seconds, from the speed of earlier backups, or a
+	 * 	negative number if there were none.
+	 */
+	public double getPredictedSeconds() {
+		return mPredictedSeconds;
+	}
+
+	/**	Returns the directories the backup creates below the backup directory, parents before children. Files
+	 * that go into pack files need none.
+	 *
+	 * @return List	The directories, relative to the backup directory.
+	 */
+	public List<String> getDirectories() {
+		TreeSet<String> directories = new TreeSet<String>();
+		for (Entry entry : mEntries) {
+			if (entry.size < mPackThreshold) continue;
+			for (Path dir = Paths.get(entry.relativePath).getParent(); dir != null; dir = dir.getParent()) {
+				if (!directories.add(dir.toString())) break;
+			}
+		}
+		return new ArrayList<String>(directories);
+	}
+
+	/**	Writes the plan to a file, through a temporary file moved into place.
+	 *
+	 * @param file The file to write.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void save(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(mFingerprint);
+			out.writeLong(mCreated);
+			out.writeLong(mPackThreshold);
+			out.writeDouble(mPredictedSeconds);
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries) {
+				out.writeUTF(entry.source.toString());
+				out.writeUTF(entry.relativePath);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.fileKey);
+			}
+			out.writeInt(mUnreadable.size());
+			for (Map.Entry<String, String> unreadable : mUnreadable.entrySet()) {
+				out.writeUTF(unreadable.getKey());
+				out.writeUTF(unreadable.getValue());
+			}
+			out.writeInt(mProblems.size());
+			for (String problem : mProblems) {
+				out.writeUTF(problem);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**	Reads a plan saved by {@link #save(Path)}.
+	 *
+	 * @param file The file to read.
+	 * @return BackupPlan	The plan.
+	 * @throws IOException if the file cannot be read or is not a plan.
+	 */
+	public static BackupPlan load(Path file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a backup plan");
+			}
+			String fingerprint = in.readUTF();
+			long created = in.readLong();
+			long packThreshold = in.readLong();
+			double predictedSeconds = in.readDouble();
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<Entry>();
+			for (int i = 0; i < count; i++) {
+				entries.add(new Entry(Paths.get(in.readUTF()), in.readUTF(), in.readLong(), in.readLong(), in.readUTF()));
+			}
+			count = in.readInt();
+			Map<String, String> unreadable = new LinkedHashMap<String, String>();
+			for (int i = 0; i < count; i++) {
+				unreadable.put(in.readUTF(), in.readUTF());
+			}
+			count = in.readInt();
+			List<String> problems = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				problems.add(in.readUTF());
+			}
+			if (in.read() >= 0) {
+				throw new IOException(file + " is damaged");
+			}
+			return new BackupPlan(fingerprint, created, packThreshold, entries, unreadable, problems, predictedSeconds);
+		} catch (EOFException e) {
+			throw new IOException(file + " is damaged", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a summary of the plan: totals, the expected duration, problems and unreadable files.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format(Locale.ROOT, "Plan: %d file(s), %d byte(s), %d director(ies) to create%n",
+				mEntries.size(), mTotalBytes, getDirectories().size()));
+		if (mPredictedSeconds >= 0) {
+			text.append("Expected to take ").append(Progress.formatEta((long) Math.ceil(mPredictedSeconds))).append('\n');
+		} else {
+			text.append("Expected duration unknown - no earlier backups to go by\n");
+		}
+		for (String problem : mProblems) {
+			text.append("Problem: ").append(problem).append('\n');
+		}
+		for (Map.Entry<String, String> unreadable : mUnreadable.entrySet()) {
+			text.append("Unreadable: ").append(unreadable.getKey()).append(" (").append(unreadable.getValue()).append(")\n");
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,347 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BackupPlanner works out the {@link BackupPlan} of a {@link FileSet}: what a backup would copy, how long
+ * it would take and what would fail, without creating or writing anything.
+ * <p>
+ * The sources are scanned the way {@link FileOps} scans them, with the same {@link PathFilter}, the same
+ * mapping into the backup directory and the same order, but with several threads: each folder directly
+ * within a folder source is walked by a task of its own, and the files directly within it are read in
+ * batches. The destinations are checked as a backup checks them before copying.
+ * </p>
+ * <p>
+ * The duration is predicted from the {@link PerformanceReport}s of earlier backups: their times are fitted
+ * to a cost per file plus a cost per byte, which allows for many small files copying slower than a few
+ * large ones, and the result is never below what the limits of the FileSet allow.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see BackupPlan
+ *
+ */
+public class BackupPlanner {
+
+	/**	Default number of threads scanning at once.
+	 *
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	/**	Number of earlier reports the duration is predicted from.
+	 *
+	 */
+	public static final int HISTORY_SIZE = 10;
+
+	/**	Number of files directly within a folder source read by one task.
+	 *
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private final int mThreads;
+
+	/**	Directory the reports of earlier backups are read from, or null to predict nothing.
+	 *
+	 */
+	private Path mReportDirectory = PerformanceReport.DEFAULT_DIRECTORY;
+
+	/**	Constructor that scans with the {@link #DEFAULT_THREADS}.
+	 *
+	 */
+	public BackupPlanner() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**	Constructor that sets the number of threads scanning at once.
+	 *
+	 * @param threads Number of threads.
+	 * @throws IllegalArgumentException if the number of threads is less than 1.
+	 */
+	public BackupPlanner(int threads) throws IllegalArgumentException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed to scan the sources");
+		}
+		mThreads = threads;
+	}
+
+	/**	Sets the directory the reports of earlier backups are read from. By default it is
+	 * {@link PerformanceReport#DEFAULT_DIRECTORY}.
+	 *
+	 * @param reportDirectory The directory, or null to leave the duration unknown.
+	 */
+	public void setReportDirectory(Path reportDirectory) {
+		mReportDirectory = reportDirectory;
+	}
+
+	/**	The files and failures found by one task, in the order a single traversal finds them.
+	 *
+	 */
+	private static final class Part {
+		final List<BackupPlan.Entry> entries = new ArrayList<BackupPlan.Entry>();
+		final Map<String, String> unreadable = new LinkedHashMap<String, String>();
+
+		void add(Path file, BasicFileAttributes attrs) {
+			entries.add(new BackupPlan.Entry(file, FileOps.relativePath(file), attrs.size(),
+					attrs.lastModifiedTime().toMillis(), attrs.fileKey() != null ? attrs.fileKey().toString() : null));
+			// the copy still tries it, and fails
+			if (!Files.isReadable(file)) {
+				unreadable.put(file.toString(), "permission denied");
+			}
+		}
+
+		void failed(Path file, IOException e) {
+			unreadable.put(file.toString(), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+		}
+	}
+
+	/**	Plans the backup of a {@link FileSet}.
+	 *
+	 * @param files The {@link FileSet} to plan.
+	 * @return BackupPlan	The plan.
+	 * @throws IllegalArgumentException if the {@link FileSet} is not a valid backup or has an invalid rule.
+	 * @throws IOException if a source cannot be scanned.
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	public BackupPlan plan(FileSet files) throws IllegalArgumentException, IOException, InterruptedException {
+		FileOps.validateFileSet(files);
+		long created = System.currentTimeMillis();
+		List<String> problems = checkDestinations(files);
+		PathFilter filter = new PathFilter(files);
+
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Backup planner " + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<Future<Part>> parts = new ArrayList<Future<Part>>();
+		Part sourceFailures = new Part();
+		try {
+			for (int i = 0; i < files.getSize(); i++) {
+				Path source = Paths.get(files.get(i));
+				if (!Files.isReadable(source)) {
+					sourceFailures.unreadable.put(source.toString(), "not readable");
+					problems.add("Source " + source + " is not readable - it would not be copied");
+					continue;
+				}
+				BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+				if (attrs.isDirectory()) {
+					scanFolder(source, filter, pool, parts);
+				} else {
+					final Part part = new Part();
+					part.add(source, attrs);
+					parts.add(pool.submit(new Callable<Part>() {
+						public Part call() {
+							return part;
+						}
+					}));
+				}
+			}
+
+			// merge in order, dropping files found through more than one source as FileOps does
+			List<BackupPlan.Entry> entries = new ArrayList<BackupPlan.Entry>();
+			Map<String, String> unreadable = new LinkedHashMap<String, String>(sourceFailures.unreadable);
+			Set<Path> seen = new HashSet<Path>();
+			for (Future<Part> future : parts) {
+				Part part = future.get();
+				for (BackupPlan.Entry entry : part.entries) {
+					if (seen.add(entry.source)) {
+						entries.add(entry);
+					}
+				}
+				unreadable.putAll(part.unreadable);
+			}
+
+			long bytes = 0;
+			long stored = 0;
+			long threshold = packThreshold(files);
+			for (BackupPlan.Entry entry : entries) {
+				bytes += entry.size;
+				stored += FileOps.storedSize(entry.size, files.isEncrypted(), entry.size < threshold);
+			}
+			problems.addAll(FileOps.checkFreeSpace(files, stored));
+			double predicted = mReportDirectory != null
+					? predictSeconds(PerformanceReport.summaries(mReportDirectory, HISTORY_SIZE), entries.size(), bytes, files)
+					: -1;
+			return new BackupPlan(BackupPlan.fingerprint(files), created, threshold, entries, unreadable,
+					problems, predicted);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to scan the sources: " + e.getCause(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**	Starts the tasks scanning one folder source: one per folder directly within it and one per batch of the
+	 * files directly within it, in the order the folder lists them.
+	 *
+	 */
+	private static void scanFolder(final Path root, final PathFilter filter, ExecutorService pool,
+			List<Future<Part>> parts) throws IOException {
+		List<Path> batch = new ArrayList<Path>(BATCH_SIZE);
+		DirectoryStream<Path> children = Files.newDirectoryStream(root);
+		try {
+			for (final Path child : children) {
+				if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+					if (!batch.isEmpty()) {
+						parts.add(pool.submit(readFiles(root, filter, batch)));
+						batch = new ArrayList<Path>(BATCH_SIZE);
+					}
+					if (!filter.acceptsDirectory(root.relativize(child))) continue;
+					parts.add(pool.submit(new Callable<Part>() {
+						public Part call() throws IOException {
+							final Part part = new Part();
+							filter.walk(root, child, new PathFilter.FailureVisitor() {
+								public void visitFile(Path file, BasicFileAttributes attrs) {
+									part.add(file, attrs);
+								}
+
+								public void visitFailed(Path file, IOException e) {
+									part.failed(file, e);
+								}
+							});
+							return part;
+						}
+					}));
+				} else {
+					batch.add(child);
+					if (batch.size() == BATCH_SIZE) {
+						parts.add(pool.submit(readFiles(root, filter, batch)));
+						batch = new ArrayList<Path>(BATCH_SIZE);
+					}
+				}
+			}
+		} finally {
+			children.close();
+		}
+		if (!batch.isEmpty()) {
+			parts.add(pool.submit(readFiles(root, filter, batch)));
+		}
+	}
+
+	/**	Creates the task reading a batch of the files directly within a folder source.
+	 *
+	 */
+	private static Callable<Part> readFiles(final Path root, final PathFilter filter, final List<Path> batch) {
+		return new Callable<Part>() {
+			public Part call() {
+				Part part = new Part();
+				for (Path file : batch) {
+					try {
+						BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+						if (attrs.isRegularFile() && filter.acceptsFile(root.relativize(file))) {
+							part.add(file, attrs);
+						}
+					} catch (IOException e) {
+						part.failed(file, e);
+					}
+				}
+				return part;
+			}
+		};
+	}
+
+	/**	Checks the destinations as {@link FileOps} does before it copies anything.
+	 *
+	 * @return List	The problems found; empty if a backup can be written to every destination.
+	 */
+	private static List<String> checkDestinations(FileSet files) {
+		List<String> problems = new ArrayList<String>();
+		for (String destination : files.getDestinations()) {
+			// a mirror receiver checks for itself when the backup starts
+			if (MirrorClient.isMirrorAddress(destination)) continue;
+			Path parent = Paths.get(destination);
+			if (Files.exists(parent.resolve(files.getName()))) {
+				problems.add("Destination " + parent + " already has a backup named " + files.getName());
+			}
+			if (!Files.isWritable(parent)) {
+				problems.add("Destination " + parent + " cannot be written to");
+			}
+		}
+		return problems;
+	}
+
+	/**	Returns the size below which files of the FileSet go into pack files, as {@link FileOps} decides it.
+	 *
+	 */
+	private static long packThreshold(FileSet files) {
+		if (MirrorClient.isMirrorAddress(files.getDestination()) || files.isEncrypted()) {
+			return 0;
+		}
+		return files.getPackThreshold();
+	}
+
+	/**	Predicts how long copying takes from the totals of earlier backups. Their durations are fitted, by least
+	 * squares, to a cost per file plus a cost per byte; when they do not tell the two apart, the average time per
+	 * byte is used instead. Backups that had errors are left out.
+	 *
+	 * @param history The totals of earlier backups.
+	 * @param files The number of files to copy.
+	 * @param bytes The number of bytes to copy.
+	 * @param limits The FileSet, whose limits on bytes and files per second the prediction never beats; or null.
+	 * @return double	The expected duration in seconds, or -1 if there is no history to go by.
+	 */
+	public static double predictSeconds(List<PerformanceReport.Summary> history, long files, long bytes, FileSet limits) {
+		double ff = 0, fb = 0, bb = 0, ft = 0, bt = 0, totalFiles = 0, totalBytes = 0, totalSeconds = 0;
+		for (PerformanceReport.Summary run : history) {
+			if (run.errors > 0 || run.seconds <= 0 || run.files == 0) continue;
+			double f = run.files, b = run.bytes, t = run.seconds;
+			ff += f * f;
+			fb += f * b;
+			bb += b * b;
+			ft += f * t;
+			bt += b * t;
+			totalFiles += f;
+			totalBytes += b;
+			totalSeconds += t;
+		}
+		if (totalSeconds == 0) return -1;
+
+		double predicted = -1;
+		double det = ff * bb - fb * fb;
+		if (det > 1e-9 * ff * bb) {
+			double perFile = (ft * bb - bt * fb) / det;
+			double perByte = (bt * ff - ft * fb) / det;
+			if (perFile >= 0 && perByte >= 0) {
+				predicted = perFile * files + perByte * bytes;
+			}
+		}
+		if (predicted < 0) {
+			predicted = totalBytes > 0 ? totalSeconds / totalBytes * bytes : totalSeconds / totalFiles * files;
+		}
+		if (limits != null && limits.getBytesPerSecond() > 0) {
+			predicted = Math.max(predicted, (double) bytes / limits.getBytesPerSecond());
+		}
+		if (limits != null && limits.getFilesPerSecond() > 0) {
+			predicted = Math.max(predicted, (double) files / limits.getFilesPerSecond());
+		}
+		return predicted;
+	}
+}
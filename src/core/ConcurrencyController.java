@@ -0,0 +1,258 @@
+package core;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ConcurrencyController tunes how many copy workers may run at once from the throughput and write
+ * latency it observes, using additive-increase/multiplicative-decrease (AIMD).
+ * <p>
+ * Every interval the controller compares the bytes written and the average write latency with the previous
+ * interval. If throughput fell noticeably or latency rose sharply, the destination is taken to be
+ * overloaded and the number of active workers is halved. Otherwise one more worker is allowed, probing for
+ * spare capacity. While throughput keeps rising strongly at the start of a run the number of workers is
+ * doubled instead ("slow start"), so fast destinations reach their best concurrency quickly.
+ * </p>
+ * <p>
+ * After a decrease the measurements start afresh: the interval that follows runs with half the workers, so
+ * comparing it with the congested interval would take the smaller throughput of fewer workers for more
+ * congestion and halve again, down to a single worker on a device that copies faster in parallel.
+ * </p>
+ * <p>
+ * Workers call {@link #acquire()} before copying a file and {@link #release()} afterwards. The upper bound
+ * is set by the {@link CopyScheduler} from the per-device limits of the {@link FileSet}.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FileSet#isAdaptiveConcurrency()
+ *
+ */
+public class ConcurrencyController {
+
+	/**
+	 * Receives every decision the controller takes.
+	 */
+	public interface Listener {
+		/**	Called after each interval with the new number of active workers and the reason for it.
+		 *
+		 * @param activeWorkers the number of workers allowed to copy from now on.
+		 * @param decision a short human readable explanation of the decision.
+		 */
+		public void concurrencyChanged(int activeWorkers, String decision);
+	}
+
+	/**	Default length of a measuring interval in milliseconds.
+	 *
+	 */
+	public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+	/**	Throughput must fall by more than this fraction before it counts as a congestion signal.
+	 *
+	 */
+	private static final double THROUGHPUT_TOLERANCE = 0.10;
+
+	/**	Throughput must rise by more than this fraction to keep doubling during slow start.
+	 *
+	 */
+	private static final double SLOW_START_GAIN = 0.25;
+
+	/**	Average write latency must grow by more than this factor before it counts as a congestion signal.
+	 *
+	 */
+	private static final double LATENCY_FACTOR = 2.0;
+
+	private final long mIntervalMillis;
+	private final Listener mListener;
+
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mWrites = new AtomicLong();
+	private final AtomicLong mWriteNanos = new AtomicLong();
+
+	private int mMaxWorkers = 1;
+	private int mLimit = 1;
+	private int mActive;
+	private boolean mSlowStart = true;
+	private double mLastThroughput = -1;
+	private double mLastLatency = -1;
+	private String mLastDecision = "";
+
+	private ScheduledExecutorService mTimer;
+
+	/**	Constructor that creates a controller sampling every {@link #DEFAULT_INTERVAL_MILLIS}.
+	 *
+	 * @param listener Receives each decision; may be null.
+	 */
+	public ConcurrencyController(Listener listener) {
+		this(DEFAULT_INTERVAL_MILLIS, listener);
+	}
+
+	/**	Constructor that creates a controller with a custom interval.
+	 *
+	 * @param intervalMillis Length of a measuring interval in milliseconds.
+	 * @param listener Receives each decision; may be null.
+	 */
+	public ConcurrencyController(long intervalMillis, Listener listener) {
+		mIntervalMillis = intervalMillis;
+		mListener = listener;
+	}
+
+	/**	Sets the largest number of workers the controller may allow. The active limit starts at one worker.
+	 *
+	 * @param maxWorkers the upper bound, at least 1.
+	 */
+	public synchronized void setMaxWorkers(int maxWorkers) {
+		mMaxWorkers = Math.max(1, maxWorkers);
+		mLimit = Math.min(mLimit, mMaxWorkers);
+		notifyAll();
+	}
+
+	/**	Starts sampling in the background.
+	 *
+	 */
+	public synchronized void start() {
+		if (mTimer != null) return;
+		mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Mirror concurrency controller");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mTimer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**	Stops sampling and lets any waiting worker through.
+	 *
+	 */
+	public synchronized void stop() {
+		if (mTimer != null) {
+			mTimer.shutdownNow();
+			mTimer = null;
+		}
+		mLimit = Integer.MAX_VALUE;
+		notifyAll();
+	}
+
+	/**	Blocks until the calling worker may start copying a file.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (mActive >= mLimit) {
+			wait();
+		}
+		mActive++;
+	}
+
+	/**	Signals that the calling worker finished copying a file.
+	 *
+	 */
+	public synchronized void release() {
+		mActive--;
+		notifyAll();
+	}
+
+	/**	Records a completed write. Called by the copy loop for every buffer written.
+	 *
+	 * @param bytes Number of bytes written.
+	 * @param nanos Time the write took in nanoseconds.
+	 */
+	public void recordWrite(long bytes, long nanos) {
+		mBytes.addAndGet(bytes);
+		mWrites.incrementAndGet();
+		mWriteNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the number of workers currently allowed to copy.
+	 */
+	public synchronized int getActiveLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * @return the explanation of the most recent decision.
+	 */
+	public synchronized String getLastDecision() {
+		return mLastDecision;
+	}
+
+	/**	Takes one measurement of the interval that just ended and adjusts the number of workers.
+	 *
+	 */
+	private void sample() {
+		long bytes = mBytes.getAndSet(0);
+		long writes = mWrites.getAndSet(0);
+		long writeNanos = mWriteNanos.getAndSet(0);
+		if (writes == 0) {
+			// nothing was written (start-up, or between files); no evidence either way
+			return;
+		}
+		double throughput = bytes * 1000.0 / mIntervalMillis;
+		double latency = writeNanos / (double) writes;
+		String decision;
+		int limit;
+		synchronized (this) {
+			decision = adjust(throughput, latency);
+			limit = mLimit;
+		}
+		if (mListener != null) {
+			mListener.concurrencyChanged(limit, decision);
+		}
+	}
+
+	/**	Applies the AIMD rule to one interval's measurements.
+	 *
+	 * @param throughput Bytes per second written during the interval.
+	 * @param latency Average write latency during the interval in nanoseconds.
+	 * @return String	A short explanation of the decision taken.
+	 */
+	public synchronized String adjust(double throughput, double latency) {
+		int previous = mLimit;
+		String reason;
+		if (mLastThroughput >= 0 && throughput < mLastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+			mLimit = Math.max(1, mLimit / 2);
+			mSlowStart = false;
+			reason = "throughput fell " + percentChange(throughput, mLastThroughput);
+		} else if (mLastLatency > 0 && latency > mLastLatency * LATENCY_FACTOR) {
+			mLimit = Math.max(1, mLimit / 2);
+			mSlowStart = false;
+			reason = "write latency rose " + percentChange(latency, mLastLatency);
+		} else {
+			if (mSlowStart && mLastThroughput >= 0 && throughput < mLastThroughput * (1 + SLOW_START_GAIN)) {
+				mSlowStart = false;
+			}
+			mLimit = mSlowStart ? Math.min(mMaxWorkers, mLimit * 2) : Math.min(mMaxWorkers, mLimit + 1);
+			reason = mLastThroughput < 0 ? (mSlowStart ? "first measurement" : "first measurement after a decrease")
+					: "throughput " + percentChange(throughput, mLastThroughput);
+		}
+		if (mLimit < previous) {
+			// measured with the workers just taken away, so no baseline for the intervals to come
+			mLastThroughput = -1;
+			mLastLatency = -1;
+		} else {
+			mLastThroughput = throughput;
+			mLastLatency = latency;
+		}
+		String action = mLimit > previous ? "increase" : mLimit < previous ? "decrease" : "hold";
+		mLastDecision = action + " " + previous + " -> " + mLimit + " workers (" + reason + ", "
+				+ String.format(Locale.ROOT, "%.1f", throughput / (1024 * 1024)) + " MB/s, "
+				+ String.format(Locale.ROOT, "%.2f", latency / 1e6) + " ms/write)";
+		notifyAll();
+		return mLastDecision;
+	}
+
+	private static String percentChange(double now, double before) {
+		if (before <= 0) return "from zero";
+		return String.format(Locale.ROOT, "%+.0f%%", (now - before) * 100 / before);
+	}
+}
@@ -0,0 +1,126 @@
+package core;
+
+/**
+ * CopyEvents emits Java Flight Recorder events for every file copy, directory creation, checksum and copy
+ * error, and one event per backup with its aggregate throughput. Production backups can then be profiled
+ * with standard JFR tooling, for example
+ * <code>java -XX:StartFlightRecording=filename=backup.jfr ...</code>, and slow files correlated with
+ * garbage collection or I/O stalls recorded in the same file.
+ * <p>
+ * Events cost next to nothing unless a recording has them enabled. On a JVM without Flight Recorder every
+ * method here does nothing.
+ * </p>
+ * <p>
+ * A timed event is started with one of the <code>begin</code> methods, which returns a handle (null when the
+ * event is not being recorded), and finished by passing the handle to the matching <code>commit</code>
+ * method.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public final class CopyEvents {
+
+	/**	True if the running JVM has Flight Recorder.
+	 *
+	 */
+	private static final boolean AVAILABLE = detect();
+
+	private CopyEvents() {
+	}
+
+	private static boolean detect() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the running JVM has Flight Recorder, so events can be recorded.
+	 */
+	public static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * @return the handle of a file copy event, or null if it is not recorded.
+	 */
+	public static Object beginFileCopy() {
+		return AVAILABLE ? JfrEvents.beginFileCopy() : null;
+	}
+
+	/**	Finishes a file copy event.
+	 *
+	 * @param event Handle returned by {@link #beginFileCopy()}.
+	 * @param path Path of the source file.
+	 * @param bytes Size of the file.
+	 * @param packed True if the file was appended to a pack file.
+	 */
+	public static void commitFileCopy(Object event, String path, long bytes, boolean packed) {
+		if (event != null) JfrEvents.commitFileCopy(event, path, bytes, packed);
+	}
+
+	/**
+	 * @return the handle of a directory creation event, or null if it is not recorded.
+	 */
+	public static Object beginDirectoryCreate() {
+		return AVAILABLE ? JfrEvents.beginDirectoryCreate() : null;
+	}
+
+	/**	Finishes a directory creation event.
+	 *
+	 * @param event Handle returned by {@link #beginDirectoryCreate()}.
+	 * @param path Path of the directory.
+	 */
+	public static void commitDirectoryCreate(Object event, String path) {
+		if (event != null) JfrEvents.commitDirectoryCreate(event, path);
+	}
+
+	/**
+	 * @return the handle of a checksum event, or null if it is not recorded.
+	 */
+	public static Object beginChecksum() {
+		return AVAILABLE ? JfrEvents.beginChecksum() : null;
+	}
+
+	/**	Finishes a checksum event.
+	 *
+	 * @param event Handle returned by {@link #beginChecksum()}.
+	 * @param path Path of the file.
+	 * @param bytes Number of bytes checksummed.
+	 * @param algorithm Name of the checksum algorithm.
+	 * @param value The checksum, as text.
+	 */
+	public static void commitChecksum(Object event, String path, long bytes, String algorithm, String value) {
+		if (event != null) JfrEvents.commitChecksum(event, path, bytes, algorithm, value);
+	}
+
+	/**	Records a file that failed to copy.
+	 *
+	 * @param path Path of the source file.
+	 * @param error What went wrong.
+	 */
+	public static void copyError(String path, Throwable error) {
+		if (AVAILABLE) JfrEvents.copyError(path, error);
+	}
+
+	/**
+	 * @return the handle of a backup event, or null if it is not recorded.
+	 */
+	public static Object beginBackup() {
+		return AVAILABLE ? JfrEvents.beginBackup() : null;
+	}
+
+	/**	Finishes a backup event with the totals of its {@link Metrics}.
+	 *
+	 * @param event Handle returned by {@link #beginBackup()}.
+	 * @param metrics The {@link Metrics} of the backup.
+	 */
+	public static void commitBackup(Object event, Metrics metrics) {
+		if (event != null) JfrEvents.commitBackup(event, metrics);
+	}
+}
@@ -0,0 +1,146 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The CopyOrder decides in which order the {@link CopyScheduler} starts the files of a device.
+ * <p>
+ * The order matters once several workers copy at the same time: if a very large file is started last,
+ * one worker is still busy with it long after the others have run out of work. Starting the largest
+ * files first lets the small files fill in around them, which shortens the total run time.
+ * </p>
+ * <p>
+ * On a rotational disk the time goes into moving the head rather than reading, and a list in the order the
+ * user added the files sends it back and forth across the platter. {@link #PHYSICAL} orders the files as
+ * they probably lie on the disk instead.
+ * </p>
+ * <p>The order is selected per {@link FileSet} with {@link FileSet#setCopyOrder(CopyOrder)}.</p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see CopyScheduler
+ *
+ */
+public enum CopyOrder {
+
+	/**
+	 * Copy files in the order they were added to the {@link FileSet}.
+	 */
+	INSERTION {
+		@Override
+		public List<CopyTask> sort(List<CopyTask> tasks) {
+			return new ArrayList<CopyTask>(tasks);
+		}
+	},
+
+	/**
+	 * Copy the largest files first. Idle workers steal the smallest remaining files, so small files are
+	 * interleaved with the large ones.
+	 */
+	LARGEST_FIRST {
+		@Override
+		public List<CopyTask> sort(List<CopyTask> tasks) {
+			List<CopyTask> sorted = new ArrayList<CopyTask>(tasks);
+			Collections.sort(sorted, new Comparator<CopyTask>() {
+				public int compare(CopyTask a, CopyTask b) {
+					return Long.compare(b.size, a.size);
+				}
+			});
+			return sorted;
+		}
+	},
+
+	/**
+	 * Copy the most recently modified files first, so the newest work is protected soonest.
+	 */
+	NEWEST_FIRST {
+		@Override
+		public List<CopyTask> sort(List<CopyTask> tasks) {
+			List<CopyTask> sorted = new ArrayList<CopyTask>(tasks);
+			Collections.sort(sorted, new Comparator<CopyTask>() {
+				public int compare(CopyTask a, CopyTask b) {
+					return Long.compare(b.lastModified, a.lastModified);
+				}
+			});
+			return sorted;
+		}
+	},
+
+	/**
+	 * Copy files in the order they probably lie on the disk: folder by folder, each folder placed by the
+	 * lowest inode number among its files and its files by inode number. File systems such as ext4 and XFS
+	 * keep the files of a folder near each other and hand out inode numbers near where the data is written,
+	 * so this order moves the head of a rotational disk mostly forward. Several workers on the same disk take
+	 * the files in turn and so read neighbouring files at the same time, which the operating system merges
+	 * into one sweep. Files whose file system reports no inode, such as NTFS, keep their folders together in
+	 * path order.
+	 */
+	PHYSICAL {
+		@Override
+		public List<CopyTask> sort(List<CopyTask> tasks) {
+			final Map<String, Long> folderInodes = new HashMap<String, Long>();
+			final Map<CopyTask, Long> inodes = new HashMap<CopyTask, Long>();
+			for (CopyTask task : tasks) {
+				long inode = inodeOf(task.fileKey);
+				inodes.put(task, inode);
+				String folder = String.valueOf(task.source.getParent());
+				Long lowest = folderInodes.get(folder);
+				if (lowest == null || inode < lowest) {
+					folderInodes.put(folder, inode);
+				}
+			}
+			List<CopyTask> sorted = new ArrayList<CopyTask>(tasks);
+			Collections.sort(sorted, new Comparator<CopyTask>() {
+				public int compare(CopyTask a, CopyTask b) {
+					String folderA = String.valueOf(a.source.getParent());
+					String folderB = String.valueOf(b.source.getParent());
+					int order = Long.compare(folderInodes.get(folderA), folderInodes.get(folderB));
+					if (order == 0) order = folderA.compareTo(folderB);
+					if (order == 0) order = Long.compare(inodes.get(a), inodes.get(b));
+					if (order == 0) order = a.source.compareTo(b.source);
+					return order;
+				}
+			});
+			return sorted;
+		}
+	};
+
+	/**	Finds the inode number in a file key, which reads like <code>(dev=803,ino=1234)</code> on Unix.
+	 *
+	 */
+	private static final Pattern INODE = Pattern.compile("ino=(\\d+)");
+
+	/**	Returns the tasks in the order they should be started. The list passed in is not modified.
+	 *
+	 * @param tasks The tasks of one device.
+	 * @return List	A new list holding the same tasks in copy order.
+	 */
+	public abstract List<CopyTask> sort(List<CopyTask> tasks);
+
+	/**	Returns the inode number of a file from its file key, which is the key read from the file system or
+	 * its text saved in a {@link BackupPlan}.
+	 *
+	 * @param fileKey The file system's identity of the file, or null if unknown.
+	 * @return long	The inode number, or {@link Long#MAX_VALUE} if the key holds none.
+	 */
+	static long inodeOf(Object fileKey) {
+		if (fileKey != null) {
+			Matcher matcher = INODE.matcher(fileKey.toString());
+			if (matcher.find()) {
+				try {
+					return Long.parseLong(matcher.group(1));
+				} catch (NumberFormatException e) {
+					// larger than any inode a file system hands out
+				}
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,445 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CopyScheduler runs the {@link CopyTask}s of a backup concurrently across physical devices.
+ * <p>
+ * Tasks are grouped by the {@link FileStore} their source lives on. Every group gets its own queue and its own
+ * workers, so files on different disks are copied at the same time while each disk only sees as many
+ * concurrent streams as it handles well: one for a rotational disk, several for a solid state disk (see
+ * {@link FileSet#getRotationalConcurrency()} and {@link FileSet#getSolidStateConcurrency()}). The destination
+ * store is limited the same way, so a rotational destination still receives a single sequential stream
+ * regardless of how many source devices are feeding it.
+ * </p>
+ * <p>
+ * Within a device the tasks are sorted by the {@link FileSet#getCopyOrder()} and dealt out to one deque per
+ * worker. Each worker works from the head of its own deque and, when that runs dry, steals from the tail
+ * of the others, so no worker sits idle while another still has a backlog.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see CopyTask
+ *
+ */
+public class CopyScheduler {
+
+	/**
+	 * Performs the actual copy of a single {@link CopyTask}. Implemented by {@link FileOps}.
+	 */
+	public interface Copier {
+		/**	Copies a single file. Called concurrently from several worker threads.
+		 *
+		 * @param task The {@link CopyTask} to copy.
+		 */
+		public void copy(CopyTask task);
+	}
+
+	/**
+	 * Waits for something, such as a paused backup being resumed, while a worker holds nothing.
+	 */
+	public interface Wait {
+		/**	Returns once the worker may carry on.
+		 *
+		 * @throws InterruptedException if the worker is interrupted while waiting.
+		 */
+		public void await() throws InterruptedException;
+	}
+
+	/**	What a worker holds for the file it copies. Only touched by the worker's own thread.
+	 *
+	 */
+	private static final class Held {
+		/**	The device limit taken first and the one taken second, or null if source and destination are
+		 * on the same device.
+		 */
+		final Semaphore firstLimit;
+		final Semaphore secondLimit;
+		boolean controller;
+		boolean budget;
+		boolean first;
+		boolean second;
+
+		Held(StoreLimits.Limit sourceLimit, StoreLimits.Limit destinationLimit) {
+			boolean sourceFirst = sourceLimit.order <= destinationLimit.order;
+			this.firstLimit = sourceFirst ? sourceLimit : destinationLimit;
+			this.secondLimit = sourceLimit == destinationLimit ? null : sourceFirst ? destinationLimit : sourceLimit;
+		}
+	}
+
+	/**	The {@link FileSet} the concurrency limits are read from.
+	 *
+	 */
+	private final FileSet mFileSet;
+
+	/**	Performs each copy.
+	 *
+	 */
+	private final Copier mCopier;
+
+	/**	Set once {@link #cancel()} is called; workers stop taking new tasks.
+	 *
+	 */
+	private volatile boolean mCancelled;
+
+	/**	Optional controller that limits how many of the workers may copy at once; null if not used.
+	 *
+	 */
+	private ConcurrencyController mController;
+
+	/**	Optional registry that receives queue depth and worker utilisation; null if not used.
+	 *
+	 */
+	private Metrics mMetrics;
+
+	/**	Optional budget shared with other backups running at the same time; null if not used.
+	 *
+	 */
+	private WorkerBudget mBudget;
+
+	/**	Optional wait every worker passes, holding nothing, before it takes its next task; null if not used.
+	 *
+	 */
+	private Wait mGate;
+
+	/**	What the worker running on the current thread holds, or null on any other thread.
+	 *
+	 */
+	private final ThreadLocal<Held> mHeld = new ThreadLocal<Held>();
+
+	/**	Stores already looked up, keyed by directory, so each directory is only resolved once.
+	 *
+	 */
+	private final Map<Path, FileStore> mStoreCache = new HashMap<Path, FileStore>();
+
+	/**	Concurrency limit of each store, possibly shared with other schedulers.
+	 *
+	 */
+	private StoreLimits mStoreLimits = new StoreLimits();
+
+	/**	Constructor that takes the {@link FileSet} holding the concurrency limits and the {@link Copier}
+	 * that copies each task.
+	 *
+	 * @param fileSet The {@link FileSet} being backed up.
+	 * @param copier The {@link Copier} that copies each task.
+	 */
+	public CopyScheduler(FileSet fileSet, Copier copier) {
+		mFileSet = fileSet;
+		mCopier = copier;
+	}
+
+	/**	Lets a {@link ConcurrencyController} decide how many of the workers may copy at any moment. The
+	 * controller's upper bound is set to the total number of workers started by {@link #run(List, Path)}.
+	 *
+	 * @param controller the controller to use, or null to let every worker copy.
+	 */
+	public void setController(ConcurrencyController controller) {
+		mController = controller;
+	}
+
+	/**	Reports queue depth, worker count and worker utilisation to a {@link Metrics} registry.
+	 *
+	 * @param metrics the registry to report to, or null.
+	 */
+	public void setMetrics(Metrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**	Makes every worker take a slot of a {@link WorkerBudget} shared with other backups before each file.
+	 *
+	 * @param budget the budget to share, or null to copy independently of other backups.
+	 */
+	public void setWorkerBudget(WorkerBudget budget) {
+		mBudget = budget;
+	}
+
+	/**	Shares the concurrency limit of each device with other schedulers, so that backups running at the same
+	 * time together send a device no more concurrent streams than it handles well. Must be called before
+	 * {@link #run(List, Path)}.
+	 *
+	 * @param storeLimits the limits to share.
+	 */
+	public void setStoreLimits(StoreLimits storeLimits) {
+		mStoreLimits = storeLimits;
+	}
+
+	/**	Makes every worker pass a {@link Wait}, such as waiting while the backup is paused, before it takes its
+	 * next task and before it asks for a controller slot, a budget slot or a device permit.
+	 *
+	 * @param gate the wait to pass, or null to take tasks without waiting.
+	 */
+	public void setGate(Wait gate) {
+		mGate = gate;
+	}
+
+	/**	Makes a worker that has to wait in the middle of a file give back its controller slot, its budget slot
+	 * and its device permits while it waits, so that other backups can use them, and take them again in the
+	 * usual order before it carries on. Called by the {@link Copier} from within {@link Copier#copy(CopyTask)};
+	 * on a thread that is not a worker of this scheduler the wait simply runs.
+	 *
+	 * @param wait What to wait for.
+	 * @throws InterruptedException if the worker is interrupted while waiting or taking its slots again.
+	 */
+	public void releaseWhile(Wait wait) throws InterruptedException {
+		Held held = mHeld.get();
+		if (held == null) {
+			wait.await();
+			return;
+		}
+		release(held);
+		wait.await();
+		acquire(held);
+	}
+
+	/**	Copies all tasks and returns once every task has been copied or the scheduler was cancelled. If the
+	 * calling thread is interrupted, the scheduler is cancelled and the workers are waited for all the same.
+	 *
+	 * @param tasks The tasks to copy. They are started in {@link FileSet#getCopyOrder()} within each device.
+	 * @param destinationDir The backup directory the tasks are copied into, or null if it is not on this
+	 * 	machine; the destination then does not limit the number of concurrent copies.
+	 * @throws IOException
+	 * 	If the file store of a source or of the destination cannot be determined.
+	 * @throws InterruptedException
+	 * 	If the calling thread was interrupted while waiting for the workers; they have stopped by then.
+	 */
+	public void run(List<CopyTask> tasks, Path destinationDir) throws IOException, InterruptedException {
+		final StoreLimits.Limit destinationLimit = destinationDir != null
+				? limitFor(storeOf(destinationDir)) : new StoreLimits.Limit(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+		// Group the tasks by the store their source lives on, keeping their relative order
+		Map<FileStore, List<CopyTask>> groups = new LinkedHashMap<FileStore, List<CopyTask>>();
+		for (CopyTask task : tasks) {
+			FileStore store = storeOf(task.source.getParent());
+			List<CopyTask> group = groups.get(store);
+			if (group == null) {
+				group = new ArrayList<CopyTask>();
+				groups.put(store, group);
+			}
+			group.add(task);
+		}
+
+		int totalWorkers = 0;
+		for (Map.Entry<FileStore, List<CopyTask>> group : groups.entrySet()) {
+			totalWorkers += Math.min(limitFor(group.getKey()).permits, group.getValue().size());
+		}
+		if (mController != null) {
+			mController.setMaxWorkers(totalWorkers);
+		}
+		if (mMetrics != null) {
+			mMetrics.setWorkerCount(totalWorkers);
+			mMetrics.setQueueDepth(tasks.size());
+		}
+
+		List<ExecutorService> executors = new ArrayList<ExecutorService>();
+		for (Map.Entry<FileStore, List<CopyTask>> group : groups.entrySet()) {
+			final StoreLimits.Limit sourceLimit = limitFor(group.getKey());
+			int workers = Math.min(sourceLimit.permits, group.getValue().size());
+
+			// Deal the ordered tasks out to one deque per worker
+			final List<Deque<CopyTask>> deques = new ArrayList<Deque<CopyTask>>();
+			for (int i = 0; i < workers; i++) {
+				deques.add(new ConcurrentLinkedDeque<CopyTask>());
+			}
+			List<CopyTask> ordered = mFileSet.getCopyOrder().sort(group.getValue());
+			for (int i = 0; i < ordered.size(); i++) {
+				deques.get(i % workers).addLast(ordered.get(i));
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+			for (int i = 0; i < workers; i++) {
+				final int worker = i;
+				executor.execute(new Runnable() {
+					public void run() {
+						drain(deques, worker, sourceLimit, destinationLimit);
+					}
+				});
+			}
+			executor.shutdown();
+			executors.add(executor);
+		}
+		InterruptedException interrupted = null;
+		for (ExecutorService executor : executors) {
+			while (true) {
+				try {
+					if (executor.awaitTermination(1, TimeUnit.SECONDS)) break;
+					// keep waiting; workers exit on their own once their queue is empty or cancelled
+				} catch (InterruptedException e) {
+					// stop handing out tasks, but return only once the files being copied are let go of
+					cancel();
+					interrupted = e;
+				}
+			}
+		}
+		if (interrupted != null) {
+			throw interrupted;
+		}
+	}
+
+	/**	Stops handing out new tasks. Tasks already being copied are left to the {@link Copier}.
+	 *
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**	Utility function that reports whether a store is backed by a rotational disk. Only Linux exposes this
+	 * information; on other platforms, or when the device cannot be identified, null is returned.
+	 *
+	 * @param store The {@link FileStore} to check.
+	 * @return Boolean	True for a rotational disk, false for a solid state or memory backed store, null if unknown.
+	 */
+	public static Boolean isRotational(FileStore store) {
+		if ("tmpfs".equals(store.type()) || "ramfs".equals(store.type())) {
+			return false;
+		}
+		String name = store.name();
+		if (!name.startsWith("/dev/")) {
+			return null;
+		}
+		try {
+			Path device = Paths.get("/sys/class/block").resolve(Paths.get(name).toRealPath().getFileName());
+			if (!Files.exists(device)) {
+				return null;
+			}
+			device = device.toRealPath();
+			// partitions do not have a queue of their own; their parent device does
+			for (Path dir = device; dir != null; dir = dir.getParent()) {
+				Path rotational = dir.resolve("queue").resolve("rotational");
+				if (Files.isReadable(rotational)) {
+					return new String(Files.readAllBytes(rotational), "US-ASCII").trim().equals("1");
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// unknown device layout
+		}
+		return null;
+	}
+
+	/**	Takes the next task for a worker: the head of its own deque or, once that is empty, the tail of
+	 * another worker's deque. With {@link CopyOrder#LARGEST_FIRST} the tail holds the smallest files, so
+	 * idle workers pick up small files while the owners keep working through the large ones.
+	 *
+	 * @return CopyTask	The next task, or null once every deque of the device is empty.
+	 */
+	private static CopyTask nextTask(List<Deque<CopyTask>> deques, int worker) {
+		CopyTask task = deques.get(worker).pollFirst();
+		for (int i = 1; task == null && i < deques.size(); i++) {
+			task = deques.get((worker + i) % deques.size()).pollLast();
+		}
+		return task;
+	}
+
+	private void drain(List<Deque<CopyTask>> deques, int worker, StoreLimits.Limit sourceLimit,
+			StoreLimits.Limit destinationLimit) {
+		CopyTask task;
+		while (!mCancelled) {
+			Held held = new Held(sourceLimit, destinationLimit);
+			mHeld.set(held);
+			try {
+				if (mGate != null) {
+					mGate.await();
+				}
+				if (mCancelled || (task = nextTask(deques, worker)) == null) {
+					return;
+				}
+				acquire(held);
+				long start = System.nanoTime();
+				if (mMetrics != null) {
+					mMetrics.taskStarted();
+				}
+				try {
+					mCopier.copy(task);
+				} finally {
+					if (mMetrics != null) {
+						mMetrics.taskFinished(System.nanoTime() - start);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (CancellationException e) {
+				// the gate saw the backup cancelled
+				return;
+			} finally {
+				release(held);
+				mHeld.remove();
+			}
+		}
+	}
+
+	/**	Takes whatever a worker does not hold yet. The controller is always asked first, then the shared
+	 * budget, then the two device permits in the order of their {@link StoreLimits}, so two workers can never
+	 * wait on each other's permits, even of different backups.
+	 *
+	 */
+	private void acquire(Held held) throws InterruptedException {
+		if (mController != null && !held.controller) {
+			mController.acquire();
+			held.controller = true;
+		}
+		if (mBudget != null && !held.budget) {
+			mBudget.acquire(this);
+			held.budget = true;
+		}
+		if (!held.first) {
+			held.firstLimit.acquire();
+			held.first = true;
+		}
+		if (held.secondLimit != null && !held.second) {
+			held.secondLimit.acquire();
+			held.second = true;
+		}
+	}
+
+	/**	Gives back everything a worker holds, in the reverse order.
+	 *
+	 */
+	private void release(Held held) {
+		if (held.second) {
+			held.secondLimit.release();
+			held.second = false;
+		}
+		if (held.first) {
+			held.firstLimit.release();
+			held.first = false;
+		}
+		if (held.budget) {
+			mBudget.release(this);
+			held.budget = false;
+		}
+		if (held.controller) {
+			mController.release();
+			held.controller = false;
+		}
+	}
+
+	private synchronized FileStore storeOf(Path dir) throws IOException {
+		FileStore store = mStoreCache.get(dir);
+		if (store == null) {
+			store = Files.getFileStore(dir);
+			mStoreCache.put(dir, store);
+		}
+		return store;
+	}
+
+	private StoreLimits.Limit limitFor(FileStore store) {
+		return mStoreLimits.limitFor(store, mFileSet);
+	}
+}
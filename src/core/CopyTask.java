@@ -0,0 +1,87 @@
+package core;
+
+import java.nio.file.Path;
+
+/**
+ * A CopyTask describes one file that a {@link FileOps} operation is going to copy: where it is read from,
+ * where it is written to and how large it is.
+ * <p>
+ * Tasks are created once, before any copying starts, and are then handed to the {@link CopyScheduler}
+ * which decides which worker copies which file and when.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see CopyScheduler
+ *
+ */
+public class CopyTask {
+
+	/**
+	 * Absolute path of the source file.
+	 */
+	public final Path source;
+	/**
+	 * Path of the file relative to the backup directory.
+	 */
+	public final String relativePath;
+	/**
+	 * Absolute path of the file to create in the backup.
+	 */
+	public final Path destination;
+	/**
+	 * Size of the source file in bytes when the task was created.
+	 */
+	public final long size;
+	/**
+	 * Last modification time of the source file in milliseconds since the epoch, or 0 if unknown.
+	 */
+	public final long lastModified;
+	/**
+	 * The file system's identity of the source file (device and inode on Unix), or null if unknown.
+	 */
+	public final Object fileKey;
+
+	/** Constructor to create a CopyTask when the modification time is not known.
+	 * @param source Absolute path of the source file.
+	 * @param relativePath Path of the file relative to the backup directory.
+	 * @param destination Absolute path of the file to create in the backup.
+	 * @param size Size of the source file in bytes.
+	 */
+	public CopyTask(Path source, String relativePath, Path destination, long size) {
+		this(source, relativePath, destination, size, 0);
+	}
+
+	/** Constructor to create a CopyTask.
+	 * @param source Absolute path of the source file.
+	 * @param relativePath Path of the file relative to the backup directory.
+	 * @param destination Absolute path of the file to create in the backup.
+	 * @param size Size of the source file in bytes.
+	 * @param lastModified Last modification time of the source file in milliseconds since the epoch.
+	 */
+	public CopyTask(Path source, String relativePath, Path destination, long size, long lastModified) {
+		this(source, relativePath, destination, size, lastModified, null);
+	}
+
+	/** Constructor to create a CopyTask that knows the identity of its source file.
+	 * @param source Absolute path of the source file.
+	 * @param relativePath Path of the file relative to the backup directory.
+	 * @param destination Absolute path of the file to create in the backup.
+	 * @param size Size of the source file in bytes.
+	 * @param lastModified Last modification time of the source file in milliseconds since the epoch.
+	 * @param fileKey The file system's identity of the source file, or null if unknown.
+	 */
+	public CopyTask(Path source, String relativePath, Path destination, long size, long lastModified, Object fileKey) {
+		this.source = source;
+		this.relativePath = relativePath;
+		this.destination = destination;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.fileKey = fileKey;
+	}
+
+	@Override
+	public String toString() {
+		return (source + " -> " + destination + " (" + size + " bytes)");
+	}
+}
@@ -0,0 +1,533 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The DeltaCopier brings the copy of a large file up to date by rewriting only the blocks that changed, in
+ * the manner of rsync, instead of writing the whole file again.
+ * <p>
+ * The copy is described by a {@link Signature}: its contents cut into blocks, each with a weak rolling
+ * checksum and an MD5. The source is then scanned with the rolling checksum, which moves one byte at a time
+ * at almost no cost, and wherever the weak checksum of the window equals that of a block, the MD5 decides
+ * whether it really is that block. A block found at the offset it already has in the copy is left alone;
+ * everything else is written over the copy in place, and the copy is cut to the length of the source.
+ * Data that shifted (after an insertion, say) is therefore still rewritten, as with rsync's
+ * <code>--inplace</code>, but a file that changed in a few places costs only those places in writes.
+ * </p>
+ * <p>
+ * The signature of the new contents is computed while the source streams past and kept next to the copy,
+ * with the {@link #SIGNATURE_SUFFIX}, so the next update does not have to read the copy at all. The
+ * signature records the length and modification time of the copy it describes and is ignored once they
+ * no longer match. It is removed before the copy is touched and the copy receives the modification time of
+ * the source only once it is complete, so an update cut short leaves a copy that plainly differs from its
+ * source and is updated again.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see MirrorWatcher
+ *
+ */
+public class DeltaCopier {
+
+	/**	Size below which a file is simply copied again; the signature and the scan are not worth it.
+	 *
+	 */
+	public static final long MIN_FILE_SIZE = 8L << 20;
+
+	/**	Suffix of the signature file kept next to each copy.
+	 *
+	 */
+	public static final String SIGNATURE_SUFFIX = ".mirror-sig";
+
+	/**	Smallest block size; above it the block size grows with the square root of the file length.
+	 *
+	 */
+	public static final int MIN_BLOCK_SIZE = 4 * 1024;
+
+	/**	Largest block size.
+	 *
+	 */
+	public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	private static final int MAGIC = 0x4D534947; // "MSIG"
+	private static final int VERSION = 1;
+	private static final int STRONG_BYTES = 16;
+
+	/**	Size of the window of the source held in memory, at the least.
+	 *
+	 */
+	private static final int WINDOW_SIZE = 1024 * 1024;
+
+	/**
+	 * The outcome of an update.
+	 */
+	public static class Result {
+		/** Bytes written to the copy. */
+		public final long bytesWritten;
+		/** Bytes of the source found unchanged at the same offset in the copy, and not written. */
+		public final long bytesUnchanged;
+		/** CRC32 of the source. */
+		public final long checksum;
+
+		Result(long bytesWritten, long bytesUnchanged, long checksum) {
+			this.bytesWritten = bytesWritten;
+			this.bytesUnchanged = bytesUnchanged;
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * The block checksums of a file.
+	 */
+	public static class Signature {
+		private final long mLength;
+		private final long mLastModified;
+		private final int mBlockSize;
+		private final int[] mWeak;
+		private final byte[] mStrong;
+
+		/**	Weak checksum hash table: the first block of each bucket, and the next block of each block.
+		 *
+		 */
+		private int[] mHeads;
+		private int[] mNext;
+
+		Signature(long length, long lastModified, int blockSize, int[] weak, byte[] strong) {
+			mLength = length;
+			mLastModified = lastModified;
+			mBlockSize = blockSize;
+			mWeak = weak;
+			mStrong = strong;
+		}
+
+		/**
+		 * @return the length of the file described.
+		 */
+		public long getLength() {
+			return mLength;
+		}
+
+		/**
+		 * @return the modification time of the file described, in milliseconds since the epoch.
+		 */
+		public long getLastModified() {
+			return mLastModified;
+		}
+
+		/**
+		 * @return the size of each block but the last.
+		 */
+		public int getBlockSize() {
+			return mBlockSize;
+		}
+
+		/**
+		 * @return the number of blocks.
+		 */
+		public int getBlockCount() {
+			return mWeak.length;
+		}
+
+		private int lengthOf(int block) {
+			return (int) Math.min(mBlockSize, mLength - (long) block * mBlockSize);
+		}
+
+		private void index() {
+			int buckets = Integer.highestOneBit(Math.max(16, mWeak.length * 2 - 1)) << 1;
+			mHeads = new int[buckets];
+			Arrays.fill(mHeads, -1);
+			mNext = new int[mWeak.length];
+			// chained backwards, so each chain lists its blocks in file order
+			for (int block = mWeak.length - 1; block >= 0; block--) {
+				int bucket = bucketOf(mWeak[block]);
+				mNext[block] = mHeads[bucket];
+				mHeads[bucket] = block;
+			}
+		}
+
+		private int bucketOf(int weak) {
+			int h = weak * 0x9E3779B1;
+			return (h ^ (h >>> 16)) & (mHeads.length - 1);
+		}
+
+		private boolean strongEquals(int block, byte[] strong) {
+			int offset = block * STRONG_BYTES;
+			for (int i = 0; i < STRONG_BYTES; i++) {
+				if (mStrong[offset + i] != strong[i]) return false;
+			}
+			return true;
+		}
+
+		/**	Finds the block a window of the source equals, preferring the block at the window's own offset.
+		 *
+		 * @return int	The block, or -1 if there is none.
+		 */
+		int find(int weak, byte[] data, int off, int len, long offset, MessageDigest md5) {
+			if (mHeads == null) index();
+			int bucket = bucketOf(weak);
+			if (mHeads[bucket] < 0) return -1;
+			byte[] strong = null;
+			if (offset % mBlockSize == 0 && offset / mBlockSize < mWeak.length) {
+				int aligned = (int) (offset / mBlockSize);
+				if (mWeak[aligned] == weak && lengthOf(aligned) == len) {
+					strong = digest(md5, data, off, len);
+					if (strongEquals(aligned, strong)) return aligned;
+				}
+			}
+			for (int block = mHeads[bucket]; block >= 0; block = mNext[block]) {
+				if (mWeak[block] != weak || lengthOf(block) != len) continue;
+				if (strong == null) strong = digest(md5, data, off, len);
+				if (strongEquals(block, strong)) return block;
+			}
+			return -1;
+		}
+
+		/**	Writes the signature to a file, through a temporary file moved into place.
+		 *
+		 * @param file The file to write.
+		 * @throws IOException if the file cannot be written.
+		 */
+		public void save(Path file) throws IOException {
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(mLength);
+				out.writeLong(mLastModified);
+				out.writeInt(mBlockSize);
+				out.writeInt(mWeak.length);
+				for (int weak : mWeak) {
+					out.writeInt(weak);
+				}
+				out.write(mStrong);
+			} finally {
+				out.close();
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**	Reads a signature saved by {@link #save(Path)}.
+		 *
+		 * @param file The file to read.
+		 * @return Signature	The signature, or null if the file is missing or damaged.
+		 */
+		public static Signature load(Path file) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+				try {
+					if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+					long length = in.readLong();
+					long lastModified = in.readLong();
+					int blockSize = in.readInt();
+					int count = in.readInt();
+					if (blockSize <= 0 || length < 0 || count != blockCount(length, blockSize)) return null;
+					int[] weak = new int[count];
+					for (int i = 0; i < count; i++) {
+						weak[i] = in.readInt();
+					}
+					byte[] strong = new byte[count * STRONG_BYTES];
+					in.readFully(strong);
+					if (in.read() >= 0) return null;
+					return new Signature(length, lastModified, blockSize, weak, strong);
+				} finally {
+					in.close();
+				}
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (EOFException e) {
+				return null;
+			} catch (IOException e) {
+				System.err.println("Unable to read signature " + file + ": " + e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**	Builds a {@link Signature} from contents fed in order, and the CRC32 of all of them.
+	 *
+	 */
+	private static final class SignatureBuilder {
+		private final int mBlockSize;
+		private final MessageDigest mMd5 = md5();
+		private final CRC32 mCrc = new CRC32();
+		private int[] mWeak = new int[64];
+		private byte[] mStrong = new byte[64 * STRONG_BYTES];
+		private int mCount;
+		private long mLength;
+		private int mInBlock;
+		private int mS1;
+		private int mS2;
+
+		SignatureBuilder(int blockSize) {
+			mBlockSize = blockSize;
+		}
+
+		void update(byte[] data, int off, int len) {
+			mCrc.update(data, off, len);
+			mLength += len;
+			while (len > 0) {
+				int n = Math.min(len, mBlockSize - mInBlock);
+				mMd5.update(data, off, n);
+				int s1 = mS1, s2 = mS2;
+				for (int i = off; i < off + n; i++) {
+					s1 += data[i] & 0xff;
+					s2 += s1;
+				}
+				mS1 = s1;
+				mS2 = s2;
+				mInBlock += n;
+				off += n;
+				len -= n;
+				if (mInBlock == mBlockSize) {
+					endBlock();
+				}
+			}
+		}
+
+		private void endBlock() {
+			if (mCount == mWeak.length) {
+				mWeak = Arrays.copyOf(mWeak, mCount * 2);
+				mStrong = Arrays.copyOf(mStrong, mCount * 2 * STRONG_BYTES);
+			}
+			mWeak[mCount] = weak(mS1, mS2);
+			try {
+				mMd5.digest(mStrong, mCount * STRONG_BYTES, STRONG_BYTES);
+			} catch (java.security.DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			mCount++;
+			mInBlock = 0;
+			mS1 = 0;
+			mS2 = 0;
+		}
+
+		Signature finish(long lastModified) {
+			if (mInBlock > 0) {
+				endBlock();
+			}
+			return new Signature(mLength, lastModified, mBlockSize, Arrays.copyOf(mWeak, mCount),
+					Arrays.copyOf(mStrong, mCount * STRONG_BYTES));
+		}
+
+		long checksum() {
+			return mCrc.getValue();
+		}
+	}
+
+	private DeltaCopier() {
+	}
+
+	/**	Returns the block size used for a file: the square root of its length, rounded up to a multiple of
+	 * {@link #MIN_BLOCK_SIZE} and no more than {@link #MAX_BLOCK_SIZE}.
+	 *
+	 * @param length The length of the file.
+	 * @return int	The block size.
+	 */
+	public static int blockSizeFor(long length) {
+		long size = (long) Math.ceil(Math.sqrt((double) length));
+		size = (size + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE * MIN_BLOCK_SIZE;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**	Returns the signature file kept for a copy.
+	 *
+	 * @param copy The copy.
+	 * @return Path	The signature file next to it.
+	 */
+	public static Path signatureFile(Path copy) {
+		return copy.resolveSibling(copy.getFileName() + SIGNATURE_SUFFIX);
+	}
+
+	/**	Returns the signature of a copy: the one kept next to it if it still describes the copy, or else one
+	 * computed by reading the copy.
+	 *
+	 * @param copy The copy.
+	 * @return Signature	The signature of the copy.
+	 * @throws IOException if the copy cannot be read.
+	 */
+	public static Signature signatureOf(Path copy) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(copy, BasicFileAttributes.class);
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		Signature kept = Signature.load(signatureFile(copy));
+		if (kept != null && kept.getLength() == attrs.size() && kept.getLastModified() == lastModified) {
+			return kept;
+		}
+		SignatureBuilder builder = new SignatureBuilder(blockSizeFor(attrs.size()));
+		byte[] buffer = new byte[WINDOW_SIZE];
+		InputStream in = Files.newInputStream(copy);
+		try {
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				builder.update(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+		return builder.finish(lastModified);
+	}
+
+	/**	Brings a copy up to date with its source by rewriting only what changed, gives it the source's
+	 * modification time and keeps the new signature next to it.
+	 *
+	 * @param source The source file.
+	 * @param copy The existing copy of the source.
+	 * @param lastModified The modification time to give the copy, in milliseconds since the epoch.
+	 * @return Result	What was written.
+	 * @throws IOException if the source cannot be read or the copy cannot be written.
+	 */
+	public static Result update(Path source, Path copy, long lastModified) throws IOException {
+		Signature old = signatureOf(copy);
+		Path sidecar = signatureFile(copy);
+		Files.deleteIfExists(sidecar);
+
+		SignatureBuilder fresh = new SignatureBuilder(blockSizeFor(Files.size(source)));
+		Result result;
+		InputStream in = Files.newInputStream(source);
+		FileChannel target = FileChannel.open(copy, StandardOpenOption.WRITE);
+		try {
+			result = scan(in, target, old, fresh);
+			target.truncate(fresh.mLength);
+		} finally {
+			try {
+				in.close();
+			} finally {
+				target.close();
+			}
+		}
+		Files.setLastModifiedTime(copy, FileTime.fromMillis(lastModified));
+		try {
+			fresh.finish(lastModified).save(sidecar);
+		} catch (IOException e) {
+			System.err.println("Unable to keep signature " + sidecar + ": " + e.getMessage());
+		}
+		return result;
+	}
+
+	/**	Scans the source against the signature of the copy and writes every part not found at its own offset.
+	 *
+	 */
+	private static Result scan(InputStream in, FileChannel target, Signature signature, SignatureBuilder fresh)
+			throws IOException {
+		int blockSize = signature.getBlockSize();
+		MessageDigest md5 = md5();
+		byte[] buf = new byte[Math.max(WINDOW_SIZE, 4 * blockSize)];
+		long base = 0;		// offset in the source of buf[0]
+		int end = 0;		// bytes held in buf
+		int start = 0;		// start of the window
+		int literal = 0;	// start of the bytes not yet written
+		boolean eof = false;
+		boolean rolling = false;
+		int s1 = 0, s2 = 0;
+		long written = 0, unchanged = 0;
+
+		while (true) {
+			if (end - start <= blockSize && !eof) {
+				// everything before the window is settled: write it out and make room
+				written += write(target, buf, literal, start - literal, base + literal);
+				fresh.update(buf, 0, start);
+				System.arraycopy(buf, start, buf, 0, end - start);
+				base += start;
+				end -= start;
+				start = 0;
+				literal = 0;
+				int n;
+				while (end < buf.length && (n = in.read(buf, end, buf.length - end)) >= 0) {
+					end += n;
+				}
+				eof = end < buf.length;
+			}
+			int len = Math.min(blockSize, end - start);
+			if (len == 0) break;
+			if (!rolling) {
+				s1 = 0;
+				s2 = 0;
+				for (int i = start; i < start + len; i++) {
+					s1 += buf[i] & 0xff;
+					s2 += s1;
+				}
+				rolling = true;
+			}
+			long offset = base + start;
+			int block = signature.find(weak(s1, s2), buf, start, len, offset, md5);
+			if (block >= 0) {
+				written += write(target, buf, literal, start - literal, base + literal);
+				if (offset == (long) block * blockSize) {
+					unchanged += len;
+				} else {
+					written += write(target, buf, start, len, offset);
+				}
+				start += len;
+				literal = start;
+				rolling = false;
+			} else if (len < blockSize || start + len == end) {
+				// nothing left to roll in: try the short last block at its own offset, else give up
+				long nextAligned = (offset / blockSize + 1) * blockSize;
+				start = len == blockSize && nextAligned < base + end ? (int) (nextAligned - base) : start + len;
+				rolling = false;
+			} else {
+				int out = buf[start] & 0xff;
+				int next = buf[start + len] & 0xff;
+				s1 += next - out;
+				s2 += s1 - len * out;
+				start++;
+			}
+		}
+		written += write(target, buf, literal, start - literal, base + literal);
+		fresh.update(buf, 0, end);
+		return new Result(written, unchanged, fresh.checksum());
+	}
+
+	private static long write(FileChannel target, byte[] buf, int off, int len, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(buf, off, len);
+		while (buffer.hasRemaining()) {
+			position += target.write(buffer, position);
+		}
+		return len;
+	}
+
+	/**	Combines the two running sums into the weak checksum of a block.
+	 *
+	 */
+	private static int weak(int s1, int s2) {
+		return (s1 & 0xffff) | (s2 << 16);
+	}
+
+	private static byte[] digest(MessageDigest md5, byte[] data, int off, int len) {
+		md5.update(data, off, len);
+		return md5.digest();
+	}
+
+	private static int blockCount(long length, int blockSize) {
+		return (int) ((length + blockSize - 1) / blockSize);
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to provide MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
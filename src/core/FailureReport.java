@@ -0,0 +1,166 @@
+package core;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The FailureReport lists the files and folders a {@link FileOps} operation could not copy, each with the
+ * reason, the number of attempts made and the destination it is missing from, and counts the files that
+ * were copied only after a retry.
+ * <p>
+ * A backup no longer stops at the first source it cannot read, nor reports success while leaving files out:
+ * what could not be copied is collected here and handed to
+ * {@link FileOpsMessageHandler#handleFailures(FailureReport)} when the operation ends.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see RetryQueue
+ *
+ */
+public class FailureReport {
+
+	/**
+	 * One file or folder that could not be copied.
+	 */
+	public static class Failure {
+		/** The source file or folder. */
+		public final Path source;
+		/** Why it could not be copied. */
+		public final String reason;
+		/** Number of attempts made at copying it; 0 if it could not even be listed. */
+		public final int attempts;
+		/** The destination it is missing from, such as a further destination or a mirror receiver; null if it
+		 * is missing from every destination. */
+		public final String destination;
+
+		/**	Constructor that records one failure.
+		 *
+		 * @param source The source file or folder.
+		 * @param reason Why it could not be copied.
+		 * @param attempts Number of attempts made at copying it; 0 if it could not even be listed.
+		 */
+		public Failure(Path source, String reason, int attempts) {
+			this(source, reason, attempts, null);
+		}
+
+		/**	Constructor that records one failure at one destination.
+		 *
+		 * @param source The source file or folder.
+		 * @param reason Why it could not be copied.
+		 * @param attempts Number of attempts made at copying it; 0 if it could not even be listed.
+		 * @param destination The destination it is missing from, or null if it is missing from every one.
+		 */
+		public Failure(Path source, String reason, int attempts, String destination) {
+			this.source = source;
+			this.reason = reason;
+			this.attempts = attempts;
+			this.destination = destination;
+		}
+
+		/**
+		 * @return the source, the destination it is missing from, the reason and the number of attempts on
+		 * one line.
+		 */
+		@Override
+		public String toString() {
+			String where = destination != null ? source + " to " + destination : source.toString();
+			if (attempts == 0) {
+				return where + " (" + reason + ")";
+			}
+			return String.format(Locale.ROOT, "%s (%s, after %d attempt(s))", where, reason, attempts);
+		}
+	}
+
+	private final List<Failure> mFailures = new ArrayList<Failure>();
+	private final AtomicInteger mRetries = new AtomicInteger();
+	private final AtomicInteger mRecovered = new AtomicInteger();
+
+	/**	Records a file or folder that could not be copied.
+	 *
+	 * @param source The source file or folder.
+	 * @param error Why it could not be copied.
+	 * @param attempts Number of attempts made at copying it; 0 if it could not even be listed.
+	 */
+	public void add(Path source, Exception error, int attempts) {
+		add(source, null, error, attempts);
+	}
+
+	/**	Records a file or folder that could not be copied to one destination.
+	 *
+	 * @param source The source file or folder.
+	 * @param destination The destination it is missing from, or null if it is missing from every one.
+	 * @param error Why it could not be copied.
+	 * @param attempts Number of attempts made at copying it; 0 if it could not even be listed.
+	 */
+	public void add(Path source, String destination, Exception error, int attempts) {
+		String reason = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+		synchronized (mFailures) {
+			mFailures.add(new Failure(source, reason, attempts, destination));
+		}
+	}
+
+	/**	Counts a file handed to the {@link RetryQueue}.
+	 *
+	 */
+	public void recordRetry() {
+		mRetries.incrementAndGet();
+	}
+
+	/**	Counts a file that was copied on a retry.
+	 *
+	 */
+	public void recordRecovered() {
+		mRecovered.incrementAndGet();
+	}
+
+	/**
+	 * @return the files and folders that could not be copied, in the order they failed.
+	 */
+	public List<Failure> getFailures() {
+		synchronized (mFailures) {
+			return new ArrayList<Failure>(mFailures);
+		}
+	}
+
+	/**
+	 * @return true if everything was copied.
+	 */
+	public boolean isEmpty() {
+		synchronized (mFailures) {
+			return mFailures.isEmpty();
+		}
+	}
+
+	/**
+	 * @return the number of retries made.
+	 */
+	public int getRetries() {
+		return mRetries.get();
+	}
+
+	/**
+	 * @return the number of files copied on a retry.
+	 */
+	public int getRecovered() {
+		return mRecovered.get();
+	}
+
+	/**
+	 * @return a summary line followed by one line per failure.
+	 */
+	@Override
+	public String toString() {
+		List<Failure> failures = getFailures();
+		StringBuilder text = new StringBuilder();
+		text.append(String.format(Locale.ROOT, "%d file(s) or folder(s) not copied, %d copied after a retry%n",
+				failures.size(), getRecovered()));
+		for (Failure failure : failures) {
+			text.append("Not copied: ").append(failure).append('\n');
+		}
+		return text.toString();
+	}
+}
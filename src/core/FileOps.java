@@ -1,16 +1,36 @@
 package core;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import javax.swing.SwingWorker;
 import core.FileSet;
 
@@ -44,6 +64,234 @@ public class FileOps extends SwingWorker<Void, Progress> {
 	 */
 	private final FileOpsMessageHandler mMessageHandler;
 
+	/**	Limits the rate at which bytes and files are copied. Shared by everything that copies on behalf of
+	 * this operation and adjustable while the operation runs.
+	 * 
+	 * @see #getThrottle()
+	 */
+	private final Throttle mThrottle;
+
+	/**	Runs the copy workers. Created when the operation starts.
+	 * 
+	 */
+	private CopyScheduler mScheduler;
+
+	/**	Tunes the number of active workers when {@link FileSet#isAdaptiveConcurrency()} is set; otherwise null.
+	 * 
+	 */
+	private ConcurrencyController mController;
+
+	/**	Receives the files below {@link #mPackThreshold}, or null when packing is disabled.
+	 * 
+	 */
+	private PackWriter mPackWriter;
+
+	/**	Files smaller than this many bytes are packed.
+	 * 
+	 * @see FileSet#getPackThreshold()
+	 */
+	private long mPackThreshold;
+
+	/**	Total bytes and files of the operation, fixed when the operation starts.
+	 * 
+	 */
+	private long mTotalBytes;
+	private int mTotalFiles;
+
+	/**	Bytes and files copied so far, updated by all copy workers.
+	 * 
+	 */
+	private final AtomicLong mCompletedBytes = new AtomicLong();
+	private final AtomicInteger mCompletedFiles = new AtomicInteger();
+
+	/**	Live statistics of this operation, published over JMX while the operation runs.
+	 * 
+	 * @see #getMetrics()
+	 */
+	private final Metrics mMetrics;
+
+	/**	Directory the {@link PerformanceReport} is saved in, or null to not save it.
+	 * 
+	 */
+	private Path mReportDirectory = PerformanceReport.DEFAULT_DIRECTORY;
+
+	/**	File the {@link FileStateCache} of the backup is kept in, or null to not keep one.
+	 * 
+	 */
+	private Path mStateFile;
+
+	/**	Records the state of every file copied, or null when no cache is kept.
+	 * 
+	 */
+	private FileStateCache mStateCache;
+
+	/**	Copy slots shared with other backups running at the same time, or null.
+	 * 
+	 */
+	private WorkerBudget mWorkerBudget;
+
+	/**	Device concurrency limits shared with other backups running at the same time, or null.
+	 * 
+	 */
+	private StoreLimits mStoreLimits;
+
+	/**	Write the copies for the destinations after the first, from the buffers read for the first.
+	 * 
+	 * @see FileSet#getDestinations()
+	 */
+	private final List<TeeWriter> mTeeWriters = new ArrayList<TeeWriter>();
+
+	/**	The files to copy again to one further destination only, each with the writer of that destination.
+	 * 
+	 */
+	private final Map<CopyTask, TeeWriter> mTeeRetries = new ConcurrentHashMap<CopyTask, TeeWriter>();
+
+	/**	The attempt number of each file being copied again to a further destination.
+	 * 
+	 */
+	private final Map<CopyTask, Integer> mTeeAttempts = new ConcurrentHashMap<CopyTask, Integer>();
+
+	/**	Sends the backup to a {@link MirrorReceiver} when the destination is a mirror address; otherwise null.
+	 * 
+	 */
+	private MirrorClient mRemote;
+
+	/**	A file sent to the {@link MirrorReceiver}, passed back with its answer.
+	 * 
+	 */
+	private static final class SentFile {
+		final CopyTask task;
+		final int attempt;
+		/** Set when the sender gave the file up itself, so the receiver's answer is not a new failure. */
+		volatile boolean aborted;
+
+		SentFile(CopyTask task, int attempt) {
+			this.task = task;
+			this.attempt = attempt;
+		}
+	}
+
+	/**	Passphrase of an encrypted backup, or null.
+	 * 
+	 * @see FileSet#isEncrypted()
+	 */
+	private char[] mPassphrase;
+
+	/**	The files to copy, worked out beforehand by a {@link BackupPlanner}, or null to scan the sources.
+	 * 
+	 * @see #setPlan(BackupPlan)
+	 */
+	private BackupPlan mPlan;
+
+	/**	Encrypts every file copied when {@link FileSet#isEncrypted()} is set; otherwise null.
+	 * 
+	 */
+	private BackupEncryption mEncryption;
+
+	/**	Destination directories already created, so each is created only once.
+	 * 
+	 */
+	private final Set<Path> mCreatedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+	/**	Copies the files that failed again, off the copy workers; created when the operation starts.
+	 * 
+	 */
+	private RetryQueue mRetryQueue;
+	private int mRetryAttempts = RetryQueue.DEFAULT_ATTEMPTS;
+	private long mRetryDelayMillis = RetryQueue.DEFAULT_DELAY_MILLIS;
+
+	/**	The files and folders that could not be copied.
+	 * 
+	 */
+	private final FailureReport mFailures = new FailureReport();
+
+	/**	Set once a copy failed because the destination ran out of space; the backup then stops.
+	 * 
+	 */
+	private volatile IOException mDestinationFull;
+
+	/**	Set while the operation is paused; the workers wait on {@link #mPauseLock} before their next chunk.
+	 * 
+	 */
+	private volatile boolean mPaused;
+	private final Object mPauseLock = new Object();
+
+	/**	Longest time a paused worker waits before it checks again whether the operation was cancelled.
+	 * 
+	 */
+	private static final long PAUSE_CHECK_MILLIS = 100;
+
+	/**	Waits until the operation is no longer paused or is cancelled.
+	 * 
+	 */
+	private final CopyScheduler.Wait mPauseWait = new CopyScheduler.Wait() {
+		public void await() throws InterruptedException {
+			synchronized (mPauseLock) {
+				while (mPaused && !isCancelled()) {
+					mPauseLock.wait(PAUSE_CHECK_MILLIS);
+				}
+			}
+		}
+	};
+
+	/**	Lets a worker waiting for {@link Throttle} tokens stop once the operation is cancelled.
+	 * 
+	 */
+	private final Throttle.Cancellation mThrottleCancellation = new Throttle.Cancellation() {
+		public boolean isCancelled() {
+			return FileOps.this.isCancelled();
+		}
+	};
+
+	/**	Released once the copy has stopped and what was copied is saved, which is later than {@link #done()}
+	 * when the operation is cancelled.
+	 * 
+	 */
+	private final CountDownLatch mStopped = new CountDownLatch(1);
+
+	/**	The completed copies whose old backups are removed once completion is reported, or null if there is
+	 * nothing to remove.
+	 * 
+	 */
+	private volatile List<Path> mPruneDirs;
+
+	/**	Released once the old backups are removed, or once completion is reported if there is nothing to remove.
+	 * 
+	 */
+	private final CountDownLatch mPruned = new CountDownLatch(1);
+
+	/**	Size of the buffer each file is copied through. Large enough that timing every read and write costs
+	 * next to nothing.
+	 * 
+	 */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**	Smallest copy that is created at its full length before it is written; see {@link #preallocate(File, long)}.
+	 * 
+	 */
+	private static final long PREALLOCATE_MIN_BYTES = 1024 * 1024;
+
+	/**	The usual block size of a file system; the space of every file that is not packed is rounded up to it
+	 * when the free space of a destination is checked.
+	 * 
+	 */
+	public static final long ALLOCATION_UNIT = 4096;
+
+	/**	Progress within a file is reported at most this often, across all workers, in nanoseconds.
+	 * 
+	 */
+	private static final long PROGRESS_INTERVAL_NANOS = 100000000L;
+
+	/**	Time of the last progress report within a file, from {@link System#nanoTime()}.
+	 * 
+	 */
+	private final AtomicLong mLastTick = new AtomicLong(System.nanoTime());
+
+	/**	Derives rates and the estimated time left from the progress reports.
+	 * 
+	 */
+	private final RateEstimator mRateEstimator = new RateEstimator();
+
 
 	/**	Constructor that takes a {@link FileSet} to conduct operations with and a {@link FileOpsMessageHandler}
 	 * that will take call-backs with {@link Progress} updates as the operation progresses.
@@ -63,6 +311,9 @@ public class FileOps extends SwingWorker<Void, Progress> {
 		validateFileSet(files);
 		mFilesToCopy = files;
 		mMessageHandler = handler;
+		mThrottle = new Throttle(files);
+		mThrottle.setCancellation(mThrottleCancellation);
+		mMetrics = new Metrics(files.getName());
 	}
 
 	/**	Constructor that takes a {@link FileSet} to conduct operations on. Use this constructor when there is
@@ -75,6 +326,9 @@ public class FileOps extends SwingWorker<Void, Progress> {
 		validateFileSet(files);
 		mMessageHandler = null;
 		mFilesToCopy = files;
+		mThrottle = new Throttle(files);
+		mThrottle.setCancellation(mThrottleCancellation);
+		mMetrics = new Metrics(files.getName());
 	}
 
 	/** Defines the copy operation, passing {@link Progress} updates back to a {@link FileOpsMessageHandler} if
@@ -95,86 +349,1048 @@ public class FileOps extends SwingWorker<Void, Progress> {
 	 */
 	@Override
 	public Void doInBackground() throws Exception {
-		System.out.println("starting backup");
+		try {
+			return backUp();
+		} finally {
+			mStopped.countDown();
+		}
+	}
 
-		final long totalBytes = mFilesToCopy.getTotalBytes();
-		long completedBytes = 0;
-		final int totalFiles =mFilesToCopy.getSize();
-		int completedFiles = 0;
+	/**	Checks the destinations, lists the files and copies them; see {@link #doInBackground()}.
+	 * 
+	 * @throws Exception if the backup cannot be started.
+	 */
+	private Void backUp() throws Exception {
+		System.out.println("starting backup");
 
-		// Create a File object from the destination path of the FileSet
-		Path destParent = Paths.get(mFilesToCopy.getDestination());
-		System.out.println("Set destination parent directory to: " + destParent);
+		Path destinationDir;
+		if (MirrorClient.isMirrorAddress(mFilesToCopy.getDestination())) {
+			// The receiver checks the destination when the connection opens; paths are on the receiver
+			mRemote = new MirrorClient(mFilesToCopy.getDestination());
+			destinationDir = Paths.get(mRemote.getDirectory()).resolve(mFilesToCopy.getName());
+			System.out.println("Set destination to: " + MirrorClient.describe(mFilesToCopy.getDestination()));
+		} else {
+			// Create a File object from the destination path of the FileSet
+			Path destParent = Paths.get(mFilesToCopy.getDestination());
+			System.out.println("Set destination parent directory to: " + destParent);
 
-		Path destinationDir = destParent.resolve(mFilesToCopy.getName());
-		System.out.println("Set destination backup directory to: " + destinationDir);
-		// Check that the destination doesn't already exist and also that it is writable
-		if (Files.exists(destinationDir) || !Files.isWritable(destParent)) {
-			throw new IOException("Destination already exists - copying aborted");
+			destinationDir = destParent.resolve(mFilesToCopy.getName());
+			System.out.println("Set destination backup directory to: " + destinationDir);
+			// Check that the destination doesn't already exist and also that it is writable
+			if (Files.exists(destinationDir) || !Files.isWritable(destParent)) {
+				throw new IOException("Destination already exists - copying aborted");
+			}
 		}
+		// Every further destination gets a copy of the backup too, so check them all before writing any
+		List<String> destinations = mFilesToCopy.getDestinations();
+		List<Path> extraDirs = new ArrayList<Path>();
+		for (int i = 1; i < destinations.size(); i++) {
+			Path extraParent = Paths.get(destinations.get(i));
+			Path extraDir = extraParent.resolve(mFilesToCopy.getName());
+			if (Files.exists(extraDir) || !Files.isWritable(extraParent)) {
+				throw new IOException("Destination " + extraParent + " already exists - copying aborted");
+			}
+			extraDirs.add(extraDir);
+		}
+		if (mFilesToCopy.isEncrypted()) {
+			if (mPassphrase == null) {
+				throw new IOException("The backup is encrypted - a passphrase is needed");
+			}
+			mEncryption = BackupEncryption.create(mPassphrase);
+		}
+		if (mPlan != null && !mPlan.getFingerprint().equals(BackupPlan.fingerprint(mFilesToCopy))) {
+			throw new IOException("The plan was made for other sources or rules - copying aborted");
+		}
+
+		mMetrics.register();
+		Object backupEvent = CopyEvents.beginBackup();
+
+		final ArrayList<CopyTask> tasks = new ArrayList<CopyTask>();
+		final Set<Path> sources = new HashSet<Path>();
+		final Path backupDir = destinationDir;
+		if (mPlan != null) {
+			// the sources were scanned when the plan was made
+			for (BackupPlan.Entry entry : mPlan.getEntries()) {
+				tasks.add(entry.toTask(destinationDir));
+			}
+			for (Map.Entry<String, String> unreadable : mPlan.getUnreadable().entrySet()) {
+				notListed(Paths.get(unreadable.getKey()), new IOException(unreadable.getValue()));
+			}
+		} else {
+			PathFilter filter = new PathFilter(mFilesToCopy);
+			for (int i = 0; i < mFilesToCopy.getSize(); i++) {
+				Path sourcePath = Paths.get(mFilesToCopy.get(i));
+
+				// An unreadable source is reported and the others are still copied
+				long statStart = System.nanoTime();
+				BasicFileAttributes attrs;
+				try {
+					if (!Files.isReadable(sourcePath)) throw new IOException("File " + sourcePath.getFileName() + " is not readable.");
+					attrs = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+				} catch (IOException e) {
+					notListed(sourcePath, e);
+					continue;
+				}
+
+				if (attrs.isDirectory()) {
+					// Add every file below the folder that passes the rules; excluded folders are never read
+					final long[] lastFound = { statStart };
+					int skipped = filter.walk(sourcePath, new PathFilter.FailureVisitor() {
+						public void visitFile(Path file, BasicFileAttributes fileAttrs) {
+							long now = System.nanoTime();
+							mMetrics.record(Metrics.Phase.STAT, now - lastFound[0]);
+							lastFound[0] = now;
+							if (sources.add(file)) {
+								tasks.add(newTask(file, fileAttrs, backupDir));
+							}
+						}
 
-		Files.createDirectories(destinationDir);
+						public void visitFailed(Path file, IOException e) {
+							notListed(file, e);
+						}
+					});
+					if (skipped > 0) {
+						System.out.println("Skipped " + skipped + " excluded folder(s) in " + sourcePath);
+					}
+					continue;
+				}
 
-		ArrayList<Path> mFilesToCopy = new ArrayList<Path>();
-		for (int i = 0; i < totalFiles; i++) {
-			Path sourcePath = Paths.get(this.mFilesToCopy.get(i));
+				// Add the file to the list of tasks
+				mMetrics.record(Metrics.Phase.STAT, System.nanoTime() - statStart);
+				if (sources.add(sourcePath)) {
+					tasks.add(newTask(sourcePath, attrs, destinationDir));
+				}
+			}
+		}
+		mTotalFiles = tasks.size();
+		mTotalBytes = 0;
+		for (CopyTask task : tasks) {
+			mTotalBytes += task.size;
+		}
 
-			// Validate the file is readable.
-			if (!Files.isReadable(sourcePath)) throw new IOException("File " + sourcePath.getFileName() + " is not readable.");
+		// Small files are appended into pack files when the FileSet asks for it
+		mPackThreshold = mFilesToCopy.getPackThreshold();
+		boolean packing = false;
+		if (mPackThreshold > 0 && mRemote != null) {
+			System.out.println("Files are not packed for a mirror destination");
+		} else if (mPackThreshold > 0 && mEncryption != null) {
+			System.out.println("Files are not packed in an encrypted backup");
+		} else if (mPackThreshold > 0) {
+			packing = true;
+		}
 
-			// Add the file to the ArrayList
-			mFilesToCopy.add(sourcePath);
+		// Fail before writing anything if a destination cannot hold the backup
+		long needed = 0;
+		for (CopyTask task : tasks) {
+			needed += storedSize(task.size, mEncryption != null, packing && task.size < mPackThreshold);
+		}
+		List<String> spaceProblems = checkFreeSpace(mFilesToCopy, needed);
+		if (!spaceProblems.isEmpty()) {
+			throw new IOException(spaceProblems.get(0) + " - copying aborted");
+		}
+
+		if (mRemote != null) {
+			mRemote.setListener(new MirrorClient.Listener() {
+				public void acknowledged(Object tag, long checksum, IOException error) {
+					receiverAnswered(tag, checksum, error);
+				}
+			});
+			mRemote.connect(mFilesToCopy.getName());
+			if (mEncryption != null) {
+				mEncryption.writeManifest(mRemote.open(BackupEncryption.MANIFEST_FILE, 0, System.currentTimeMillis(),
+						BackupEncryption.MANIFEST_FILE));
+			}
+		} else {
+			Files.createDirectories(destinationDir);
+			if (mEncryption != null) {
+				mEncryption.writeManifest(destinationDir);
+			}
+		}
+		for (Path extraDir : extraDirs) {
+			System.out.println("Also copying backup to: " + extraDir);
+			Files.createDirectories(extraDir);
+			if (mEncryption != null) {
+				mEncryption.writeManifest(extraDir);
+			}
+		}
+		if (packing) {
+			mPackWriter = new PackWriter(destinationDir);
+		}
+		if (mStateFile != null) {
+			mStateCache = FileStateCache.load(mStateFile);
 		}
 
 		// Notify observers that operation is about to begin.
-		publish(new Progress("", totalBytes, completedBytes, totalFiles, completedFiles));
+		publish(new Progress("", mTotalBytes, 0, mTotalFiles, 0));
+
+		// Copy the files concurrently, one set of queues per physical device; files that fail are retried
+		// on a thread of their own so the workers never wait out the delay
+		mRetryQueue = new RetryQueue(new RetryQueue.Retrier() {
+			public void retry(CopyTask task, int attempt) {
+				if (isCancelled()) return;
+				TeeWriter tee = mTeeRetries.get(task);
+				if (tee != null) {
+					copyToTee(task, tee, attempt);
+				} else {
+					copyFile(task, attempt);
+				}
+			}
+		}, mRetryAttempts, mRetryDelayMillis);
+		mScheduler = new CopyScheduler(mFilesToCopy, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				if (!isCancelled()) {
+					copyFile(task, 1);
+				}
+			}
+		});
+		if (mFilesToCopy.isAdaptiveConcurrency()) {
+			mController = new ConcurrencyController(new ConcurrencyController.Listener() {
+				public void concurrencyChanged(int activeWorkers, String decision) {
+					Progress progress = progress("", mCompletedBytes.get(), mCompletedFiles.get());
+					progress.concurrencyDecision = decision;
+					publish(progress);
+				}
+			});
+			mScheduler.setController(mController);
+			mController.start();
+		}
+		mScheduler.setMetrics(mMetrics);
+		mScheduler.setWorkerBudget(mWorkerBudget);
+		if (mStoreLimits != null) {
+			mScheduler.setStoreLimits(mStoreLimits);
+		}
+		// a paused worker takes no slot or permit for its next file
+		mScheduler.setGate(mPauseWait);
+		for (Path extraDir : extraDirs) {
+			final TeeWriter tee = new TeeWriter(extraDir, mFilesToCopy.isSyncFiles(), mEncryption, mMetrics);
+			tee.setListener(new TeeWriter.Listener() {
+				public void written(CopyTask task) {
+					Integer attempt = mTeeAttempts.remove(task);
+					if (attempt != null && attempt > 1) {
+						mFailures.recordRecovered();
+					}
+				}
 
-		// Copy all the files in the FileSet one by one
-		for (int i = 0; i < mFilesToCopy.size() && !isCancelled(); i++) {
-			Path sourcePath = mFilesToCopy.get(i);
+				public void failed(CopyTask task, IOException error) {
+					teeFailed(tee, task, error);
+				}
+			});
+			mTeeWriters.add(tee);
+		}
+		try {
 			try {
-				int subStringIndex = 1;
+				mScheduler.run(tasks, mRemote != null ? null : destinationDir);
+			} catch (InterruptedException e) {
+				// cancelled; the workers stopped within a chunk, and what they copied is kept below
+				if (!isCancelled()) throw e;
+			}
+			if (isCancelled() || mDestinationFull != null) {
+				System.out.println("Backup stopped; keeping the files copied so far");
+				mRetryQueue.cancel();
+				mRetryQueue.awaitStopped();
+			} else {
+				// the receiver and the further destinations report their failures late, and a retry may
+				// fail again there, so wait for both until nothing is left to retry
+				while (true) {
+					if (mRemote != null) {
+						mRemote.awaitAnswers();
+					}
+					for (TeeWriter tee : mTeeWriters) {
+						tee.awaitWritten();
+					}
+					if (mRetryQueue.getPending() == 0) break;
+					System.out.println("Waiting for " + mRetryQueue.getPending() + " file(s) to be retried");
+					mRetryQueue.awaitIdle();
+				}
+				mRetryQueue.finish();
+			}
+			if (mPackWriter != null) {
+				mPackWriter.close();
+			}
+			if (mRemote != null) {
+				System.out.println("Waiting for the receiver to write the last files");
+				mRemote.finish();
+			}
+			for (TeeWriter tee : mTeeWriters) {
+				System.out.println("Waiting for copy to " + tee.getBackupDir() + " to finish");
+				tee.finish();
+			}
+			if (mStateCache != null) {
+				try {
+					mStateCache.save();
+				} catch (IOException e) {
+					// the next run compares against the backup instead
+					System.err.println("Unable to save file state cache " + mStateFile + ": " + e.getMessage());
+				}
+			}
+			if (mDestinationFull != null) {
+				throw mDestinationFull;
+			}
+			if (!isCancelled() && mMetrics.getErrors() == 0 && mRemote == null) {
+				List<Path> backupDirs = new ArrayList<Path>();
+				backupDirs.add(destinationDir);
+				backupDirs.addAll(extraDirs);
+				markCompleted(backupDirs);
+			}
+		} finally {
+			mRetryQueue.cancel();
+			if (mRemote != null) {
+				mRemote.close();
+			}
+			for (TeeWriter tee : mTeeWriters) {
+				tee.finish();
+			}
+			if (mController != null) {
+				mController.stop();
+			}
+			CopyEvents.commitBackup(backupEvent, mMetrics);
+		}
+		return null;
+	}
+
+	/**	Marks each copy of a backup that completed without errors, and leaves those marked to {@link #prune()}
+	 * once completion is reported.
+	 * 
+	 * @param backupDirs	The copies of the backup, one per local destination.
+	 */
+	private void markCompleted(List<Path> backupDirs) {
+		String fingerprint = RetentionPolicy.fingerprint(mFilesToCopy);
+		List<Path> marked = new ArrayList<Path>();
+		for (Path backupDir : backupDirs) {
+			try {
+				RetentionPolicy.markCompleted(backupDir, fingerprint, System.currentTimeMillis());
+				marked.add(backupDir);
+			} catch (IOException e) {
+				System.err.println("Unable to mark backup " + backupDir + " as completed: " + e.getMessage());
+			}
+		}
+		RetentionPolicy policy = mFilesToCopy.getRetentionPolicy();
+		if (policy != null && policy.isEnabled()) {
+			mPruneDirs = marked;
+		}
+	}
 
-				System.out.println(sourcePath.toString());
-				System.out.println(sourcePath.toString().substring(subStringIndex, subStringIndex + 1));
-				if (sourcePath.toString().substring(subStringIndex, subStringIndex + 1).equals(":")) {
-					subStringIndex = 3;
+	/**	Removes the old backups next to each completed copy that the {@link RetentionPolicy} of the
+	 * {@link FileSet} does not keep, reporting each to {@link FileOpsMessageHandler#handlePruned(Path, long,
+	 * IOException)}. Removal is limited to {@link FileSet#getPruneFilesPerSecond()}. Failing to prune does not
+	 * fail the backup.
+	 * 
+	 */
+	private void prune() {
+		String fingerprint = RetentionPolicy.fingerprint(mFilesToCopy);
+		RetentionPolicy policy = mFilesToCopy.getRetentionPolicy();
+		TreeRemover remover = new TreeRemover(TreeRemover.DEFAULT_THREADS,
+				new Throttle(0, mFilesToCopy.getPruneFilesPerSecond(), 0));
+		for (Path backupDir : mPruneDirs) {
+			Path parent = backupDir.getParent();
+			List<RetentionPolicy.Backup> expired;
+			try {
+				remover.removeLeftovers(parent);
+				expired = policy.expired(RetentionPolicy.backupsIn(parent, fingerprint));
+			} catch (IOException e) {
+				pruned(parent, 0, e);
+				continue;
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (RetentionPolicy.Backup old : expired) {
+				if (old.directory.equals(backupDir)) continue;
+				try {
+					pruned(old.directory, remover.remove(old.directory), null);
+				} catch (IOException e) {
+					pruned(old.directory, 0, e);
+				} catch (InterruptedException e) {
+					return;
 				}
-				System.out.println(sourcePath.toString().substring(subStringIndex));
-				System.out.println(destinationDir.resolve(sourcePath.toString().substring(subStringIndex)));
-
-				Path destPath = destinationDir.resolve(sourcePath.toString().substring(subStringIndex));
-				System.out.println("Full path to destination set to: " + destPath);
-				Files.createDirectories(destPath.getParent());
-				String sourceCopied = sourcePath.toString();
-				System.out.println("copied " + sourceCopied);
-				// Files.copy(sourcePath, destPath);
-				// Update number of bytes copied
-				// completedBytes += Files.size(sourcePath);
-
-				File sp = sourcePath.toFile();
-				File dp = destPath.toFile();
-				InputStream in = new FileInputStream(sp);
-				OutputStream out = new FileOutputStream(dp);
-				byte[] buffer = new byte[1024];
+			}
+		}
+	}
+
+	private void pruned(Path oldBackup, long removed, IOException error) {
+		if (mMessageHandler != null) {
+			mMessageHandler.handlePruned(oldBackup, removed, error);
+		} else if (error != null) {
+			System.err.println("Unable to remove old backup " + oldBackup + ": " + error.getMessage());
+		}
+	}
+
+	/**	Waits until the old backups the {@link RetentionPolicy} does not keep have been removed, which starts
+	 * once the operation has reported its completion. Returns at once if there is nothing to remove.
+	 * 
+	 * @param timeoutMillis Longest time to wait in milliseconds.
+	 * @return boolean	True if the removal has finished or was not needed.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public boolean awaitPruned(long timeoutMillis) throws InterruptedException {
+		return mPruned.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**	Creates the {@link CopyTask} for one source file.
+	 * 
+	 * @param sourcePath	The source file.
+	 * @param attrs	Its attributes.
+	 * @param destinationDir	The backup directory.
+	 * @return CopyTask	The task copying the file to its place in the backup.
+	 */
+	private static CopyTask newTask(Path sourcePath, BasicFileAttributes attrs, Path destinationDir) {
+		String relativePath = relativePath(sourcePath);
+		return new CopyTask(sourcePath, relativePath, destinationDir.resolve(relativePath), attrs.size(),
+				attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+	}
+
+	/**	Copies a single file, either into its own file in the backup or into a pack file. Called concurrently
+	 * by the workers of the {@link CopyScheduler}, and by the {@link RetryQueue} for a file that failed.
+	 * 
+	 * @param task The {@link CopyTask} describing the file to copy.
+	 * @param attempt The number of this attempt, counting the first copy as 1.
+	 */
+	private void copyFile(CopyTask task, int attempt) {
+		Path sourcePath = task.source;
+		long fileStart = System.nanoTime();
+		Object copyEvent = CopyEvents.beginFileCopy();
+		boolean teeing = false;
+		boolean created = false;
+		SentFile sentFile = null;
+		long counted = 0;
+		try {
+			awaitRunning();
+			mThrottle.acquireFile();
+			if (mPackWriter != null && task.size < mPackThreshold) {
+				long openStart = System.nanoTime();
+				CRC32 crc = new CRC32();
+				InputStream in;
+				byte[] contents = null;
+				if (mTeeWriters.isEmpty()) {
+					in = new CheckedInputStream(Files.newInputStream(sourcePath), crc);
+				} else {
+					// small enough to hold whole, so every destination's pack gets the same bytes
+					contents = Files.readAllBytes(sourcePath);
+					crc.update(contents, 0, contents.length);
+					in = new ByteArrayInputStream(contents);
+				}
+				mMetrics.record(Metrics.Phase.OPEN, System.nanoTime() - openStart);
+				Object checksumEvent = CopyEvents.beginChecksum();
+				try {
+					mThrottle.acquireBytes(task.size);
+					long writeStart = System.nanoTime();
+					long length = mPackWriter.append(task.relativePath, in).length;
+					mMetrics.record(Metrics.Phase.WRITE, System.nanoTime() - writeStart);
+					for (TeeWriter tee : mTeeWriters) {
+						tee.pack(task, contents);
+					}
+					mMetrics.recordBytes(length);
+					long completedBytes = mCompletedBytes.addAndGet(length);
+					publish(progress(sourcePath.toString(), completedBytes, mCompletedFiles.getAndIncrement()));
+				} finally {
+					long closeStart = System.nanoTime();
+					in.close();
+					mMetrics.record(Metrics.Phase.CLOSE, System.nanoTime() - closeStart);
+				}
+				recordChecksum(task, crc, checksumEvent);
+				mMetrics.recordFile();
+				recordFileTime(sourcePath, fileStart);
+				CopyEvents.commitFileCopy(copyEvent, sourcePath.toString(), task.size, true);
+				if (attempt > 1) {
+					mFailures.recordRecovered();
+				}
+				return;
+			}
+
+			Path destPath = task.destination;
+			Path destDir = destPath.getParent();
+			if (mRemote == null && !mCreatedDirectories.contains(destDir)) {
+				long mkdirStart = System.nanoTime();
+				Object mkdirEvent = CopyEvents.beginDirectoryCreate();
+				Files.createDirectories(destDir);
+				CopyEvents.commitDirectoryCreate(mkdirEvent, destDir.toString());
+				mMetrics.record(Metrics.Phase.MKDIR, System.nanoTime() - mkdirStart);
+				mCreatedDirectories.add(destDir);
+			}
+			String sourceCopied = sourcePath.toString();
+
+			File sp = sourcePath.toFile();
+			File dp = destPath.toFile();
+			long openStart = System.nanoTime();
+			InputStream in = new FileInputStream(sp);
+			OutputStream target = null;
+			OutputStream out = null;
+			CRC32 crc = new CRC32();
+			Object checksumEvent = null;
+			boolean sent = false;
+			try {
+				long storedSize = mEncryption != null ? BackupEncryption.encryptedSize(task.size) : task.size;
+				boolean preallocated = mRemote == null && storedSize >= PREALLOCATE_MIN_BYTES;
+				created = mRemote == null;
+				if (mRemote != null) {
+					sentFile = new SentFile(task, attempt);
+					target = mRemote.open(task.relativePath, task.size, task.lastModified, sentFile);
+				} else if (preallocated) {
+					target = preallocate(dp, storedSize);
+				} else {
+					target = new FileOutputStream(dp);
+				}
+				out = mEncryption != null ? mEncryption.encrypt(target) : target;
+				mMetrics.record(Metrics.Phase.OPEN, System.nanoTime() - openStart);
+				checksumEvent = CopyEvents.beginChecksum();
+				// aborting a destination that never saw the file is harmless, so abort them all if one fails to open
+				teeing = true;
+				for (TeeWriter tee : mTeeWriters) {
+					tee.open(task);
+				}
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
 				int length;
+				long readStart = System.nanoTime();
 				while ((length = in.read(buffer)) > 0) {
+					mMetrics.record(Metrics.Phase.READ, System.nanoTime() - readStart);
+					crc.update(buffer, 0, length);
+					mThrottle.acquireBytes(length);
+					long writeStart = System.nanoTime();
 					out.write(buffer, 0, length);
-					completedBytes += length;
-					publish(new Progress("", totalBytes, completedBytes, totalFiles, completedFiles));
+					long writeNanos = System.nanoTime() - writeStart;
+					// blocks only once a destination has fallen a whole queue behind
+					for (TeeWriter tee : mTeeWriters) {
+						tee.write(task, buffer, length);
+					}
+					mMetrics.record(Metrics.Phase.WRITE, writeNanos);
+					if (mController != null) {
+						mController.recordWrite(length, writeNanos);
+					}
+					mMetrics.recordBytes(length);
+					long completedBytes = mCompletedBytes.addAndGet(length);
+					counted += length;
+					if (tickDue()) {
+						publish(progress("", completedBytes, mCompletedFiles.get()));
+					}
+					// a pause or cancel takes effect between chunks, not only between files
+					awaitRunning();
+					readStart = System.nanoTime();
+				}
+				if ((preallocated || mFilesToCopy.isSyncFiles()) && mRemote == null) {
+					if (out != target) {
+						((BackupEncryption.EncryptingOutputStream) out).finish();
+					}
+					if (preallocated) {
+						// a source that shrank while it was copied must not leave the rest of the reserved space
+						FileChannel channel = ((FileOutputStream) target).getChannel();
+						channel.truncate(channel.position());
+					}
+					if (mFilesToCopy.isSyncFiles()) {
+						long syncStart = System.nanoTime();
+						((FileOutputStream) target).getFD().sync();
+						mMetrics.record(Metrics.Phase.FSYNC, System.nanoTime() - syncStart);
+					}
+				}
+				sent = true;
+			} finally {
+				long closeStart = System.nanoTime();
+				try {
+					in.close();
+				} finally {
+					if (target != null && mRemote != null && !sent) {
+						// the receiver must not keep half a file; the failure is handled here, not from its answer
+						sentFile.aborted = true;
+						mRemote.abort(target);
+					} else if (out != null) {
+						out.close();
+					} else if (target != null) {
+						// the encrypting stream could not be opened around it
+						target.close();
+					}
+				}
+				mMetrics.record(Metrics.Phase.CLOSE, System.nanoTime() - closeStart);
+			}
+			if (mRemote == null) {
+				// keep the source's timestamp so later runs can tell whether the copy is current
+				Files.setLastModifiedTime(destPath, FileTime.fromMillis(task.lastModified));
+			}
+			for (TeeWriter tee : mTeeWriters) {
+				tee.close(task);
+			}
+			teeing = false;
+			recordChecksum(task, crc, checksumEvent);
+			mMetrics.recordFile();
+			recordFileTime(sourcePath, fileStart);
+			CopyEvents.commitFileCopy(copyEvent, sourceCopied, task.size, false);
+			publish(progress(sourceCopied, mCompletedBytes.get(), mCompletedFiles.getAndIncrement()));
+			// a file sent to a receiver has recovered once the receiver has written it
+			if (attempt > 1 && mRemote == null) {
+				mFailures.recordRecovered();
+			}
+		} catch (Exception e) {
+			// the bytes of the failed attempt are counted again when the file is retried
+			mCompletedBytes.addAndGet(-counted);
+			if (teeing) {
+				abortTees(task);
+			}
+			if (created) {
+				// never leave half a file in the backup; it would look like a good copy
+				try {
+					Files.deleteIfExists(task.destination);
+				} catch (IOException deleteError) {
+					System.err.println("Unable to remove partial copy " + task.destination + ": " + deleteError.getMessage());
+				}
+			}
+			if (isCancelled()) {
+				return;
+			}
+			copyFailed(task, e, attempt, null);
+		}
+	}
+
+	/**	Copies a file again to one further destination only, after writing it there failed while the other
+	 * destinations got it. Called by the {@link RetryQueue}; how it turns out is learnt from the
+	 * {@link TeeWriter.Listener}.
+	 * 
+	 * @param task The file, as handed to the {@link RetryQueue} for this destination.
+	 * @param tee The writer of the destination.
+	 * @param attempt The number of this attempt, counting the first copy as 1.
+	 */
+	private void copyToTee(CopyTask task, TeeWriter tee, int attempt) {
+		mTeeAttempts.put(task, attempt);
+		boolean teeing = false;
+		try {
+			awaitRunning();
+			if (mPackWriter != null && task.size < mPackThreshold) {
+				tee.pack(task, Files.readAllBytes(task.source));
+				return;
+			}
+			InputStream in = Files.newInputStream(task.source);
+			try {
+				tee.open(task);
+				teeing = true;
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int length;
+				while ((length = in.read(buffer)) > 0) {
+					tee.write(task, buffer, length);
+					awaitRunning();
 				}
+				tee.close(task);
+				teeing = false;
+			} finally {
 				in.close();
-				out.close();
-				publish(new Progress(sourceCopied, totalBytes, completedBytes, totalFiles, completedFiles++));
-			} catch (Exception e) {
-				System.err.println("Failed trying to copy " + sourcePath.toString());
-				e.printStackTrace();
+			}
+		} catch (Exception e) {
+			mTeeAttempts.remove(task);
+			try {
+				if (teeing) {
+					tee.abort(task);
+				}
+			} catch (InterruptedException abortInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (!isCancelled()) {
+				copyFailed(task, e, attempt, tee.getBackupDir().toString());
 			}
 		}
-		return null;
 	}
 
-	/** Utility function that checks if a particular {@link FileSet} exists on the file system.
+	/**	Handles a file a further destination could not write while the other destinations got it.
+	 * 
+	 * @param tee The writer of the destination.
+	 * @param task The file, or null if the pack of the destination could not be closed.
+	 * @param error Why it could not be written.
+	 */
+	private void teeFailed(TeeWriter tee, CopyTask task, IOException error) {
+		String destination = tee.getBackupDir().toString();
+		if (task == null) {
+			// every file packed for this destination is lost with its index
+			mMetrics.recordError();
+			CopyEvents.copyError(destination, error);
+			mFailures.add(tee.getBackupDir(), destination, error, 1);
+			System.err.println("Failed trying to write the pack of " + destination + ": " + error.getMessage());
+			return;
+		}
+		if (isCancelled()) return;
+		Integer attempt = mTeeAttempts.remove(task);
+		CopyTask retry = task;
+		if (!mTeeRetries.containsKey(task)) {
+			// the copy for the other destinations went fine, so only this one is copied again
+			retry = new CopyTask(task.source, task.relativePath, tee.getBackupDir().resolve(task.relativePath),
+					task.size, task.lastModified, task.fileKey);
+			mTeeRetries.put(retry, tee);
+		}
+		copyFailed(retry, error, attempt != null ? attempt : 1, destination);
+	}
+
+	/**	Creates a destination file already as long as the copy will be, so that the file system can place it in
+	 * one piece and a destination without room for it fails before any of it is copied.
+	 * <p>
+	 * Java cannot ask for the space itself, so the file is only extended. FAT, exFAT and NTFS, the usual file
+	 * systems of removable disks, give an extended file its clusters there and then. Most Unix file systems
+	 * keep it sparse instead and hand out blocks as they are written; there only the free space check before
+	 * the backup fails early.
+	 * </p>
+	 * 
+	 * @param file The destination file.
+	 * @param length Its final length in bytes.
+	 * @return FileOutputStream	A stream writing the file from its start.
+	 * @throws IOException if the file cannot be created or extended.
+	 */
+	private static FileOutputStream preallocate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			// shares the descriptor, so closing the stream closes the file
+			return new FileOutputStream(raf.getFD());
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**	Waits while the operation is paused. A worker of the {@link CopyScheduler} gives back its slots and
+	 * device permits while it waits, and takes them again before it carries on with its file.
+	 * 
+	 * @throws CancellationException if the operation was cancelled, before or while waiting.
+	 * @throws InterruptedException if the worker is interrupted while waiting.
+	 */
+	private void awaitRunning() throws CancellationException, InterruptedException {
+		if (mPaused) {
+			CopyScheduler scheduler = mScheduler;
+			if (scheduler != null) {
+				scheduler.releaseWhile(mPauseWait);
+			} else {
+				mPauseWait.await();
+			}
+		}
+		if (isCancelled()) {
+			throw new CancellationException("Backup cancelled");
+		}
+	}
+
+	/**	Hands a file whose copy failed to the {@link RetryQueue}, or, once it is given up, records it in the
+	 * {@link FailureReport}.
+	 * 
+	 * @param task The file that failed.
+	 * @param e Why it failed.
+	 * @param attempt The number of the attempt that failed, counting the first copy as 1.
+	 * @param destination The destination the file is missing from, such as a further destination or the
+	 * 	mirror receiver, or null if it is missing from every destination.
+	 */
+	private void copyFailed(CopyTask task, Exception e, int attempt, String destination) {
+		if (destination == null && destinationFull(task, e)) {
+			// every further file would fail the same way, so stop instead of trying each
+			synchronized (this) {
+				if (mDestinationFull == null) {
+					mDestinationFull = new IOException("Destination " + mFilesToCopy.getDestination()
+							+ " is full - copying aborted", e);
+					mScheduler.cancel();
+				}
+			}
+		} else if (!isCancelled() && mDestinationFull == null && mRetryQueue.offer(task, e, attempt)) {
+			mFailures.recordRetry();
+			System.err.println("Retrying " + task.source + " in " + mRetryQueue.delayMillis(attempt) + " ms: " + e);
+			return;
+		}
+		mMetrics.recordError();
+		CopyEvents.copyError(task.source.toString(), e);
+		mFailures.add(task.source, destination, e, attempt);
+		mTeeRetries.remove(task);
+		System.err.println("Failed trying to copy " + task.source + (destination != null ? " to " + destination : "")
+				+ ": " + e);
+	}
+
+	/**	Decides whether a copy failed because the local destination has no room left for the file.
+	 * 
+	 * @param task The file that failed; its partial copy is already removed.
+	 * @param e Why it failed.
+	 * @return boolean	True if the destination is too full to hold the file.
+	 */
+	private boolean destinationFull(CopyTask task, Exception e) {
+		// a source that went missing is not the destination's fault
+		if (mRemote != null || !(e instanceof IOException) || !Files.isReadable(task.source)) {
+			return false;
+		}
+		try {
+			long usable = Files.getFileStore(Paths.get(mFilesToCopy.getDestination())).getUsableSpace();
+			return usable < storedSize(task.size, mEncryption != null, false);
+		} catch (IOException storeError) {
+			return false;
+		}
+	}
+
+	/**	Records a source, or a file or folder below one, that could not be read while listing the files to
+	 * copy.
+	 * 
+	 * @param path The file or folder.
+	 * @param e Why it could not be read.
+	 */
+	private void notListed(Path path, IOException e) {
+		mMetrics.recordError();
+		CopyEvents.copyError(path.toString(), e);
+		mFailures.add(path, e, 0);
+		System.err.println("Skipping unreadable " + path + ": " + e.getMessage());
+	}
+
+	/**	Tells the further destinations to drop a file the first destination could not copy.
+	 * 
+	 * @param task The file that failed.
+	 */
+	private void abortTees(CopyTask task) {
+		try {
+			for (TeeWriter tee : mTeeWriters) {
+				tee.abort(task);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**	Records the checksum of a copied file, and its state in the {@link FileStateCache} if one is kept.
+	 * 
+	 * @param task	The file that was copied.
+	 * @param crc	The CRC32 of the bytes copied.
+	 * @param checksumEvent	The Flight Recorder event started before the copy, or null.
+	 */
+	private void recordChecksum(CopyTask task, CRC32 crc, Object checksumEvent) {
+		long checksum = crc.getValue();
+		CopyEvents.commitChecksum(checksumEvent, task.source.toString(), task.size, "CRC32", Long.toHexString(checksum));
+		// a file sent to a receiver is recorded once the receiver has written it
+		if (mStateCache != null && mRemote == null) {
+			mStateCache.put(task.source.toString(), new FileStateCache.Entry(task.size, task.lastModified,
+					task.fileKey != null ? task.fileKey.toString() : null, checksum));
+		}
+	}
+
+	/**	Handles the answer of the {@link MirrorReceiver} for a file sent to it. A file the receiver did not
+	 * write is retried or reported like any other failed copy.
+	 * 
+	 * @param tag	The {@link SentFile} of the file that was sent, or the name of another file of the backup.
+	 * @param checksum	The CRC32 of the file as the receiver wrote it.
+	 * @param error	Null if the receiver wrote the file, otherwise why it did not.
+	 */
+	private void receiverAnswered(Object tag, long checksum, IOException error) {
+		String receiver = MirrorClient.describe(mFilesToCopy.getDestination());
+		if (!(tag instanceof SentFile)) {
+			if (error != null) {
+				mMetrics.recordError();
+				mFailures.add(Paths.get(tag.toString()), receiver, error, 1);
+				System.err.println("Receiver failed to write " + tag + ": " + error.getMessage());
+			}
+			return;
+		}
+		SentFile sent = (SentFile) tag;
+		CopyTask task = sent.task;
+		if (error != null) {
+			if (!sent.aborted && !isCancelled()) {
+				copyFailed(task, error, sent.attempt, receiver);
+			}
+			return;
+		}
+		if (sent.attempt > 1) {
+			mFailures.recordRecovered();
+		}
+		if (mStateCache != null) {
+			mStateCache.put(task.source.toString(), new FileStateCache.Entry(task.size, task.lastModified,
+					task.fileKey != null ? task.fileKey.toString() : null, checksum));
+		}
+	}
+
+	/**	Records the time spent on one file for the slowest files and directories of the {@link PerformanceReport}.
+	 * 
+	 * @param sourcePath	The file that was copied.
+	 * @param fileStart	{@link System#nanoTime()} when the copy started.
+	 */
+	private void recordFileTime(Path sourcePath, long fileStart) {
+		Path parent = sourcePath.getParent();
+		mMetrics.recordFileTime(sourcePath.toString(), parent != null ? parent.toString() : "", System.nanoTime() - fileStart);
+	}
+
+	/**	Decides whether progress within a file is due to be reported, so that the workers together report it
+	 * at most once per {@link #PROGRESS_INTERVAL_NANOS}.
+	 * 
+	 * @return boolean	True if the caller should publish a {@link Progress} report.
+	 */
+	private boolean tickDue() {
+		long now = System.nanoTime();
+		long last = mLastTick.get();
+		return now - last >= PROGRESS_INTERVAL_NANOS && mLastTick.compareAndSet(last, now);
+	}
+
+	/**	Creates a {@link Progress} report for the current state of the operation.
+	 * 
+	 * @param sourceCopied	The file that just finished copying, or an empty String.
+	 * @param completedBytes	Bytes copied so far.
+	 * @param completedFiles	Files copied so far.
+	 * @return Progress	The report, including rates, the estimated time left and the number of active workers
+	 * 	when they are tuned adaptively.
+	 */
+	private Progress progress(String sourceCopied, long completedBytes, int completedFiles) {
+		Progress progress = new Progress(sourceCopied, mTotalBytes, completedBytes, mTotalFiles, completedFiles);
+		synchronized (mRateEstimator) {
+			// read the totals under the lock so the estimator never sees them go backwards
+			long bytes = mCompletedBytes.get();
+			int files = mCompletedFiles.get();
+			mRateEstimator.sample(System.nanoTime(), bytes, files);
+			progress.bytesPerSecond = mRateEstimator.getBytesPerSecond();
+			progress.filesPerSecond = mRateEstimator.getFilesPerSecond();
+			progress.smoothedBytesPerSecond = mRateEstimator.getSmoothedBytesPerSecond();
+			progress.smoothedFilesPerSecond = mRateEstimator.getSmoothedFilesPerSecond();
+			progress.etaSeconds = mRateEstimator.getEtaSeconds(mTotalBytes - bytes, mTotalFiles - files);
+		}
+		if (mController != null) {
+			progress.activeWorkers = mController.getActiveLimit();
+		}
+		return progress;
+	}
+
+	/**	Utility function that maps an absolute source path to its path inside the backup directory by dropping
+	 * the root (<code>/</code> on Unix, the drive letter such as <code>C:\</code> on Windows).
+	 * 
+	 * @param sourcePath	Absolute path of a source file.
+	 * @return String	The path of the file relative to the backup directory.
+	 */
+	public static String relativePath(Path sourcePath) {
+		int subStringIndex = 1;
+		if (sourcePath.toString().length() > 1 && sourcePath.toString().substring(subStringIndex, subStringIndex + 1).equals(":")) {
+			subStringIndex = 3;
+		}
+		return sourcePath.toString().substring(subStringIndex);
+	}
+
+	/**	Returns the {@link Throttle} that limits this operation. Limits changed on the returned object take effect
+	 * immediately, including while the copy is in progress.
+	 * 
+	 * @return the {@link Throttle} in use by this operation.
+	 */
+	public Throttle getThrottle() {
+		return mThrottle;
+	}
+
+	/**	Returns the {@link Metrics} of this operation: throughput, per-phase latency histograms, queue depth and
+	 * worker utilisation. The same numbers are published over JMX while the operation runs.
+	 * 
+	 * @return the {@link Metrics} of this operation.
+	 */
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**	Sets the directory the {@link PerformanceReport} is saved in when the operation finishes.
+	 * 
+	 * @param reportDirectory the directory to save the report in, or null to not save it.
+	 */
+	public void setReportDirectory(Path reportDirectory) {
+		mReportDirectory = reportDirectory;
+	}
+
+	/**	Shares a {@link WorkerBudget} with other backups, so that all of them together copy no more files at
+	 * the same time than the budget allows. Must be called before the operation starts.
+	 * 
+	 * @param budget the budget to share, or null to copy independently.
+	 */
+	public void setWorkerBudget(WorkerBudget budget) {
+		mWorkerBudget = budget;
+	}
+
+	/**	Shares the concurrency limit of each device with other backups, so that together they send a rotational
+	 * disk a single stream. Must be called before the operation starts.
+	 * 
+	 * @param storeLimits the limits to share, or null to limit the devices for this backup alone.
+	 */
+	public void setStoreLimits(StoreLimits storeLimits) {
+		mStoreLimits = storeLimits;
+	}
+
+	/**	Sets the passphrase the key of an encrypted backup is derived from. Needed when
+	 * {@link FileSet#isEncrypted()} is set; the passphrase is not stored anywhere.
+	 * 
+	 * @param passphrase the passphrase, or null.
+	 * @see BackupEncryption
+	 */
+	public void setPassphrase(char[] passphrase) {
+		mPassphrase = passphrase;
+	}
+
+	/**	Copies the files of a plan instead of scanning the sources, so a backup that was just planned does not
+	 * scan them twice. The plan must have been made for the same sources and rules. Must be called before the
+	 * operation starts.
+	 * 
+	 * @param plan the plan made by a {@link BackupPlanner}, or null to scan the sources.
+	 */
+	public void setPlan(BackupPlan plan) {
+		mPlan = plan;
+	}
+
+	/**	Pauses the operation to free the disks for a while. Every worker stops before its next chunk, within
+	 * {@link #COPY_BUFFER_SIZE} bytes, and holds its open files until {@link #resume()}. While paused it gives
+	 * back its {@link WorkerBudget} slot and its device permits, so other backups can use them. Files already
+	 * queued for further destinations are still written.
+	 * 
+	 */
+	public void pause() {
+		mPaused = true;
+	}
+
+	/**	Lets a paused operation carry on where it stopped.
+	 * 
+	 */
+	public void resume() {
+		synchronized (mPauseLock) {
+			mPaused = false;
+			mPauseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return true while the operation is paused.
+	 */
+	public boolean isPaused() {
+		return mPaused;
+	}
+
+	/**	Waits until the copy has stopped after the operation completed or was cancelled. A cancelled operation
+	 * reports completion at once, while its workers still finish their current chunk, remove their partial
+	 * files and save the state of the files copied, so that a later run can pick up from there. Wait for this
+	 * before exiting.
+	 * 
+	 * @param timeoutMillis Longest time to wait in milliseconds.
+	 * @return boolean	True if the copy has stopped, or never started.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+		if (getState() == StateValue.PENDING) {
+			return true;
+		}
+		return mStopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**	Sets how often and how soon a file whose copy failed is tried again. By default it is tried
+	 * {@link RetryQueue#DEFAULT_ATTEMPTS} times, first after {@link RetryQueue#DEFAULT_DELAY_MILLIS}. Must be
+	 * called before the operation starts.
+	 * 
+	 * @param attempts Number of attempts at copying a file, counting the first; 1 retries nothing.
+	 * @param delayMillis Wait before the first retry in milliseconds; it doubles for each one after.
+	 * @throws IllegalArgumentException if there are less than 1 attempts or the delay is negative.
+	 */
+	public void setRetryPolicy(int attempts, long delayMillis) throws IllegalArgumentException {
+		if (attempts < 1 || delayMillis < 0) {
+			throw new IllegalArgumentException("Invalid retry policy: " + attempts + " attempt(s), " + delayMillis + " ms");
+		}
+		mRetryAttempts = attempts;
+		mRetryDelayMillis = delayMillis;
+	}
+
+	/**	Returns the files and folders this operation could not copy so far. The same report is handed to
+	 * {@link FileOpsMessageHandler#handleFailures(FailureReport)} when the operation ends.
+	 * 
+	 * @return the {@link FailureReport} of this operation.
+	 */
+	public FailureReport getFailureReport() {
+		return mFailures;
+	}
+
+	/**	Sets the file the {@link FileStateCache} of the backup is kept in. By default none is kept, since only
+	 * a {@link MirrorWatcher} reads it; set {@link FileStateCache#fileFor(String)} of the backup's name when
+	 * the backup is about to be watched.
+	 * 
+	 * @param stateFile the file to keep the cache in, or null to not keep one.
+	 */
+	public void setStateFile(Path stateFile) {
+		mStateFile = stateFile;
+	}
+
+	/** Utility function that checks if a particular {@link FileSet} exists on the file system, at any of its destinations.
 	 * 
 	 * @param fs	The {@link FileSet} to check.
 	 * @return Boolean	True if the {@link FileSet} is valid and readable.
@@ -182,25 +1398,74 @@ public class FileOps extends SwingWorker<Void, Progress> {
 	 * 	Invalid or unreadable {@link FileSet}
 	 */
 	public static Boolean backupExists(FileSet fs) throws IOException {
-		Path destParent = Paths.get(fs.getDestination());
-		Path destination = destParent.resolve(fs.getName());
-		if (Files.exists(destination)) {
-			return true;
+		for (String destParent : fs.getDestinations()) {
+			// a mirror receiver checks for itself when the backup starts
+			if (MirrorClient.isMirrorAddress(destParent)) continue;
+			if (Files.exists(Paths.get(destParent).resolve(fs.getName()))) {
+				return true;
+			}
 		}
 		return false;
 	}
 
-	/**	Utility function that tests if the destination directory specified in a {@link FileSet} can be written
-	 * to (it must exist and have sufficient permissions to be written to).
+	/**	Utility function that returns the space a file takes in a backup: its length, or the length of its
+	 * encrypted copy, rounded up to whole {@link #ALLOCATION_UNIT}s unless it is packed.
+	 * 
+	 * @param size	The length of the source file in bytes.
+	 * @param encrypted	True if the backup is encrypted.
+	 * @param packed	True if the file goes into a pack file.
+	 * @return long	The space taken in bytes.
+	 */
+	public static long storedSize(long size, boolean encrypted, boolean packed) {
+		long stored = encrypted ? BackupEncryption.encryptedSize(size) : size;
+		// a packed file shares the blocks of its pack file
+		return packed ? stored : (stored + ALLOCATION_UNIT - 1) / ALLOCATION_UNIT * ALLOCATION_UNIT;
+	}
+
+	/**	Utility function that checks every local destination of a {@link FileSet} has room for a backup.
+	 * Destinations on the same file store need room for one copy each; mirror receivers check for themselves.
+	 * 
+	 * @param fs	The {@link FileSet} to check.
+	 * @param bytes	The space one copy of the backup takes, from {@link #storedSize(long, boolean, boolean)}.
+	 * @return List	One message for each file store without enough room; empty if all have room.
+	 * @throws IOException
+	 * 	If the file store of a destination cannot be determined.
+	 */
+	public static List<String> checkFreeSpace(FileSet fs, long bytes) throws IOException {
+		Map<FileStore, Long> needed = new LinkedHashMap<FileStore, Long>();
+		Map<FileStore, String> names = new HashMap<FileStore, String>();
+		for (String destParent : fs.getDestinations()) {
+			// a destination that does not exist is reported by the other checks
+			if (MirrorClient.isMirrorAddress(destParent) || !Files.isDirectory(Paths.get(destParent))) continue;
+			FileStore store = Files.getFileStore(Paths.get(destParent));
+			Long sum = needed.get(store);
+			needed.put(store, (sum != null ? sum : 0) + bytes);
+			names.put(store, names.containsKey(store) ? names.get(store) + " and " + destParent : destParent);
+		}
+		List<String> problems = new ArrayList<String>();
+		for (Map.Entry<FileStore, Long> store : needed.entrySet()) {
+			long usable = store.getKey().getUsableSpace();
+			if (store.getValue() > usable) {
+				problems.add("Not enough space on " + names.get(store.getKey()) + ": the backup needs "
+						+ Progress.formatSize(store.getValue()) + ", " + Progress.formatSize(usable) + " is free");
+			}
+		}
+		return problems;
+	}
+
+	/**	Utility function that tests if the destination directories specified in a {@link FileSet} can be written
+	 * to (each must exist and have sufficient permissions to be written to).
 	 * @param fs {@link FileSet} to extract the destination directory from.
-	 * @return Boolean True if the destination is NOT writable
+	 * @return Boolean True if any destination is NOT writable
 	 * @throws IOException
 	 * 	Generally due to a native file system error
 	 */
 	public static Boolean cannotWrite(FileSet fs) throws IOException {
-		Path destParent = Paths.get(fs.getDestination());
-		if (!Files.isWritable(destParent)) {
-			return true;
+		for (String destParent : fs.getDestinations()) {
+			if (MirrorClient.isMirrorAddress(destParent)) continue;
+			if (!Files.isWritable(Paths.get(destParent))) {
+				return true;
+			}
 		}
 		return false;
 	}
@@ -221,7 +1486,9 @@ public class FileOps extends SwingWorker<Void, Progress> {
 		}
 	}
 
-	/**	Posts a Progress object to the registered handler that represents completion of the operation.
+	/**	Posts a Progress object to the registered handler that represents completion of the operation, preceded
+	 * by the {@link FailureReport} and the {@link PerformanceReport} of the operation, which is also saved to
+	 * the report directory.
 	 * 
 	 * 	<p>
 	 * 	Requirement 1.1.5.1: The user must be notified of the status of any backup (failure or success).
@@ -230,9 +1497,40 @@ public class FileOps extends SwingWorker<Void, Progress> {
 	 */
 	@Override
 	public void done() {
+		mMetrics.unregister();
+		if (mScheduler != null) {
+			PerformanceReport report = new PerformanceReport(mMetrics);
+			if (mReportDirectory != null) {
+				try {
+					report.write(mReportDirectory, mFilesToCopy.getName());
+				} catch (IOException e) {
+					System.err.println("Unable to save performance report: " + e.getMessage());
+				}
+			}
+			if (mMessageHandler != null) {
+				mMessageHandler.handleFailures(mFailures);
+				mMessageHandler.handleReport(report);
+			}
+		}
 		if (mMessageHandler != null) {
 			mMessageHandler.handleCompletion();
 		}
+		if (mPruneDirs == null || isCancelled()) {
+			mPruned.countDown();
+			return;
+		}
+		// off the Event Dispatch Thread, and after completion so the backup is not held up by removing old ones
+		Thread pruner = new Thread(new Runnable() {
+			public void run() {
+				try {
+					prune();
+				} finally {
+					mPruned.countDown();
+				}
+			}
+		}, "Mirror pruner");
+		pruner.setDaemon(true);
+		pruner.start();
 	}
 
 	public static void validateFileSet(FileSet files) throws IllegalArgumentException {
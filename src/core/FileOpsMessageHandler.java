@@ -1,5 +1,7 @@
 package core;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 /** Defines required methods for any class that wants to receive {@link Progress} updates from the {@link FileOps}
@@ -26,4 +28,32 @@ public interface FileOpsMessageHandler {
 	 */
 	public void handleCompletion();
 
+	/**	handleFailures will be called once, just before {@link #handleReport(PerformanceReport)}, with the files
+	 * and folders that could not be copied even after retrying. The report is empty if everything was copied.
+	 * Handlers that have no use for the failures can ignore them.
+	 * 
+	 * @param failures The {@link FailureReport} of the operation.
+	 */
+	public default void handleFailures(FailureReport failures) {
+	}
+
+	/**	handleReport will be called once, just before {@link #handleCompletion()}, with a summary of where the
+	 * time of the operation went. Handlers that have no use for the report can ignore it.
+	 * 
+	 * @param report The {@link PerformanceReport} of the operation.
+	 */
+	public default void handleReport(PerformanceReport report) {
+	}
+
+	/**	handlePruned will be called after {@link #handleCompletion()} for each old backup the {@link RetentionPolicy}
+	 * removed or failed to remove. It is called on the thread removing them, not the Event Dispatch Thread.
+	 * Handlers that have no use for it can ignore it.
+	 * 
+	 * @param oldBackup	The old backup, or the destination folder if it could not be searched for old backups.
+	 * @param removed	Number of files and folders removed.
+	 * @param error	Why the removal failed, or null if it succeeded.
+	 */
+	public default void handlePruned(Path oldBackup, long removed, IOException error) {
+	}
+
 }
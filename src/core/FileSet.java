@@ -12,6 +12,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.DefaultListModel;
 
@@ -71,6 +74,129 @@ public class FileSet extends DefaultListModel<String> {
 	 */
 	private long totalBytes;
 
+	/**	Files smaller than this many bytes are appended into pack files instead of being copied individually.
+	 * A value of 0 (the default) disables packing.
+	 * 
+	 * @see PackWriter
+	 */
+	private long packThreshold;
+
+	/**	Maximum average number of bytes per second the backup may copy. A value of 0 (the default) means unlimited.
+	 * 
+	 * @see Throttle
+	 */
+	private long bytesPerSecond;
+
+	/**	Maximum average number of files per second the backup may copy. A value of 0 (the default) means unlimited.
+	 * 
+	 * @see Throttle
+	 */
+	private long filesPerSecond;
+
+	/**	Number of bytes that may be copied in one burst after an idle period. A value of 0 (the default) allows
+	 * one second worth of {@link #bytesPerSecond}.
+	 * 
+	 * @see Throttle
+	 */
+	private long burstBytes;
+
+	/**	Number of files copied at the same time from or to a rotational disk. A value of 0 means
+	 * {@link #DEFAULT_ROTATIONAL_CONCURRENCY}.
+	 * 
+	 * @see CopyScheduler
+	 */
+	private int rotationalConcurrency;
+
+	/**	Number of files copied at the same time from or to a solid state disk. A value of 0 means
+	 * {@link #DEFAULT_SOLID_STATE_CONCURRENCY}.
+	 * 
+	 * @see CopyScheduler
+	 */
+	private int solidStateConcurrency;
+
+	/**	True to let a {@link ConcurrencyController} tune the number of active copy workers from the observed
+	 * throughput. When false, every worker allowed by the per-device limits copies all the time.
+	 * 
+	 * @see ConcurrencyController
+	 */
+	private boolean adaptiveConcurrency;
+
+	/**	Order in which the files of each device are copied. A value of null means {@link CopyOrder#INSERTION}.
+	 * 
+	 * @see CopyOrder
+	 */
+	private CopyOrder copyOrder;
+
+	/**	True to force each copied file to disk before it is counted as copied. Slower, but a completed backup
+	 * survives a power failure.
+	 * 
+	 */
+	private boolean syncFiles;
+
+	/**	Rules a file below a folder source must match one of to be backed up. Empty (or null in FileSets saved
+	 * before rules existed) backs up every file.
+	 * 
+	 * @see PathFilter
+	 */
+	private ArrayList<String> includes;
+
+	/**	Rules for files and folders below a folder source that are not backed up.
+	 * 
+	 * @see PathFilter
+	 */
+	private ArrayList<String> excludes;
+
+	/**	Further destination directories that receive a copy of the backup besides {@link #destination}, such as a
+	 * removable disk. Each source file is read once and written to all of them. Null in FileSets saved before
+	 * extra destinations existed.
+	 * 
+	 * @see TeeWriter
+	 */
+	private ArrayList<String> extraDestinations;
+
+	/**	True to encrypt the backup with a key derived from a passphrase, which is asked for when the backup
+	 * runs and never stored.
+	 * 
+	 * @see BackupEncryption
+	 */
+	private boolean encrypted;
+
+	/**	True to bring large changed files up to date in place, rewriting only the blocks that changed, when
+	 * a backup is kept up to date by watching.
+	 * 
+	 * @see DeltaCopier
+	 */
+	private boolean updateInPlace;
+
+	/**	Decides which older backups of this FileSet are removed after each backup, or null to keep them all.
+	 * 
+	 * @see RetentionPolicy
+	 */
+	private RetentionPolicy retentionPolicy;
+
+	/**	Maximum average number of files and folders per second removed while old backups are pruned. A value of
+	 * 0 means {@link #DEFAULT_PRUNE_FILES_PER_SECOND}.
+	 * 
+	 * @see TreeRemover
+	 */
+	private long pruneFilesPerSecond;
+
+	/**	Default number of concurrent copies per rotational disk; one sequential stream avoids seeking.
+	 * 
+	 */
+	public static final int DEFAULT_ROTATIONAL_CONCURRENCY = 1;
+
+	/**	Default number of concurrent copies per solid state disk.
+	 * 
+	 */
+	public static final int DEFAULT_SOLID_STATE_CONCURRENCY = 4;
+
+	/**	Default number of files and folders removed per second while pruning; low enough that a disk pruning a
+	 * large old backup still answers the next backup or other programs.
+	 * 
+	 */
+	public static final long DEFAULT_PRUNE_FILES_PER_SECOND = 2000;
+
 	/** Standard no-arg constructor. Use to instantiate a FileSet when you do not know what the name of the FileSet should be
 	 * and you do not know the destination path. 
 	 * 
@@ -175,7 +301,8 @@ public class FileSet extends DefaultListModel<String> {
 		}
 	}
 
-	/**	Adds the specified path to the list of sources that the FileSet is going to copy.
+	/**	Adds the specified path to the list of sources that the FileSet is going to copy. The path may be a
+	 * file or a folder; everything below a folder is copied, subject to the include and exclude rules.
 	 * 
 	 *  <p>Requirement 1.1.1.1: The user must be able to create a list of files that the application is to operate on.</p>
 	 *  <p>Requirement 1.1.3.1: The user must be able to modify the list of files to operate on prior to backup. After
@@ -188,7 +315,9 @@ public class FileSet extends DefaultListModel<String> {
 			Path filePath = Paths.get(path);
 			try {
 				BasicFileAttributes fileAttrs = Files.getFileAttributeView(filePath, BasicFileAttributeView.class).readAttributes();
-				totalBytes += fileAttrs.size();
+				if (fileAttrs.isRegularFile()) {
+					totalBytes += fileAttrs.size();
+				}
 			} catch (IOException e) {
 				throw new IllegalArgumentException("Attributes of file " + path + " are not readable.");
 			}
@@ -198,6 +327,31 @@ public class FileSet extends DefaultListModel<String> {
 		}
 	}
 
+	/**	Removes every source and returns them, so they can be checked away from the event dispatch thread and
+	 * added back in batches with {@link #addCheckedElements(List, long)}.
+	 * 
+	 * @return the sources, in order.
+	 */
+	public List<String> takeElements() {
+		List<String> paths = Collections.list(super.elements());
+		super.removeAllElements();
+		totalBytes = 0;
+		return paths;
+	}
+
+	/**	Appends sources that were already checked, such as those of a saved FileSet being loaded, without
+	 * looking at the file system again. Sources found missing may be among them, so that they are kept.
+	 * 
+	 * @param paths the sources; none of them may be in the FileSet already.
+	 * @param bytes the total size of the files among them.
+	 */
+	public void addCheckedElements(List<String> paths, long bytes) {
+		for (String path : paths) {
+			super.addElement(path);
+		}
+		totalBytes += bytes;
+	}
+
 	/**	Removes the specified path from the list of sources that the FileSet is going to copy. Nothing happens if the supplied
 	 * path does not exist in the current FileSet list of sources.
 	 * 
@@ -219,7 +373,9 @@ public class FileSet extends DefaultListModel<String> {
 			Path filePath = Paths.get(path);
 			try {
 				BasicFileAttributes fileAttrs = Files.getFileAttributeView(filePath, BasicFileAttributeView.class).readAttributes();
-				totalBytes -= fileAttrs.size();
+				if (fileAttrs.isRegularFile()) {
+					totalBytes -= fileAttrs.size();
+				}
 			} catch (IOException e) {
 				throw new IllegalArgumentException("Attributes of file " + path + " are not readable.");
 			}
@@ -309,7 +465,8 @@ public class FileSet extends DefaultListModel<String> {
 	 * <p>Requirement 1.1.2.1: The user shall be able to specify a destination folder or drive for the backup operation
 	 * to store the backup into.</p>
 	 * 
-	 * @param destination String representing the absolute path to a directory to write the backup into.
+	 * @param destination String representing the absolute path to a directory to write the backup into, or a
+	 * 	<code>mirror://host:port/directory</code> address of a {@link MirrorReceiver} on another machine.
 	 * @throws Exception when the directory contains illegal characters for the underlying file system/platform or if the specified
 	 * destination cannot be written into (due to permissions typically).
 	 */
@@ -318,6 +475,12 @@ public class FileSet extends DefaultListModel<String> {
 		if (destination == null) {
 			throw new IllegalArgumentException("Destination is null");
 		}
+		if (MirrorClient.isMirrorAddress(destination)) {
+			// checked by the receiver when the backup starts
+			new MirrorClient(destination);
+			this.destination = destination;
+			return;
+		}
 		Path testDest = Paths.get(destination);
 		if (!Files.isDirectory(testDest)) throw new IOException("Destination does not exist or is not a directory");
 		this.destination = testDest.toString();
@@ -325,11 +488,355 @@ public class FileSet extends DefaultListModel<String> {
 
 
 	/**
-	 * @return the totalBytes of all files that are in the FileSet at the time this call is made.
+	 * @return the totalBytes of all files that are in the FileSet at the time this call is made. Files
+	 * below folder sources are not included; they are counted when the backup starts.
 	 */
 	public long getTotalBytes() {
 		return totalBytes;
 	}
 
-}
+	/**
+	 * @return the size in bytes below which files are stored in pack files, or 0 if packing is disabled.
+	 */
+	public long getPackThreshold() {
+		return packThreshold;
+	}
+
+	/**	Sets the size in bytes below which files are appended into pack files rather than copied into
+	 * the backup directory tree one by one. Use 0 to disable packing.
+	 * 
+	 * @param packThreshold the threshold in bytes.
+	 * @throws IllegalArgumentException if the threshold is negative.
+	 * @see PackWriter
+	 */
+	public void setPackThreshold(long packThreshold) throws IllegalArgumentException {
+		if (packThreshold < 0) {
+			throw new IllegalArgumentException("Pack threshold cannot be negative");
+		}
+		this.packThreshold = packThreshold;
+	}
+
+	/**
+	 * @return the maximum average bytes per second, or 0 if unlimited.
+	 */
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**	Sets the maximum average number of bytes per second the backup may copy.
+	 * 
+	 * @param bytesPerSecond the limit in bytes per second, or 0 for unlimited.
+	 * @throws IllegalArgumentException if the limit is negative.
+	 * @see Throttle
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) throws IllegalArgumentException {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Bytes per second cannot be negative");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @return the maximum average files per second, or 0 if unlimited.
+	 */
+	public long getFilesPerSecond() {
+		return filesPerSecond;
+	}
+
+	/**	Sets the maximum average number of files per second the backup may copy.
+	 * 
+	 * @param filesPerSecond the limit in files per second, or 0 for unlimited.
+	 * @throws IllegalArgumentException if the limit is negative.
+	 * @see Throttle
+	 */
+	public void setFilesPerSecond(long filesPerSecond) throws IllegalArgumentException {
+		if (filesPerSecond < 0) {
+			throw new IllegalArgumentException("Files per second cannot be negative");
+		}
+		this.filesPerSecond = filesPerSecond;
+	}
+
+	/**
+	 * @return the burst size in bytes, or 0 for one second worth of {@link #getBytesPerSecond()}.
+	 */
+	public long getBurstBytes() {
+		return burstBytes;
+	}
+
+	/**	Sets the number of bytes that may be copied in one burst after an idle period.
+	 * 
+	 * @param burstBytes the burst size in bytes, or 0 for one second worth of {@link #getBytesPerSecond()}.
+	 * @throws IllegalArgumentException if the burst size is negative.
+	 * @see Throttle
+	 */
+	public void setBurstBytes(long burstBytes) throws IllegalArgumentException {
+		if (burstBytes < 0) {
+			throw new IllegalArgumentException("Burst size cannot be negative");
+		}
+		this.burstBytes = burstBytes;
+	}
+
+	/**
+	 * @return the number of files copied at the same time from or to a rotational disk.
+	 */
+	public int getRotationalConcurrency() {
+		return rotationalConcurrency > 0 ? rotationalConcurrency : DEFAULT_ROTATIONAL_CONCURRENCY;
+	}
+
+	/**	Sets the number of files copied at the same time from or to a rotational disk (or a disk whose type
+	 * cannot be determined).
+	 * 
+	 * @param rotationalConcurrency the number of concurrent copies, at least 1.
+	 * @throws IllegalArgumentException if the number is less than 1.
+	 * @see CopyScheduler
+	 */
+	public void setRotationalConcurrency(int rotationalConcurrency) throws IllegalArgumentException {
+		if (rotationalConcurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		}
+		this.rotationalConcurrency = rotationalConcurrency;
+	}
+
+	/**
+	 * @return the number of files copied at the same time from or to a solid state disk.
+	 */
+	public int getSolidStateConcurrency() {
+		return solidStateConcurrency > 0 ? solidStateConcurrency : DEFAULT_SOLID_STATE_CONCURRENCY;
+	}
+
+	/**	Sets the number of files copied at the same time from or to a solid state disk.
+	 * 
+	 * @param solidStateConcurrency the number of concurrent copies, at least 1.
+	 * @throws IllegalArgumentException if the number is less than 1.
+	 * @see CopyScheduler
+	 */
+	public void setSolidStateConcurrency(int solidStateConcurrency) throws IllegalArgumentException {
+		if (solidStateConcurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		}
+		this.solidStateConcurrency = solidStateConcurrency;
+	}
+
+	/**
+	 * @return the order in which the files of each device are copied.
+	 */
+	public CopyOrder getCopyOrder() {
+		return copyOrder != null ? copyOrder : CopyOrder.INSERTION;
+	}
+
+	/**	Sets the order in which the files of each device are copied.
+	 * 
+	 * @param copyOrder the {@link CopyOrder} to use.
+	 * @throws IllegalArgumentException if the order is null.
+	 * @see CopyScheduler
+	 */
+	public void setCopyOrder(CopyOrder copyOrder) throws IllegalArgumentException {
+		if (copyOrder == null) {
+			throw new IllegalArgumentException("Copy order is null");
+		}
+		this.copyOrder = copyOrder;
+	}
 
+	/**
+	 * @return true if the number of active copy workers is tuned from the observed throughput.
+	 */
+	public boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency;
+	}
+
+	/**	Turns adaptive tuning of the number of active copy workers on or off. The per-device limits remain
+	 * the upper bound either way.
+	 * 
+	 * @param adaptiveConcurrency true to tune the number of workers while the backup runs.
+	 * @see ConcurrencyController
+	 */
+	public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+		this.adaptiveConcurrency = adaptiveConcurrency;
+	}
+
+	/**
+	 * @return true if each copied file is forced to disk before it is counted as copied.
+	 */
+	public boolean isSyncFiles() {
+		return syncFiles;
+	}
+
+	/**	Turns forcing each copied file to disk on or off. The time spent is reported as
+	 * {@link Metrics.Phase#FSYNC}.
+	 * 
+	 * @param syncFiles true to force each copied file to disk.
+	 */
+	public void setSyncFiles(boolean syncFiles) {
+		this.syncFiles = syncFiles;
+	}
+
+	/**
+	 * @return true if the backup is encrypted.
+	 */
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+
+	/**	Sets whether the backup is encrypted. An encrypted backup needs its passphrase to be made and to be
+	 * restored, and its small files are not packed.
+	 * 
+	 * @param encrypted true to encrypt the backup.
+	 * @see BackupEncryption
+	 */
+	public void setEncrypted(boolean encrypted) {
+		this.encrypted = encrypted;
+	}
+
+	/**
+	 * @return true if large changed files are updated in place when the backup is kept up to date.
+	 */
+	public boolean isUpdateInPlace() {
+		return updateInPlace;
+	}
+
+	/**	Sets whether a watched backup brings changed files of at least {@link DeltaCopier#MIN_FILE_SIZE} up to
+	 * date in place, writing only the blocks that changed. Such a copy is briefly half updated while it is
+	 * written, instead of being replaced in one step.
+	 * 
+	 * @param updateInPlace true to update large files in place.
+	 * @see MirrorWatcher
+	 */
+	public void setUpdateInPlace(boolean updateInPlace) {
+		this.updateInPlace = updateInPlace;
+	}
+
+	/**
+	 * @return the policy deciding which older backups are removed after each backup, or null to keep them all.
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	/**	Sets which older backups of this FileSet are removed after each backup that completes without errors.
+	 * Only backups in the same destinations made from the same sources are considered.
+	 * 
+	 * @param retentionPolicy the policy, or null to keep every backup.
+	 * @see TreeRemover
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	/**
+	 * @return the maximum average number of files and folders removed per second while pruning old backups.
+	 */
+	public long getPruneFilesPerSecond() {
+		return pruneFilesPerSecond > 0 ? pruneFilesPerSecond : DEFAULT_PRUNE_FILES_PER_SECOND;
+	}
+
+	/**	Sets the maximum average number of files and folders removed per second while the {@link RetentionPolicy}
+	 * prunes old backups, independently of {@link #getFilesPerSecond()}.
+	 * 
+	 * @param pruneFilesPerSecond the limit in files per second, at least 1.
+	 * @throws IllegalArgumentException if the limit is less than 1.
+	 * @see TreeRemover
+	 */
+	public void setPruneFilesPerSecond(long pruneFilesPerSecond) throws IllegalArgumentException {
+		if (pruneFilesPerSecond < 1) {
+			throw new IllegalArgumentException("Prune rate must be at least 1 file per second");
+		}
+		this.pruneFilesPerSecond = pruneFilesPerSecond;
+	}
+
+	/**
+	 * @return the include rules; a file below a folder source must match one of them, if there are any.
+	 */
+	public List<String> getIncludes() {
+		return includes != null ? Collections.unmodifiableList(includes) : Collections.<String>emptyList();
+	}
+
+	/**	Adds a rule that files below folder sources must match to be backed up. Once there is an include rule,
+	 * files matching none of them are skipped.
+	 * 
+	 * @param rule a glob such as <code>*.jpg</code>, or <code>regex:</code> followed by a regular expression.
+	 * @throws IllegalArgumentException if the rule is not a valid glob or regular expression.
+	 * @see PathFilter
+	 */
+	public void addInclude(String rule) throws IllegalArgumentException {
+		PathFilter.validate(rule);
+		if (includes == null) includes = new ArrayList<String>();
+		if (!includes.contains(rule)) includes.add(rule);
+	}
+
+	/**
+	 * @return the exclude rules for files and folders below folder sources.
+	 */
+	public List<String> getExcludes() {
+		return excludes != null ? Collections.unmodifiableList(excludes) : Collections.<String>emptyList();
+	}
+
+	/**	Adds a rule for files and folders below folder sources that are not backed up. An excluded folder is
+	 * skipped with everything in it.
+	 * 
+	 * @param rule a glob such as <code>*.tmp</code> or <code>node_modules</code>, or <code>regex:</code> followed
+	 * 	by a regular expression.
+	 * @throws IllegalArgumentException if the rule is not a valid glob or regular expression.
+	 * @see PathFilter
+	 */
+	public void addExclude(String rule) throws IllegalArgumentException {
+		PathFilter.validate(rule);
+		if (excludes == null) excludes = new ArrayList<String>();
+		if (!excludes.contains(rule)) excludes.add(rule);
+	}
+
+	/**	Replaces all include and exclude rules.
+	 * 
+	 * @param includes the new include rules.
+	 * @param excludes the new exclude rules.
+	 * @throws IllegalArgumentException if a rule is not a valid glob or regular expression; the rules are
+	 * 	left unchanged.
+	 */
+	public void setRules(List<String> includes, List<String> excludes) throws IllegalArgumentException {
+		for (String rule : includes) PathFilter.validate(rule);
+		for (String rule : excludes) PathFilter.validate(rule);
+		this.includes = new ArrayList<String>(includes);
+		this.excludes = new ArrayList<String>(excludes);
+	}
+
+	/**
+	 * @return the destination directories of the backup: the one set with {@link #setDestination(String)} first,
+	 * 	followed by those added with {@link #addDestination(String)}.
+	 */
+	public List<String> getDestinations() {
+		ArrayList<String> destinations = new ArrayList<String>();
+		if (destination != null) destinations.add(destination);
+		if (extraDestinations != null) destinations.addAll(extraDestinations);
+		return destinations;
+	}
+
+	/**	Adds a further destination directory that receives a copy of the backup. The files are read once
+	 * and written to every destination.
+	 * 
+	 * @param destination String representing the absolute path to a directory to write a copy of the backup into.
+	 * @throws IllegalArgumentException if the destination is null.
+	 * @throws IOException if the destination does not exist or is not a directory.
+	 * @see TeeWriter
+	 */
+	public void addDestination(String destination) throws IllegalArgumentException, IOException {
+		if (destination == null) {
+			throw new IllegalArgumentException("Destination is null");
+		}
+		Path testDest = Paths.get(destination);
+		if (!Files.isDirectory(testDest)) throw new IOException("Destination does not exist or is not a directory");
+		String added = testDest.toString();
+		if (added.equals(this.destination)) return;
+		if (extraDestinations == null) extraDestinations = new ArrayList<String>();
+		if (!extraDestinations.contains(added)) extraDestinations.add(added);
+	}
+
+	/**	Removes a destination added with {@link #addDestination(String)}.
+	 * 
+	 * @param destination the destination to remove.
+	 * @return boolean	True if it was a further destination of this FileSet.
+	 */
+	public boolean removeDestination(String destination) {
+		return extraDestinations != null && destination != null
+				&& extraDestinations.remove(Paths.get(destination).toString());
+	}
+
+}
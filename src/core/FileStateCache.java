@@ -0,0 +1,507 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The FileStateCache remembers the size, modification time, file key and checksum of every source file as it
+ * was when last copied, so that change detection can compare a source against the cache instead of against
+ * its copy in the backup. Only files that changed need the destination touched at all, which matters most
+ * when the destination is a network share or a slow disk.
+ * <p>
+ * The cache is kept in <code>Mirror/&lt;backup name&gt;.state</code> within the user's home directory, next to
+ * the saved {@link FileSet}. The file holds the entries sorted by path, each path stored as the number of
+ * bytes it shares with the previous one plus the rest, and every {@link #RESTART_INTERVAL}th entry stored in
+ * full. The file is memory-mapped and searched in place (a binary search over the full entries, then a short
+ * scan), so even millions of entries cost next to no heap. Entries added since loading are kept in memory
+ * until {@link #save()}.
+ * </p>
+ * <p>
+ * Saving writes a new file next to the old one, forces it to disk and moves it into place in one step; a
+ * CRC32 over the whole file is checked on loading. A crash therefore leaves either the old or the new cache,
+ * and a damaged cache is simply ignored, which costs one full comparison against the backup.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class FileStateCache {
+
+	/**
+	 * The state of one source file.
+	 */
+	public static class Entry {
+		/** Size of the file in bytes. */
+		public final long size;
+		/** Last modification time in milliseconds since the epoch. */
+		public final long lastModified;
+		/** The file system's identity of the file (device and inode on Unix), or an empty String if unknown. */
+		public final String fileKey;
+		/** CRC32 of the contents, or -1 if unknown. */
+		public final long checksum;
+
+		/**	Constructor that records the state of a file.
+		 *
+		 * @param size Size of the file in bytes.
+		 * @param lastModified Last modification time in milliseconds since the epoch.
+		 * @param fileKey The file system's identity of the file, or null if unknown.
+		 * @param checksum CRC32 of the contents, or -1 if unknown.
+		 */
+		public Entry(long size, long lastModified, String fileKey, long checksum) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey != null ? fileKey : "";
+			this.checksum = checksum;
+		}
+
+		/**	Constructor that records the state of a file from its attributes.
+		 *
+		 * @param attrs The attributes of the file.
+		 * @param checksum CRC32 of the contents, or -1 if unknown.
+		 */
+		public Entry(BasicFileAttributes attrs, long checksum) {
+			this(attrs.size(), attrs.lastModifiedTime().toMillis(), keyOf(attrs), checksum);
+		}
+
+		/**	Tells whether a file still looks the way this entry recorded it.
+		 *
+		 * @param attrs The current attributes of the file.
+		 * @return boolean	True if size, modification time and file key are unchanged.
+		 */
+		public boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis()
+					&& fileKey.equals(keyOf(attrs));
+		}
+
+		private static String keyOf(BasicFileAttributes attrs) {
+			Object key = attrs.fileKey();
+			return key != null ? key.toString() : "";
+		}
+	}
+
+	/**	Number of entries between two entries whose path is stored in full.
+	 *
+	 */
+	public static final int RESTART_INTERVAL = 16;
+
+	private static final int MAGIC = 0x4D465343; // "MFSC"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 12;
+
+	/**	Orders paths by their UTF-8 bytes, the order they are stored in.
+	 *
+	 */
+	private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return compareBytes(a, 0, a.length, b);
+		}
+	};
+
+	private final Path mFile;
+
+	/**	The cache file as loaded, or null if there was none.
+	 *
+	 */
+	private MappedByteBuffer mMapped;
+	private int mMappedCount;
+	private int[] mRestarts = new int[0];
+
+	/**	Entries added or replaced since loading. Guarded by this.
+	 *
+	 */
+	private final Map<String, Entry> mChanges = new HashMap<String, Entry>();
+
+	private FileStateCache(Path file) {
+		mFile = file;
+	}
+
+	/**	Returns the cache file for a backup: <code>Mirror/&lt;backup name&gt;.state</code> within the user's
+	 * home directory.
+	 *
+	 * @param backupName The name of the backup, as in {@link FileSet#getName()}.
+	 * @return Path	The cache file.
+	 */
+	public static Path fileFor(String backupName) {
+		return Paths.get(System.getProperty("user.home"), "Mirror",
+				backupName.replaceAll("[\\\\/:*?\"<>|]", "_") + ".state");
+	}
+
+	/**	Opens a cache. A missing or damaged file gives an empty cache.
+	 *
+	 * @param file The cache file.
+	 * @return FileStateCache	The cache.
+	 */
+	public static FileStateCache load(Path file) {
+		FileStateCache cache = new FileStateCache(file);
+		try {
+			cache.map();
+		} catch (NoSuchFileException e) {
+			// first run
+		} catch (IOException e) {
+			System.err.println("Ignoring file state cache " + file + ": " + e.getMessage());
+			cache.mMapped = null;
+			cache.mMappedCount = 0;
+			cache.mRestarts = new int[0];
+		}
+		return cache;
+	}
+
+	private void map() throws IOException {
+		FileChannel channel = FileChannel.open(mFile, StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			if (length < HEADER_BYTES + 12 || length > Integer.MAX_VALUE) {
+				throw new IOException("unexpected size " + length);
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			int end = (int) length - 8;
+			CRC32 crc = new CRC32();
+			ByteBuffer body = mapped.duplicate();
+			body.limit(end);
+			crc.update(body);
+			if (crc.getValue() != mapped.getLong(end)) {
+				throw new IOException("checksum mismatch");
+			}
+			if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+				throw new IOException("not a file state cache");
+			}
+			int count = mapped.getInt(8);
+			int restartCount = mapped.getInt(end - 4);
+			int restartTable = end - 4 - restartCount * 4;
+			if (restartCount < 0 || restartTable < HEADER_BYTES || restartCount != (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL) {
+				throw new IOException("damaged index");
+			}
+			int[] restarts = new int[restartCount];
+			for (int i = 0; i < restartCount; i++) {
+				restarts[i] = mapped.getInt(restartTable + i * 4);
+			}
+			mMapped = mapped;
+			mMappedCount = count;
+			mRestarts = restarts;
+		} finally {
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	/**	Looks up the recorded state of a file.
+	 *
+	 * @param path The absolute path of the source file.
+	 * @return Entry	The recorded state, or null if the file is not in the cache.
+	 */
+	public synchronized Entry get(String path) {
+		Entry changed = mChanges.get(path);
+		if (changed != null || mMapped == null) {
+			return changed;
+		}
+		return find(path.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**	Records the state of a file. Kept in memory until {@link #save()}.
+	 *
+	 * @param path The absolute path of the source file.
+	 * @param entry The state of the file.
+	 */
+	public synchronized void put(String path, Entry entry) {
+		mChanges.put(path, entry);
+	}
+
+	/**	Tells whether a file is unchanged since its state was recorded.
+	 *
+	 * @param path The absolute path of the source file.
+	 * @param attrs The current attributes of the file.
+	 * @return boolean	True if the cache holds the file and it still matches.
+	 */
+	public boolean isUnchanged(String path, BasicFileAttributes attrs) {
+		Entry entry = get(path);
+		return entry != null && entry.matches(attrs);
+	}
+
+	/**
+	 * @return the number of files in the cache.
+	 */
+	public synchronized int size() {
+		int size = mMappedCount;
+		for (String path : mChanges.keySet()) {
+			if (mMapped != null && find(path.getBytes(StandardCharsets.UTF_8)) != null) continue;
+			size++;
+		}
+		return size;
+	}
+
+	/**	Writes the cache, including everything recorded since loading, and replaces the previous file.
+	 *
+	 * @throws IOException if the cache cannot be written; the previous file is left as it was.
+	 */
+	public synchronized void save() throws IOException {
+		// merge the stored entries with the changes, in path order
+		final List<byte[]> changedPaths = new ArrayList<byte[]>();
+		final Map<String, Entry> changes = mChanges;
+		for (String path : changes.keySet()) {
+			changedPaths.add(path.getBytes(StandardCharsets.UTF_8));
+		}
+		Collections.sort(changedPaths, BYTE_ORDER);
+
+		Writer writer = new Writer();
+		int next = 0;
+		if (mMapped != null) {
+			Reader reader = new Reader(mMapped, HEADER_BYTES);
+			for (int i = 0; i < mMappedCount; i++) {
+				reader.next();
+				while (next < changedPaths.size() && compareBytes(reader.key, 0, reader.keyLength, changedPaths.get(next)) > 0) {
+					writer.add(changedPaths.get(next), changes.get(new String(changedPaths.get(next), StandardCharsets.UTF_8)));
+					next++;
+				}
+				if (next < changedPaths.size() && compareBytes(reader.key, 0, reader.keyLength, changedPaths.get(next)) == 0) {
+					continue; // replaced by the change
+				}
+				writer.add(java.util.Arrays.copyOf(reader.key, reader.keyLength), reader.entry());
+			}
+		}
+		for (; next < changedPaths.size(); next++) {
+			writer.add(changedPaths.get(next), changes.get(new String(changedPaths.get(next), StandardCharsets.UTF_8)));
+		}
+
+		Path parent = mFile.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path temp = parent.resolve(mFile.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(writer.finish());
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		// Windows refuses to replace a file that is still mapped
+		unmap();
+		try {
+			Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			mChanges.clear();
+		} finally {
+			// the new file, or the previous one again if it could not be replaced
+			if (Files.exists(mFile)) {
+				map();
+			}
+		}
+	}
+
+	/**	Drops the mapping of the loaded file and releases it at once rather than when it is garbage collected.
+	 *	Nothing may read the old mapping afterwards.
+	 *
+	 */
+	private void unmap() {
+		MappedByteBuffer mapped = mMapped;
+		mMapped = null;
+		mMappedCount = 0;
+		mRestarts = new int[0];
+		if (mapped == null) {
+			return;
+		}
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), mapped);
+		} catch (NoSuchMethodException e) {
+			// Java 8 has no invokeCleaner; its buffers expose their cleaner instead
+			try {
+				Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(mapped);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception java8) {
+				// left to the garbage collector
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	/**	Finds a path in the mapped file.
+	 *
+	 */
+	private Entry find(byte[] path) {
+		// the last restart whose path is not after the one wanted
+		int low = 0, high = mRestarts.length - 1, start = -1;
+		Reader reader = new Reader(mMapped, 0);
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			reader.seek(mRestarts[mid]);
+			reader.next();
+			if (compareBytes(reader.key, 0, reader.keyLength, path) <= 0) {
+				start = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (start < 0) return null;
+		reader.seek(mRestarts[start]);
+		int remaining = Math.min(RESTART_INTERVAL, mMappedCount - start * RESTART_INTERVAL);
+		for (int i = 0; i < remaining; i++) {
+			reader.next();
+			int order = compareBytes(reader.key, 0, reader.keyLength, path);
+			if (order == 0) return reader.entry();
+			if (order > 0) return null;
+		}
+		return null;
+	}
+
+	private static int compareBytes(byte[] a, int offset, int length, byte[] b) {
+		int common = Math.min(length, b.length);
+		for (int i = 0; i < common; i++) {
+			int x = a[offset + i] & 0xFF, y = b[i] & 0xFF;
+			if (x != y) return x - y;
+		}
+		return length - b.length;
+	}
+
+	/**
+	 * Decodes entries one after the other.
+	 */
+	private static class Reader {
+		private final ByteBuffer mBuffer;
+		byte[] key = new byte[256];
+		int keyLength;
+		private long mSize, mLastModified, mChecksum;
+		private String mFileKey;
+
+		Reader(ByteBuffer buffer, int position) {
+			mBuffer = buffer.duplicate();
+			mBuffer.position(position);
+		}
+
+		void seek(int position) {
+			mBuffer.position(position);
+			keyLength = 0;
+		}
+
+		void next() {
+			int shared = readVarInt();
+			int suffix = readVarInt();
+			if (shared + suffix > key.length) {
+				key = java.util.Arrays.copyOf(key, Math.max(key.length * 2, shared + suffix));
+			}
+			mBuffer.get(key, shared, suffix);
+			keyLength = shared + suffix;
+			mSize = readVarLong();
+			mLastModified = readVarLong();
+			byte[] fileKey = new byte[readVarInt()];
+			mBuffer.get(fileKey);
+			mFileKey = new String(fileKey, StandardCharsets.UTF_8);
+			mChecksum = readVarLong() - 1;
+		}
+
+		Entry entry() {
+			return new Entry(mSize, mLastModified, mFileKey, mChecksum);
+		}
+
+		private int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		private long readVarLong() {
+			long value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = mBuffer.get();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) return value;
+			}
+		}
+	}
+
+	/**
+	 * Encodes entries in path order.
+	 */
+	private static class Writer {
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(1 << 16);
+		private final List<Integer> mRestarts = new ArrayList<Integer>();
+		private byte[] mPrevious = new byte[0];
+		private int mCount;
+
+		Writer() {
+			writeInt(MAGIC);
+			writeInt(VERSION);
+			writeInt(0); // count, filled in by finish()
+		}
+
+		void add(byte[] path, Entry entry) {
+			int shared = 0;
+			if (mCount % RESTART_INTERVAL == 0) {
+				mRestarts.add(mOut.size());
+			} else {
+				int limit = Math.min(path.length, mPrevious.length);
+				while (shared < limit && path[shared] == mPrevious[shared]) {
+					shared++;
+				}
+			}
+			writeVarLong(shared);
+			writeVarLong(path.length - shared);
+			mOut.write(path, shared, path.length - shared);
+			writeVarLong(entry.size);
+			writeVarLong(entry.lastModified);
+			byte[] fileKey = entry.fileKey.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(fileKey.length);
+			mOut.write(fileKey, 0, fileKey.length);
+			writeVarLong(entry.checksum + 1);
+			mPrevious = path;
+			mCount++;
+		}
+
+		byte[] finish() {
+			for (int restart : mRestarts) {
+				writeInt(restart);
+			}
+			writeInt(mRestarts.size());
+			byte[] bytes = mOut.toByteArray();
+			ByteBuffer.wrap(bytes).putInt(8, mCount);
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			ByteBuffer withCrc = ByteBuffer.allocate(bytes.length + 8);
+			withCrc.put(bytes).putLong(crc.getValue());
+			return withCrc.array();
+		}
+
+		private void writeInt(int value) {
+			mOut.write(value >>> 24);
+			mOut.write(value >>> 16);
+			mOut.write(value >>> 8);
+			mOut.write(value);
+		}
+
+		private void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				mOut.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			mOut.write((int) value);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder event types emitted by Mirror. They show up under the <i>Mirror</i> category in
+ * JDK Mission Control and <code>jfr print --categories Mirror</code>.
+ * <p>
+ * This class is only loaded when the running JVM has Flight Recorder; everything else goes through
+ * {@link CopyEvents}.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see CopyEvents
+ *
+ */
+final class JfrEvents {
+
+	private JfrEvents() {
+	}
+
+	static Object beginFileCopy() {
+		return begin(new FileCopy());
+	}
+
+	static void commitFileCopy(Object started, String path, long bytes, boolean packed) {
+		FileCopy event = (FileCopy) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.bytes = bytes;
+			event.packed = packed;
+			event.commit();
+		}
+	}
+
+	static Object beginDirectoryCreate() {
+		return begin(new DirectoryCreate());
+	}
+
+	static void commitDirectoryCreate(Object started, String path) {
+		DirectoryCreate event = (DirectoryCreate) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.commit();
+		}
+	}
+
+	static Object beginChecksum() {
+		return begin(new Checksum());
+	}
+
+	static void commitChecksum(Object started, String path, long bytes, String algorithm, String value) {
+		Checksum event = (Checksum) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.bytes = bytes;
+			event.algorithm = algorithm;
+			event.value = value;
+			event.commit();
+		}
+	}
+
+	static void copyError(String path, Throwable error) {
+		CopyError event = new CopyError();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.exception = error.getClass().getName();
+			event.message = error.getMessage();
+			event.commit();
+		}
+	}
+
+	static Object beginBackup() {
+		return begin(new Backup());
+	}
+
+	static void commitBackup(Object started, Metrics metrics) {
+		Backup event = (Backup) started;
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileSet = metrics.getFileSetName();
+			event.files = metrics.getFilesCopied();
+			event.bytes = metrics.getBytesCopied();
+			event.errors = metrics.getErrors();
+			event.bytesPerSecond = (long) metrics.getBytesPerSecond();
+			event.commit();
+		}
+	}
+
+	/**	Starts timing an event, or returns null if its type is not being recorded.
+	 *
+	 */
+	private static Object begin(Event event) {
+		if (!event.isEnabled()) return null;
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * One file copied, into its own file or a pack file.
+	 */
+	@Name("core.FileCopy")
+	@Label("File Copy")
+	@Category({ "Mirror", "Backup" })
+	@Description("A single file copied into a backup")
+	@StackTrace(false)
+	static class FileCopy extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Packed")
+		@Description("True if the file was appended to a pack file")
+		boolean packed;
+	}
+
+	/**
+	 * One destination directory created.
+	 */
+	@Name("core.DirectoryCreate")
+	@Label("Directory Create")
+	@Category({ "Mirror", "Backup" })
+	@StackTrace(false)
+	static class DirectoryCreate extends Event {
+		@Label("Path")
+		String path;
+	}
+
+	/**
+	 * One checksum computed over the contents of a file.
+	 */
+	@Name("core.Checksum")
+	@Label("Checksum")
+	@Category({ "Mirror", "Backup" })
+	@Description("A checksum computed while copying a file; the duration spans the copy")
+	@StackTrace(false)
+	static class Checksum extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Algorithm")
+		String algorithm;
+
+		@Label("Value")
+		String value;
+	}
+
+	/**
+	 * One file that failed to copy.
+	 */
+	@Name("core.CopyError")
+	@Label("Copy Error")
+	@Category({ "Mirror", "Backup" })
+	static class CopyError extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Exception")
+		String exception;
+
+		@Label("Message")
+		String message;
+	}
+
+	/**
+	 * One complete backup.
+	 */
+	@Name("core.Backup")
+	@Label("Backup")
+	@Category({ "Mirror", "Backup" })
+	@Description("A complete backup operation with its aggregate throughput")
+	@StackTrace(false)
+	static class Backup extends Event {
+		@Label("File Set")
+		String fileSet;
+
+		@Label("Files Copied")
+		long files;
+
+		@Label("Bytes Copied")
+		@DataAmount
+		long bytes;
+
+		@Label("Errors")
+		long errors;
+
+		@Label("Throughput")
+		@DataAmount
+		@Frequency
+		long bytesPerSecond;
+	}
+}
@@ -0,0 +1,621 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JobManager runs several backups at the same time under one shared I/O budget.
+ * <p>
+ * Backups are kept as named profiles: saved {@link FileSet}s in <code>Mirror/profiles</code> within the user's
+ * home directory. Each submitted backup becomes a {@link Job}. Jobs wait in a queue and up to a fixed number
+ * of them run at once, each with its own {@link FileOps} operation.
+ * </p>
+ * <p>
+ * The running jobs share two budgets. The bandwidth budget (bytes and files per second) is divided between
+ * them with max-min fairness: every job gets an equal share, except that a job whose own {@link FileSet}
+ * limit is lower keeps its limit and leaves the rest to the others. The shares are recomputed whenever a
+ * job starts or finishes, or the budget changes. The concurrency budget is a {@link WorkerBudget} limiting
+ * how many files all jobs together copy at once, handing each free slot to the job holding the fewest.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see Job
+ *
+ */
+public class JobManager {
+
+	/**
+	 * The states a {@link Job} goes through.
+	 */
+	public enum State {
+		/** Waiting for one of the running jobs to finish. */
+		QUEUED,
+		/** Copying. */
+		RUNNING,
+		/** Finished without an exception. */
+		SUCCEEDED,
+		/** Stopped by an exception; see {@link Job#getError()}. */
+		FAILED,
+		/** Cancelled before or while it ran. */
+		CANCELLED
+	}
+
+	/**
+	 * Receives every change of every job: its state and its progress.
+	 */
+	public interface Listener {
+		/**	Called when a job changes state or reports progress. Progress arrives on the Event Dispatch Thread,
+		 * state changes on the thread running the job.
+		 *
+		 * @param job The job that changed.
+		 */
+		public void jobChanged(Job job);
+	}
+
+	/**	Directory the profiles are saved in: <code>Mirror/profiles</code> within the user's home directory.
+	 *
+	 */
+	public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), "Mirror", "profiles");
+
+	/**	Number of jobs that run at the same time unless another number is given.
+	 *
+	 */
+	public static final int DEFAULT_CONCURRENT_JOBS = 2;
+
+	/**	Number of files all jobs together copy at the same time unless another number is given.
+	 *
+	 */
+	public static final int DEFAULT_WORKERS = 8;
+
+	private final Path mProfileDirectory;
+	private final ExecutorService mRunner;
+	private final WorkerBudget mWorkerBudget;
+
+	/**	Device concurrency limits shared by all jobs, so that two jobs never send one rotational disk two streams.
+	 *
+	 */
+	private final StoreLimits mStoreLimits = new StoreLimits();
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+	/**	Every job submitted, in the order submitted. Guarded by this.
+	 *
+	 */
+	private final List<Job> mJobs = new ArrayList<Job>();
+
+	/**	The jobs currently running. Guarded by this.
+	 *
+	 */
+	private final List<Job> mRunning = new ArrayList<Job>();
+
+	private long mBytesPerSecond;
+	private long mFilesPerSecond;
+
+	/**	Directory the {@link PerformanceReport} of each job is saved in, or null to not save them.
+	 *
+	 */
+	private Path mReportDirectory = PerformanceReport.DEFAULT_DIRECTORY;
+	private boolean mKeepState;
+
+	/**	Constructor that creates a manager with the default profile directory, {@link #DEFAULT_CONCURRENT_JOBS}
+	 * and {@link #DEFAULT_WORKERS}.
+	 *
+	 */
+	public JobManager() {
+		this(DEFAULT_DIRECTORY, DEFAULT_CONCURRENT_JOBS, DEFAULT_WORKERS);
+	}
+
+	/**	Constructor that creates a manager.
+	 *
+	 * @param profileDirectory The directory the profiles are saved in.
+	 * @param concurrentJobs Number of jobs that run at the same time, at least 1.
+	 * @param workers Number of files all jobs together copy at the same time, at least 1.
+	 * @throws IllegalArgumentException if a number is less than 1.
+	 */
+	public JobManager(Path profileDirectory, int concurrentJobs, int workers) throws IllegalArgumentException {
+		if (concurrentJobs < 1) {
+			throw new IllegalArgumentException("At least one job must be allowed to run");
+		}
+		mProfileDirectory = profileDirectory;
+		mWorkerBudget = new WorkerBudget(workers);
+		mRunner = Executors.newFixedThreadPool(concurrentJobs, new ThreadFactory() {
+			private int mCount;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Mirror job " + (++mCount));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// --- Profiles -- //
+
+	/**	Saves a {@link FileSet} as a profile, replacing any profile with the same name.
+	 *
+	 * @param profileName The name of the profile; must be a valid file name.
+	 * @param files The {@link FileSet} to save.
+	 * @throws Exception if the name is not a valid file name or the profile cannot be written.
+	 */
+	public void saveProfile(String profileName, FileSet files) throws Exception {
+		FileSet.validFileName(profileName);
+		FileSet.save(mProfileDirectory.resolve(profileName).toString(), files);
+	}
+
+	/**	Loads a profile.
+	 *
+	 * @param profileName The name of the profile.
+	 * @return FileSet	The saved {@link FileSet}.
+	 * @throws Exception if there is no such profile or it cannot be read.
+	 */
+	public FileSet loadProfile(String profileName) throws Exception {
+		return FileSet.read(mProfileDirectory.resolve(profileName).toString());
+	}
+
+	/**	Deletes a profile. Nothing happens if there is no such profile.
+	 *
+	 * @param profileName The name of the profile.
+	 * @throws IOException if the profile cannot be deleted.
+	 */
+	public void deleteProfile(String profileName) throws IOException {
+		Files.deleteIfExists(mProfileDirectory.resolve(profileName));
+	}
+
+	/**
+	 * @return the names of all saved profiles, sorted.
+	 * @throws IOException if the profile directory cannot be read.
+	 */
+	public List<String> getProfileNames() throws IOException {
+		List<String> names = new ArrayList<String>();
+		if (!Files.isDirectory(mProfileDirectory)) return names;
+		DirectoryStream<Path> profiles = Files.newDirectoryStream(mProfileDirectory);
+		try {
+			for (Path profile : profiles) {
+				if (Files.isRegularFile(profile)) {
+					names.add(profile.getFileName().toString());
+				}
+			}
+		} finally {
+			profiles.close();
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	// --- Jobs -- //
+
+	/**	Queues a backup of a saved profile. The backup is named after the profile and the current date and
+	 * time, so the profile can run every night into a new backup.
+	 *
+	 * @param profileName The name of the profile.
+	 * @return Job	The queued job.
+	 * @throws Exception if the profile cannot be read or is not a valid backup.
+	 */
+	public Job submit(String profileName) throws Exception {
+		FileSet files = loadProfile(profileName);
+		files.setName(profileName + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+		return submit(profileName, files);
+	}
+
+	/**	Queues a backup of a {@link FileSet} under its own name.
+	 *
+	 * @param jobName The name the job is shown under.
+	 * @param files The {@link FileSet} to back up.
+	 * @return Job	The queued job.
+	 * @throws IllegalArgumentException if the {@link FileSet} is not valid.
+	 */
+	public synchronized Job submit(String jobName, FileSet files) throws IllegalArgumentException {
+		Job job = new Job(jobName, files);
+		mJobs.add(job);
+		job.mFuture = mRunner.submit(job);
+		fire(job);
+		return job;
+	}
+
+	/**
+	 * @return every job submitted, in the order submitted.
+	 */
+	public synchronized List<Job> getJobs() {
+		return new ArrayList<Job>(mJobs);
+	}
+
+	/**	Waits until every job submitted so far has finished and has removed the old backups its
+	 * {@link RetentionPolicy} does not keep.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public void awaitAll() throws InterruptedException {
+		for (Job job : getJobs()) {
+			job.await();
+			job.mOps.awaitPruned(Long.MAX_VALUE);
+		}
+	}
+
+	/**	Cancels every job that has not finished.
+	 *
+	 */
+	public void cancelAll() {
+		for (Job job : getJobs()) {
+			job.cancel();
+		}
+	}
+
+	/**	Stops accepting jobs; queued and running jobs still complete.
+	 *
+	 */
+	public void shutdown() {
+		mRunner.shutdown();
+	}
+
+	// --- Budgets -- //
+
+	/**	Changes the bandwidth budget shared by the running jobs. Takes effect immediately.
+	 *
+	 * @param bytesPerSecond Bytes per second all jobs together may copy, or 0 for no shared limit.
+	 * @param filesPerSecond Files per second all jobs together may copy, or 0 for no shared limit.
+	 * @throws IllegalArgumentException if a value is negative.
+	 */
+	public synchronized void setBandwidthBudget(long bytesPerSecond, long filesPerSecond) throws IllegalArgumentException {
+		if (bytesPerSecond < 0 || filesPerSecond < 0) {
+			throw new IllegalArgumentException("Budget cannot be negative");
+		}
+		mBytesPerSecond = bytesPerSecond;
+		mFilesPerSecond = filesPerSecond;
+		rebalance();
+	}
+
+	/**
+	 * @return the {@link WorkerBudget} shared by the running jobs; its size may be changed at any time.
+	 */
+	public WorkerBudget getWorkerBudget() {
+		return mWorkerBudget;
+	}
+
+	/**	Sets the directory the {@link PerformanceReport} of each job is saved in.
+	 *
+	 * @param reportDirectory the directory, or null to not save the reports.
+	 */
+	public void setReportDirectory(Path reportDirectory) {
+		mReportDirectory = reportDirectory;
+	}
+
+	/**	Turns keeping a {@link FileStateCache} for each job's backup on or off, for backups a
+	 * {@link MirrorWatcher} will watch later. Off by default.
+	 *
+	 * @param keepState true to keep the cache.
+	 */
+	public void setKeepState(boolean keepState) {
+		mKeepState = keepState;
+	}
+
+	/**	Splits a budget with max-min fairness: every party gets an equal share, but a party whose own limit
+	 * is lower keeps its limit and the rest is split between the others.
+	 *
+	 * @param budget The total to split, or 0 for no shared limit.
+	 * @param limits The own limit of each party, 0 meaning unlimited.
+	 * @return long[]	The share of each party; never 0 (unlimited) while there is a budget.
+	 */
+	public static long[] fairShares(long budget, long[] limits) {
+		long[] shares = new long[limits.length];
+		if (budget <= 0) {
+			System.arraycopy(limits, 0, shares, 0, limits.length);
+			return shares;
+		}
+		boolean[] settled = new boolean[limits.length];
+		long left = budget;
+		int open = limits.length;
+		while (open > 0) {
+			long each = Math.max(1, left / open);
+			boolean capped = false;
+			for (int i = 0; i < limits.length; i++) {
+				if (!settled[i] && limits[i] > 0 && limits[i] <= each) {
+					shares[i] = limits[i];
+					left -= limits[i];
+					settled[i] = true;
+					open--;
+					capped = true;
+				}
+			}
+			if (!capped) {
+				for (int i = 0; i < limits.length; i++) {
+					if (!settled[i]) shares[i] = each;
+				}
+				break;
+			}
+		}
+		return shares;
+	}
+
+	/**	Gives every running job its share of the bandwidth budget.
+	 *
+	 */
+	private synchronized void rebalance() {
+		int count = mRunning.size();
+		long[] byteLimits = new long[count], fileLimits = new long[count];
+		for (int i = 0; i < count; i++) {
+			FileSet files = mRunning.get(i).mFiles;
+			byteLimits[i] = files.getBytesPerSecond();
+			fileLimits[i] = files.getFilesPerSecond();
+		}
+		long[] byteShares = fairShares(mBytesPerSecond, byteLimits);
+		long[] fileShares = fairShares(mFilesPerSecond, fileLimits);
+		for (int i = 0; i < count; i++) {
+			Throttle throttle = mRunning.get(i).mOps.getThrottle();
+			throttle.setLimits(byteShares[i], fileShares[i], throttle.getBurstBytes());
+		}
+	}
+
+	private void fire(Job job) {
+		for (Listener listener : mListeners) {
+			listener.jobChanged(job);
+		}
+	}
+
+	/**	Adds a listener for the changes of every job.
+	 *
+	 * @param listener The listener to add.
+	 */
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	/**	Removes a listener added with {@link #addListener(Listener)}.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * One backup run by the {@link JobManager}.
+	 */
+	public final class Job implements Runnable, FileOpsMessageHandler {
+
+		private final String mName;
+		private final FileSet mFiles;
+		private final FileOps mOps;
+		private final CountDownLatch mFinished = new CountDownLatch(1);
+		private Future<?> mFuture;
+		private volatile State mState = State.QUEUED;
+		private volatile Progress mProgress;
+		private volatile Exception mError;
+
+		/**	Set once {@link #cancel()} is called, so a job the runner has already taken but not started yet
+		 * does not start at all.
+		 *
+		 */
+		private volatile boolean mCancelled;
+
+		private Job(String name, FileSet files) throws IllegalArgumentException {
+			mName = name;
+			mFiles = files;
+			mOps = new FileOps(files, this);
+			mOps.setReportDirectory(mReportDirectory);
+			if (mKeepState) {
+				mOps.setStateFile(FileStateCache.fileFor(files.getName()));
+			}
+			mOps.setWorkerBudget(mWorkerBudget);
+			mOps.setStoreLimits(mStoreLimits);
+		}
+
+		/**
+		 * @return the name the job is shown under.
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * @return the {@link FileSet} being backed up.
+		 */
+		public FileSet getFileSet() {
+			return mFiles;
+		}
+
+		/**
+		 * @return the current state of the job.
+		 */
+		public State getState() {
+			return mState;
+		}
+
+		/**
+		 * @return the most recent {@link Progress} of the job, or null before it reported any.
+		 */
+		public Progress getProgress() {
+			return mProgress;
+		}
+
+		/**
+		 * @return what stopped a {@link State#FAILED} job, or null.
+		 */
+		public Exception getError() {
+			return mError;
+		}
+
+		/**
+		 * @return the files the job could not copy so far; complete once the job has finished.
+		 */
+		public FailureReport getFailureReport() {
+			return mOps.getFailureReport();
+		}
+
+		/**
+		 * @return the {@link Metrics} of the job's operation.
+		 */
+		public Metrics getMetrics() {
+			return mOps.getMetrics();
+		}
+
+		/**	Cancels the job. A queued job never starts; a running job stops within a chunk of the files being
+		 * copied, removes their partial copies and keeps the rest.
+		 *
+		 */
+		public void cancel() {
+			mCancelled = true;
+			if (mState == State.QUEUED && mFuture.cancel(false)) {
+				finish(State.CANCELLED);
+			} else if (mState == State.RUNNING) {
+				mOps.cancel(true);
+			}
+		}
+
+		/**	Pauses a running job, freeing its disks until {@link #resume()}; see {@link FileOps#pause()}. The job
+		 * gives back its share of the worker budget while paused, so the other jobs can use it.
+		 *
+		 */
+		public void pause() {
+			mOps.pause();
+			fire(this);
+		}
+
+		/**	Lets a paused job carry on.
+		 *
+		 */
+		public void resume() {
+			mOps.resume();
+			fire(this);
+		}
+
+		/**
+		 * @return true while the job is paused.
+		 */
+		public boolean isPaused() {
+			return mOps.isPaused();
+		}
+
+		/**	Waits until the job has finished.
+		 *
+		 * @throws InterruptedException if the waiting thread is interrupted.
+		 */
+		public void await() throws InterruptedException {
+			mFinished.await();
+		}
+
+		/**	Waits until the job has finished, or the time is up.
+		 *
+		 * @param timeoutMillis Longest time to wait in milliseconds.
+		 * @return boolean	True if the job has finished.
+		 * @throws InterruptedException if the waiting thread is interrupted.
+		 */
+		public boolean await(long timeoutMillis) throws InterruptedException {
+			return mFinished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		/**	Runs the job on a thread of the {@link JobManager}.
+		 *
+		 */
+		public void run() {
+			if (mCancelled) {
+				finish(State.CANCELLED);
+				return;
+			}
+			synchronized (JobManager.this) {
+				mState = State.RUNNING;
+				mRunning.add(this);
+				rebalance();
+			}
+			// cancel() sets the flag before it looks at the state, so when it came in between it either saw the
+			// job running or the job sees the flag here
+			if (mCancelled) {
+				mOps.cancel(true);
+			}
+			fire(this);
+			State outcome;
+			try {
+				mOps.run();
+				mOps.get();
+				outcome = State.SUCCEEDED;
+			} catch (CancellationException e) {
+				outcome = State.CANCELLED;
+			} catch (ExecutionException e) {
+				mError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				outcome = State.FAILED;
+			} catch (InterruptedException e) {
+				outcome = State.CANCELLED;
+			}
+			synchronized (JobManager.this) {
+				mRunning.remove(this);
+				rebalance();
+			}
+			finish(outcome);
+			// old backups are removed after the job has finished; the next job starts once they are gone, so
+			// it does not compete with the removal for the disk
+			try {
+				mOps.awaitPruned(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void finish(State state) {
+			mState = state;
+			mFinished.countDown();
+			fire(this);
+		}
+
+		/**	Keeps the most recent progress of the job.
+		 *
+		 * @see core.FileOpsMessageHandler#handleProgress(java.util.List)
+		 */
+		@Override
+		public void handleProgress(List<Progress> progressItems) {
+			mProgress = progressItems.get(progressItems.size() - 1);
+			fire(this);
+		}
+
+		/**	Nothing to do; the job's state changes once its thread returns.
+		 *
+		 * @see core.FileOpsMessageHandler#handleCompletion()
+		 */
+		@Override
+		public void handleCompletion() {
+		}
+
+		/**	Reports each old backup the job's {@link RetentionPolicy} removed, or could not remove.
+		 *
+		 * @see core.FileOpsMessageHandler#handlePruned(java.nio.file.Path, long, java.io.IOException)
+		 */
+		@Override
+		public void handlePruned(Path oldBackup, long removed, IOException error) {
+			if (error != null) {
+				System.err.println(mName + ": unable to remove old backup " + oldBackup + ": " + error.getMessage());
+			} else {
+				System.out.println(mName + ": removed old backup " + oldBackup + " (" + removed + " entries)");
+			}
+		}
+
+		@Override
+		public String toString() {
+			Progress progress = mProgress;
+			String text = mName + " " + mState.name().toLowerCase(Locale.ROOT);
+			if (mState == State.RUNNING && isPaused()) {
+				return text + " paused";
+			}
+			if (mState == State.RUNNING && progress != null && progress.totalBytes > 0) {
+				text += String.format(Locale.ROOT, " %.0f%% %s %s left", progress.completedBytes * 100.0 / progress.totalBytes,
+						Progress.formatRate(progress.smoothedBytesPerSecond), Progress.formatEta(progress.etaSeconds));
+			}
+			return text;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in logarithmic buckets so percentiles can be estimated cheaply.
+ * <p>
+ * Each power of two is split into eight buckets, which keeps every estimate within 12.5% of the true value
+ * while the whole histogram needs fewer than 500 counters. Recording is lock-free and safe to call from
+ * many copy workers at once.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see Metrics
+ *
+ */
+public class LatencyHistogram {
+
+	/**	Number of buckets each power of two is divided into (as a power of two).
+	 *
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**	Enough buckets for any positive long value.
+	 *
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**	Records one duration.
+	 *
+	 * @param nanos The duration in nanoseconds. Negative values are counted as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		mCounts.incrementAndGet(bucketOf(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			// retry until the maximum is updated or a larger value wins
+		}
+	}
+
+	/**
+	 * @return the number of durations recorded.
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return the sum of all recorded durations in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return mSum.get();
+	}
+
+	/**
+	 * @return the longest recorded duration in nanoseconds.
+	 */
+	public long getMaxNanos() {
+		return mMax.get();
+	}
+
+	/**
+	 * @return the mean recorded duration in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public double getMeanNanos() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mSum.get() / (double) count;
+	}
+
+	/**	Estimates a percentile of the recorded durations.
+	 *
+	 * @param percentile The percentile to estimate, between 0 and 100.
+	 * @return long	The upper bound, in nanoseconds, of the bucket holding the percentile, or 0 if nothing was recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long count = mCount.get();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += mCounts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(bucket), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (SUB_BUCKETS + subBucket) * width;
+		return lower + width - 1;
+	}
+}
@@ -0,0 +1,397 @@
+package core;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The Metrics registry collects live statistics for one {@link FileOps} operation: counters for bytes, files
+ * and errors, gauges for queue depth and worker utilisation, and a {@link LatencyHistogram} for each
+ * {@link Phase} of copying a file.
+ * <p>
+ * While the backup runs the registry is published over JMX under
+ * <code>core:type=Metrics,name=&lt;FileSet name&gt;,id=&lt;registry number&gt;</code> so it can be watched with
+ * any JMX console or scraped by monitoring. The number keeps two backups of FileSets with the same name apart. {@link #toJson()} renders the same numbers as JSON, for example to compare runs
+ * across machines.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see MetricsMBean
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+	/**
+	 * The steps of copying a single file that are timed separately.
+	 */
+	public enum Phase {
+		/** Reading the attributes of a source file. */
+		STAT,
+		/** Creating the destination directory of a file. */
+		MKDIR,
+		/** Opening the source and destination files. */
+		OPEN,
+		/** A single read from the source. */
+		READ,
+		/** A single write to the destination. */
+		WRITE,
+		/** Forcing a copied file to disk, when {@link FileSet#isSyncFiles()} is set. */
+		FSYNC,
+		/** Closing the source and destination files. */
+		CLOSE
+	}
+
+	/**
+	 * The time spent on one file or directory.
+	 */
+	public static class Timing {
+		/** Path of the file or directory. */
+		public final String path;
+		/** Time spent in nanoseconds. */
+		public final long nanos;
+
+		/**	Constructor that records the time spent on a path.
+		 *
+		 * @param path Path of the file or directory.
+		 * @param nanos Time spent in nanoseconds.
+		 */
+		public Timing(String path, long nanos) {
+			this.path = path;
+			this.nanos = nanos;
+		}
+	}
+
+	/**	Number of slowest files and directories kept for the {@link PerformanceReport}.
+	 *
+	 */
+	public static final int SLOWEST_COUNT = 10;
+
+	/**	Orders {@link Timing}s from fastest to slowest.
+	 *
+	 */
+	private static final Comparator<Timing> BY_NANOS = new Comparator<Timing>() {
+		public int compare(Timing a, Timing b) {
+			return Long.compare(a.nanos, b.nanos);
+		}
+	};
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/**	Number given to the next registry, so every registry is published under a name of its own.
+	 *
+	 */
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
+	private final String mFileSetName;
+	private final long mId = NEXT_ID.incrementAndGet();
+	private final AtomicLong mBytesCopied = new AtomicLong();
+	private final AtomicLong mFilesCopied = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicInteger mQueueDepth = new AtomicInteger();
+	private final AtomicInteger mBusyWorkers = new AtomicInteger();
+	private final AtomicLong mBusyNanos = new AtomicLong();
+	private volatile int mWorkerCount;
+	private final long mStartNanos = System.nanoTime();
+	private volatile long mEndNanos;
+	private final Map<Phase, LatencyHistogram> mHistograms = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+	/**	The {@link #SLOWEST_COUNT} slowest files so far, fastest at the head. Guarded by itself.
+	 *
+	 */
+	private final PriorityQueue<Timing> mSlowestFiles = new PriorityQueue<Timing>(SLOWEST_COUNT + 1, BY_NANOS);
+
+	/**	Total time spent on the files of each source directory.
+	 *
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> mDirectoryNanos = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**	The name this registry was published under, or null if it is not published.
+	 *
+	 */
+	private ObjectName mObjectName;
+
+	/**	Constructor that creates an empty registry for a {@link FileSet}.
+	 *
+	 * @param fileSetName The name of the {@link FileSet} being backed up.
+	 */
+	public Metrics(String fileSetName) {
+		mFileSetName = fileSetName;
+		for (Phase phase : Phase.values()) {
+			mHistograms.put(phase, new LatencyHistogram());
+		}
+	}
+
+	/**	Publishes this registry on the platform MBean server. Failure to publish is reported but never
+	 * stops the backup.
+	 *
+	 */
+	public synchronized void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("core:type=Metrics,name=" + ObjectName.quote(mFileSetName) + ",id=" + mId);
+			server.registerMBean(this, name);
+			mObjectName = name;
+		} catch (Exception e) {
+			System.err.println("Unable to publish backup metrics over JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the name this registry is published under over JMX, or null if it is not published.
+	 */
+	public synchronized ObjectName getObjectName() {
+		return mObjectName;
+	}
+
+	/**	Removes this registry from the platform MBean server and freezes the elapsed time used for rates.
+	 *
+	 */
+	public synchronized void unregister() {
+		if (mEndNanos == 0) {
+			mEndNanos = System.nanoTime();
+		}
+		if (mObjectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+			} catch (Exception e) {
+				System.err.println("Unable to remove backup metrics from JMX: " + e.getMessage());
+			}
+			mObjectName = null;
+		}
+	}
+
+	/** Adds copied bytes. @param bytes Number of bytes copied. */
+	public void recordBytes(long bytes) {
+		mBytesCopied.addAndGet(bytes);
+	}
+
+	/** Counts one fully copied file. */
+	public void recordFile() {
+		mFilesCopied.incrementAndGet();
+	}
+
+	/** Counts one file that failed to copy. */
+	public void recordError() {
+		mErrors.incrementAndGet();
+	}
+
+	/**	Records the duration of one phase of a copy.
+	 *
+	 * @param phase The {@link Phase} that was timed.
+	 * @param nanos Its duration in nanoseconds.
+	 */
+	public void record(Phase phase, long nanos) {
+		mHistograms.get(phase).record(nanos);
+	}
+
+	/**	Records the total time spent copying one file, for the slowest files and directories.
+	 *
+	 * @param path Path of the source file.
+	 * @param directory Directory holding the source file.
+	 * @param nanos Time from starting to finishing the copy, in nanoseconds.
+	 */
+	public void recordFileTime(String path, String directory, long nanos) {
+		synchronized (mSlowestFiles) {
+			if (mSlowestFiles.size() < SLOWEST_COUNT || nanos > mSlowestFiles.peek().nanos) {
+				mSlowestFiles.add(new Timing(path, nanos));
+				if (mSlowestFiles.size() > SLOWEST_COUNT) {
+					mSlowestFiles.poll();
+				}
+			}
+		}
+		AtomicLong total = mDirectoryNanos.get(directory);
+		if (total == null) {
+			AtomicLong created = new AtomicLong();
+			total = mDirectoryNanos.putIfAbsent(directory, created);
+			if (total == null) {
+				total = created;
+			}
+		}
+		total.addAndGet(nanos);
+	}
+
+	/**
+	 * @return up to {@link #SLOWEST_COUNT} of the slowest files, slowest first.
+	 */
+	public List<Timing> getSlowestFiles() {
+		List<Timing> slowest;
+		synchronized (mSlowestFiles) {
+			slowest = new ArrayList<Timing>(mSlowestFiles);
+		}
+		Collections.sort(slowest, Collections.reverseOrder(BY_NANOS));
+		return slowest;
+	}
+
+	/**
+	 * @return up to {@link #SLOWEST_COUNT} of the directories whose files took longest in total, slowest first.
+	 */
+	public List<Timing> getSlowestDirectories() {
+		List<Timing> directories = new ArrayList<Timing>();
+		for (Map.Entry<String, AtomicLong> entry : mDirectoryNanos.entrySet()) {
+			directories.add(new Timing(entry.getKey(), entry.getValue().get()));
+		}
+		Collections.sort(directories, Collections.reverseOrder(BY_NANOS));
+		return directories.size() > SLOWEST_COUNT ? new ArrayList<Timing>(directories.subList(0, SLOWEST_COUNT)) : directories;
+	}
+
+	/**
+	 * @return the time since the operation started, or its total duration once it has finished, in seconds.
+	 */
+	public double getElapsedSeconds() {
+		return elapsedSeconds();
+	}
+
+	/**
+	 * @param phase The {@link Phase} of interest.
+	 * @return the histogram of durations recorded for the phase.
+	 */
+	public LatencyHistogram getHistogram(Phase phase) {
+		return mHistograms.get(phase);
+	}
+
+	/** Sets the number of files waiting to be copied. @param depth Files waiting. */
+	public void setQueueDepth(int depth) {
+		mQueueDepth.set(depth);
+	}
+
+	/** Sets the number of copy workers started. @param workers Number of workers. */
+	public void setWorkerCount(int workers) {
+		mWorkerCount = workers;
+	}
+
+	/**	Marks a worker as busy. Called by the {@link CopyScheduler} when a worker takes a task.
+	 *
+	 */
+	public void taskStarted() {
+		mQueueDepth.decrementAndGet();
+		mBusyWorkers.incrementAndGet();
+	}
+
+	/**	Marks a worker as idle again.
+	 *
+	 * @param busyNanos How long the worker spent on the task.
+	 */
+	public void taskFinished(long busyNanos) {
+		mBusyWorkers.decrementAndGet();
+		mBusyNanos.addAndGet(busyNanos);
+	}
+
+	private double elapsedSeconds() {
+		long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+		return Math.max(1, end - mStartNanos) / 1e9;
+	}
+
+	@Override public String getFileSetName() { return mFileSetName; }
+	@Override public long getBytesCopied() { return mBytesCopied.get(); }
+	@Override public long getFilesCopied() { return mFilesCopied.get(); }
+	@Override public long getErrors() { return mErrors.get(); }
+	@Override public double getBytesPerSecond() { return mBytesCopied.get() / elapsedSeconds(); }
+	@Override public double getFilesPerSecond() { return mFilesCopied.get() / elapsedSeconds(); }
+	@Override public int getQueueDepth() { return Math.max(0, mQueueDepth.get()); }
+	@Override public int getWorkerCount() { return mWorkerCount; }
+	@Override public int getBusyWorkers() { return mBusyWorkers.get(); }
+
+	@Override
+	public double getWorkerUtilisation() {
+		if (mWorkerCount == 0) return 0;
+		return Math.min(1, mBusyNanos.get() / 1e9 / (elapsedSeconds() * mWorkerCount));
+	}
+
+	@Override public double getOpenMillisP50() { return percentileMillis(Phase.OPEN, 50); }
+	@Override public double getOpenMillisP99() { return percentileMillis(Phase.OPEN, 99); }
+	@Override public double getReadMillisP50() { return percentileMillis(Phase.READ, 50); }
+	@Override public double getReadMillisP99() { return percentileMillis(Phase.READ, 99); }
+	@Override public double getWriteMillisP50() { return percentileMillis(Phase.WRITE, 50); }
+	@Override public double getWriteMillisP99() { return percentileMillis(Phase.WRITE, 99); }
+	@Override public double getCloseMillisP50() { return percentileMillis(Phase.CLOSE, 50); }
+	@Override public double getCloseMillisP99() { return percentileMillis(Phase.CLOSE, 99); }
+
+	private double percentileMillis(Phase phase, double percentile) {
+		return mHistograms.get(phase).getPercentileNanos(percentile) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"fileSet\": ").append(quote(mFileSetName)).append(",\n");
+		json.append("  \"host\": ").append(quote(hostName())).append(",\n");
+		json.append("  \"elapsedSeconds\": ").append(format(elapsedSeconds())).append(",\n");
+		json.append("  \"bytesCopied\": ").append(getBytesCopied()).append(",\n");
+		json.append("  \"filesCopied\": ").append(getFilesCopied()).append(",\n");
+		json.append("  \"errors\": ").append(getErrors()).append(",\n");
+		json.append("  \"bytesPerSecond\": ").append(format(getBytesPerSecond())).append(",\n");
+		json.append("  \"filesPerSecond\": ").append(format(getFilesPerSecond())).append(",\n");
+		json.append("  \"queueDepth\": ").append(getQueueDepth()).append(",\n");
+		json.append("  \"workerCount\": ").append(getWorkerCount()).append(",\n");
+		json.append("  \"busyWorkers\": ").append(getBusyWorkers()).append(",\n");
+		json.append("  \"workerUtilisation\": ").append(format(getWorkerUtilisation())).append(",\n");
+		json.append("  \"latencyMillis\": {");
+		String separator = "\n";
+		for (Phase phase : Phase.values()) {
+			LatencyHistogram histogram = mHistograms.get(phase);
+			json.append(separator).append("    ").append(quote(phase.name().toLowerCase(Locale.ROOT))).append(": {")
+				.append("\"count\": ").append(histogram.getCount())
+				.append(", \"mean\": ").append(format(histogram.getMeanNanos() / NANOS_PER_MILLI))
+				.append(", \"p50\": ").append(format(histogram.getPercentileNanos(50) / NANOS_PER_MILLI))
+				.append(", \"p99\": ").append(format(histogram.getPercentileNanos(99) / NANOS_PER_MILLI))
+				.append(", \"max\": ").append(format(histogram.getMaxNanos() / NANOS_PER_MILLI))
+				.append("}");
+			separator = ",\n";
+		}
+		json.append("\n  }\n}");
+		return json.toString();
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (Exception e) {
+			return "unknown";
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**	Utility function that renders a String as a JSON string literal.
+	 *
+	 * @param value The String to quote.
+	 * @return String	The quoted and escaped value.
+	 */
+	static String quote(String value) {
+		if (value == null) return "null";
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			switch (c) {
+			case '"': quoted.append("\\\""); break;
+			case '\\': quoted.append("\\\\"); break;
+			case '\n': quoted.append("\\n"); break;
+			case '\r': quoted.append("\\r"); break;
+			case '\t': quoted.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format("\\u%04x", (int) c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
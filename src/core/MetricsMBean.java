@@ -0,0 +1,72 @@
+package core;
+
+/**
+ * Management interface through which a running backup's {@link Metrics} are published over JMX.
+ * <p>
+ * Durations are reported in milliseconds, rates per second.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see Metrics
+ *
+ */
+public interface MetricsMBean {
+
+	/** @return the name of the {@link FileSet} being backed up. */
+	public String getFileSetName();
+
+	/** @return the number of bytes copied so far. */
+	public long getBytesCopied();
+
+	/** @return the number of files copied so far. */
+	public long getFilesCopied();
+
+	/** @return the number of files that failed to copy. */
+	public long getErrors();
+
+	/** @return the average bytes per second since the backup started. */
+	public double getBytesPerSecond();
+
+	/** @return the average files per second since the backup started. */
+	public double getFilesPerSecond();
+
+	/** @return the number of files waiting to be copied. */
+	public int getQueueDepth();
+
+	/** @return the number of copy workers started for the backup. */
+	public int getWorkerCount();
+
+	/** @return the number of copy workers busy copying right now. */
+	public int getBusyWorkers();
+
+	/** @return the fraction (0 to 1) of available worker time spent copying since the backup started. */
+	public double getWorkerUtilisation();
+
+	/** @return the median time to open a source and destination file. */
+	public double getOpenMillisP50();
+
+	/** @return the 99th percentile time to open a source and destination file. */
+	public double getOpenMillisP99();
+
+	/** @return the median time of a single read. */
+	public double getReadMillisP50();
+
+	/** @return the 99th percentile time of a single read. */
+	public double getReadMillisP99();
+
+	/** @return the median time of a single write. */
+	public double getWriteMillisP50();
+
+	/** @return the 99th percentile time of a single write. */
+	public double getWriteMillisP99();
+
+	/** @return the median time to close a source and destination file. */
+	public double getCloseMillisP50();
+
+	/** @return the 99th percentile time to close a source and destination file. */
+	public double getCloseMillisP99();
+
+	/** @return all metrics as a JSON document. */
+	public String toJson();
+}
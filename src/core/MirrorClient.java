@@ -0,0 +1,453 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The MirrorClient sends a backup to a {@link MirrorReceiver} on another machine, for a {@link FileSet} whose
+ * destination is a <code>mirror://host:port/directory</code> address.
+ * <p>
+ * All files travel over one connection using the {@link MirrorProtocol}. The client never waits for the
+ * receiver between files: up to {@link #MAX_IN_FLIGHT} files may be sent and not yet acknowledged, and the
+ * copy workers write their files at the same time, each frame naming the file it belongs to. The receiver's
+ * answers arrive on a thread of their own and are passed to the {@link Listener}.
+ * </p>
+ * <p>
+ * Adding <code>?compress</code> to the address compresses each block with {@link Deflater} before it is sent;
+ * blocks that do not get smaller are sent as they are.
+ * </p>
+ * <p>
+ * The receiver only accepts a backup from a client that knows its token. The token is given in the address
+ * as <code>token=&lt;secret&gt;</code>, or, to keep it out of saved profiles, in the {@link #TOKEN_VARIABLE}
+ * environment variable.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see MirrorReceiver
+ *
+ */
+public class MirrorClient {
+
+	/**
+	 * Receives the receiver's answer for each file.
+	 */
+	public interface Listener {
+		/**	Called once for every file opened, from the thread reading the receiver's answers.
+		 *
+		 * @param tag The object given to {@link MirrorClient#open(String, long, long, Object)}.
+		 * @param checksum The CRC32 of the file as written by the receiver.
+		 * @param error Null if the file was written, otherwise why it was not.
+		 */
+		public void acknowledged(Object tag, long checksum, IOException error);
+	}
+
+	/**	Start of every mirror destination.
+	 *
+	 */
+	public static final String SCHEME = "mirror://";
+
+	/**	Environment variable holding the receiver's token when the address does not give one.
+	 *
+	 */
+	public static final String TOKEN_VARIABLE = "MIRROR_TOKEN";
+
+	/**	Port used when the address does not name one.
+	 *
+	 */
+	public static final int DEFAULT_PORT = 7480;
+
+	/**	Most files sent and not yet acknowledged.
+	 *
+	 */
+	public static final int MAX_IN_FLIGHT = 256;
+
+	/**	Largest block sent in one frame.
+	 *
+	 */
+	private static final int MAX_BLOCK = 1024 * 1024;
+
+	private final String mHost;
+	private final int mPort;
+	private final String mDirectory;
+	private final boolean mCompress;
+	private final String mToken;
+
+	private Socket mSocket;
+	private DataOutputStream mOut;
+	private DataInputStream mIn;
+	private Listener mListener;
+
+	/**	Limits the files in flight to {@link #MAX_IN_FLIGHT}.
+	 *
+	 */
+	private final Semaphore mWindow = new Semaphore(MAX_IN_FLIGHT);
+	private final AtomicInteger mNextId = new AtomicInteger(1);
+	private final Map<Integer, Object> mTags = new ConcurrentHashMap<Integer, Object>();
+	private final CountDownLatch mDone = new CountDownLatch(1);
+	private volatile IOException mFailure;
+
+	private final ThreadLocal<Deflater> mDeflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	/**	Constructor that parses a mirror address; {@link #connect(String)} opens the connection.
+	 *
+	 * @param address An address such as <code>mirror://backup-host:7480/backups?compress&amp;token=secret</code>.
+	 * @throws IllegalArgumentException if the address is not a valid mirror address.
+	 */
+	public MirrorClient(String address) throws IllegalArgumentException {
+		if (!isMirrorAddress(address)) {
+			throw new IllegalArgumentException("Not a mirror address: " + address);
+		}
+		URI uri;
+		try {
+			uri = new URI(address);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Not a mirror address: " + address);
+		}
+		if (uri.getHost() == null) {
+			throw new IllegalArgumentException("Mirror address has no host: " + address);
+		}
+		boolean compress = false;
+		String token = null;
+		if (uri.getQuery() != null) {
+			for (String option : uri.getQuery().split("&")) {
+				if (option.equals("compress") || option.equals("compress=true")) {
+					compress = true;
+				} else if (option.startsWith("token=")) {
+					token = option.substring("token=".length());
+				} else {
+					throw new IllegalArgumentException("Unknown mirror option: " + option);
+				}
+			}
+		}
+		mHost = uri.getHost();
+		mPort = uri.getPort() >= 0 ? uri.getPort() : DEFAULT_PORT;
+		mDirectory = uri.getPath() != null && !uri.getPath().isEmpty() ? uri.getPath() : "/";
+		mCompress = compress;
+		mToken = token != null ? token : System.getenv(TOKEN_VARIABLE);
+	}
+
+	/**	Tells whether a destination is a mirror address rather than a local directory.
+	 *
+	 * @param destination The destination of a {@link FileSet}.
+	 * @return boolean	True if it starts with {@link #SCHEME}.
+	 */
+	public static boolean isMirrorAddress(String destination) {
+		return destination != null && destination.startsWith(SCHEME);
+	}
+
+	/**	Returns a destination as it may be shown or logged: the token of a mirror address is left out.
+	 *
+	 * @param destination The destination of a {@link FileSet}.
+	 * @return String	The destination without its token.
+	 */
+	public static String describe(String destination) {
+		return isMirrorAddress(destination) ? destination.replaceAll("token=[^&]*", "token=...") : destination;
+	}
+
+	/**
+	 * @return the directory below the receiver's root the backup is created in.
+	 */
+	public String getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return true if blocks are compressed before they are sent.
+	 */
+	public boolean isCompressed() {
+		return mCompress;
+	}
+
+	/**	Sets the listener that receives the answer for each file. Must be called before {@link #connect(String)}.
+	 *
+	 * @param listener the listener, or null.
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**	Connects to the receiver and asks it to create a backup.
+	 *
+	 * @param backupName Name of the backup directory to create in {@link #getDirectory()}.
+	 * @throws IOException if the receiver cannot be reached or refuses the backup, for instance because it
+	 * 	already exists or the token is wrong.
+	 */
+	public void connect(String backupName) throws IOException {
+		mSocket = new Socket();
+		mSocket.setTcpNoDelay(true);
+		mSocket.connect(new InetSocketAddress(mHost, mPort), 10000);
+		mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream(), 256 * 1024));
+		mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream(), 64 * 1024));
+
+		ByteArrayOutputStream hello = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(hello);
+		payload.writeInt(MirrorProtocol.VERSION);
+		payload.writeUTF(mDirectory);
+		payload.writeUTF(backupName);
+		payload.writeUTF(mToken != null ? mToken : "");
+		MirrorProtocol.write(mOut, MirrorProtocol.HELLO, 0, hello.toByteArray(), hello.size());
+		mOut.flush();
+		MirrorProtocol.Frame answer = MirrorProtocol.read(mIn);
+		if (answer.type == MirrorProtocol.ERROR) {
+			mSocket.close();
+			throw new IOException(new DataInputStream(new ByteArrayInputStream(answer.payload)).readUTF());
+		}
+		if (answer.type != MirrorProtocol.READY) {
+			mSocket.close();
+			throw new IOException("Unexpected answer from mirror receiver " + mHost + ":" + mPort);
+		}
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readAnswers();
+			}
+		}, "Mirror client " + mHost + ":" + mPort);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**	Starts sending a file. Bytes written to the returned stream are sent as they are written; closing it
+	 * ends the file. Several files may be open at the same time from different threads.
+	 *
+	 * @param relativePath Path of the file relative to the backup.
+	 * @param size Size of the file in bytes.
+	 * @param lastModified Modification time to give the copy, in milliseconds since the epoch.
+	 * @param tag Passed back to the {@link Listener} with the answer for this file.
+	 * @return OutputStream	The stream to write the file's contents to.
+	 * @throws IOException if the connection has failed.
+	 * @throws InterruptedException if interrupted while {@link #MAX_IN_FLIGHT} files await their answer.
+	 */
+	public OutputStream open(String relativePath, long size, long lastModified, Object tag)
+			throws IOException, InterruptedException {
+		checkFailure();
+		if (!mWindow.tryAcquire()) {
+			// the answers cannot come back for files still sitting in the buffer
+			synchronized (mOut) {
+				mOut.flush();
+			}
+			mWindow.acquire();
+		}
+		int id = mNextId.getAndIncrement();
+		mTags.put(id, tag);
+		ByteArrayOutputStream open = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(open);
+		payload.writeUTF(relativePath.replace(File.separatorChar, '/'));
+		payload.writeLong(size);
+		payload.writeLong(lastModified);
+		synchronized (mOut) {
+			MirrorProtocol.write(mOut, MirrorProtocol.OPEN, id, open.toByteArray(), open.size());
+		}
+		return new FileStream(id);
+	}
+
+	/**	Abandons a file instead of closing its stream, for instance because reading it failed. The receiver
+	 * removes what it has written and answers with an error.
+	 *
+	 * @param stream A stream returned by {@link #open(String, long, long, Object)}.
+	 * @throws IOException if the connection has failed.
+	 */
+	public void abort(OutputStream stream) throws IOException {
+		FileStream file = (FileStream) stream;
+		if (file.mClosed) return;
+		file.mClosed = true;
+		checkFailure();
+		synchronized (mOut) {
+			// a CLOSE without a checksum
+			MirrorProtocol.write(mOut, MirrorProtocol.CLOSE, file.mId, null, 0);
+		}
+	}
+
+	/**	Waits until the receiver has answered for every file sent so far, keeping the connection open.
+	 *
+	 * @throws IOException if the connection has failed.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void awaitAnswers() throws IOException, InterruptedException {
+		checkFailure();
+		synchronized (mOut) {
+			mOut.flush();
+		}
+		mWindow.acquire(MAX_IN_FLIGHT);
+		mWindow.release(MAX_IN_FLIGHT);
+		checkFailure();
+	}
+
+	/**	Waits for the receiver to answer for every file sent and closes the connection.
+	 *
+	 * @throws IOException if the connection failed before every file was answered.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void finish() throws IOException, InterruptedException {
+		try {
+			checkFailure();
+			synchronized (mOut) {
+				MirrorProtocol.write(mOut, MirrorProtocol.BYE, 0, null, 0);
+				mOut.flush();
+			}
+			mDone.await();
+			checkFailure();
+		} finally {
+			close();
+		}
+	}
+
+	/**	Closes the connection without waiting. Files not yet answered are reported as failed.
+	 *
+	 */
+	public void close() {
+		if (mSocket == null) return;
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (mFailure != null) {
+			throw new IOException("Connection to mirror receiver " + mHost + ":" + mPort + " failed: "
+					+ mFailure.getMessage(), mFailure);
+		}
+	}
+
+	/**	Runs on the reader thread until the receiver says goodbye or the connection fails.
+	 *
+	 */
+	private void readAnswers() {
+		try {
+			while (true) {
+				MirrorProtocol.Frame frame = MirrorProtocol.read(mIn);
+				if (frame.type == MirrorProtocol.BYE) break;
+				if (frame.type != MirrorProtocol.ACK) {
+					throw new IOException("Unexpected frame from mirror receiver");
+				}
+				DataInputStream answer = new DataInputStream(new ByteArrayInputStream(frame.payload));
+				boolean written = answer.readBoolean();
+				long checksum = answer.readLong();
+				String message = answer.readUTF();
+				Object tag = mTags.remove(frame.id);
+				if (mListener != null && tag != null) {
+					mListener.acknowledged(tag, checksum, written ? null : new IOException(message));
+				}
+				// only now, so whoever waits for the answers finds them handled
+				mWindow.release();
+			}
+		} catch (IOException e) {
+			mFailure = e;
+			for (Integer id : mTags.keySet()) {
+				Object tag = mTags.remove(id);
+				if (mListener != null && tag != null) {
+					mListener.acknowledged(tag, 0, e);
+				}
+			}
+			// wake any worker waiting for room; it will find the failure
+			mWindow.release(MAX_IN_FLIGHT);
+		} finally {
+			mDone.countDown();
+		}
+	}
+
+	/**	Sends one block of a file, compressed if that is asked for and makes it smaller.
+	 *
+	 */
+	private void sendBlock(int id, byte[] buffer, int offset, int length) throws IOException {
+		if (mCompress) {
+			Deflater deflater = mDeflater.get();
+			deflater.reset();
+			deflater.setInput(buffer, offset, length);
+			deflater.finish();
+			byte[] compressed = new byte[length + 5];
+			int size = 5;
+			while (!deflater.finished() && size < compressed.length) {
+				size += deflater.deflate(compressed, size, compressed.length - size);
+			}
+			if (deflater.finished()) {
+				compressed[0] = MirrorProtocol.DEFLATED;
+				compressed[1] = (byte) (length >>> 24);
+				compressed[2] = (byte) (length >>> 16);
+				compressed[3] = (byte) (length >>> 8);
+				compressed[4] = (byte) length;
+				synchronized (mOut) {
+					MirrorProtocol.write(mOut, MirrorProtocol.DATA, id, compressed, size);
+				}
+				return;
+			}
+		}
+		synchronized (mOut) {
+			mOut.writeByte(MirrorProtocol.DATA);
+			mOut.writeInt(id);
+			mOut.writeInt(length + 1);
+			mOut.writeByte(MirrorProtocol.RAW);
+			mOut.write(buffer, offset, length);
+		}
+	}
+
+	/**	The contents of one file on its way to the receiver.
+	 *
+	 */
+	private final class FileStream extends OutputStream {
+		private final int mId;
+		private final CRC32 mCrc = new CRC32();
+		private boolean mClosed;
+
+		FileStream(int id) {
+			mId = id;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			checkFailure();
+			mCrc.update(buffer, offset, length);
+			while (length > 0) {
+				int block = Math.min(length, MAX_BLOCK);
+				sendBlock(mId, buffer, offset, block);
+				offset += block;
+				length -= block;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) return;
+			mClosed = true;
+			checkFailure();
+			byte[] payload = new byte[8];
+			long checksum = mCrc.getValue();
+			for (int i = 0; i < 8; i++) {
+				payload[i] = (byte) (checksum >>> (56 - 8 * i));
+			}
+			synchronized (mOut) {
+				MirrorProtocol.write(mOut, MirrorProtocol.CLOSE, mId, payload, payload.length);
+			}
+		}
+	}
+}
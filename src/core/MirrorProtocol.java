@@ -0,0 +1,105 @@
+package core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The MirrorProtocol defines the frames a {@link MirrorClient} and a {@link MirrorReceiver} exchange over one
+ * TCP connection.
+ * <p>
+ * Every frame is a type byte, the id of the file it belongs to, the length of its payload and the payload:
+ * </p>
+ * <ul>
+ * <li>{@link #HELLO}: protocol version, directory, backup name and the receiver's token; answered by
+ * {@link #READY} or {@link #ERROR}.</li>
+ * <li>{@link #OPEN}: starts a file, with its path relative to the backup, size and modification time.</li>
+ * <li>{@link #DATA}: the next bytes of a file, raw or compressed with {@link java.util.zip.Deflater}.</li>
+ * <li>{@link #CLOSE}: ends a file, with the CRC32 of its contents; without one, the file is abandoned.</li>
+ * <li>{@link #ACK}: the receiver's answer to a {@link #CLOSE}, success or the reason for failure.</li>
+ * <li>{@link #BYE}: the client has sent everything; the receiver answers with {@link #BYE} once it is all
+ * written.</li>
+ * </ul>
+ * <p>
+ * Because each frame names its file, the client never waits for an answer before sending the next file,
+ * and several workers can interleave the frames of their files on the same connection.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+final class MirrorProtocol {
+
+	static final int VERSION = 2;
+
+	static final byte HELLO = 1;
+	static final byte READY = 2;
+	static final byte ERROR = 3;
+	static final byte OPEN = 4;
+	static final byte DATA = 5;
+	static final byte CLOSE = 6;
+	static final byte ACK = 7;
+	static final byte BYE = 8;
+
+	/**	First byte of a {@link #DATA} payload: the bytes follow as they are.
+	 *
+	 */
+	static final byte RAW = 0;
+
+	/**	First byte of a {@link #DATA} payload: the length of the inflated bytes and the deflated bytes follow.
+	 *
+	 */
+	static final byte DEFLATED = 1;
+
+	/**	Largest payload accepted; anything larger means the stream is corrupt.
+	 *
+	 */
+	static final int MAX_PAYLOAD = 4 * 1024 * 1024;
+
+	/**	One frame read from a connection.
+	 *
+	 */
+	static final class Frame {
+		final byte type;
+		final int id;
+		final byte[] payload;
+
+		Frame(byte type, int id, byte[] payload) {
+			this.type = type;
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+
+	private MirrorProtocol() {
+	}
+
+	/**	Writes a frame. Callers sharing a stream must hold its lock so frames do not interleave.
+	 *
+	 */
+	static void write(DataOutputStream out, byte type, int id, byte[] payload, int length) throws IOException {
+		out.writeByte(type);
+		out.writeInt(id);
+		out.writeInt(length);
+		if (length > 0) {
+			out.write(payload, 0, length);
+		}
+	}
+
+	/**	Reads the next frame.
+	 *
+	 * @throws IOException if the connection fails or the frame is not valid.
+	 */
+	static Frame read(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		int id = in.readInt();
+		int length = in.readInt();
+		if (type < HELLO || type > BYE || length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Corrupt frame from mirror connection");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(type, id, payload);
+	}
+}
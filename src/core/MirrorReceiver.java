@@ -0,0 +1,399 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The MirrorReceiver accepts backups sent by {@link MirrorClient}s over the network and writes them below a
+ * root directory of the machine it runs on.
+ * <p>
+ * Each connection carries one backup. The receiver creates the backup directory when the client says hello,
+ * refusing if it already exists, just as a local backup would. Files are written to a temporary name while
+ * their frames arrive and renamed once their checksum has been verified; whatever is still incomplete when a
+ * connection ends is removed. Paths that would lead outside the root are refused.
+ * </p>
+ * <p>
+ * Only clients that send the receiver's token are served, and the receiver listens on the loopback
+ * interface unless told otherwise, so that nobody else on the network can create backups below the root or
+ * fill its disk.
+ * </p>
+ * <p>
+ * Answers are collected and sent whenever the receiver has caught up with the client, so a client sending
+ * many small files receives their answers a batch at a time.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see MirrorClient
+ *
+ */
+public class MirrorReceiver {
+
+	/**	Suffix of a file still being received.
+	 *
+	 */
+	private static final String PARTIAL_SUFFIX = ".mirror-part";
+
+	private final Path mRoot;
+	private final byte[] mToken;
+	private final ServerSocket mServer;
+	private volatile boolean mStopped;
+
+	/**	Constructor that starts listening on the loopback interface; {@link #run()} or {@link #start()} accepts
+	 * the connections.
+	 *
+	 * @param root Directory the backups are created below; it must exist.
+	 * @param port Port to listen on, or 0 for any free port.
+	 * @param token The secret a client must send before it may create a backup.
+	 * @throws IOException if the root is not a directory or the port cannot be opened.
+	 * @throws IllegalArgumentException if the token is empty.
+	 */
+	public MirrorReceiver(Path root, int port, String token) throws IOException, IllegalArgumentException {
+		this(root, null, port, token);
+	}
+
+	/**	Constructor that starts listening; {@link #run()} or {@link #start()} accepts the connections.
+	 *
+	 * @param root Directory the backups are created below; it must exist.
+	 * @param bindAddress Address of the interface to listen on, or null for the loopback interface only.
+	 * @param port Port to listen on, or 0 for any free port.
+	 * @param token The secret a client must send before it may create a backup.
+	 * @throws IOException if the root is not a directory or the port cannot be opened.
+	 * @throws IllegalArgumentException if the token is empty.
+	 */
+	public MirrorReceiver(Path root, InetAddress bindAddress, int port, String token)
+			throws IOException, IllegalArgumentException {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException("A mirror receiver needs a token");
+		}
+		if (!Files.isDirectory(root)) {
+			throw new IOException("Receiver root " + root + " does not exist or is not a directory");
+		}
+		mRoot = root.toRealPath();
+		mToken = token.getBytes(StandardCharsets.UTF_8);
+		mServer = new ServerSocket();
+		mServer.bind(new InetSocketAddress(bindAddress != null ? bindAddress : InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * @return the address of the interface the receiver listens on.
+	 */
+	public InetAddress getAddress() {
+		return mServer.getInetAddress();
+	}
+
+	/**
+	 * @return the port the receiver listens on.
+	 */
+	public int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	/**	Accepts connections on a background thread.
+	 *
+	 */
+	public void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				MirrorReceiver.this.run();
+			}
+		}, "Mirror receiver " + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**	Accepts connections until {@link #stop()} is called, serving each on a thread of its own.
+	 *
+	 */
+	public void run() {
+		while (!mStopped) {
+			try {
+				final Socket socket = mServer.accept();
+				Thread connection = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "Mirror connection " + socket.getRemoteSocketAddress());
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				if (!mStopped) {
+					System.err.println("Mirror receiver failed to accept a connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**	Stops accepting connections. Connections already open are served to the end.
+	 *
+	 */
+	public void stop() {
+		mStopped = true;
+		try {
+			mServer.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	/**	A file being received.
+	 *
+	 */
+	private static final class Incoming {
+		final Path target;
+		final Path partial;
+		final long lastModified;
+		final CRC32 crc = new CRC32();
+		FileOutputStream out;
+		String error;
+
+		Incoming(Path target, long lastModified) {
+			this.target = target;
+			this.partial = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+			this.lastModified = lastModified;
+		}
+	}
+
+	private void serve(Socket socket) {
+		Map<Integer, Incoming> files = new HashMap<Integer, Incoming>();
+		Inflater inflater = new Inflater();
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			Path backupDir = hello(in, out);
+			if (backupDir == null) return;
+
+			Set<Path> createdDirectories = new HashSet<Path>();
+			byte[] inflated = new byte[0];
+			while (true) {
+				if (in.available() == 0) {
+					// caught up with the client: send the answers collected so far
+					out.flush();
+				}
+				MirrorProtocol.Frame frame = MirrorProtocol.read(in);
+				switch (frame.type) {
+				case MirrorProtocol.OPEN:
+					if (files.containsKey(frame.id)) {
+						// the file already open under this id would be lost, half written
+						throw new IOException("Mirror client opened file " + frame.id + " twice");
+					}
+					DataInputStream open = new DataInputStream(new ByteArrayInputStream(frame.payload));
+					String relativePath = open.readUTF();
+					open.readLong();
+					Path target = backupDir.resolve(relativePath).normalize();
+					Incoming file = new Incoming(target, open.readLong());
+					files.put(frame.id, file);
+					if (!target.startsWith(backupDir) || target.equals(backupDir)) {
+						file.error = "Path " + relativePath + " is outside the backup";
+						break;
+					}
+					try {
+						Path dir = target.getParent();
+						if (createdDirectories.add(dir)) {
+							Files.createDirectories(dir);
+						}
+						file.out = new FileOutputStream(file.partial.toFile());
+					} catch (IOException e) {
+						fail(file, e);
+					}
+					break;
+				case MirrorProtocol.DATA:
+					if (frame.payload.length == 0) {
+						throw new IOException("Corrupt frame from mirror connection");
+					}
+					file = files.get(frame.id);
+					if (file == null || file.out == null) break;
+					try {
+						if (frame.payload[0] == MirrorProtocol.DEFLATED) {
+							if (frame.payload.length < 5) {
+								throw new IOException("Corrupt frame from mirror connection");
+							}
+							int length = ((frame.payload[1] & 0xff) << 24) | ((frame.payload[2] & 0xff) << 16)
+									| ((frame.payload[3] & 0xff) << 8) | (frame.payload[4] & 0xff);
+							if (length < 0 || length > MirrorProtocol.MAX_PAYLOAD) {
+								throw new IOException("Corrupt frame from mirror connection");
+							}
+							if (inflated.length < length) {
+								inflated = new byte[length];
+							}
+							inflater.reset();
+							inflater.setInput(frame.payload, 5, frame.payload.length - 5);
+							if (inflater.inflate(inflated, 0, length) != length || !inflater.finished()) {
+								throw new IOException("Corrupt compressed block");
+							}
+							file.crc.update(inflated, 0, length);
+							file.out.write(inflated, 0, length);
+						} else {
+							file.crc.update(frame.payload, 1, frame.payload.length - 1);
+							file.out.write(frame.payload, 1, frame.payload.length - 1);
+						}
+					} catch (DataFormatException e) {
+						fail(file, new IOException("Corrupt compressed block", e));
+					} catch (IOException e) {
+						fail(file, e);
+					}
+					break;
+				case MirrorProtocol.CLOSE:
+					file = files.remove(frame.id);
+					if (file == null) break;
+					if (frame.payload.length == 0 && file.error == null) {
+						file.error = "Abandoned by the client";
+					}
+					if (file.error == null) {
+						long checksum = new DataInputStream(new ByteArrayInputStream(frame.payload)).readLong();
+						complete(file, checksum);
+					}
+					discard(file);
+					acknowledge(out, frame.id, file);
+					break;
+				case MirrorProtocol.BYE:
+					MirrorProtocol.write(out, MirrorProtocol.BYE, 0, null, 0);
+					out.flush();
+					return;
+				default:
+					throw new IOException("Unexpected frame from mirror client");
+				}
+			}
+		} catch (EOFException e) {
+			System.err.println("Mirror client " + socket.getRemoteSocketAddress() + " disconnected");
+		} catch (SocketException e) {
+			System.err.println("Mirror client " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Mirror connection from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+		} finally {
+			inflater.end();
+			for (Incoming file : files.values()) {
+				discard(file);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	/**	Reads the client's hello, checks its token and creates the backup directory.
+	 *
+	 * @return Path	The backup directory, or null if the backup was refused.
+	 */
+	private Path hello(DataInputStream in, DataOutputStream out) throws IOException {
+		MirrorProtocol.Frame frame = MirrorProtocol.read(in);
+		if (frame.type != MirrorProtocol.HELLO) {
+			throw new IOException("Mirror client did not say hello");
+		}
+		DataInputStream hello = new DataInputStream(new ByteArrayInputStream(frame.payload));
+		int version = hello.readInt();
+		String refusal = null;
+		String directory = "", name = "", token = "";
+		if (version == MirrorProtocol.VERSION) {
+			directory = hello.readUTF();
+			name = hello.readUTF();
+			token = hello.readUTF();
+		}
+		Path parent = mRoot.resolve(directory.replaceFirst("^/+", "")).normalize();
+		Path backupDir = parent.resolve(name).normalize();
+		if (version != MirrorProtocol.VERSION) {
+			refusal = "Unsupported mirror protocol version " + version;
+		} else if (!MessageDigest.isEqual(mToken, token.getBytes(StandardCharsets.UTF_8))) {
+			// compared in constant time, so the token cannot be guessed a byte at a time
+			refusal = "Wrong mirror token";
+		} else if (!parent.startsWith(mRoot) || !backupDir.getParent().equals(parent) || name.isEmpty()) {
+			refusal = "Destination is outside the receiver's root";
+		} else if (!Files.isDirectory(parent)) {
+			refusal = "Destination does not exist or is not a directory";
+		} else if (Files.exists(backupDir)) {
+			refusal = "Destination already exists - copying aborted";
+		}
+		if (refusal == null) {
+			try {
+				Files.createDirectory(backupDir);
+			} catch (IOException e) {
+				refusal = "Unable to create " + backupDir + ": " + e.getMessage();
+			}
+		}
+		if (refusal != null) {
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			new DataOutputStream(message).writeUTF(refusal);
+			MirrorProtocol.write(out, MirrorProtocol.ERROR, 0, message.toByteArray(), message.size());
+			out.flush();
+			return null;
+		}
+		System.out.println("Receiving backup into " + backupDir);
+		MirrorProtocol.write(out, MirrorProtocol.READY, 0, null, 0);
+		out.flush();
+		return backupDir;
+	}
+
+	/**	Verifies a fully received file and moves it into place.
+	 *
+	 */
+	private static void complete(Incoming file, long checksum) {
+		try {
+			file.out.close();
+			if (checksum != file.crc.getValue()) {
+				file.error = "Checksum mismatch";
+				return;
+			}
+			Files.setLastModifiedTime(file.partial, FileTime.fromMillis(file.lastModified));
+			Files.move(file.partial, file.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			file.out = null;
+		} catch (IOException e) {
+			fail(file, e);
+		}
+	}
+
+	private static void fail(Incoming file, IOException e) {
+		file.error = e.getMessage() != null ? e.getMessage() : e.toString();
+		discard(file);
+	}
+
+	/**	Closes and removes the partial file of a file that was not completed.
+	 *
+	 */
+	private static void discard(Incoming file) {
+		if (file.out == null) return;
+		try {
+			file.out.close();
+			Files.deleteIfExists(file.partial);
+		} catch (IOException e) {
+			System.err.println("Unable to remove partial file " + file.partial + ": " + e.getMessage());
+		}
+		file.out = null;
+	}
+
+	private static void acknowledge(DataOutputStream out, int id, Incoming file) throws IOException {
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(answer);
+		payload.writeBoolean(file.error == null);
+		payload.writeLong(file.crc.getValue());
+		payload.writeUTF(file.error != null ? file.error : "");
+		MirrorProtocol.write(out, MirrorProtocol.ACK, id, answer.toByteArray(), answer.size());
+	}
+}
@@ -0,0 +1,559 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The MirrorWatcher keeps an existing backup of a {@link FileSet} up to date while the source files change,
+ * instead of waiting for the next full backup.
+ * <p>
+ * The directories holding the sources are registered with a {@link WatchService}. Change notifications for
+ * the files of the {@link FileSet} are collected until none has arrived for the debounce time (or the
+ * oldest has waited {@link #MAX_DELAY_MILLIS}), and each batch then copies just the changed files into the
+ * backup, through the same {@link Throttle} limits as a full backup. Every file is written to a temporary
+ * file first and moved into place, so the backup never holds a half-written copy. The exception is a
+ * {@link FileSet} that updates in place ({@link FileSet#isUpdateInPlace()}): there a copy of at least
+ * {@link DeltaCopier#MIN_FILE_SIZE} has only its changed blocks rewritten by a {@link DeltaCopier}.
+ * </p>
+ * <p>
+ * If the operating system drops notifications (an overflow), the affected directory is rescanned and any
+ * file whose size or modification time differs from its copy is mirrored. The same rescan runs once at
+ * start-up to catch changes made since the backup was taken. Deleted sources are left in the backup.
+ * Every folder below a folder source is watched, folders created while watching included, and files added
+ * to them are mirrored like changed ones when they pass the include and exclude rules.
+ * </p>
+ * <p>
+ * A rescan first compares each source against the backup's {@link FileStateCache}, and only looks at the
+ * copy in the backup for files the cache does not know. Every mirrored file is recorded in the cache, which
+ * is saved at most every {@link #STATE_SAVE_INTERVAL_MILLIS} and when watching stops.
+ * </p>
+ * <p>
+ * Encrypted and packed backups cannot be watched, since their copies are not plain files in the backup.
+ * </p>
+ * <p>
+ * Requirement 1.1.7.5: The user shall name a backup, and the backup shall be saved in a folder with the chosen
+ *	name at the root of the destination.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class MirrorWatcher {
+
+	/**
+	 * Receives the outcome of each batch.
+	 */
+	public interface Listener {
+		/**	Called after a batch of changed files was copied into the backup.
+		 *
+		 * @param copied The source files that were mirrored.
+		 */
+		public void mirrored(List<Path> copied);
+
+		/**	Called for each changed file that could not be mirrored; it is retried on its next change.
+		 *
+		 * @param source The source file.
+		 * @param error What went wrong.
+		 */
+		public void mirrorFailed(Path source, Exception error);
+	}
+
+	/**	Default time without further changes before a batch is copied, in milliseconds.
+	 *
+	 */
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+	/**	Longest time a change waits before it is copied, even while its file keeps changing, in milliseconds.
+	 *
+	 */
+	public static final long MAX_DELAY_MILLIS = 60000;
+
+	/**	Shortest time between two saves of the {@link FileStateCache}, in milliseconds.
+	 *
+	 */
+	public static final long STATE_SAVE_INTERVAL_MILLIS = 60000;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final Listener mListener;
+	private final long mDebounceMillis;
+	private final Throttle mThrottle;
+	private final Path mBackupDir;
+	private final boolean mUpdateInPlace;
+
+	/**	The backup at each further destination of the {@link FileSet}; changes are copied to those present.
+	 *
+	 * @see FileSet#getDestinations()
+	 */
+	private final List<Path> mExtraBackupDirs = new ArrayList<Path>();
+
+	/**	File the {@link FileStateCache} is kept in, or null to not use one.
+	 *
+	 */
+	private Path mStateFile;
+	private FileStateCache mStateCache;
+	private boolean mStateDirty;
+	private long mLastStateSave;
+
+	/**	The watched source files of each directory.
+	 *
+	 */
+	private final Map<Path, Set<Path>> mSources = new HashMap<Path, Set<Path>>();
+
+	/**	The folder source each watched folder lies in, for the folders of folder sources.
+	 *
+	 */
+	private final Map<Path, Path> mFolderRoots = new HashMap<Path, Path>();
+
+	/**	The include and exclude rules of the folder sources.
+	 *
+	 */
+	private final PathFilter mFilter;
+
+	/**	The directory each registration watches.
+	 *
+	 */
+	private final Map<WatchKey, Path> mKeys = new HashMap<WatchKey, Path>();
+
+	/**	Changed files waiting for the batch, in the order they changed.
+	 *
+	 */
+	private final Set<Path> mPending = new LinkedHashSet<Path>();
+	private long mFirstChange;
+	private long mLastChange;
+
+	private WatchService mWatchService;
+	private volatile boolean mStopped;
+
+	/**	Constructor that watches a {@link FileSet} with the {@link #DEFAULT_DEBOUNCE_MILLIS}.
+	 *
+	 * @param files The {@link FileSet} whose backup is kept up to date.
+	 * @param listener Receives the outcome of each batch; may be null.
+	 * @throws IllegalArgumentException if the {@link FileSet} is not valid.
+	 */
+	public MirrorWatcher(FileSet files, Listener listener) throws IllegalArgumentException {
+		this(files, listener, DEFAULT_DEBOUNCE_MILLIS);
+	}
+
+	/**	Constructor that watches a {@link FileSet} with a custom debounce time.
+	 *
+	 * @param files The {@link FileSet} whose backup is kept up to date.
+	 * @param listener Receives the outcome of each batch; may be null.
+	 * @param debounceMillis Time without further changes before a batch is copied, in milliseconds.
+	 * @throws IllegalArgumentException if the {@link FileSet} is not valid, is encrypted or packed, or a folder
+	 * 	source cannot be read.
+	 */
+	public MirrorWatcher(FileSet files, Listener listener, long debounceMillis) throws IllegalArgumentException {
+		FileOps.validateFileSet(files);
+		mListener = listener;
+		mDebounceMillis = debounceMillis;
+		mThrottle = new Throttle(files);
+		if (files.isEncrypted()) {
+			throw new IllegalArgumentException("Watching an encrypted backup is not supported");
+		}
+		if (files.getPackThreshold() > 0) {
+			// small files live in the pack files, where a loose copy would never be found
+			throw new IllegalArgumentException("Watching a packed backup is not supported");
+		}
+		if (MirrorClient.isMirrorAddress(files.getDestination())) {
+			throw new IllegalArgumentException("Watching needs a local destination, not " + files.getDestination());
+		}
+		mBackupDir = Paths.get(files.getDestination()).resolve(files.getName());
+		mUpdateInPlace = files.isUpdateInPlace();
+		List<String> destinations = files.getDestinations();
+		for (int i = 1; i < destinations.size(); i++) {
+			mExtraBackupDirs.add(Paths.get(destinations.get(i)).resolve(files.getName()));
+		}
+		mStateFile = FileStateCache.fileFor(files.getName());
+		mFilter = new PathFilter(files);
+		for (int i = 0; i < files.getSize(); i++) {
+			Path source = Paths.get(files.get(i)).toAbsolutePath();
+			if (Files.isDirectory(source)) {
+				try {
+					addFolder(source, source, false);
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Unable to read folder " + source + ": " + e.getMessage());
+				}
+			} else {
+				addSource(source);
+			}
+		}
+	}
+
+	private void addSource(Path source) {
+		sourcesOf(source.getParent()).add(source);
+	}
+
+	private Set<Path> sourcesOf(Path dir) {
+		Set<Path> sources = mSources.get(dir);
+		if (sources == null) {
+			sources = new HashSet<Path>();
+			mSources.put(dir, sources);
+		}
+		return sources;
+	}
+
+	/**	Adds every folder below a folder within a folder source, and every file in them that the rules accept.
+	 *
+	 * @param root The folder source.
+	 * @param start The folder to add.
+	 * @param created True for a folder created while watching: its folders are registered and its files are
+	 * 	mirrored, since the backup has none of them.
+	 * @throws IOException if the folder cannot be read or a folder cannot be registered.
+	 */
+	private void addFolder(final Path root, Path start, final boolean created) throws IOException {
+		mFilter.walk(root, start, new PathFilter.DirectoryVisitor() {
+			public void visitDirectory(Path dir) throws IOException {
+				mFolderRoots.put(dir, root);
+				sourcesOf(dir);
+				if (created) {
+					watch(dir);
+				}
+			}
+
+			public void visitFile(Path file, BasicFileAttributes attrs) {
+				addSource(file);
+				if (created) {
+					changed(file);
+				}
+			}
+		});
+	}
+
+	private void watch(Path dir) throws IOException {
+		WatchKey key = dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		mKeys.put(key, dir);
+	}
+
+	/**	Returns the {@link Throttle} that limits the mirroring. Limits changed on the returned object take
+	 * effect immediately.
+	 *
+	 * @return the {@link Throttle} in use.
+	 */
+	public Throttle getThrottle() {
+		return mThrottle;
+	}
+
+	/**	Sets the file the {@link FileStateCache} of the backup is kept in. By default it is
+	 * {@link FileStateCache#fileFor(String)} of the backup's name, as written by {@link FileOps}.
+	 *
+	 * @param stateFile the file the cache is kept in, or null to always compare against the backup.
+	 */
+	public void setStateFile(Path stateFile) {
+		mStateFile = stateFile;
+	}
+
+	/**	Watches the sources and mirrors their changes until {@link #stop()} is called.
+	 *
+	 * @throws IOException if the backup does not exist or the directories cannot be watched.
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	public void run() throws IOException, InterruptedException {
+		if (!Files.isDirectory(mBackupDir)) {
+			throw new IOException("Backup " + mBackupDir + " does not exist; run a backup first.");
+		}
+		for (Path extraDir : mExtraBackupDirs) {
+			if (!Files.isDirectory(extraDir)) {
+				System.err.println("Backup " + extraDir + " is not available; changes are copied to it while it is.");
+			}
+		}
+		synchronized (this) {
+			if (mStopped) return;
+			mWatchService = FileSystems.getDefault().newWatchService();
+		}
+		if (mStateFile != null) {
+			mStateCache = FileStateCache.load(mStateFile);
+			mLastStateSave = System.nanoTime();
+		}
+		try {
+			for (Path dir : mSources.keySet()) {
+				if (Files.isDirectory(dir)) {
+					watch(dir);
+				}
+				// catch what changed since the backup was taken
+				rescan(dir);
+			}
+			while (!mStopped) {
+				WatchKey key = mWatchService.poll(timeUntilBatch(), TimeUnit.MILLISECONDS);
+				if (key != null) {
+					handle(key);
+				}
+				if (batchDue()) {
+					copyPending();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		} finally {
+			synchronized (this) {
+				mWatchService.close();
+			}
+		}
+		if (!mPending.isEmpty()) {
+			copyPending();
+		}
+		saveState();
+	}
+
+	/**	Stops watching. Changes still waiting for their batch are copied first.
+	 *
+	 */
+	public synchronized void stop() {
+		mStopped = true;
+		if (mWatchService != null) {
+			try {
+				mWatchService.close();
+			} catch (IOException e) {
+				System.err.println("Unable to stop watching: " + e.getMessage());
+			}
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Path dir = mKeys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// notifications were lost; look at every source of the directory
+				rescan(dir);
+				continue;
+			}
+			Path source = dir.resolve((Path) event.context());
+			if (mSources.get(dir).contains(source)) {
+				changed(source);
+				continue;
+			}
+			Path root = mFolderRoots.get(dir);
+			if (root == null || event.kind() != StandardWatchEventKinds.ENTRY_CREATE) {
+				continue;
+			}
+			try {
+				if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+					if (!mKeys.containsValue(source) && mFilter.acceptsDirectory(root.relativize(source))) {
+						// files may have been created in it before it was registered, so the walk picks them up
+						addFolder(root, source, true);
+					}
+				} else if (Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)
+						&& mFilter.acceptsFile(root.relativize(source))) {
+					addSource(source);
+					changed(source);
+				}
+			} catch (IOException e) {
+				if (mListener != null) {
+					mListener.mirrorFailed(source, e);
+				}
+			}
+		}
+		if (!key.reset()) {
+			// the directory is gone; its sources are skipped until a full backup
+			mKeys.remove(key);
+		}
+	}
+
+	/**	Queues every source of a directory that changed since it was last copied, according to the
+	 * {@link FileStateCache} or else to its copy in the backup.
+	 *
+	 * @param dir The directory to rescan.
+	 */
+	private void rescan(Path dir) {
+		for (Path source : mSources.get(dir)) {
+			Path copy = destinationOf(source);
+			try {
+				BasicFileAttributes sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+				FileStateCache.Entry known = mStateCache != null ? mStateCache.get(source.toString()) : null;
+				if (known != null) {
+					// the backup is not touched for files the cache knows
+					if (!known.matches(sourceAttrs)) {
+						changed(source);
+					}
+					continue;
+				}
+				BasicFileAttributes copyAttrs = Files.readAttributes(copy, BasicFileAttributes.class);
+				if (sourceAttrs.size() != copyAttrs.size()
+						|| sourceAttrs.lastModifiedTime().toMillis() != copyAttrs.lastModifiedTime().toMillis()) {
+					changed(source);
+				}
+			} catch (NoSuchFileException e) {
+				if (Files.exists(source)) {
+					changed(source);
+				}
+			} catch (IOException e) {
+				changed(source);
+			}
+		}
+	}
+
+	private void changed(Path source) {
+		long now = System.nanoTime();
+		if (mPending.isEmpty()) {
+			mFirstChange = now;
+		}
+		mPending.add(source);
+		mLastChange = now;
+	}
+
+	private long timeUntilBatch() {
+		if (mPending.isEmpty()) return mDebounceMillis;
+		long now = System.nanoTime();
+		long quiet = mLastChange + TimeUnit.MILLISECONDS.toNanos(mDebounceMillis) - now;
+		long oldest = mFirstChange + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS) - now;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(quiet, oldest)));
+	}
+
+	private boolean batchDue() {
+		if (mPending.isEmpty()) return false;
+		if (mStopped) return true;
+		long now = System.nanoTime();
+		return now - mLastChange >= TimeUnit.MILLISECONDS.toNanos(mDebounceMillis)
+				|| now - mFirstChange >= TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+	}
+
+	/**	Copies the batch of changed files into the backup.
+	 *
+	 */
+	private void copyPending() throws InterruptedException {
+		List<Path> batch = new ArrayList<Path>(mPending);
+		mPending.clear();
+		List<Path> copied = new ArrayList<Path>();
+		for (Path source : batch) {
+			try {
+				if (!Files.isReadable(source)) continue;
+				BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+				mThrottle.acquireFile();
+				mThrottle.acquireBytes(attrs.size());
+				// the source is read once and written to every backup that is present
+				List<Path> destinations = new ArrayList<Path>();
+				destinations.add(destinationOf(source));
+				for (Path extraDir : mExtraBackupDirs) {
+					if (Files.isDirectory(extraDir)) {
+						destinations.add(extraDir.resolve(FileOps.relativePath(source)));
+					}
+				}
+				long lastModified = attrs.lastModifiedTime().toMillis();
+				long checksum = -1;
+				List<Path> replaced = new ArrayList<Path>();
+				for (Path destination : destinations) {
+					if (mUpdateInPlace && attrs.size() >= DeltaCopier.MIN_FILE_SIZE && Files.isRegularFile(destination)) {
+						// each copy differs in its own places, so each is scanned on its own
+						checksum = DeltaCopier.update(source, destination, lastModified).checksum;
+					} else {
+						replaced.add(destination);
+					}
+				}
+				List<Path> temps = new ArrayList<Path>();
+				for (Path destination : replaced) {
+					Files.createDirectories(destination.getParent());
+					temps.add(destination.resolveSibling(destination.getFileName() + ".mirror-tmp"));
+				}
+				int moved = 0;
+				try {
+					if (!temps.isEmpty()) {
+						checksum = copy(source, temps);
+					}
+					for (; moved < temps.size(); moved++) {
+						Files.setLastModifiedTime(temps.get(moved), FileTime.fromMillis(lastModified));
+						Files.move(temps.get(moved), replaced.get(moved), StandardCopyOption.REPLACE_EXISTING,
+								StandardCopyOption.ATOMIC_MOVE);
+						Files.deleteIfExists(DeltaCopier.signatureFile(replaced.get(moved)));
+					}
+				} finally {
+					// a failed copy must not leave its temporary files in the backup
+					for (int i = moved; i < temps.size(); i++) {
+						deleteTemp(temps.get(i));
+					}
+				}
+				if (mStateCache != null) {
+					mStateCache.put(source.toString(), new FileStateCache.Entry(attrs, checksum));
+					mStateDirty = true;
+				}
+				copied.add(source);
+			} catch (IOException e) {
+				if (mListener != null) {
+					mListener.mirrorFailed(source, e);
+				}
+			}
+		}
+		if (mListener != null && !copied.isEmpty()) {
+			mListener.mirrored(copied);
+		}
+		if (System.nanoTime() - mLastStateSave >= TimeUnit.MILLISECONDS.toNanos(STATE_SAVE_INTERVAL_MILLIS)) {
+			saveState();
+		}
+	}
+
+	/**	Copies a file to one or more targets, reading it once, and returns the CRC32 of its contents.
+	 *
+	 */
+	private static long copy(Path source, List<Path> targets) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		InputStream in = Files.newInputStream(source);
+		List<OutputStream> outs = new ArrayList<OutputStream>();
+		try {
+			for (Path target : targets) {
+				outs.add(Files.newOutputStream(target));
+			}
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, length);
+				for (OutputStream out : outs) {
+					out.write(buffer, 0, length);
+				}
+			}
+		} finally {
+			in.close();
+			for (OutputStream out : outs) {
+				out.close();
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void deleteTemp(Path temp) {
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			System.err.println("Unable to remove temporary copy " + temp + ": " + e.getMessage());
+		}
+	}
+
+	private void saveState() {
+		mLastStateSave = System.nanoTime();
+		if (mStateCache == null || !mStateDirty) return;
+		try {
+			mStateCache.save();
+			mStateDirty = false;
+		} catch (IOException e) {
+			System.err.println("Unable to save file state cache " + mStateFile + ": " + e.getMessage());
+		}
+	}
+
+	private Path destinationOf(Path source) {
+		return mBackupDir.resolve(FileOps.relativePath(source));
+	}
+}
@@ -0,0 +1,240 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The PackIndex records where each packed file lives inside the pack files of a backup.
+ * <p>
+ * Every entry maps the relative path of a backed up file (the same path the file would have had
+ * inside the backup directory had it been copied individually) to the number of the pack file
+ * it was appended to, the offset within that pack file, and its length in bytes. Listings and
+ * restores read the index instead of walking the backup tree.
+ * </p>
+ * <p>
+ * While a backup runs, entries are also appended to a journal as their bytes reach the pack files, so a
+ * backup that never finished still leaves a readable list of the files it packed; see {@link #readJournal(Path)}.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see PackWriter
+ * @see PackReader
+ *
+ */
+public class PackIndex {
+
+	/**	Marks the start of a valid index file ("MPIX").
+	 *
+	 */
+	private static final int MAGIC = 0x4D504958;
+
+	/**	Version of the on-disk index format.
+	 *
+	 */
+	private static final int VERSION = 1;
+
+	/**	Marks the start of a valid index journal ("MPIJ").
+	 *
+	 */
+	private static final int JOURNAL_MAGIC = 0x4D50494A;
+
+	/**	The entries of this index, keyed by relative path and kept in the order they were appended.
+	 *
+	 */
+	private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * A single file stored inside a pack file.
+	 */
+	public static class Entry {
+		/** Relative path of the file inside the backup. */
+		public final String path;
+		/** Number of the pack file holding the contents. */
+		public final int pack;
+		/** Offset of the first byte of the file within the pack file. */
+		public final long offset;
+		/** Number of bytes stored for the file. */
+		public final long length;
+
+		/** Constructor to create an index Entry.
+		 * @param path Relative path of the file inside the backup.
+		 * @param pack Number of the pack file holding the contents.
+		 * @param offset Offset of the first byte of the file within the pack file.
+		 * @param length Number of bytes stored for the file.
+		 */
+		public Entry(String path, int pack, long offset, long length) {
+			this.path = path;
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return (path + " -> pack " + pack + " @ " + offset + " (" + length + " bytes)");
+		}
+	}
+
+	/**	Adds an entry to the index, replacing any previous entry for the same path.
+	 *
+	 * @param entry The {@link Entry} to add.
+	 */
+	public synchronized void add(Entry entry) {
+		mEntries.put(entry.path, entry);
+	}
+
+	/**	Looks up the entry for a relative path.
+	 *
+	 * @param path Relative path of the file inside the backup.
+	 * @return The matching {@link Entry} or null if the path was not packed.
+	 */
+	public synchronized Entry get(String path) {
+		return mEntries.get(path);
+	}
+
+	/**
+	 * @return an unmodifiable list of all entries in the order they were appended.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<Entry>(mEntries.values()));
+	}
+
+	/**
+	 * @return the number of files recorded in the index.
+	 */
+	public synchronized int getSize() {
+		return mEntries.size();
+	}
+
+	/**	Writes the index to disk. The index is first written to a temporary file next to the
+	 * final location, forced to the device and then moved into place so a crash never leaves a
+	 * truncated index behind.
+	 *
+	 * @param indexFile Full path of the index file to write.
+	 * @throws IOException
+	 * 	If the index cannot be written.
+	 */
+	public synchronized void write(Path indexFile) throws IOException {
+		Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries.values()) {
+				writeEntry(out, entry);
+			}
+			out.flush();
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**	Factory method that reads an index previously written with {@link #write(Path)}.
+	 *
+	 * @param indexFile Full path of the index file to read.
+	 * @return PackIndex	A new PackIndex holding the entries read from disk.
+	 * @throws IOException
+	 * 	If the file is unreadable or is not a pack index.
+	 */
+	public static PackIndex read(Path indexFile) throws IOException {
+		PackIndex index = new PackIndex();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("File at " + indexFile + " is not a pack index.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported pack index version " + version + ".");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				index.add(readEntry(in));
+			}
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	/**	Factory method that reads the entries recorded in an index journal. Entries are read up to the end
+	 * of the journal; a last entry cut short by a crash is ignored.
+	 *
+	 * @param journalFile Full path of the journal file to read.
+	 * @return PackIndex	A new PackIndex holding the entries read from the journal.
+	 * @throws IOException
+	 * 	If the file is unreadable or is not an index journal.
+	 */
+	public static PackIndex readJournal(Path journalFile) throws IOException {
+		PackIndex index = new PackIndex();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)));
+		try {
+			if (in.readInt() != JOURNAL_MAGIC) {
+				throw new IOException("File at " + journalFile + " is not a pack index journal.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported pack index version " + version + ".");
+			}
+			while (true) {
+				index.add(readEntry(in));
+			}
+		} catch (EOFException e) {
+			// end of the journal, or a last entry that was only partly written
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	/**	Writes the header that starts an index journal.
+	 *
+	 * @param out Stream to the new journal file.
+	 * @throws IOException
+	 * 	If the header cannot be written.
+	 */
+	static void writeJournalHeader(DataOutput out) throws IOException {
+		out.writeInt(JOURNAL_MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**	Writes a single entry in the format shared by the index and its journal.
+	 *
+	 * @param out Stream to write to.
+	 * @param entry The {@link Entry} to write.
+	 * @throws IOException
+	 * 	If the entry cannot be written.
+	 */
+	static void writeEntry(DataOutput out, Entry entry) throws IOException {
+		out.writeUTF(entry.path);
+		out.writeInt(entry.pack);
+		out.writeLong(entry.offset);
+		out.writeLong(entry.length);
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		return new Entry(in.readUTF(), in.readInt(), in.readLong(), in.readLong());
+	}
+}
@@ -0,0 +1,146 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The PackReader lists and restores files that were stored in pack files by a {@link PackWriter}.
+ * <p>
+ * All lookups go through the {@link PackIndex}, so listing a backup or restoring a single file never
+ * has to walk the backup directory tree. A backup that crashed before its index was written is read
+ * from the index journal instead, keeping only the entries whose bytes made it into the pack files.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see PackWriter
+ *
+ */
+public class PackReader {
+
+	/**	Directory that holds the pack files.
+	 *
+	 */
+	private final Path mPackDir;
+
+	/**	Index read from the pack directory.
+	 *
+	 */
+	private final PackIndex mIndex;
+
+	/**	Constructor that reads the pack index of a backup, or its index journal if the backup never finished.
+	 *
+	 * @param backupDir The backup directory (destination joined with the {@link FileSet} name).
+	 * @throws IOException
+	 * 	If the backup contains no pack index or journal or it cannot be read.
+	 */
+	public PackReader(Path backupDir) throws IOException {
+		mPackDir = backupDir.resolve(PackWriter.PACK_DIRECTORY);
+		Path indexFile = mPackDir.resolve(PackWriter.INDEX_FILE);
+		if (Files.isRegularFile(indexFile)) {
+			mIndex = PackIndex.read(indexFile);
+		} else {
+			mIndex = readJournal(mPackDir);
+		}
+	}
+
+	/**	Utility function that tests whether a backup directory contains pack files.
+	 *
+	 * @param backupDir The backup directory to check.
+	 * @return Boolean	True if the backup has a pack index or index journal.
+	 */
+	public static Boolean isPacked(Path backupDir) {
+		Path packDir = backupDir.resolve(PackWriter.PACK_DIRECTORY);
+		return Files.isRegularFile(packDir.resolve(PackWriter.INDEX_FILE))
+				|| Files.isRegularFile(packDir.resolve(PackWriter.JOURNAL_FILE));
+	}
+
+	/**
+	 * @return all packed files in the order they were written.
+	 */
+	public List<PackIndex.Entry> list() {
+		return mIndex.getEntries();
+	}
+
+	/**	Restores a single packed file.
+	 *
+	 * @param path Relative path of the file inside the backup.
+	 * @param target Full path of the file to create. Parent directories are created as needed.
+	 * @throws IOException
+	 * 	If the path is not in the index or the file cannot be restored.
+	 */
+	public void restore(String path, Path target) throws IOException {
+		PackIndex.Entry entry = mIndex.get(path);
+		if (entry == null) {
+			throw new IOException(path + " is not stored in a pack file.");
+		}
+		restore(entry, target);
+	}
+
+	/**	Restores every packed file below a target directory, recreating the relative paths
+	 * recorded in the index.
+	 *
+	 * @param targetDir Directory to restore into.
+	 * @throws IOException
+	 * 	If any file cannot be restored.
+	 */
+	public void restoreAll(Path targetDir) throws IOException {
+		for (PackIndex.Entry entry : mIndex.getEntries()) {
+			restore(entry, targetDir.resolve(entry.path));
+		}
+	}
+
+	private static PackIndex readJournal(Path packDir) throws IOException {
+		PackIndex index = new PackIndex();
+		for (PackIndex.Entry entry : PackIndex.readJournal(packDir.resolve(PackWriter.JOURNAL_FILE)).getEntries()) {
+			// an entry whose bytes never reached the pack file cannot be restored
+			Path pack = packDir.resolve(PackWriter.packFileName(entry.pack));
+			if (Files.isRegularFile(pack) && entry.offset + entry.length <= Files.size(pack)) {
+				index.add(entry);
+			}
+		}
+		return index;
+	}
+
+	private void restore(PackIndex.Entry entry, Path target) throws IOException {
+		if (target.getParent() != null) {
+			Files.createDirectories(target.getParent());
+		}
+		FileChannel pack = FileChannel.open(mPackDir.resolve(PackWriter.packFileName(entry.pack)), StandardOpenOption.READ);
+		FileChannel out = null;
+		try {
+			out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			long position = entry.offset;
+			long remaining = entry.length;
+			while (remaining > 0) {
+				long transferred = pack.transferTo(position, remaining, out);
+				if (transferred <= 0) {
+					// transferTo may refuse to move data on some platforms; fall back to a plain read
+					ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(remaining, 64 * 1024));
+					int read = pack.read(buffer, position);
+					if (read < 0) {
+						throw new IOException("Pack file ended before " + entry.path + " was restored.");
+					}
+					buffer.flip();
+					transferred = out.write(buffer);
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+		} finally {
+			try {
+				pack.close();
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The PackWriter appends small files into large, append-only pack files inside a backup.
+ * <p>
+ * Creating, opening and closing millions of tiny files (and the directories that hold them) costs far
+ * more than the bytes they contain. Files below the {@link FileSet#getPackThreshold()} are therefore
+ * streamed one after the other into <code>pack-NNNNN</code> files inside the {@link #PACK_DIRECTORY}
+ * of the backup, and their location is recorded in a {@link PackIndex}. A new pack file is started
+ * once the current one grows beyond {@link #MAX_PACK_BYTES}.
+ * </p>
+ * <p>
+ * The complete index is only written by {@link #close()}. Until then, entries are appended to the
+ * {@link #JOURNAL_FILE} in batches of at most {@link #JOURNAL_ENTRIES} files or {@link #JOURNAL_BYTES} bytes,
+ * always after the pack data they point at has been forced to the device, so the files packed by a backup
+ * that crashed can still be listed and restored by a {@link PackReader}. The journal is only removed once
+ * the index that replaces it is on the device.
+ * </p>
+ * <p>
+ * Requirement 1.1.7.5: The user shall name a backup, and the backup shall be saved in a folder with the chosen
+ *	name at the root of the destination.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see PackIndex
+ * @see PackReader
+ *
+ */
+public class PackWriter {
+
+	/**	Name of the directory, inside the backup directory, that holds the pack files and their index.
+	 *
+	 */
+	public static final String PACK_DIRECTORY = ".mirror-packs";
+
+	/**	Name of the index file inside the {@link #PACK_DIRECTORY}.
+	 *
+	 */
+	public static final String INDEX_FILE = "index";
+
+	/**	Name of the index journal inside the {@link #PACK_DIRECTORY}. It is removed once the index is written.
+	 *
+	 */
+	public static final String JOURNAL_FILE = "index.journal";
+
+	/**	Number of appended files after which their entries are written to the journal.
+	 *
+	 */
+	public static final int JOURNAL_ENTRIES = 256;
+
+	/**	Number of bytes appended to the pack after which the entries are written to the journal.
+	 *
+	 */
+	public static final long JOURNAL_BYTES = 8L << 20;
+
+	/**	Size at which the current pack file is closed and a new one is started.
+	 *
+	 */
+	public static final long MAX_PACK_BYTES = 1L << 30;
+
+	/**	Size of the buffer used to stream files into the pack.
+	 *
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**	Directory that holds the pack files.
+	 *
+	 */
+	private final Path mPackDir;
+
+	/**	Index of everything appended so far.
+	 *
+	 */
+	private final PackIndex mIndex = new PackIndex();
+
+	/**	Stream to the pack file currently being appended to.
+	 *
+	 */
+	private OutputStream mOut;
+
+	/**	Channel under {@link #mOut}, forced before entries pointing into it are journaled.
+	 *
+	 */
+	private FileChannel mPackChannel;
+
+	/**	Number of the pack file currently being appended to.
+	 *
+	 */
+	private int mPackNumber = -1;
+
+	/**	Number of bytes written to the current pack file.
+	 *
+	 */
+	private long mPackOffset;
+
+	/**	Stream to the index journal.
+	 *
+	 */
+	private final DataOutputStream mJournal;
+
+	/**	Channel under {@link #mJournal}.
+	 *
+	 */
+	private final FileChannel mJournalChannel;
+
+	/**	Entries appended since the journal was last written.
+	 *
+	 */
+	private final List<PackIndex.Entry> mUnjournaled = new ArrayList<PackIndex.Entry>();
+
+	/**	Number of bytes appended since the journal was last written.
+	 *
+	 */
+	private long mUnjournaledBytes;
+
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	/**	Constructor that prepares the pack directory and index journal inside a backup directory.
+	 *
+	 * @param backupDir The backup directory (destination joined with the {@link FileSet} name).
+	 * @throws IOException
+	 * 	If the pack directory or journal cannot be created.
+	 */
+	public PackWriter(Path backupDir) throws IOException {
+		mPackDir = backupDir.resolve(PACK_DIRECTORY);
+		Files.createDirectories(mPackDir);
+		mJournalChannel = open(mPackDir.resolve(JOURNAL_FILE));
+		mJournal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(mJournalChannel)));
+		PackIndex.writeJournalHeader(mJournal);
+		mJournal.flush();
+	}
+
+	/**	Appends the contents of a stream to the current pack file and records it in the index.
+	 *
+	 * @param path Relative path of the file inside the backup; used as the index key.
+	 * @param in Stream holding the contents of the file. The stream is read to its end but not closed.
+	 * @return PackIndex.Entry	The index entry recorded for the file.
+	 * @throws IOException
+	 * 	If the pack file cannot be written.
+	 */
+	public synchronized PackIndex.Entry append(String path, InputStream in) throws IOException {
+		if (mOut == null || mPackOffset >= MAX_PACK_BYTES) {
+			nextPack();
+		}
+		long start = mPackOffset;
+		int length;
+		while ((length = in.read(mBuffer)) > 0) {
+			mOut.write(mBuffer, 0, length);
+			mPackOffset += length;
+		}
+		PackIndex.Entry entry = new PackIndex.Entry(path, mPackNumber, start, mPackOffset - start);
+		mIndex.add(entry);
+		mUnjournaled.add(entry);
+		mUnjournaledBytes += entry.length;
+		if (mUnjournaled.size() >= JOURNAL_ENTRIES || mUnjournaledBytes >= JOURNAL_BYTES) {
+			flush();
+		}
+		return entry;
+	}
+
+	/**	Forces the current pack file to the device and then writes every entry appended since the last flush
+	 * to the index journal, so those files survive a crash.
+	 *
+	 * @throws IOException
+	 * 	If the pack file or journal cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		if (mUnjournaled.isEmpty()) {
+			return;
+		}
+		// the journal must never reach the device ahead of the bytes it points at
+		mOut.flush();
+		mPackChannel.force(false);
+		for (PackIndex.Entry entry : mUnjournaled) {
+			PackIndex.writeEntry(mJournal, entry);
+		}
+		mJournal.flush();
+		mJournalChannel.force(false);
+		mUnjournaled.clear();
+		mUnjournaledBytes = 0;
+	}
+
+	/**	Forces and closes the current pack file, writes the index and removes the journal once the index is
+	 * on the device.
+	 *
+	 * @throws IOException
+	 * 	If the pack file or index cannot be written.
+	 */
+	public synchronized void close() throws IOException {
+		if (mOut != null) {
+			mOut.flush();
+			mPackChannel.force(false);
+			mOut.close();
+			mOut = null;
+		}
+		mIndex.write(mPackDir.resolve(INDEX_FILE));
+		syncDirectory(mPackDir);
+		mJournal.close();
+		Files.deleteIfExists(mPackDir.resolve(JOURNAL_FILE));
+	}
+
+	/**
+	 * @return the index of everything appended so far.
+	 */
+	public PackIndex getIndex() {
+		return mIndex;
+	}
+
+	/**	Returns the file name of a numbered pack file.
+	 *
+	 * @param packNumber Number of the pack file.
+	 * @return String	The file name of the pack, for example <code>pack-00003</code>.
+	 */
+	public static String packFileName(int packNumber) {
+		return String.format(Locale.ROOT, "pack-%05d", packNumber);
+	}
+
+	private void nextPack() throws IOException {
+		if (mOut != null) {
+			flush();
+			mOut.close();
+		}
+		mPackNumber++;
+		mPackOffset = 0;
+		mPackChannel = open(mPackDir.resolve(packFileName(mPackNumber)));
+		mOut = new BufferedOutputStream(Channels.newOutputStream(mPackChannel), BUFFER_SIZE);
+	}
+
+	private static FileChannel open(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**	Forces the entries of a directory to the device, so a file just moved into it is found after a crash.
+	 * Not every platform can open a directory; there the move is left to the file system.
+	 *
+	 * @param dir The directory to force.
+	 */
+	private static void syncDirectory(Path dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Windows cannot open a directory as a channel
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The PathFilter decides which files below a folder source of a {@link FileSet} are backed up, from the
+ * include and exclude rules of the {@link FileSet}.
+ * <p>
+ * A rule is a glob (<code>*.tmp</code>, <code>glob:build/**</code>) or a regular expression
+ * (<code>regex:.*\.bak</code>). A glob without a <code>/</code> matches the name of a file or folder at any
+ * depth; any other rule matches the path relative to the folder source.
+ * Exclude rules apply to files and folders, and an excluded folder is skipped with everything in it without
+ * being read. Include rules apply to files only: when there are any, a file must match one of them.
+ * </p>
+ * <p>
+ * The rules are compiled once. The most common kinds, exact names such as <code>node_modules</code> or
+ * <code>.git</code> and extensions such as <code>*.tmp</code>, are looked up in hash sets; the rest become
+ * {@link PathMatcher}s.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FileSet#addExclude(String)
+ * @see FileSet#addInclude(String)
+ *
+ */
+public final class PathFilter {
+
+	/**
+	 * Receives each file the filter accepts during {@link PathFilter#walk(Path, Visitor)}.
+	 */
+	public interface Visitor {
+		/**	Called for each accepted file.
+		 *
+		 * @param file The file.
+		 * @param attrs Its attributes, as read by the traversal.
+		 * @throws IOException to abort the traversal.
+		 */
+		public void visitFile(Path file, BasicFileAttributes attrs) throws IOException;
+	}
+
+	/**
+	 * A {@link Visitor} that is also told about the files and folders that could not be read, which are
+	 * otherwise reported on the error stream and skipped.
+	 */
+	public interface FailureVisitor extends Visitor {
+		/**	Called for each file or folder that could not be read; the traversal carries on.
+		 *
+		 * @param file The file or folder.
+		 * @param e Why it could not be read.
+		 */
+		public void visitFailed(Path file, IOException e);
+	}
+
+	/**
+	 * A {@link Visitor} that is also told about each folder that is traversed, the folder walked included.
+	 */
+	public interface DirectoryVisitor extends Visitor {
+		/**	Called for each traversed folder, before the files in it.
+		 *
+		 * @param dir The folder.
+		 * @throws IOException to abort the traversal.
+		 */
+		public void visitDirectory(Path dir) throws IOException;
+	}
+
+	/**	Compiled rules of one kind.
+	 *
+	 */
+	private static final class Rules {
+		final Set<String> names = new HashSet<String>();
+		final Set<String> extensions = new HashSet<String>();
+		final List<PathMatcher> nameMatchers = new ArrayList<PathMatcher>();
+		final List<PathMatcher> pathMatchers = new ArrayList<PathMatcher>();
+
+		boolean isEmpty() {
+			return names.isEmpty() && extensions.isEmpty() && nameMatchers.isEmpty() && pathMatchers.isEmpty();
+		}
+
+		boolean matches(Path relative) {
+			Path name = relative.getFileName();
+			if (name == null) return false;
+			String nameString = name.toString();
+			if (names.contains(nameString)) return true;
+			int dot = nameString.lastIndexOf('.');
+			if (dot >= 0 && extensions.contains(nameString.substring(dot))) return true;
+			for (PathMatcher matcher : nameMatchers) {
+				if (matcher.matches(name)) return true;
+			}
+			for (PathMatcher matcher : pathMatchers) {
+				if (matcher.matches(relative)) return true;
+			}
+			return false;
+		}
+	}
+
+	/**	Glob characters; a name rule without any is looked up directly.
+	 *
+	 */
+	private static final Pattern GLOB_SPECIAL = Pattern.compile("[*?\\[\\]{}\\\\]");
+
+	/**	An extension rule such as <code>*.tmp</code>.
+	 *
+	 */
+	private static final Pattern EXTENSION = Pattern.compile("\\*(\\.[^*?\\[\\]{}\\\\/.]+)");
+
+	private final Rules mIncludes = new Rules();
+	private final Rules mExcludes = new Rules();
+
+	/**	Constructor that compiles a set of rules.
+	 *
+	 * @param includes Rules a file must match one of to be backed up; empty to back up every file.
+	 * @param excludes Rules for files and folders that are not backed up.
+	 * @throws IllegalArgumentException if a rule is not a valid glob or regular expression.
+	 */
+	public PathFilter(List<String> includes, List<String> excludes) throws IllegalArgumentException {
+		for (String rule : includes) {
+			compile(rule, mIncludes);
+		}
+		for (String rule : excludes) {
+			compile(rule, mExcludes);
+		}
+	}
+
+	/**	Constructor that compiles the rules of a {@link FileSet}.
+	 *
+	 * @param files The {@link FileSet} whose rules are used.
+	 * @throws IllegalArgumentException if a rule is not a valid glob or regular expression.
+	 */
+	public PathFilter(FileSet files) throws IllegalArgumentException {
+		this(files.getIncludes(), files.getExcludes());
+	}
+
+	/**	Checks that a rule can be compiled.
+	 *
+	 * @param rule The rule to check.
+	 * @throws IllegalArgumentException if the rule is empty or not a valid glob or regular expression.
+	 */
+	public static void validate(String rule) throws IllegalArgumentException {
+		compile(rule, new Rules());
+	}
+
+	private static void compile(String rule, Rules rules) throws IllegalArgumentException {
+		if (rule == null || rule.trim().isEmpty()) {
+			throw new IllegalArgumentException("Filter rule is empty");
+		}
+		if (rule.startsWith("regex:")) {
+			rules.pathMatchers.add(FileSystems.getDefault().getPathMatcher(rule));
+			return;
+		}
+		String glob = rule.startsWith("glob:") ? rule.substring("glob:".length()) : rule;
+		while (glob.endsWith("/") && glob.length() > 1) {
+			glob = glob.substring(0, glob.length() - 1);
+		}
+		if (glob.indexOf('/') >= 0) {
+			rules.pathMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		} else if (!GLOB_SPECIAL.matcher(glob).find()) {
+			rules.names.add(glob);
+		} else if (EXTENSION.matcher(glob).matches()) {
+			rules.extensions.add(glob.substring(1));
+		} else {
+			rules.nameMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		}
+	}
+
+	/**	Tells whether a folder is traversed.
+	 *
+	 * @param relative The folder's path relative to the folder source.
+	 * @return boolean	False if the folder and everything in it are skipped.
+	 */
+	public boolean acceptsDirectory(Path relative) {
+		return !mExcludes.matches(relative);
+	}
+
+	/**	Tells whether a file is backed up.
+	 *
+	 * @param relative The file's path relative to the folder source.
+	 * @return boolean	True if the file is backed up.
+	 */
+	public boolean acceptsFile(Path relative) {
+		if (mExcludes.matches(relative)) return false;
+		return mIncludes.isEmpty() || mIncludes.matches(relative);
+	}
+
+	/**	Visits every accepted file below a folder, skipping excluded folders without reading them. Links
+	 * are not followed.
+	 *
+	 * @param root The folder source.
+	 * @param visitor Receives each accepted file, and each unreadable one if it is a {@link FailureVisitor}.
+	 * @return int	The number of folders skipped.
+	 * @throws IOException if the traversal fails or the visitor aborts it.
+	 */
+	public int walk(Path root, Visitor visitor) throws IOException {
+		return walk(root, root, visitor);
+	}
+
+	/**	Visits every accepted file below a folder within a folder source, so that parts of one source can be
+	 * walked separately. The rules are applied to paths relative to the folder source.
+	 *
+	 * @param root The folder source.
+	 * @param start The folder below it to walk; it is not checked against the rules itself.
+	 * @param visitor Receives each accepted file, and each unreadable one if it is a {@link FailureVisitor}.
+	 * @return int	The number of folders skipped.
+	 * @throws IOException if the traversal fails or the visitor aborts it.
+	 */
+	public int walk(final Path root, final Path start, final Visitor visitor) throws IOException {
+		final int[] skipped = new int[1];
+		Files.walkFileTree(start, Collections.<FileVisitOption>emptySet(), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (!dir.equals(start) && !acceptsDirectory(root.relativize(dir))) {
+					skipped[0]++;
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (visitor instanceof DirectoryVisitor) {
+					((DirectoryVisitor) visitor).visitDirectory(dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile() && acceptsFile(root.relativize(file))) {
+					visitor.visitFile(file, attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				if (visitor instanceof FailureVisitor) {
+					((FailureVisitor) visitor).visitFailed(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+				System.err.println("Skipping unreadable " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return skipped[0];
+	}
+}
@@ -0,0 +1,194 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The PerformanceReport summarises where the time of a finished {@link FileOps} operation went: totals and
+ * throughput, the median and 99th percentile of every {@link Metrics.Phase}, and the slowest files and
+ * directories.
+ * <p>
+ * The report is handed to {@link FileOpsMessageHandler#handleReport(PerformanceReport)} and saved as a text
+ * file in the {@link #DEFAULT_DIRECTORY}, so a slow backup can be diagnosed after the fact.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see Metrics
+ *
+ */
+public class PerformanceReport {
+
+	/**	Directory the reports are saved in: <code>Mirror/reports</code> within the user's home directory.
+	 *
+	 */
+	public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), "Mirror", "reports");
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/**	Format of the first line of totals, shared by the report and {@link #summaries(Path, int)}.
+	 *
+	 */
+	private static final String TOTALS_FORMAT = "Copied %d file(s), %d byte(s) in %.1f s (%.2f MB/s, %.1f files/s); %d error(s)%n";
+
+	/**	Reads the totals back from the text of a report.
+	 *
+	 */
+	private static final Pattern TOTALS = Pattern.compile(
+			"^Copied (\\d+) file\\(s\\), (\\d+) byte\\(s\\) in ([0-9.]+) s .*; (\\d+) error\\(s\\)\\r?$", Pattern.MULTILINE);
+
+	/**
+	 * The totals of a saved report.
+	 */
+	public static class Summary {
+		/** Files copied. */
+		public final long files;
+		/** Bytes copied. */
+		public final long bytes;
+		/** Duration of the operation in seconds. */
+		public final double seconds;
+		/** Files that could not be copied. */
+		public final long errors;
+
+		/**	Constructor that records the totals of an operation.
+		 *
+		 * @param files Files copied.
+		 * @param bytes Bytes copied.
+		 * @param seconds Duration of the operation in seconds.
+		 * @param errors Files that could not be copied.
+		 */
+		public Summary(long files, long bytes, double seconds, long errors) {
+			this.files = files;
+			this.bytes = bytes;
+			this.seconds = seconds;
+			this.errors = errors;
+		}
+	}
+
+	/**	The report rendered as text.
+	 *
+	 */
+	private final String mText;
+
+	/**	The file the report was saved to, or null if it has not been saved.
+	 *
+	 */
+	private Path mFile;
+
+	/**	Constructor that renders the report from the final {@link Metrics} of an operation.
+	 *
+	 * @param metrics The {@link Metrics} of the finished operation.
+	 */
+	public PerformanceReport(Metrics metrics) {
+		StringBuilder text = new StringBuilder();
+		text.append("Performance report for ").append(metrics.getFileSetName()).append('\n');
+		text.append(String.format(Locale.ROOT, TOTALS_FORMAT,
+				metrics.getFilesCopied(), metrics.getBytesCopied(), metrics.getElapsedSeconds(),
+				metrics.getBytesPerSecond() / (1024 * 1024), metrics.getFilesPerSecond(), metrics.getErrors()));
+		text.append(String.format(Locale.ROOT, "Workers: %d, utilisation %.0f%%%n",
+				metrics.getWorkerCount(), metrics.getWorkerUtilisation() * 100));
+
+		text.append('\n');
+		text.append(String.format(Locale.ROOT, "%-6s %10s %12s %10s %10s %10s%n", "Phase", "Count", "Total ms", "p50 ms", "p99 ms", "Max ms"));
+		for (Metrics.Phase phase : Metrics.Phase.values()) {
+			LatencyHistogram histogram = metrics.getHistogram(phase);
+			text.append(String.format(Locale.ROOT, "%-6s %10d %12.1f %10.3f %10.3f %10.3f%n", phase.name(), histogram.getCount(),
+					histogram.getTotalNanos() / NANOS_PER_MILLI, histogram.getPercentileNanos(50) / NANOS_PER_MILLI,
+					histogram.getPercentileNanos(99) / NANOS_PER_MILLI, histogram.getMaxNanos() / NANOS_PER_MILLI));
+		}
+
+		appendTimings(text, "Slowest files", metrics.getSlowestFiles());
+		appendTimings(text, "Slowest directories", metrics.getSlowestDirectories());
+		mText = text.toString();
+	}
+
+	private static void appendTimings(StringBuilder text, String title, List<Metrics.Timing> timings) {
+		text.append('\n').append(title).append(":\n");
+		if (timings.isEmpty()) {
+			text.append("  (none)\n");
+		}
+		for (Metrics.Timing timing : timings) {
+			text.append(String.format(Locale.ROOT, "%12.1f ms  %s%n", timing.nanos / NANOS_PER_MILLI, timing.path));
+		}
+	}
+
+	/**	Saves the report as a text file named after the backup and the current time.
+	 *
+	 * @param directory The directory to save the report in; it is created if needed.
+	 * @param backupName The name of the backup.
+	 * @return Path	The file the report was saved to.
+	 * @throws IOException
+	 * 	If the directory or file cannot be written.
+	 */
+	public Path write(Path directory, String backupName) throws IOException {
+		Files.createDirectories(directory);
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		Path file = directory.resolve(backupName.replaceAll("[\\\\/:*?\"<>|]", "_") + "-" + stamp + ".txt");
+		Files.write(file, mText.getBytes(StandardCharsets.UTF_8));
+		mFile = file;
+		return file;
+	}
+
+	/**	Reads the totals of the most recent reports saved in a directory, of every backup. The name of a backup
+	 * usually changes with every run, so the reports of all of them are what is known of the speed of this
+	 * machine and its destinations.
+	 *
+	 * @param directory The directory the reports were saved in.
+	 * @param max The most reports to read.
+	 * @return List	The totals, newest first; empty if there are no reports.
+	 */
+	public static List<Summary> summaries(Path directory, int max) {
+		List<Summary> summaries = new ArrayList<Summary>();
+		File[] files = directory.toFile().listFiles();
+		if (files == null) return summaries;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (summaries.size() == max) break;
+			if (!file.getName().endsWith(".txt")) continue;
+			try {
+				Matcher totals = TOTALS.matcher(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+				if (totals.find()) {
+					summaries.add(new Summary(Long.parseLong(totals.group(1)), Long.parseLong(totals.group(2)),
+							Double.parseDouble(totals.group(3)), Long.parseLong(totals.group(4))));
+				}
+			} catch (IOException e) {
+				// a report that cannot be read tells nothing
+			} catch (NumberFormatException e) {
+				// nor does one edited by hand
+			}
+		}
+		return summaries;
+	}
+
+	/**
+	 * @return the file the report was saved to, or null if it has not been saved.
+	 */
+	public Path getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return the report as text.
+	 */
+	@Override
+	public String toString() {
+		return mText;
+	}
+}
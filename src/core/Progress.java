@@ -1,5 +1,6 @@
 package core;
 
+import java.util.Locale;
 
 /**
  * The Progress class represents a point-in-time progress indication of the copy operation.
@@ -62,6 +63,38 @@ public class Progress {
 	 * Number of files that have completed being copied.
 	 */
 	public int completedFiles;
+	/**
+	 * Number of copy workers allowed to run at the time of this report, or 0 if not tuned adaptively.
+	 */
+	public int activeWorkers;
+	/**
+	 * Explanation of the latest change to {@link #activeWorkers}, or an empty String if this report
+	 * does not carry a new decision.
+	 * @see ConcurrencyController
+	 */
+	public String concurrencyDecision = "";
+	/**
+	 * Bytes per second over the most recent measuring interval.
+	 * @see RateEstimator
+	 */
+	public double bytesPerSecond;
+	/**
+	 * Files per second over the most recent measuring interval.
+	 */
+	public double filesPerSecond;
+	/**
+	 * Bytes per second, smoothed over the last few seconds.
+	 */
+	public double smoothedBytesPerSecond;
+	/**
+	 * Files per second, smoothed over the last few seconds.
+	 */
+	public double smoothedFilesPerSecond;
+	/**
+	 * Estimated seconds until the operation completes, allowing for both the bytes and the per-file overhead
+	 * still to come, or -1 while there is not enough data for an estimate.
+	 */
+	public long etaSeconds = -1;
 	
 	/** Constructor to create a Progress item.
 	 * @param percentComplete The percentage of the copy operation that has completed.
@@ -81,6 +114,47 @@ public class Progress {
 	@Override
 	public String toString() {
 		return ("Total Bytes: " + totalBytes + "; Completed Bytes: " + completedBytes
-				+ "; Total Files: " + totalFiles + "; Completed Files: " + completedFiles);
+				+ "; Total Files: " + totalFiles + "; Completed Files: " + completedFiles
+				+ (activeWorkers > 0 ? "; Active Workers: " + activeWorkers : "")
+				+ (smoothedBytesPerSecond > 0 ? "; Rate: " + formatRate(smoothedBytesPerSecond) : "")
+				+ (etaSeconds >= 0 ? "; ETA: " + formatEta(etaSeconds) : ""));
+	}
+
+	/**	Utility function that renders a transfer rate for display, for example <code>12.3 MB/s</code>.
+	 * 
+	 * @param bytesPerSecond The rate in bytes per second.
+	 * @return String	The rate in the largest unit that keeps it at or above 1.
+	 */
+	public static String formatRate(double bytesPerSecond) {
+		return formatSize(bytesPerSecond) + "/s";
+	}
+
+	/**	Utility function that renders a size for display, for example <code>4.2 GB</code>.
+	 * 
+	 * @param bytes The size in bytes.
+	 * @return String	The size in the largest unit that keeps it at or above 1.
+	 */
+	public static String formatSize(double bytes) {
+		String[] units = { "B", "KB", "MB", "GB", "TB" };
+		int unit = 0;
+		while (bytes >= 1024 && unit < units.length - 1) {
+			bytes /= 1024;
+			unit++;
+		}
+		return String.format(Locale.ROOT, unit == 0 ? "%.0f %s" : "%.1f %s", bytes, units[unit]);
+	}
+
+	/**	Utility function that renders a number of seconds as <code>m:ss</code>, or <code>h:mm:ss</code> from an
+	 * hour upwards.
+	 * 
+	 * @param seconds The number of seconds, or a negative number if unknown.
+	 * @return String	The formatted time, or <code>--:--</code> if unknown.
+	 */
+	public static String formatEta(long seconds) {
+		if (seconds < 0) return "--:--";
+		if (seconds >= 3600) {
+			return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+		}
+		return String.format(Locale.ROOT, "%d:%02d", seconds / 60, seconds % 60);
 	}
 }
@@ -0,0 +1,216 @@
+package core;
+
+/**
+ * The RateEstimator turns the running totals of a {@link FileOps} operation into transfer rates and an
+ * estimated time to completion.
+ * <p>
+ * Each sample yields the instantaneous bytes and files per second since the previous sample, and an
+ * exponentially weighted moving average (EWMA) of both that forgets old behaviour with a time constant of
+ * {@link #DEFAULT_TIME_CONSTANT_SECONDS}.
+ * </p>
+ * <p>
+ * A rate in bytes alone misjudges backups of many small files, where opening and creating files costs more
+ * than moving their bytes. The estimate of the remaining time therefore uses a simple model:
+ * <code>seconds = files &times; perFileSeconds + bytes &times; secondsPerByte</code>, fitted to the recent
+ * samples by least squares with the same exponential forgetting. While the samples cannot separate the two
+ * costs (for example when all files are the same size), the smoothed byte rate is used instead.
+ * </p>
+ * <p>
+ * Every sample costs a handful of arithmetic operations, so it can run on every progress tick.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see Progress
+ *
+ */
+public class RateEstimator {
+
+	/**	Time constant of the smoothing, in seconds. Older samples lose about two thirds of their weight
+	 * per time constant.
+	 *
+	 */
+	public static final double DEFAULT_TIME_CONSTANT_SECONDS = 5;
+
+	/**	Samples closer together than this are ignored, as their rates are mostly noise.
+	 *
+	 */
+	public static final long MIN_INTERVAL_NANOS = 100000000L;
+
+	/**	Bytes are fitted in MiB to keep the sums in a comfortable range.
+	 *
+	 */
+	private static final double BYTES_PER_UNIT = 1024 * 1024;
+
+	/**	Fits whose samples are more collinear than this are not trusted.
+	 *
+	 */
+	private static final double MIN_RELATIVE_DETERMINANT = 1e-3;
+
+	private final double mTimeConstant;
+
+	private long mLastNanos = -1;
+	private long mLastBytes;
+	private long mLastFiles;
+
+	private boolean mHasRate;
+	private double mBytesPerSecond;
+	private double mFilesPerSecond;
+	private double mSmoothedBytesPerSecond;
+	private double mSmoothedFilesPerSecond;
+
+	/**	Exponentially decayed sums for the least squares fit of interval time on files (f) and MiB (b).
+	 *
+	 */
+	private double mSumFF, mSumFB, mSumBB, mSumTF, mSumTB;
+
+	/**	Constructor that creates an estimator smoothing over {@link #DEFAULT_TIME_CONSTANT_SECONDS}.
+	 *
+	 */
+	public RateEstimator() {
+		this(DEFAULT_TIME_CONSTANT_SECONDS);
+	}
+
+	/**	Constructor that creates an estimator with a custom time constant.
+	 *
+	 * @param timeConstantSeconds Time constant of the smoothing in seconds, greater than 0.
+	 * @throws IllegalArgumentException if the time constant is not positive.
+	 */
+	public RateEstimator(double timeConstantSeconds) throws IllegalArgumentException {
+		if (!(timeConstantSeconds > 0)) {
+			throw new IllegalArgumentException("Time constant must be positive");
+		}
+		mTimeConstant = timeConstantSeconds;
+	}
+
+	/**	Takes a sample of the running totals.
+	 *
+	 * @param nowNanos The time of the sample, from {@link System#nanoTime()}.
+	 * @param completedBytes Bytes copied so far.
+	 * @param completedFiles Files copied so far.
+	 */
+	public synchronized void sample(long nowNanos, long completedBytes, long completedFiles) {
+		if (mLastNanos < 0) {
+			mLastNanos = nowNanos;
+			mLastBytes = completedBytes;
+			mLastFiles = completedFiles;
+			return;
+		}
+		long elapsed = nowNanos - mLastNanos;
+		if (elapsed < MIN_INTERVAL_NANOS) return;
+
+		double seconds = elapsed / 1e9;
+		double bytes = completedBytes - mLastBytes;
+		double files = completedFiles - mLastFiles;
+		mLastNanos = nowNanos;
+		mLastBytes = completedBytes;
+		mLastFiles = completedFiles;
+
+		mBytesPerSecond = bytes / seconds;
+		mFilesPerSecond = files / seconds;
+		double alpha = 1 - Math.exp(-seconds / mTimeConstant);
+		if (mHasRate) {
+			mSmoothedBytesPerSecond += alpha * (mBytesPerSecond - mSmoothedBytesPerSecond);
+			mSmoothedFilesPerSecond += alpha * (mFilesPerSecond - mSmoothedFilesPerSecond);
+		} else {
+			mSmoothedBytesPerSecond = mBytesPerSecond;
+			mSmoothedFilesPerSecond = mFilesPerSecond;
+			mHasRate = true;
+		}
+
+		double units = bytes / BYTES_PER_UNIT;
+		double keep = 1 - alpha;
+		mSumFF = mSumFF * keep + files * files;
+		mSumFB = mSumFB * keep + files * units;
+		mSumBB = mSumBB * keep + units * units;
+		mSumTF = mSumTF * keep + seconds * files;
+		mSumTB = mSumTB * keep + seconds * units;
+	}
+
+	/**
+	 * @return bytes per second over the most recent interval, or 0 before two samples were taken.
+	 */
+	public synchronized double getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * @return files per second over the most recent interval, or 0 before two samples were taken.
+	 */
+	public synchronized double getFilesPerSecond() {
+		return mFilesPerSecond;
+	}
+
+	/**
+	 * @return the smoothed bytes per second.
+	 */
+	public synchronized double getSmoothedBytesPerSecond() {
+		return mSmoothedBytesPerSecond;
+	}
+
+	/**
+	 * @return the smoothed files per second.
+	 */
+	public synchronized double getSmoothedFilesPerSecond() {
+		return mSmoothedFilesPerSecond;
+	}
+
+	/**
+	 * @return the fitted overhead per file in seconds, or -1 while it cannot be told apart from the byte cost.
+	 */
+	public synchronized double getPerFileSeconds() {
+		double[] fit = fit();
+		return fit != null ? fit[0] : -1;
+	}
+
+	/**
+	 * @return the fitted bandwidth in bytes per second, or -1 while it cannot be told apart from the per-file cost.
+	 */
+	public synchronized double getFittedBytesPerSecond() {
+		double[] fit = fit();
+		return fit != null && fit[1] > 0 ? BYTES_PER_UNIT / fit[1] : -1;
+	}
+
+	/**	Estimates the time needed for the rest of the operation.
+	 *
+	 * @param remainingBytes Bytes still to copy.
+	 * @param remainingFiles Files still to copy.
+	 * @return long	The estimated number of seconds left, or -1 if there is not enough data yet.
+	 */
+	public synchronized long getEtaSeconds(long remainingBytes, long remainingFiles) {
+		if (remainingBytes <= 0 && remainingFiles <= 0) return 0;
+		double[] fit = fit();
+		double seconds;
+		if (fit != null) {
+			seconds = remainingFiles * fit[0] + remainingBytes / BYTES_PER_UNIT * fit[1];
+		} else if (mSmoothedBytesPerSecond > 0 && remainingBytes > 0) {
+			seconds = remainingBytes / mSmoothedBytesPerSecond;
+		} else if (mSmoothedFilesPerSecond > 0) {
+			seconds = remainingFiles / mSmoothedFilesPerSecond;
+		} else {
+			return -1;
+		}
+		return Math.round(seconds);
+	}
+
+	/**	Solves the two-variable least squares fit.
+	 *
+	 * @return the seconds per file and seconds per MiB, or null if the samples cannot separate them.
+	 */
+	private double[] fit() {
+		double det = mSumFF * mSumBB - mSumFB * mSumFB;
+		if (mSumFF <= 0 || mSumBB <= 0 || det <= MIN_RELATIVE_DETERMINANT * mSumFF * mSumBB) {
+			return null;
+		}
+		double perFile = (mSumTF * mSumBB - mSumTB * mSumFB) / det;
+		double perUnit = (mSumTB * mSumFF - mSumTF * mSumFB) / det;
+		if (perFile < 0) {
+			// no measurable per-file overhead: all time goes to the bytes
+			return new double[] { 0, mSumTB / mSumBB };
+		}
+		if (perUnit < 0) {
+			return new double[] { mSumTF / mSumFF, 0 };
+		}
+		return new double[] { perFile, perUnit };
+	}
+}
@@ -0,0 +1,285 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The RetentionPolicy decides which old backups of a {@link FileSet} are removed after each run.
+ * <p>
+ * Every backup that completes without errors is marked with a {@link #MARKER_FILE} recording when it
+ * completed and a {@link #fingerprint(FileSet) fingerprint} of the FileSet it was taken of. Only marked backups
+ * with the same fingerprint, in the same destination, are ever considered, so backups of other FileSets sharing
+ * the destination, backups that failed and anything put there by hand are left alone.
+ * </p>
+ * <p>
+ * A backup is kept if any rule keeps it: the newest {@link #getKeepLast()} backups, the newest backup of each
+ * of the last {@link #getKeepDaily()} days that have one, and likewise for weeks and months. The rules follow
+ * the calendar of the default time zone. A policy whose rules are all 0 keeps everything.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see TreeRemover
+ *
+ */
+public class RetentionPolicy implements Serializable {
+
+	private static final long serialVersionUID = -4203365728213390877L;
+
+	/**	Name of the file marking a completed backup, inside the backup directory.
+	 *
+	 */
+	public static final String MARKER_FILE = ".mirror-backup";
+
+	private final int keepLast;
+	private final int keepDaily;
+	private final int keepWeekly;
+	private final int keepMonthly;
+
+	/**
+	 * A completed backup found in a destination.
+	 */
+	public static class Backup {
+		/** The backup directory. */
+		public final Path directory;
+		/** When the backup completed, in milliseconds since the epoch. */
+		public final long completed;
+
+		/**	Constructor that describes a backup.
+		 *
+		 * @param directory The backup directory.
+		 * @param completed When the backup completed, in milliseconds since the epoch.
+		 */
+		public Backup(Path directory, long completed) {
+			this.directory = directory;
+			this.completed = completed;
+		}
+	}
+
+	/**	Constructor that sets the rules. A count of 0 disables its rule.
+	 *
+	 * @param keepLast Number of newest backups to keep.
+	 * @param keepDaily Number of days to keep the newest backup of.
+	 * @param keepWeekly Number of weeks to keep the newest backup of.
+	 * @param keepMonthly Number of months to keep the newest backup of.
+	 * @throws IllegalArgumentException if a count is negative.
+	 */
+	public RetentionPolicy(int keepLast, int keepDaily, int keepWeekly, int keepMonthly)
+			throws IllegalArgumentException {
+		if (keepLast < 0 || keepDaily < 0 || keepWeekly < 0 || keepMonthly < 0) {
+			throw new IllegalArgumentException("Retention counts cannot be negative");
+		}
+		this.keepLast = keepLast;
+		this.keepDaily = keepDaily;
+		this.keepWeekly = keepWeekly;
+		this.keepMonthly = keepMonthly;
+	}
+
+	/**
+	 * @return the number of newest backups kept.
+	 */
+	public int getKeepLast() {
+		return keepLast;
+	}
+
+	/**
+	 * @return the number of days whose newest backup is kept.
+	 */
+	public int getKeepDaily() {
+		return keepDaily;
+	}
+
+	/**
+	 * @return the number of weeks whose newest backup is kept.
+	 */
+	public int getKeepWeekly() {
+		return keepWeekly;
+	}
+
+	/**
+	 * @return the number of months whose newest backup is kept.
+	 */
+	public int getKeepMonthly() {
+		return keepMonthly;
+	}
+
+	/**
+	 * @return true if the policy removes anything at all.
+	 */
+	public boolean isEnabled() {
+		return keepLast > 0 || keepDaily > 0 || keepWeekly > 0 || keepMonthly > 0;
+	}
+
+	/**	Selects the backups the policy does not keep.
+	 *
+	 * @param backups The completed backups of one FileSet in one destination, in any order.
+	 * @return List	The backups to remove, oldest first; empty if the policy is not enabled.
+	 */
+	public List<Backup> expired(List<Backup> backups) {
+		List<Backup> newestFirst = new ArrayList<Backup>(backups);
+		Collections.sort(newestFirst, new Comparator<Backup>() {
+			public int compare(Backup a, Backup b) {
+				return Long.compare(b.completed, a.completed);
+			}
+		});
+		List<Backup> expired = new ArrayList<Backup>();
+		if (!isEnabled()) return expired;
+
+		Set<Backup> kept = new HashSet<Backup>();
+		for (int i = 0; i < Math.min(keepLast, newestFirst.size()); i++) {
+			kept.add(newestFirst.get(i));
+		}
+		keepNewestPer(newestFirst, Calendar.DAY_OF_YEAR, keepDaily, kept);
+		keepNewestPer(newestFirst, Calendar.WEEK_OF_YEAR, keepWeekly, kept);
+		keepNewestPer(newestFirst, Calendar.MONTH, keepMonthly, kept);
+		for (int i = newestFirst.size() - 1; i >= 0; i--) {
+			if (!kept.contains(newestFirst.get(i))) {
+				expired.add(newestFirst.get(i));
+			}
+		}
+		return expired;
+	}
+
+	/**	Keeps the newest backup of each of the last <code>count</code> periods that have a backup.
+	 *
+	 */
+	private static void keepNewestPer(List<Backup> newestFirst, int field, int count, Set<Backup> kept) {
+		Calendar calendar = Calendar.getInstance();
+		long lastPeriod = Long.MIN_VALUE;
+		int periods = 0;
+		for (Backup backup : newestFirst) {
+			if (periods == count) return;
+			calendar.setTimeInMillis(backup.completed);
+			// weeks are numbered within their week-based year, so that year is part of the key
+			int year = field == Calendar.WEEK_OF_YEAR ? calendar.getWeekYear() : calendar.get(Calendar.YEAR);
+			long period = year * 1000L + calendar.get(field);
+			if (period != lastPeriod) {
+				kept.add(backup);
+				lastPeriod = period;
+				periods++;
+			}
+		}
+	}
+
+	/**	Returns the fingerprint of a {@link FileSet}, which tells its backups apart from those of other FileSets
+	 * in the same destination. It covers the sources, the main destination and the {@link #seriesOf(String)
+	 * series} of the name, so FileSets with the same sources but another name or destination never prune each
+	 * other's backups.
+	 *
+	 * @param files The {@link FileSet}.
+	 * @return String	The fingerprint.
+	 */
+	public static String fingerprint(FileSet files) {
+		List<String> sources = new ArrayList<String>();
+		for (int i = 0; i < files.getSize(); i++) {
+			sources.add(files.get(i));
+		}
+		Collections.sort(sources);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(seriesOf(files.getName()).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(files.getDestination()).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			for (String source : sources) {
+				digest.update(source.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**	Returns the part of a backup name shared by every run of a {@link FileSet}: the name without the date,
+	 * time or number at its end that gives each run a folder of its own, such as <code>Docs</code> for
+	 * <code>Docs-20210331-180000</code> or <code>Backup</code> for <code>Backup03.31.21-18.00</code>.
+	 *
+	 * @param name The name of a backup.
+	 * @return String	The name without its trailing date, time or number.
+	 */
+	public static String seriesOf(String name) {
+		return name == null ? "" : name.replaceFirst("[-_. ]*[0-9][-_. 0-9]*$", "");
+	}
+
+	/**	Marks a backup as completed.
+	 *
+	 * @param backupDir The backup directory.
+	 * @param fingerprint The {@link #fingerprint(FileSet)} of its FileSet.
+	 * @param completed When it completed, in milliseconds since the epoch.
+	 * @throws IOException if the marker cannot be written.
+	 */
+	public static void markCompleted(Path backupDir, String fingerprint, long completed) throws IOException {
+		Properties marker = new Properties();
+		marker.setProperty("completed", Long.toString(completed));
+		marker.setProperty("sources", fingerprint);
+		OutputStream out = Files.newOutputStream(backupDir.resolve(MARKER_FILE));
+		try {
+			marker.store(out, "Mirror backup");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**	Finds the completed backups with a fingerprint in a destination.
+	 *
+	 * @param destination The destination directory.
+	 * @param fingerprint The {@link #fingerprint(FileSet)} of the FileSet.
+	 * @return List	The backups found, in no particular order.
+	 * @throws IOException if the destination cannot be listed.
+	 */
+	public static List<Backup> backupsIn(Path destination, String fingerprint) throws IOException {
+		List<Backup> backups = new ArrayList<Backup>();
+		DirectoryStream<Path> entries = Files.newDirectoryStream(destination);
+		try {
+			for (Path dir : entries) {
+				Properties marker = new Properties();
+				try {
+					InputStream in = Files.newInputStream(dir.resolve(MARKER_FILE));
+					try {
+						marker.load(in);
+					} finally {
+						in.close();
+					}
+				} catch (NoSuchFileException e) {
+					continue;
+				} catch (IOException e) {
+					// not a directory, or unreadable: not one of ours to remove
+					continue;
+				}
+				if (!fingerprint.equals(marker.getProperty("sources"))) continue;
+				try {
+					backups.add(new Backup(dir, Long.parseLong(marker.getProperty("completed", ""))));
+				} catch (NumberFormatException e) {
+					System.err.println("Ignoring damaged backup marker in " + dir);
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		return backups;
+	}
+}
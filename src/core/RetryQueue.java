@@ -0,0 +1,208 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The RetryQueue copies again, on a thread of its own, the files whose copy failed, waiting longer before
+ * each further attempt.
+ * <p>
+ * A disk that drops off the bus for a moment, as USB disks do, fails a handful of files that copy fine a
+ * second later. Retrying them in the copy workers would hold up every file queued behind them while the
+ * worker waits out the delay, so a failed file is handed to this queue instead and the workers carry on with
+ * the next one. Each retry waits twice as long as the one before, starting at the delay given, and a file is
+ * given up after the number of attempts given. Errors that another attempt cannot cure, such as a file that
+ * may not be read, are not retried.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FailureReport
+ *
+ */
+public class RetryQueue {
+
+	/**
+	 * Copies a file again; called on the thread of the queue.
+	 */
+	public interface Retrier {
+		/**	Copies a file again. A failure is handed back to {@link RetryQueue#offer(CopyTask, Exception, int)}
+		 * with the same attempt number.
+		 *
+		 * @param task The file to copy.
+		 * @param attempt The number of this attempt, counting the first copy as 1.
+		 */
+		public void retry(CopyTask task, int attempt);
+	}
+
+	/**	Default number of attempts at copying a file, counting the first.
+	 *
+	 */
+	public static final int DEFAULT_ATTEMPTS = 3;
+
+	/**	Default wait before the first retry, in milliseconds.
+	 *
+	 */
+	public static final long DEFAULT_DELAY_MILLIS = 500;
+
+	/**	Longest wait before any retry, in milliseconds.
+	 *
+	 */
+	private static final long MAX_DELAY_MILLIS = 60000;
+
+	private final Retrier mRetrier;
+	private final int mAttempts;
+	private final long mDelayMillis;
+	private final ScheduledExecutorService mExecutor;
+
+	/**	Number of retries waiting or running.
+	 *
+	 */
+	private int mPending;
+	private boolean mClosed;
+
+	/**	Constructor that retries with the {@link #DEFAULT_ATTEMPTS} and {@link #DEFAULT_DELAY_MILLIS}.
+	 *
+	 * @param retrier Copies the files again.
+	 */
+	public RetryQueue(Retrier retrier) {
+		this(retrier, DEFAULT_ATTEMPTS, DEFAULT_DELAY_MILLIS);
+	}
+
+	/**	Constructor that sets how often and how soon files are retried.
+	 *
+	 * @param retrier Copies the files again.
+	 * @param attempts Number of attempts at copying a file, counting the first; 1 retries nothing.
+	 * @param delayMillis Wait before the first retry in milliseconds; it doubles for each one after.
+	 * @throws IllegalArgumentException if there are less than 1 attempts or the delay is negative.
+	 */
+	public RetryQueue(Retrier retrier, int attempts, long delayMillis) throws IllegalArgumentException {
+		if (attempts < 1) {
+			throw new IllegalArgumentException("At least one attempt is needed to copy a file");
+		}
+		if (delayMillis < 0) {
+			throw new IllegalArgumentException("The delay between attempts cannot be negative");
+		}
+		mRetrier = retrier;
+		mAttempts = attempts;
+		mDelayMillis = delayMillis;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Copy retrier");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**	Takes a file whose copy failed, to be copied again once its delay has passed. Returns at once.
+	 *
+	 * @param task The file that failed.
+	 * @param error Why it failed.
+	 * @param attempt The number of the attempt that failed, counting the first copy as 1.
+	 * @return boolean	True if the file will be retried; false if it is given up, because it had all its
+	 * 	attempts, the error cannot be cured by retrying, or the queue is finished.
+	 */
+	public synchronized boolean offer(final CopyTask task, Exception error, final int attempt) {
+		if (mClosed || attempt >= mAttempts || !isTransient(error)) {
+			return false;
+		}
+		mPending++;
+		mExecutor.schedule(new Runnable() {
+			public void run() {
+				try {
+					mRetrier.retry(task, attempt + 1);
+				} finally {
+					retried();
+				}
+			}
+		}, delayMillis(attempt), TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	private synchronized void retried() {
+		// a retry still running when the queue was cancelled was already let go of
+		if (mPending > 0 && --mPending == 0) {
+			notifyAll();
+		}
+	}
+
+	/**	Returns the wait before retrying a file after a failed attempt.
+	 *
+	 * @param attempt The number of the attempt that failed, counting the first copy as 1.
+	 * @return long	The wait in milliseconds.
+	 */
+	public long delayMillis(int attempt) {
+		long delay = mDelayMillis;
+		for (int i = 1; i < attempt && delay < MAX_DELAY_MILLIS; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, MAX_DELAY_MILLIS);
+	}
+
+	/**	Decides whether another attempt could cure an error. Input and output errors are worth another
+	 * attempt, except being refused access; anything else, such as an interrupt, is not.
+	 *
+	 * @param error Why a copy failed.
+	 * @return boolean	True if the copy is worth retrying.
+	 */
+	public static boolean isTransient(Exception error) {
+		return error instanceof IOException && !(error instanceof AccessDeniedException);
+	}
+
+	/**
+	 * @return the number of retries waiting or running.
+	 */
+	public synchronized int getPending() {
+		return mPending;
+	}
+
+	/**	Waits until every file handed over so far has been retried, including the retries of retries. Files
+	 * may still be handed over afterwards.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (mPending > 0) {
+			wait();
+		}
+	}
+
+	/**	Waits until every file handed over has been retried, including the retries of retries, then stops the
+	 * thread. Files offered afterwards are given up.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void finish() throws InterruptedException {
+		awaitIdle();
+		mClosed = true;
+		mExecutor.shutdown();
+	}
+
+	/**	Drops the files waiting to be retried and stops the thread. A retry already running is interrupted;
+	 * {@link #awaitStopped()} waits for it.
+	 *
+	 */
+	public void cancel() {
+		synchronized (this) {
+			mClosed = true;
+			mPending = 0;
+			notifyAll();
+		}
+		mExecutor.shutdownNow();
+	}
+
+	/**	Waits until the thread has stopped after {@link #finish()} or {@link #cancel()}.
+	 *
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public void awaitStopped() throws InterruptedException {
+		while (!mExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+			// a retry still copying stops at its next chunk
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package core;
+
+import java.nio.file.FileStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The StoreLimits hold the concurrency limit of every physical device seen so far, so that backups running at
+ * the same time share them.
+ * <p>
+ * Every {@link CopyScheduler} given the same StoreLimits takes the same permits for a device: two backups
+ * writing to one rotational disk still send it a single sequential stream between them. The limit of a device
+ * is fixed by the first {@link FileSet} that uses it.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see JobManager
+ *
+ */
+public class StoreLimits {
+
+	/**
+	 * The concurrency limit of one device.
+	 */
+	public static final class Limit extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		/**	Number of files the device copies at the same time.
+		 *
+		 */
+		public final int permits;
+
+		/**	Order the limits of two devices are taken in, lowest first, so that two workers taking the same
+		 * pair of limits can never wait on each other.
+		 *
+		 */
+		final int order;
+
+		Limit(int permits, int order) {
+			super(permits, true);
+			this.permits = permits;
+			this.order = order;
+		}
+	}
+
+	/**	Limit of each store seen so far. Guarded by this.
+	 *
+	 */
+	private final Map<FileStore, Limit> mLimits = new HashMap<FileStore, Limit>();
+
+	/**	Looks up the limit of a device, creating it from a {@link FileSet}'s concurrency settings the first
+	 * time the device is seen.
+	 *
+	 * @param store The {@link FileStore} of the device.
+	 * @param files The {@link FileSet} whose {@link FileSet#getRotationalConcurrency()} or
+	 * 	{@link FileSet#getSolidStateConcurrency()} applies to a device seen for the first time.
+	 * @return Limit	The limit of the device.
+	 */
+	public synchronized Limit limitFor(FileStore store, FileSet files) {
+		Limit limit = mLimits.get(store);
+		if (limit == null) {
+			Boolean rotational = CopyScheduler.isRotational(store);
+			int permits = (rotational == null || rotational)
+					? files.getRotationalConcurrency() : files.getSolidStateConcurrency();
+			limit = new Limit(permits, mLimits.size());
+			mLimits.put(store, limit);
+		}
+		return limit;
+	}
+}
@@ -0,0 +1,383 @@
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TeeWriter writes a copy of a backup to an additional destination, from the buffers the copy workers
+ * have already read for the main destination, so every source byte is read only once however many copies
+ * are kept.
+ * <p>
+ * Each TeeWriter has its own thread that writes to its destination while the copy workers carry on with
+ * the main destination. The workers hand over copies of their buffers through a queue holding at most
+ * {@link #QUEUE_BUFFERS} buffers: a slow destination (a removable disk, say) is allowed to fall that far
+ * behind, and only then does the worker handing it more data wait. Files smaller than the pack threshold
+ * are appended to a pack of the destination's own, so every copy has the same layout.
+ * </p>
+ * <p>
+ * A failure to write one file to this destination does not stop the backup: the partial file is removed,
+ * the failure is passed to the {@link Listener} so the file can be retried or reported, and the writer
+ * carries on with the next file. Without a listener the failure is only counted as an error in the
+ * {@link Metrics}.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FileSet#addDestination(String)
+ *
+ */
+public class TeeWriter {
+
+	/**
+	 * Learns how each file handed to the writer turned out; called on the writer's thread.
+	 */
+	public interface Listener {
+		/**	A file was written completely to this destination.
+		 *
+		 * @param task The file.
+		 */
+		public void written(CopyTask task);
+
+		/**	A file could not be written to this destination; what was written of it is removed.
+		 *
+		 * @param task The file, or null if the pack of this destination could not be closed, which loses
+		 * 	every file packed into it.
+		 * @param error Why it could not be written.
+		 */
+		public void failed(CopyTask task, IOException error);
+	}
+
+	/**	Number of buffers a destination may fall behind the copy workers.
+	 *
+	 */
+	public static final int QUEUE_BUFFERS = 64;
+
+	/**	One step for the writer thread.
+	 *
+	 */
+	private static final class Op {
+		static final int OPEN = 0, WRITE = 1, CLOSE = 2, ABORT = 3, PACK = 4, STOP = 5, MARK = 6;
+
+		final int kind;
+		final CopyTask task;
+		final byte[] data;
+		final int length;
+		/** Counted down when a {@link #MARK} is reached. */
+		final CountDownLatch reached;
+
+		Op(int kind, CopyTask task, byte[] data, int length) {
+			this(kind, task, data, length, null);
+		}
+
+		Op(int kind, CopyTask task, byte[] data, int length, CountDownLatch reached) {
+			this.kind = kind;
+			this.task = task;
+			this.data = data;
+			this.length = length;
+			this.reached = reached;
+		}
+	}
+
+	private final Path mBackupDir;
+	private final boolean mSync;
+	private final BackupEncryption mEncryption;
+	private final Metrics mMetrics;
+	private final BlockingQueue<Op> mQueue = new ArrayBlockingQueue<Op>(QUEUE_BUFFERS);
+
+	/**	Buffers the writer thread is done with, for the workers to reuse.
+	 *
+	 */
+	private final BlockingQueue<byte[]> mFree = new ArrayBlockingQueue<byte[]>(QUEUE_BUFFERS);
+
+	private final Thread mThread;
+	private boolean mFinished;
+
+	/**	State of the writer thread.
+	 *
+	 */
+	private final Map<CopyTask, FileOutputStream> mOpen = new HashMap<CopyTask, FileOutputStream>();
+	private final Map<CopyTask, BackupEncryption.EncryptingOutputStream> mEncrypting
+			= new HashMap<CopyTask, BackupEncryption.EncryptingOutputStream>();
+	private final Set<CopyTask> mFailed = new HashSet<CopyTask>();
+	private final Set<Path> mCreatedDirectories = new HashSet<Path>();
+	private PackWriter mPackWriter;
+	private volatile int mErrors;
+	private volatile Listener mListener;
+
+	/**	Constructor that starts a writer for one additional destination.
+	 *
+	 * @param backupDir The backup directory at the additional destination; it must exist.
+	 * @param sync True to force each file to disk before it is closed.
+	 * @param encryption Encrypts the files written, or null to write them as they are.
+	 * @param metrics Receives the errors of this destination.
+	 */
+	public TeeWriter(Path backupDir, boolean sync, BackupEncryption encryption, Metrics metrics) {
+		mBackupDir = backupDir;
+		mSync = sync;
+		mEncryption = encryption;
+		mMetrics = metrics;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "Mirror writer " + backupDir);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * @return the backup directory written to.
+	 */
+	public Path getBackupDir() {
+		return mBackupDir;
+	}
+
+	/**	Sets the listener told of each file written or failed.
+	 *
+	 * @param listener The listener, or null to only count failures in the {@link Metrics}.
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * @return the number of files that could not be written to this destination so far.
+	 */
+	public int getErrors() {
+		return mErrors;
+	}
+
+	/**	Starts a file. Called by the worker copying it.
+	 *
+	 * @param task The file being copied.
+	 * @throws InterruptedException if the worker is interrupted while the queue is full.
+	 */
+	public void open(CopyTask task) throws InterruptedException {
+		mQueue.put(new Op(Op.OPEN, task, null, 0));
+	}
+
+	/**	Hands over the next bytes of a file. The buffer is copied; the caller may reuse it at once.
+	 *
+	 * @param task The file being copied.
+	 * @param buffer The bytes just read.
+	 * @param length Number of bytes in the buffer.
+	 * @throws InterruptedException if the worker is interrupted while the queue is full.
+	 */
+	public void write(CopyTask task, byte[] buffer, int length) throws InterruptedException {
+		byte[] copy = mFree.poll();
+		if (copy == null || copy.length < length) {
+			copy = new byte[Math.max(length, buffer.length)];
+		}
+		System.arraycopy(buffer, 0, copy, 0, length);
+		mQueue.put(new Op(Op.WRITE, task, copy, length));
+	}
+
+	/**	Finishes a file; it is given the modification time of its source.
+	 *
+	 * @param task The file being copied.
+	 * @throws InterruptedException if the worker is interrupted while the queue is full.
+	 */
+	public void close(CopyTask task) throws InterruptedException {
+		mQueue.put(new Op(Op.CLOSE, task, null, 0));
+	}
+
+	/**	Abandons a file the main destination could not copy; anything written of it is removed.
+	 *
+	 * @param task The file being copied.
+	 * @throws InterruptedException if the worker is interrupted while the queue is full.
+	 */
+	public void abort(CopyTask task) throws InterruptedException {
+		mQueue.put(new Op(Op.ABORT, task, null, 0));
+	}
+
+	/**	Appends a whole small file to this destination's pack.
+	 *
+	 * @param task The file being packed.
+	 * @param contents The contents of the file; not copied, so the caller must not change them.
+	 * @throws InterruptedException if the worker is interrupted while the queue is full.
+	 */
+	public void pack(CopyTask task, byte[] contents) throws InterruptedException {
+		mQueue.put(new Op(Op.PACK, task, contents, contents.length));
+	}
+
+	/**	Waits until everything handed over so far has been written or has failed, leaving the writer running.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public void awaitWritten() throws InterruptedException {
+		CountDownLatch reached = new CountDownLatch(1);
+		mQueue.put(new Op(Op.MARK, null, null, 0, reached));
+		while (!reached.await(1, TimeUnit.SECONDS) && mThread.isAlive()) {
+			// a destination that falls a whole queue behind takes a while
+		}
+	}
+
+	/**	Waits until everything handed over has been written, then closes the pack and stops the thread.
+	 * Further calls do nothing.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public synchronized void finish() throws InterruptedException {
+		if (mFinished) return;
+		mFinished = true;
+		mQueue.put(new Op(Op.STOP, null, null, 0));
+		mThread.join();
+	}
+
+	/**	Runs on the writer thread until {@link #finish()}.
+	 *
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				Op op = mQueue.take();
+				if (op.kind == Op.STOP) break;
+				if (op.kind == Op.MARK) {
+					op.reached.countDown();
+					continue;
+				}
+				if (op.task != null && mFailed.contains(op.task) && op.kind != Op.CLOSE && op.kind != Op.ABORT) {
+					recycle(op);
+					continue;
+				}
+				try {
+					if (apply(op) && mListener != null) {
+						mListener.written(op.task);
+					}
+				} catch (IOException e) {
+					fail(op.task, e);
+					// the rest of the file is still to come and must be skipped
+					if (op.kind == Op.OPEN || op.kind == Op.WRITE) {
+						mFailed.add(op.task);
+					}
+				}
+				recycle(op);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (CopyTask task : mOpen.keySet().toArray(new CopyTask[0])) {
+			discard(task);
+		}
+		if (mPackWriter != null) {
+			try {
+				mPackWriter.close();
+			} catch (IOException e) {
+				fail(null, e);
+			}
+		}
+	}
+
+	/**	Carries out one step.
+	 *
+	 * @return boolean	True if the step finished writing a file.
+	 */
+	private boolean apply(Op op) throws IOException {
+		CopyTask task = op.task;
+		switch (op.kind) {
+		case Op.OPEN:
+			Path destination = destinationOf(task);
+			Path dir = destination.getParent();
+			if (mCreatedDirectories.add(dir)) {
+				Files.createDirectories(dir);
+			}
+			FileOutputStream file = new FileOutputStream(destination.toFile());
+			mOpen.put(task, file);
+			if (mEncryption != null) {
+				mEncrypting.put(task, mEncryption.encrypt(file));
+			}
+			break;
+		case Op.WRITE:
+			OutputStream target = mEncrypting.get(task);
+			(target != null ? target : mOpen.get(task)).write(op.data, 0, op.length);
+			break;
+		case Op.CLOSE:
+			if (mFailed.remove(task)) {
+				discard(task);
+				return false;
+			}
+			BackupEncryption.EncryptingOutputStream encrypting = mEncrypting.get(task);
+			FileOutputStream out = mOpen.get(task);
+			if (out == null) return false;
+			// the file stays registered until it is complete, so a failure here lets discard remove it
+			if (encrypting != null) {
+				encrypting.finish();
+			}
+			if (mSync) {
+				out.getFD().sync();
+			}
+			out.close();
+			Files.setLastModifiedTime(destinationOf(task), FileTime.fromMillis(task.lastModified));
+			mEncrypting.remove(task);
+			mOpen.remove(task);
+			return true;
+		case Op.ABORT:
+			mFailed.remove(task);
+			discard(task);
+			break;
+		case Op.PACK:
+			if (mPackWriter == null) {
+				mPackWriter = new PackWriter(mBackupDir);
+			}
+			mPackWriter.append(task.relativePath, new ByteArrayInputStream(op.data, 0, op.length));
+			return true;
+		default:
+			break;
+		}
+		return false;
+	}
+
+	private void fail(CopyTask task, IOException e) {
+		mErrors++;
+		if (task != null) {
+			discard(task);
+		}
+		Listener listener = mListener;
+		if (listener != null) {
+			listener.failed(task, e);
+			return;
+		}
+		mMetrics.recordError();
+		String path = task != null ? destinationOf(task).toString() : mBackupDir.toString();
+		CopyEvents.copyError(path, e);
+		System.err.println("Failed trying to write " + path + ": " + e.getMessage());
+	}
+
+	/**	Closes and removes a partial file.
+	 *
+	 */
+	private void discard(CopyTask task) {
+		mEncrypting.remove(task);
+		FileOutputStream out = mOpen.remove(task);
+		if (out == null) return;
+		try {
+			out.close();
+			Files.deleteIfExists(destinationOf(task));
+		} catch (IOException e) {
+			System.err.println("Unable to remove partial copy " + destinationOf(task) + ": " + e.getMessage());
+		}
+	}
+
+	private void recycle(Op op) {
+		if (op.kind == Op.WRITE) {
+			mFree.offer(op.data);
+		}
+	}
+
+	private Path destinationOf(CopyTask task) {
+		return mBackupDir.resolve(task.relativePath);
+	}
+}
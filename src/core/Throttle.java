@@ -0,0 +1,228 @@
+package core;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * The Throttle limits how fast a backup is allowed to read and write using two token buckets, one
+ * holding bytes and one holding files.
+ * <p>
+ * Each bucket refills continuously at its configured rate and can hold at most one burst worth of
+ * tokens, so short pauses let a copy catch up briefly without exceeding the average rate for long.
+ * Every copy worker of a {@link FileOps} operation takes its tokens from the same Throttle, which makes
+ * the limits apply to the operation as a whole. Limits may be changed at any time while a backup is
+ * running; waiting workers pick up the new limits immediately. A worker waiting for tokens also
+ * stops waiting once the work it is throttled for is cancelled; see {@link #setCancellation(Cancellation)}.
+ * </p>
+ * <p>A rate of 0 means "unlimited".</p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see FileSet#getBytesPerSecond()
+ * @see FileSet#getFilesPerSecond()
+ *
+ */
+public class Throttle {
+
+	/**
+	 * Tells a waiting worker whether the work it is throttled for was cancelled.
+	 */
+	public interface Cancellation {
+
+		/**
+		 * @return true once the work was cancelled.
+		 */
+		boolean isCancelled();
+	}
+
+	/**	Number of nanoseconds in a second.
+	 *
+	 */
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/**	Longest time a worker sleeps before it re-checks the bucket, so rate changes take effect promptly.
+	 *
+	 */
+	private static final long MAX_WAIT_MILLIS = 100;
+
+	private long mBytesPerSecond;
+	private long mFilesPerSecond;
+	private long mBurstBytes;
+
+	/**	Checked each time a worker would wait for tokens; null if the work is never cancelled.
+	 *
+	 */
+	private Cancellation mCancellation;
+
+	private double mByteTokens;
+	private double mFileTokens;
+	private long mLastRefill;
+
+	/**	Constructor that creates an unlimited Throttle.
+	 *
+	 */
+	public Throttle() {
+		this(0, 0, 0);
+	}
+
+	/**	Constructor that creates a Throttle with the given limits.
+	 *
+	 * @param bytesPerSecond Maximum average bytes per second, or 0 for unlimited.
+	 * @param filesPerSecond Maximum average files per second, or 0 for unlimited.
+	 * @param burstBytes Number of bytes that may be transferred at once after an idle period. If 0, one
+	 * second worth of bytes is used.
+	 */
+	public Throttle(long bytesPerSecond, long filesPerSecond, long burstBytes) {
+		mLastRefill = System.nanoTime();
+		setLimits(bytesPerSecond, filesPerSecond, burstBytes);
+		mByteTokens = getByteCapacity();
+		mFileTokens = getFileCapacity();
+	}
+
+	/**	Constructor that creates a Throttle using the limits saved in a {@link FileSet}.
+	 *
+	 * @param files The {@link FileSet} to read the limits from.
+	 */
+	public Throttle(FileSet files) {
+		this(files.getBytesPerSecond(), files.getFilesPerSecond(), files.getBurstBytes());
+	}
+
+	/**	Changes all limits at once. Workers blocked in {@link #acquireBytes(long)} or {@link #acquireFile()}
+	 * are woken up so they see the new limits straight away.
+	 *
+	 * @param bytesPerSecond Maximum average bytes per second, or 0 for unlimited.
+	 * @param filesPerSecond Maximum average files per second, or 0 for unlimited.
+	 * @param burstBytes Burst size in bytes, or 0 for one second worth of bytes.
+	 * @throws IllegalArgumentException if any value is negative.
+	 */
+	public synchronized void setLimits(long bytesPerSecond, long filesPerSecond, long burstBytes)
+			throws IllegalArgumentException {
+		if (bytesPerSecond < 0 || filesPerSecond < 0 || burstBytes < 0) {
+			throw new IllegalArgumentException("Throttle limits cannot be negative");
+		}
+		refill();
+		mBytesPerSecond = bytesPerSecond;
+		mFilesPerSecond = filesPerSecond;
+		mBurstBytes = burstBytes;
+		mByteTokens = Math.min(mByteTokens, getByteCapacity());
+		mFileTokens = Math.min(mFileTokens, getFileCapacity());
+		notifyAll();
+	}
+
+	/**	Sets what a worker waiting for tokens checks to learn that its work was cancelled. The check is made
+	 * before every wait and at least every {@link #MAX_WAIT_MILLIS} ms while waiting, so a cancel is noticed
+	 * promptly however low the rate.
+	 *
+	 * @param cancellation The {@link Cancellation} to check, or null if the work is never cancelled.
+	 */
+	public synchronized void setCancellation(Cancellation cancellation) {
+		mCancellation = cancellation;
+	}
+
+	/**	Changes the byte rate, keeping the other limits.
+	 *
+	 * @param bytesPerSecond Maximum average bytes per second, or 0 for unlimited.
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		setLimits(bytesPerSecond, mFilesPerSecond, mBurstBytes);
+	}
+
+	/**	Changes the file rate, keeping the other limits.
+	 *
+	 * @param filesPerSecond Maximum average files per second, or 0 for unlimited.
+	 */
+	public synchronized void setFilesPerSecond(long filesPerSecond) {
+		setLimits(mBytesPerSecond, filesPerSecond, mBurstBytes);
+	}
+
+	/**	Changes the burst size, keeping the rates.
+	 *
+	 * @param burstBytes Burst size in bytes, or 0 for one second worth of bytes.
+	 */
+	public synchronized void setBurstBytes(long burstBytes) {
+		setLimits(mBytesPerSecond, mFilesPerSecond, burstBytes);
+	}
+
+	/**
+	 * @return the byte rate limit, or 0 if unlimited.
+	 */
+	public synchronized long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * @return the file rate limit, or 0 if unlimited.
+	 */
+	public synchronized long getFilesPerSecond() {
+		return mFilesPerSecond;
+	}
+
+	/**
+	 * @return the configured burst size in bytes, or 0 for one second worth of bytes.
+	 */
+	public synchronized long getBurstBytes() {
+		return mBurstBytes;
+	}
+
+	/**	Blocks until the given number of bytes may be transferred. Requests larger than the bucket
+	 * are allowed to drive the bucket negative, so a single large read is never refused outright;
+	 * the following requests wait for the debt to be repaid instead.
+	 *
+	 * @param bytes Number of bytes about to be (or just) transferred.
+	 * @throws CancellationException if the work was cancelled while the bytes had to be waited for.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void acquireBytes(long bytes) throws InterruptedException {
+		while (mBytesPerSecond > 0) {
+			refill();
+			if (mByteTokens > 0) {
+				mByteTokens -= bytes;
+				return;
+			}
+			waitFor(-mByteTokens, mBytesPerSecond);
+		}
+	}
+
+	/**	Blocks until one more file may be started.
+	 *
+	 * @throws CancellationException if the work was cancelled while the file had to be waited for.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void acquireFile() throws InterruptedException {
+		while (mFilesPerSecond > 0) {
+			refill();
+			if (mFileTokens >= 1) {
+				mFileTokens -= 1;
+				return;
+			}
+			waitFor(1 - mFileTokens, mFilesPerSecond);
+		}
+	}
+
+	private double getByteCapacity() {
+		return mBurstBytes > 0 ? mBurstBytes : Math.max(mBytesPerSecond, 1);
+	}
+
+	private double getFileCapacity() {
+		return Math.max(mFilesPerSecond, 1);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double elapsed = (now - mLastRefill) / NANOS_PER_SECOND;
+		mLastRefill = now;
+		if (mBytesPerSecond > 0) {
+			mByteTokens = Math.min(getByteCapacity(), mByteTokens + elapsed * mBytesPerSecond);
+		}
+		if (mFilesPerSecond > 0) {
+			mFileTokens = Math.min(getFileCapacity(), mFileTokens + elapsed * mFilesPerSecond);
+		}
+	}
+
+	private void waitFor(double missingTokens, long rate) throws InterruptedException {
+		if (mCancellation != null && mCancellation.isCancelled()) {
+			throw new CancellationException("Throttled work cancelled");
+		}
+		long millis = (long) Math.ceil(missingTokens * 1000 / rate);
+		wait(Math.max(1, Math.min(millis, MAX_WAIT_MILLIS)));
+	}
+}
@@ -0,0 +1,271 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TreeRemover deletes whole directory trees, such as old backups, with several threads at once.
+ * <p>
+ * Removing a tree of a million files one entry at a time spends nearly all its time waiting on the file
+ * system for each unlink. Here every directory is listed by a task of its own, its files are deleted in
+ * batches spread over the threads, and a directory is removed by whichever thread finishes its last entry.
+ * Every deletion first takes a file from the {@link Throttle}, and the threads run at the lowest priority, so
+ * pruning can be kept from competing with a backup.
+ * </p>
+ * <p>
+ * A tree is first renamed to a hidden name starting with {@link #REMOVING_PREFIX}, in one step, so it stops
+ * looking like a backup straight away. A removal cut short leaves such a directory behind, which
+ * {@link #removeLeftovers(Path)} finishes.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see RetentionPolicy
+ *
+ */
+public class TreeRemover {
+
+	/**	Default number of threads deleting at once.
+	 *
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	/**	Prefix given to a tree while it is being removed.
+	 *
+	 */
+	public static final String REMOVING_PREFIX = ".mirror-removing-";
+
+	/**	Number of files deleted by one task.
+	 *
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private final int mThreads;
+	private final Throttle mThrottle;
+
+	/**	Constructor that removes with the {@link #DEFAULT_THREADS} and no limit.
+	 *
+	 */
+	public TreeRemover() {
+		this(DEFAULT_THREADS, new Throttle());
+	}
+
+	/**	Constructor that sets the number of threads and the limit on deletions.
+	 *
+	 * @param threads Number of threads deleting at once.
+	 * @param throttle Limits the deletions per second through its files per second; bytes are not limited.
+	 * @throws IllegalArgumentException if the number of threads is less than 1.
+	 */
+	public TreeRemover(int threads, Throttle throttle) throws IllegalArgumentException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed to remove files");
+		}
+		mThreads = threads;
+		mThrottle = throttle;
+	}
+
+	/**	Removes a directory tree. Symbolic links are removed, never followed.
+	 *
+	 * @param tree The directory to remove with everything below it.
+	 * @return long	The number of files and directories removed.
+	 * @throws IOException if anything could not be removed; everything else still is.
+	 * @throws InterruptedException if the calling thread is interrupted; the tree is left partly removed.
+	 */
+	public long remove(Path tree) throws IOException, InterruptedException {
+		Path hidden = tree;
+		if (!tree.getFileName().toString().startsWith(REMOVING_PREFIX)) {
+			hidden = tree.resolveSibling(REMOVING_PREFIX + tree.getFileName());
+			Files.move(tree, hidden, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return removeTree(hidden);
+	}
+
+	/**	Finishes removing the trees a previous removal left in a directory.
+	 *
+	 * @param parent The directory the trees were removed from.
+	 * @return long	The number of files and directories removed.
+	 * @throws IOException if anything could not be removed.
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	public long removeLeftovers(Path parent) throws IOException, InterruptedException {
+		List<Path> leftovers = new ArrayList<Path>();
+		DirectoryStream<Path> entries = Files.newDirectoryStream(parent, REMOVING_PREFIX + "*");
+		try {
+			for (Path entry : entries) {
+				leftovers.add(entry);
+			}
+		} finally {
+			entries.close();
+		}
+		long removed = 0;
+		for (Path leftover : leftovers) {
+			removed += remove(leftover);
+		}
+		return removed;
+	}
+
+	/**	The state of one removal.
+	 *
+	 */
+	private final class Removal {
+		final ExecutorService pool;
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicLong removed = new AtomicLong();
+		final AtomicInteger errors = new AtomicInteger();
+		volatile IOException firstError;
+
+		Removal(ExecutorService pool) {
+			this.pool = pool;
+		}
+
+		void failed(IOException e) {
+			if (errors.getAndIncrement() == 0) {
+				firstError = e;
+			}
+		}
+
+		void delete(Path path) throws InterruptedException {
+			mThrottle.acquireFile();
+			try {
+				Files.delete(path);
+				removed.incrementAndGet();
+			} catch (NoSuchFileException e) {
+				// already gone
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	/**	A directory being emptied; removed once its listing and every task it started are done.
+	 *
+	 */
+	private final class Directory implements Runnable {
+		final Removal removal;
+		final Path path;
+		final Directory parent;
+		/** Tasks still to finish, counting the listing itself. */
+		final AtomicInteger pending = new AtomicInteger(1);
+
+		Directory(Removal removal, Path path, Directory parent) {
+			this.removal = removal;
+			this.path = path;
+			this.parent = parent;
+		}
+
+		public void run() {
+			try {
+				List<Path> batch = new ArrayList<Path>(BATCH_SIZE);
+				DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+				try {
+					for (Path entry : entries) {
+						if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							start(new Directory(removal, entry, this));
+						} else {
+							batch.add(entry);
+							if (batch.size() == BATCH_SIZE) {
+								start(new Batch(this, batch));
+								batch = new ArrayList<Path>(BATCH_SIZE);
+							}
+						}
+					}
+				} finally {
+					entries.close();
+				}
+				// the last, partial batch is deleted here rather than queued
+				for (Path file : batch) {
+					removal.delete(file);
+				}
+			} catch (IOException e) {
+				removal.failed(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finished();
+		}
+
+		private void start(Runnable task) {
+			pending.incrementAndGet();
+			removal.pool.execute(task);
+		}
+
+		void finished() {
+			if (pending.decrementAndGet() > 0) return;
+			try {
+				if (!Thread.currentThread().isInterrupted()) {
+					removal.delete(path);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (parent != null) {
+				parent.finished();
+			} else {
+				removal.done.countDown();
+			}
+		}
+	}
+
+	/**	A batch of files of one directory.
+	 *
+	 */
+	private static final class Batch implements Runnable {
+		final Directory directory;
+		final List<Path> files;
+
+		Batch(Directory directory, List<Path> files) {
+			this.directory = directory;
+			this.files = files;
+		}
+
+		public void run() {
+			try {
+				for (Path file : files) {
+					directory.removal.delete(file);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			directory.finished();
+		}
+	}
+
+	private long removeTree(Path tree) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Tree remover " + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		Removal removal = new Removal(pool);
+		try {
+			pool.execute(new Directory(removal, tree, null));
+			removal.done.await();
+		} finally {
+			pool.shutdownNow();
+		}
+		if (removal.firstError != null) {
+			int others = removal.errors.get() - 1;
+			throw new IOException("Unable to remove " + tree + ": " + removal.firstError.getMessage()
+					+ (others > 0 ? " (and " + others + " more)" : ""), removal.firstError);
+		}
+		return removal.removed.get();
+	}
+}
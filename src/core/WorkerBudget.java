@@ -0,0 +1,127 @@
+package core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The WorkerBudget limits how many files all running backups together copy at the same time, and shares
+ * that number fairly between them.
+ * <p>
+ * Every copy worker of every {@link CopyScheduler} given the same budget asks it for a slot before each
+ * file. When a slot comes free it goes to the waiting backup that currently holds the fewest slots, so a
+ * backup with many workers cannot crowd out one with few: with a budget of 8 and two backups each gets 4,
+ * and a backup that needs fewer leaves the rest to the others.
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ * @see JobManager
+ *
+ */
+public class WorkerBudget {
+
+	private int mSlots;
+	private int mInUse;
+
+	/**	Slots held by each backup.
+	 *
+	 */
+	private final Map<Object, Integer> mHeld = new HashMap<Object, Integer>();
+
+	/**	Workers waiting for a slot, per backup.
+	 *
+	 */
+	private final Map<Object, Integer> mWaiting = new HashMap<Object, Integer>();
+
+	/**	Constructor that creates a budget with a number of slots.
+	 *
+	 * @param slots Number of files that may be copied at the same time, at least 1.
+	 * @throws IllegalArgumentException if the number is less than 1.
+	 */
+	public WorkerBudget(int slots) throws IllegalArgumentException {
+		setSlots(slots);
+	}
+
+	/**	Changes the number of slots. Slots in use above a lowered budget are not taken back; they are
+	 * simply not handed out again.
+	 *
+	 * @param slots Number of files that may be copied at the same time, at least 1.
+	 * @throws IllegalArgumentException if the number is less than 1.
+	 */
+	public synchronized void setSlots(int slots) throws IllegalArgumentException {
+		if (slots < 1) {
+			throw new IllegalArgumentException("Budget must be at least 1");
+		}
+		mSlots = slots;
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of files that may be copied at the same time.
+	 */
+	public synchronized int getSlots() {
+		return mSlots;
+	}
+
+	/**
+	 * @return the number of slots in use.
+	 */
+	public synchronized int getInUse() {
+		return mInUse;
+	}
+
+	/**	Blocks until a slot is free and it is the backup's turn.
+	 *
+	 * @param owner The backup asking; slots are shared fairly between owners.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 */
+	public synchronized void acquire(Object owner) throws InterruptedException {
+		add(mWaiting, owner, 1);
+		try {
+			while (mInUse >= mSlots || !isTurn(owner)) {
+				wait();
+			}
+			add(mHeld, owner, 1);
+			mInUse++;
+		} finally {
+			add(mWaiting, owner, -1);
+			// whoever waits next may have become the owner with the fewest slots
+			notifyAll();
+		}
+	}
+
+	/**	Returns a slot taken with {@link #acquire(Object)}.
+	 *
+	 * @param owner The backup returning the slot.
+	 */
+	public synchronized void release(Object owner) {
+		add(mHeld, owner, -1);
+		mInUse--;
+		notifyAll();
+	}
+
+	/**	The owner's turn: no other waiting owner holds fewer slots.
+	 *
+	 */
+	private boolean isTurn(Object owner) {
+		int held = count(mHeld, owner);
+		for (Object other : mWaiting.keySet()) {
+			if (count(mHeld, other) < held) return false;
+		}
+		return true;
+	}
+
+	private static int count(Map<Object, Integer> counts, Object owner) {
+		Integer count = counts.get(owner);
+		return count != null ? count : 0;
+	}
+
+	private static void add(Map<Object, Integer> counts, Object owner, int delta) {
+		int count = count(counts, owner) + delta;
+		if (count == 0) {
+			counts.remove(owner);
+		} else {
+			counts.put(owner, count);
+		}
+	}
+}
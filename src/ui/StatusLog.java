@@ -0,0 +1,273 @@
+package ui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.AbstractListModel;
+import javax.swing.Timer;
+
+/**
+ * The StatusLog holds the status messages shown below a running backup. It is the model of a
+ * {@link javax.swing.JList}, which only renders the rows that are visible, so the view costs the same whether a
+ * backup copies ten files or a million.
+ * <p>
+ * Only the most recent lines are kept in memory, in a ring buffer of fixed capacity. Lines may be appended
+ * from any thread; they are collected and added to the model in one batch per frame on the Event Dispatch
+ * Thread. While a log file is open every line is also streamed to it by a background thread, so the full
+ * history is never lost.
+ * </p>
+ * <p>
+ * Requirement 1.1.5.1: The user must be notified of the status of any backup (failure or success).
+ * </p>
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class StatusLog extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**	Number of lines kept in memory unless another capacity is given.
+	 *
+	 */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/**	Time in milliseconds appended lines are collected for before they are shown; about one frame.
+	 *
+	 */
+	public static final int BATCH_MILLIS = 16;
+
+	/**	Directory the full logs are written to: <code>Mirror/logs</code> within the user's home directory.
+	 *
+	 */
+	public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), "Mirror", "logs");
+
+	/**	The most recent lines; the oldest is at {@link #mHead}. Only touched on the Event Dispatch Thread.
+	 *
+	 */
+	private final String[] mLines;
+	private int mHead;
+	private int mSize;
+
+	/**	Lines appended but not yet shown.
+	 *
+	 */
+	private final ConcurrentLinkedQueue<String> mPending = new ConcurrentLinkedQueue<String>();
+
+	/**	True while a batch is waiting for {@link #mTimer}.
+	 *
+	 */
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	/**	Fires once per batch on the Event Dispatch Thread.
+	 *
+	 */
+	private final Timer mTimer;
+
+	/**	Writes the log file, so the Event Dispatch Thread never waits for the disk.
+	 *
+	 */
+	private final ExecutorService mDiskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Mirror status log");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**	The open log file; only touched by {@link #mDiskWriter}.
+	 *
+	 */
+	private BufferedWriter mFile;
+
+	/**	True while a log file is open.
+	 *
+	 */
+	private volatile boolean mFileOpen;
+
+	/**	Constructor that creates a log keeping the {@link #DEFAULT_CAPACITY} most recent lines.
+	 *
+	 */
+	public StatusLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**	Constructor that creates a log keeping a given number of recent lines.
+	 *
+	 * @param capacity Number of lines kept in memory, at least 1.
+	 * @throws IllegalArgumentException if the capacity is less than 1.
+	 */
+	public StatusLog(int capacity) throws IllegalArgumentException {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		mLines = new String[capacity];
+		mTimer = new Timer(BATCH_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flush();
+			}
+		});
+		mTimer.setRepeats(false);
+	}
+
+	/**	Appends a line. Safe to call from any thread; the line is shown with the next batch.
+	 *
+	 * @param line The message to append.
+	 */
+	public void append(String line) {
+		mPending.add(line);
+		if (mScheduled.compareAndSet(false, true)) {
+			mTimer.restart();
+		}
+	}
+
+	/**	Shows every pending line and hands it to the log file. Called by the batch timer on the Event
+	 * Dispatch Thread; call it directly only from that thread.
+	 *
+	 */
+	public void flush() {
+		mScheduled.set(false);
+		final List<String> batch = new ArrayList<String>();
+		String line;
+		while ((line = mPending.poll()) != null) {
+			batch.add(line);
+		}
+		if (batch.isEmpty()) return;
+
+		if (mFileOpen) {
+			final String stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
+			mDiskWriter.execute(new Runnable() {
+				public void run() {
+					write(stamp, batch);
+				}
+			});
+		}
+
+		// only the newest lines of a large batch can still be in the buffer
+		int capacity = mLines.length;
+		int first = Math.max(0, batch.size() - capacity);
+		int added = batch.size() - first;
+		int removed = Math.max(0, mSize + added - capacity);
+		for (int i = first; i < batch.size(); i++) {
+			mLines[(mHead + mSize) % capacity] = batch.get(i);
+			if (mSize < capacity) {
+				mSize++;
+			} else {
+				mHead = (mHead + 1) % capacity;
+			}
+		}
+		if (removed > 0) {
+			fireIntervalRemoved(this, 0, removed - 1);
+		}
+		fireIntervalAdded(this, mSize - added, mSize - 1);
+	}
+
+	/**	Starts streaming every line appended from now on to a file. An open file is closed first.
+	 *
+	 * @param file The file to append the log to; its directory is created if needed.
+	 */
+	public void openFile(final Path file) {
+		closeFile();
+		mFileOpen = true;
+		mDiskWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					Files.createDirectories(file.getParent());
+					mFile = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				} catch (IOException e) {
+					System.err.println("Unable to open status log " + file + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**	Writes any pending lines to the open log file and closes it.
+	 *
+	 */
+	public void closeFile() {
+		if (!mFileOpen) return;
+		final List<String> batch = new ArrayList<String>();
+		for (String line : mPending) {
+			batch.add(line);
+		}
+		final String stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date());
+		mFileOpen = false;
+		mDiskWriter.execute(new Runnable() {
+			public void run() {
+				write(stamp, batch);
+				if (mFile == null) return;
+				try {
+					mFile.close();
+				} catch (IOException e) {
+					System.err.println("Unable to close status log: " + e.getMessage());
+				}
+				mFile = null;
+			}
+		});
+	}
+
+	/**	Waits until everything handed to the log file so far has been written.
+	 *
+	 * @param timeoutMillis Longest time to wait in milliseconds.
+	 * @throws Exception if the wait is interrupted or times out.
+	 */
+	public void awaitFile(long timeoutMillis) throws Exception {
+		mDiskWriter.submit(new Runnable() {
+			public void run() {
+				// runs after every write queued before it
+			}
+		}).get(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void write(String stamp, List<String> batch) {
+		if (mFile == null) return;
+		try {
+			for (String line : batch) {
+				mFile.write(stamp);
+				mFile.write("  ");
+				mFile.write(line);
+				mFile.newLine();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write status log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of lines held in memory.
+	 * @see javax.swing.ListModel#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @param index Position of the line, 0 being the oldest line held in memory.
+	 * @return the line at the position.
+	 * @see javax.swing.ListModel#getElementAt(int)
+	 */
+	@Override
+	public String getElementAt(int index) {
+		return mLines[(mHead + index) % mLines.length];
+	}
+}
@@ -5,6 +5,7 @@ import java.awt.Component;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GridLayout;
@@ -21,18 +22,26 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComponent;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -43,25 +52,32 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPasswordField;
 import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.JTextPane;
 import javax.swing.LayoutStyle.ComponentPlacement;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.UIManager.LookAndFeelInfo;
 import javax.swing.plaf.basic.BasicProgressBarUI;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Document;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import org.jdesktop.swingx.JXDatePicker;
 import app.Application;
+import app.FileSetLoader;
+import core.FailureReport;
 import core.FileSet;
 import core.FileOps;
 import core.FileOpsMessageHandler;
+import core.PerformanceReport;
 import core.Progress;
+import core.RetentionPolicy;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.WindowAdapter;
@@ -90,8 +106,14 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 	private static Boolean nameOK = true;
 	/** The default backup name. */
 	private String defaultName;
-	/** A container for status message text. */
-	private Document doc;
+	/** The latest change to the number of copy workers, shown in the tooltip of the progress circle. */
+	private String mWorkerDecision = "";
+	/** Longest time to wait for a cancelled backup to stop before the program ends, in milliseconds. */
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+	/** The number of files and folders the last backup could not copy. */
+	private int mFailureCount;
+	/** The most recent status messages, shown in {@link #listStatus}. */
+	private final StatusLog mStatusLog = new StatusLog();
 	/** An instance of the {@code Application} class.
 	 *  @see app.Application */
 	private Application mApp;
@@ -109,15 +131,32 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 	 */
 	public UIViewController(Application app) throws Exception {
 		addWindowListener(new WindowAdapter() {
+			@Override public void windowOpened(WindowEvent e) {
+				loadDeferredComponents();
+			}
 			@Override public void windowClosing(WindowEvent e) {
 				if (worker != null && !worker.isDone()) {
-					JOptionPane.showMessageDialog(getRootPane(),
+					int choice = JOptionPane.showConfirmDialog(getRootPane(),
 							"A backup is currently in progress.\n" +
-									"To avoid creating a corrupt or incomplete backup, please wait.",
+									"Cancel it and quit? The files copied so far are kept.",
 									"Backup Running",
+									JOptionPane.YES_NO_OPTION,
 									JOptionPane.WARNING_MESSAGE);
-					// v2.0 - signal cancel, set mayInterruptIfRunning parameter to true
-					// worker.cancel(true);
+					if (choice != JOptionPane.YES_OPTION) { return; }
+					final FileOps running = worker;
+					running.cancel(true);
+					mStatusLog.append("Cancelling the backup...");
+					// the workers stop within a chunk and remove their partial files before the program ends
+					new Thread(new Runnable() {
+						public void run() {
+							try {
+								running.awaitStopped(STOP_TIMEOUT_MILLIS);
+							} catch (InterruptedException ex) {
+								// exit anyway
+							}
+							System.exit(0);
+						}
+					}, "Backup shutdown").start();
 				} else {
 					System.exit(0);
 				}
@@ -149,31 +188,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 			System.err.println("Nimbus is unavailable; System look and feel presented.");
 		}
 
-		File icon16 = new File("res/icons/icon16.png");
-		File icon32 = new File("res/icons/icon32.png");
-		File icon64 = new File("res/icons/icon64.png");
-		File icon128 = new File("res/icons/icon128.png");
-
-		final List<Image> icons  = new ArrayList<Image>();
-		icons.add(ImageIO.read(icon16));
-		icons.add(ImageIO.read(icon32));
-		icons.add(ImageIO.read(icon64));
-		icons.add(ImageIO.read(icon128));
-
-		/* dynamically load Apple's Application.class since it cannot
-		 * be instantiated on Windows platforms
-		 */
-		if (System.getProperty("os.name").startsWith("Mac OS")) {
-			Class<?> c = Class.forName("com.apple.eawt.Application");
-			Object obj = c.newInstance();
-			Class<?>[] paramTypes = new Class[1];
-			paramTypes[0] = Image.class;
-			// use reflection to access the appropriate method
-			Method m = c.getMethod("setDockIconImage", paramTypes);
-			m.invoke(obj, ImageIO.read(icon128));
-		}
-
-		setIconImages(icons);
+		// the icons are read once the window is open, see loadDeferredComponents()
 		setTitle("Mirror");
 		setSize(new Dimension(685, 711));
 		setResizable(false);
@@ -210,10 +225,177 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 			}
 		});
 
+		menuSettings = new JMenu("Settings");
+		menuSettings.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuBar.add(menuSettings);
+		menuItemThrottle = new JMenuItem("Bandwidth Limit...");
+		menuItemThrottle.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuSettings.add(menuItemThrottle);
+		menuItemThrottle.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showThrottleDialog();
+			}
+		});
+		menuItemFilters = new JMenuItem("Include / Exclude...");
+		menuItemFilters.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuSettings.add(menuItemFilters);
+		menuItemFilters.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showFilterDialog();
+			}
+		});
+		menuItemDestinations = new JMenuItem("Also Copy To...");
+		menuItemDestinations.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuSettings.add(menuItemDestinations);
+		menuItemDestinations.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showDestinationsDialog();
+			}
+		});
+		menuItemEncrypt = new JCheckBoxMenuItem("Encrypt Backups", mCurrentFileSet.isEncrypted());
+		menuItemEncrypt.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuSettings.add(menuItemEncrypt);
+		menuItemEncrypt.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				mCurrentFileSet.setEncrypted(menuItemEncrypt.isSelected());
+			}
+		});
+		menuItemRetention = new JMenuItem("Keep Old Backups...");
+		menuItemRetention.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		menuSettings.add(menuItemRetention);
+		menuItemRetention.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showRetentionDialog();
+			}
+		});
+
 		initComponents();
 
 	}
 
+	/**
+	 * Loads the saved {@link FileSet} in the background and shows it once read, so the window does not wait for
+	 * it. Its sources appear as they are checked; those that do not exist now are kept and marked in the
+	 * status list. The buttons that change or use the backup are disabled until loading ends.
+	 * 
+	 * @param file the saved {@link FileSet}; if it does not exist, a new one is used
+	 * @see app.FileSetLoader
+	 */
+	public void loadFileSet(Path file) {
+		setBackupControlsEnabled(false);
+		mStatusLog.append("Loading saved backup settings...");
+		new FileSetLoader(file, new FileSetLoader.Listener() {
+			public void fileSetLoaded(FileSet fileSet) {
+				mApp.setCurrentFileSet(fileSet);
+				mCurrentFileSet = fileSet;
+				listModel = fileSet;
+				listSources.setModel(fileSet);
+				menuItemEncrypt.setSelected(fileSet.isEncrypted());
+				initNameAndDestination();
+			}
+
+			public void sourcesAdded(FileSet fileSet, int added) {
+				// the list shows the FileSet itself, so it already updated
+			}
+
+			public void loadingFinished(FileSet fileSet, List<String> missing, Exception error) {
+				if (error != null) {
+					mStatusLog.append("The saved backup settings could not be read: " + error.getMessage());
+					System.err.println("Exception: failed to read the saved backup settings");
+				}
+				for (String source : missing) {
+					mStatusLog.append("Source not found, kept in the backup settings: " + source);
+				}
+				mStatusLog.append("Backup settings loaded.");
+				setBackupControlsEnabled(true);
+			}
+		}).execute();
+	}
+
+	/**
+	 * Enables or disables the buttons that change the sources or use the backup settings.
+	 */
+	private void setBackupControlsEnabled(boolean enabled) {
+		btnAddFile.setEnabled(enabled);
+		btnAddFolder.setEnabled(enabled);
+		btnRemove.setEnabled(enabled);
+		btnSave.setEnabled(enabled);
+		btnRun.setEnabled(enabled && (worker == null || worker.isDone()));
+	}
+
+	/**
+	 * Shows the destination of the current {@link FileSet}, or the user's home directory if it has none, and gives the
+	 * {@link FileSet} the backup name and destination shown.
+	 */
+	private void initNameAndDestination() {
+		if (mCurrentFileSet.getDestination() != null) {
+			txtDestination.setText(mCurrentFileSet.getDestination());
+		} else {
+			// set default destination to user's system-dependent home directory
+			txtDestination.setText(System.getProperty("user.home"));
+		}
+
+		// set initial name and destination
+		try {
+			mCurrentFileSet.setName(txtNameBackup.getText());
+			mCurrentFileSet.setDestination(txtDestination.getText());
+		} catch (Exception e1) {
+			System.err.println("Exception: invalid backup name and/or destination path");
+		}
+	}
+
+	/**
+	 * Reads the icons and loads the SwingX classes in the background once the window is open, then sets the icons
+	 * and puts the date picker in place of its placeholder. Neither is needed to show the window, and together they
+	 * take a noticeable part of the start-up time.
+	 */
+	private void loadDeferredComponents() {
+		new SwingWorker<List<Image>, Void>() {
+			@Override
+			protected List<Image> doInBackground() throws Exception {
+				List<Image> icons = new ArrayList<Image>();
+				icons.add(ImageIO.read(new File("res/icons/icon16.png")));
+				icons.add(ImageIO.read(new File("res/icons/icon32.png")));
+				icons.add(ImageIO.read(new File("res/icons/icon64.png")));
+				icons.add(ImageIO.read(new File("res/icons/icon128.png")));
+				checkMark = ImageIO.read(new File("res/icons/checkmark.png"));
+				// loading the classes is the slow part; the picker itself is created on the event dispatch thread
+				Class.forName(JXDatePicker.class.getName());
+				return icons;
+			}
+
+			@Override
+			protected void done() {
+				try {
+					List<Image> icons = get();
+					setIconImages(icons);
+					lblCheck.setIcon(new ImageIcon(checkMark));
+					/* dynamically load Apple's Application.class since it cannot
+					 * be instantiated on Windows platforms
+					 */
+					if (System.getProperty("os.name").startsWith("Mac OS")) {
+						Class<?> c = Class.forName("com.apple.eawt.Application");
+						Object obj = c.newInstance();
+						Class<?>[] paramTypes = new Class[1];
+						paramTypes[0] = Image.class;
+						// use reflection to access the appropriate method
+						Method m = c.getMethod("setDockIconImage", paramTypes);
+						m.invoke(obj, icons.get(icons.size() - 1));
+					}
+				} catch (Exception e) {
+					System.err.println("Exception: unable to load the icons");
+				}
+				jXDatePicker = new JXDatePicker();
+				jXDatePicker.setEnabled(false);
+				jXDatePicker.getEditor().setEnabled(false);
+				jXDatePicker.setFont(txtDatePlaceholder.getFont());
+				((GroupLayout) panelSettings.getLayout()).replace(txtDatePlaceholder, jXDatePicker);
+				panelSettings.revalidate();
+				panelSettings.repaint();
+			}
+		}.execute();
+	}
+
 	/**
 	 * This method is called from within the constructor to initialize the form.
 	 * Some content in this method may be regenerated by the Form Editor.
@@ -274,19 +456,37 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		lblDestNote.setVisible(false);
 		lblDestNote.setEnabled(false);
 		lblDestNote.setForeground(Color.GRAY);
-		jXDatePicker = new JXDatePicker();
-		jXDatePicker.setEnabled(false);
-		jXDatePicker.getEditor().setEnabled(false);
+		// stands in for the date picker until SwingX is loaded, see loadDeferredComponents()
+		txtDatePlaceholder = new JTextField(10);
+		txtDatePlaceholder.setEnabled(false);
 		spinTime = new JSpinner();
 		spinTime.setEnabled(false);
-		txtStatus = new JTextPane();
-		txtStatus.setForeground(Color.GRAY);
-		txtStatus.setFont(new Font("Helvetica Neue", Font.BOLD | Font.ITALIC, 13));
-		txtStatus.setOpaque(false);
-		txtStatus.setEditable(false);
-		txtStatus.setBackground(new Color(0, 0, 0, 0));
-		txtStatus.setMargin(new java.awt.Insets(0, 0, 0, 0));
-		doc = txtStatus.getDocument();
+		listStatus = new JList<String>(mStatusLog);
+		listStatus.setOpaque(false);
+		listStatus.setFocusable(false);
+		listStatus.setBackground(new Color(0, 0, 0, 0));
+		listStatus.setCellRenderer(new DefaultListCellRenderer() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+					boolean isSelected, boolean cellHasFocus) {
+				super.getListCellRendererComponent(list, value, index, false, false);
+				setForeground(Color.GRAY);
+				setFont(new Font("Helvetica Neue", Font.BOLD | Font.ITALIC, 13));
+				setOpaque(false);
+				return this;
+			}
+		});
+		// keep the newest message in view
+		mStatusLog.addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent e) {
+				listStatus.ensureIndexIsVisible(e.getIndex1());
+			}
+			public void intervalRemoved(ListDataEvent e) {
+			}
+			public void contentsChanged(ListDataEvent e) {
+			}
+		});
 		/* Requirement: 1.1.7.1
 		 * The user shall name a backup, and the backup shall be saved in a folder with
 		 * the chosen name at the root of the destination.
@@ -331,30 +531,13 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		txtDestination.setFocusable(false);
 		txtDestination.setRequestFocusEnabled(false);
 		txtDestination.setEditable(false);
-		if (mCurrentFileSet.getDestination() != null) {
-			txtDestination.setText(mCurrentFileSet.getDestination());
-		} else {
-			// set default destination to user's system-dependent home directory
-			txtDestination.setText(System.getProperty("user.home"));
-		}
-
-		// set initial name and destination
-		try {
-			mCurrentFileSet.setName(txtNameBackup.getText());
-			mCurrentFileSet.setDestination(txtDestination.getText());
-		} catch (Exception e1) {
-			System.err.println("Exception: invalid backup name and/or destination path");
-		}
+		initNameAndDestination();
 
 		grpRadioSyncSwitch = new ButtonGroup();
 		grpRadioFreq = new ButtonGroup();
 
-		try {
-			checkMark = ImageIO.read(new File("res/icons/checkmark.png"));
-		} catch (IOException e1) {
-			System.err.println("IOException: unable to locate resource");
-		}
-		lblCheck = new JLabel(new ImageIcon(checkMark));
+		// the check mark is read once the window is open, see loadDeferredComponents()
+		lblCheck = new JLabel();
 
 		radioOn = new JRadioButton();
 		radioOn.setEnabled(false);
@@ -414,10 +597,14 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		btnAddFolder.setEnabled(true);
 		btnAddFolder.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				JOptionPane.showMessageDialog(getRootPane(),
-						"This feature is coming soon...",
-						"Add Folder",
-						JOptionPane.WARNING_MESSAGE);
+				JFileChooser fc = new JFileChooser();
+				fc.setPreferredSize(new Dimension(500, 400));
+				fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				int returnVal = fc.showDialog(UIViewController.this, "Add folder");
+				if (returnVal == JFileChooser.APPROVE_OPTION) {
+					File folder = fc.getSelectedFile();
+					listModel.addElement(folder.getAbsolutePath());
+				}
 			}
 		});
 
@@ -479,30 +666,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 					return;
 				}
 
-				txtStatus.setCaretPosition(doc.getLength());
-				// Scheduled backup is ON
-				if (radioOn.isSelected()) {
-					try {
-						if (doc.getLength() == 0) {
-							doc.insertString(doc.getLength(), "Backup settings saved.", null);
-						} else {
-							doc.insertString(doc.getLength(), "\nBackup settings saved.", null);
-						}
-					} catch (BadLocationException e1) {
-						System.err.println("Bad caret position; cannot insert string.");
-					}
-				} else {
-					// Scheduled backup is OFF
-					try {
-						if (doc.getLength() == 0) {
-							doc.insertString(doc.getLength(), "Backup settings saved.", null);
-						} else {
-							doc.insertString(doc.getLength(), "\nBackup settings saved.", null);
-						}
-					} catch (BadLocationException e1) {
-						System.err.println("Bad caret position; cannot insert string.");
-					}
-				}
+				mStatusLog.append("Backup settings saved.");
 
 				if (!panelProgress.isVisible()) { panelProgress.setVisible(true); }
 				panelProgress.remove(progressCirc);
@@ -521,15 +685,35 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		btnRun.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 
+				// while a backup runs the button pauses and resumes it
+				if (worker != null && !worker.isDone()) {
+					if (worker.isPaused()) {
+						worker.resume();
+						btnRun.setText("PAUSE");
+						mStatusLog.append("Backup resumed.");
+					} else {
+						worker.pause();
+						btnRun.setText("RESUME");
+						mStatusLog.append("Backup paused.");
+					}
+					return;
+				}
+
 				// validate file set and show dialogs if necessary
 				if (!validateFileSet()) { return; }
+				char[] passphrase = null;
+				if (mCurrentFileSet.isEncrypted()) {
+					passphrase = askPassphrase();
+					if (passphrase == null) { return; }
+				}
 
 				btnRun.setEnabled(false);
 				panelProgress.setVisible(true);
 				progressCirc.setValue(0);
 				progressCirc.setMaximum(100);
-
-				txtStatus.setCaretPosition(doc.getLength());
+				progressCirc.putClientProperty(ProgressCircle.DETAIL_PROPERTY, null);
+				progressCirc.setToolTipText(null);
+				mWorkerDecision = "";
 
 				// re-add progress circle if previous backup removed it
 				if (progressCirc.isDisplayable() == false) {
@@ -541,15 +725,9 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 					panelProgress.repaint();
 				}	
 
-				try {
-					if (doc.getLength() == 0) {
-						doc.insertString(doc.getLength(), "Backup running...", null);
-					} else {
-						doc.insertString(doc.getLength(), "\nBackup running...", null);
-					}
-				} catch (BadLocationException e1) {
-					System.err.println("Bad caret position; cannot insert string.");
-				}
+				mStatusLog.openFile(StatusLog.DEFAULT_DIRECTORY.resolve(mCurrentFileSet.getName() + ".log"));
+				mStatusLog.append("Backup running...");
+				mFailureCount = 0;
 
 				/* Requirement: 1.1.5.1
 				 * The user must be notified of the status of any backup (failure or success).
@@ -557,6 +735,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 				worker = null;
 				try {
 					worker = new FileOps(mCurrentFileSet, UIViewController.this);
+					worker.setPassphrase(passphrase);
 				} catch (Exception e1) {
 					JOptionPane.showMessageDialog(getRootPane(),
 							"The backup failed to run.\n" +
@@ -567,6 +746,8 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 					return;
 				}
 				worker.execute();
+				btnRun.setText("PAUSE");
+				btnRun.setEnabled(true);
 			}
 		});
 
@@ -587,7 +768,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		radioOff.setFont(new Font("Helvetica Neue", Font.PLAIN, 18)); // NOI18N
 		radioOff.setText("OFF");
 
-		jXDatePicker.setFont(new Font("Helvetica Neue", 0, 14)); // NOI18N
+		txtDatePlaceholder.setFont(new Font("Helvetica Neue", 0, 14)); // NOI18N
 
 		spinTime.setFont(new Font("Helvetica Neue", 0, 14)); // NOI18N
 		spinTime.setModel(new javax.swing.SpinnerDateModel(new java.util.Date(1444176000000L), null, null, java.util.Calendar.MINUTE));
@@ -660,7 +841,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 												.addGroup(gl_panelSettings.createSequentialGroup()
 														.addComponent(lblDate)
 														.addPreferredGap(ComponentPlacement.RELATED)
-														.addComponent(jXDatePicker, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+														.addComponent(txtDatePlaceholder, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
 														.addPreferredGap(ComponentPlacement.RELATED, GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
 														.addComponent(lblTime))
 												.addComponent(panelFreq, GroupLayout.PREFERRED_SIZE, 272, GroupLayout.PREFERRED_SIZE))
@@ -682,7 +863,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 								.addComponent(radioOff))
 						.addGap(18)
 						.addGroup(gl_panelSettings.createParallelGroup(Alignment.BASELINE)
-								.addComponent(jXDatePicker, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+								.addComponent(txtDatePlaceholder, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
 								.addComponent(lblDate)
 								.addComponent(lblTime)
 								.addComponent(spinTime, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
@@ -731,9 +912,9 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 
 		btnRun.setFont(new Font("Helvetica Neue", Font.PLAIN, 15));
 		btnRun.setText("RUN");
-		btnRun.setPreferredSize(new Dimension(73, 45));
-		btnRun.setMinimumSize(new Dimension(73, 45));
-		btnRun.setMaximumSize(new Dimension(73, 45));
+		btnRun.setPreferredSize(new Dimension(90, 45));
+		btnRun.setMinimumSize(new Dimension(90, 45));
+		btnRun.setMaximumSize(new Dimension(90, 45));
 
 		scrollStatus.setBorder(javax.swing.BorderFactory.createTitledBorder(null, "Status", javax.swing.border.TitledBorder.DEFAULT_JUSTIFICATION, javax.swing.border.TitledBorder.DEFAULT_POSITION, new java.awt.Font("Helvetica Neue", 0, 12))); // NOI18N
 		scrollStatus.setFont(new Font("Helvetica Neue", Font.PLAIN, 12));
@@ -841,7 +1022,7 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		panelProgress.setLayout(new GridLayout(1, 1, 0, 0));
 		gl_panelBackup.linkSize(SwingConstants.HORIZONTAL, new Component[] {btnAddFile, btnAddFolder, btnRemove});
 
-		scrollStatus.setViewportView(txtStatus);
+		scrollStatus.setViewportView(listStatus);
 
 		scrollSources.setViewportView(listSources);
 		panelBackup.setLayout(gl_panelBackup);
@@ -953,6 +1134,187 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		return true;
 	}
 	
+	/**
+	 * Lets the user change the bandwidth limits. The limits are stored in the current file set and, when a backup
+	 * is running, applied to it immediately.
+	 * 
+	 * @see core.Throttle
+	 */
+	private void showThrottleDialog() {
+		JTextField txtBytes = new JTextField(Long.toString(mCurrentFileSet.getBytesPerSecond() / 1024));
+		JTextField txtFiles = new JTextField(Long.toString(mCurrentFileSet.getFilesPerSecond()));
+		JTextField txtBurst = new JTextField(Long.toString(mCurrentFileSet.getBurstBytes() / 1024));
+		JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+		panel.add(new JLabel("KB per second (0 = unlimited):"));
+		panel.add(txtBytes);
+		panel.add(new JLabel("Files per second (0 = unlimited):"));
+		panel.add(txtFiles);
+		panel.add(new JLabel("Burst size in KB (0 = 1 second):"));
+		panel.add(txtBurst);
+		int result = JOptionPane.showConfirmDialog(getRootPane(), panel, "Bandwidth Limit",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (result != JOptionPane.OK_OPTION) { return; }
+		try {
+			long bytesPerSecond = Long.parseLong(txtBytes.getText().trim()) * 1024;
+			long filesPerSecond = Long.parseLong(txtFiles.getText().trim());
+			long burstBytes = Long.parseLong(txtBurst.getText().trim()) * 1024;
+			mCurrentFileSet.setBytesPerSecond(bytesPerSecond);
+			mCurrentFileSet.setFilesPerSecond(filesPerSecond);
+			mCurrentFileSet.setBurstBytes(burstBytes);
+			if (worker != null && !worker.isDone()) {
+				worker.getThrottle().setLimits(bytesPerSecond, filesPerSecond, burstBytes);
+			}
+		} catch (IllegalArgumentException e1) {
+			JOptionPane.showMessageDialog(getRootPane(),
+					"Please enter whole, non-negative numbers.",
+					"Invalid Limit",
+					JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	/**
+	 * Lets the user edit the include and exclude rules applied below folder sources, one rule per line. The
+	 * rules are stored in the current file set and used by the next backup.
+	 * 
+	 * @see core.PathFilter
+	 */
+	private void showFilterDialog() {
+		JTextArea txtIncludes = new JTextArea(joinLines(mCurrentFileSet.getIncludes()), 6, 30);
+		JTextArea txtExcludes = new JTextArea(joinLines(mCurrentFileSet.getExcludes()), 6, 30);
+		JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+		panel.add(new JLabel("Only back up files matching (empty = all files):"));
+		panel.add(new JScrollPane(txtIncludes));
+		panel.add(new JLabel("Skip files and folders matching, e.g. *.tmp or node_modules:"));
+		panel.add(new JScrollPane(txtExcludes));
+		int result = JOptionPane.showConfirmDialog(getRootPane(), panel, "Include / Exclude",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (result != JOptionPane.OK_OPTION) { return; }
+		try {
+			mCurrentFileSet.setRules(splitLines(txtIncludes.getText()), splitLines(txtExcludes.getText()));
+		} catch (IllegalArgumentException e1) {
+			JOptionPane.showMessageDialog(getRootPane(),
+					"A rule is not valid: " + e1.getMessage(),
+					"Invalid Rule",
+					JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	/**
+	 * Lets the user list further destination folders, one per line, that receive a copy of every backup of
+	 * the current file set besides the selected destination.
+	 * 
+	 * @see core.TeeWriter
+	 */
+	private void showDestinationsDialog() {
+		List<String> current = mCurrentFileSet.getDestinations();
+		List<String> extras = current.isEmpty() ? current : current.subList(1, current.size());
+		JTextArea txtDestinations = new JTextArea(joinLines(extras), 4, 30);
+		JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+		panel.add(new JLabel("Also copy each backup to these folders, e.g. a removable disk:"));
+		panel.add(new JScrollPane(txtDestinations));
+		int result = JOptionPane.showConfirmDialog(getRootPane(), panel, "Also Copy To",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (result != JOptionPane.OK_OPTION) { return; }
+		List<String> destinations = splitLines(txtDestinations.getText());
+		for (String destination : destinations) {
+			if (!Files.isDirectory(Paths.get(destination))) {
+				JOptionPane.showMessageDialog(getRootPane(),
+						destination + " does not exist or is not a folder.",
+						"Invalid Destination",
+						JOptionPane.WARNING_MESSAGE);
+				return;
+			}
+		}
+		for (String destination : new ArrayList<String>(extras)) {
+			mCurrentFileSet.removeDestination(destination);
+		}
+		try {
+			for (String destination : destinations) {
+				mCurrentFileSet.addDestination(destination);
+			}
+		} catch (IOException e1) {
+			JOptionPane.showMessageDialog(getRootPane(), e1.getMessage(), "Invalid Destination",
+					JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	/**
+	 * Shows a dialog for choosing which older backups are removed after each backup. All counts at 0 keep
+	 * every backup.
+	 * 
+	 * @see core.RetentionPolicy
+	 */
+	private void showRetentionDialog() {
+		RetentionPolicy current = mCurrentFileSet.getRetentionPolicy();
+		JSpinner spinLast = new JSpinner(new SpinnerNumberModel(current != null ? current.getKeepLast() : 0, 0, 9999, 1));
+		JSpinner spinDaily = new JSpinner(new SpinnerNumberModel(current != null ? current.getKeepDaily() : 0, 0, 9999, 1));
+		JSpinner spinWeekly = new JSpinner(new SpinnerNumberModel(current != null ? current.getKeepWeekly() : 0, 0, 9999, 1));
+		JSpinner spinMonthly = new JSpinner(new SpinnerNumberModel(current != null ? current.getKeepMonthly() : 0, 0, 9999, 1));
+		JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+		panel.add(new JLabel("Keep the newest backups:"));
+		panel.add(spinLast);
+		panel.add(new JLabel("Keep one backup a day, for days:"));
+		panel.add(spinDaily);
+		panel.add(new JLabel("Keep one backup a week, for weeks:"));
+		panel.add(spinWeekly);
+		panel.add(new JLabel("Keep one backup a month, for months:"));
+		panel.add(spinMonthly);
+		int result = JOptionPane.showConfirmDialog(getRootPane(), panel, "Keep Old Backups",
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (result != JOptionPane.OK_OPTION) { return; }
+		RetentionPolicy policy = new RetentionPolicy((Integer) spinLast.getValue(), (Integer) spinDaily.getValue(),
+				(Integer) spinWeekly.getValue(), (Integer) spinMonthly.getValue());
+		mCurrentFileSet.setRetentionPolicy(policy.isEnabled() ? policy : null);
+	}
+
+	/**
+	 * Asks for the passphrase of an encrypted backup, twice so a typing mistake does not lock the user out
+	 * of the backup.
+	 * 
+	 * @return the passphrase, or null if the user cancelled.
+	 * @see core.BackupEncryption
+	 */
+	private char[] askPassphrase() {
+		JPasswordField txtPassphrase = new JPasswordField(20);
+		JPasswordField txtRepeat = new JPasswordField(20);
+		JPanel panel = new JPanel(new GridLayout(0, 1, 6, 6));
+		panel.add(new JLabel("Passphrase for the encrypted backup:"));
+		panel.add(txtPassphrase);
+		panel.add(new JLabel("Repeat the passphrase:"));
+		panel.add(txtRepeat);
+		while (true) {
+			int result = JOptionPane.showConfirmDialog(getRootPane(), panel, "Encrypted Backup",
+					JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+			if (result != JOptionPane.OK_OPTION) { return null; }
+			char[] passphrase = txtPassphrase.getPassword();
+			if (passphrase.length > 0 && Arrays.equals(passphrase, txtRepeat.getPassword())) {
+				return passphrase;
+			}
+			JOptionPane.showMessageDialog(getRootPane(),
+					"The passphrases are empty or do not match.",
+					"Invalid Passphrase",
+					JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	private static String joinLines(List<String> lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static List<String> splitLines(String text) {
+		List<String> lines = new ArrayList<String>();
+		for (String line : text.split("\\r?\\n")) {
+			if (!line.trim().isEmpty()) {
+				lines.add(line.trim());
+			}
+		}
+		return lines;
+	}
+
 	/** 
 	 * Returns the date and time String for the default backup name.
 	 * 
@@ -975,13 +1337,20 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 	@Override public void handleProgress(List<Progress> progressItems) {
 		for (Progress p : progressItems) {
 			if (p.sourceCopied != "") {
-				txtStatus.setCaretPosition(doc.getLength());
-				try {
-					doc.insertString(doc.getLength(), "\nSuccessfully copied " + p.sourceCopied, null);
-				} catch (BadLocationException e) {
-					System.err.println("Bad caret position; cannot insert string.");
-				}
+				mStatusLog.append("Successfully copied " + p.sourceCopied);
+			}
+			if (!p.concurrencyDecision.isEmpty()) {
+				mWorkerDecision = p.activeWorkers + " copy worker(s): " + p.concurrencyDecision;
 			}
+			if (p.smoothedBytesPerSecond > 0 || p.etaSeconds >= 0) {
+				progressCirc.putClientProperty(ProgressCircle.DETAIL_PROPERTY, new String[] {
+						Progress.formatRate(p.smoothedBytesPerSecond),
+						Progress.formatEta(p.etaSeconds) + " left" });
+			}
+			String rates = String.format(Locale.ROOT, "Now %s, %.0f files/s; average %s, %.0f files/s",
+					Progress.formatRate(p.bytesPerSecond), p.filesPerSecond,
+					Progress.formatRate(p.smoothedBytesPerSecond), p.smoothedFilesPerSecond);
+			progressCirc.setToolTipText(mWorkerDecision.isEmpty() ? rates : "<html>" + rates + "<br>" + mWorkerDecision + "</html>");
 			int pctComplete = (int) ((p.completedBytes / (float) p.totalBytes) * 100);
 			if (progressCirc.getValue() < pctComplete) {
 				progressCirc.setValue(pctComplete);
@@ -991,27 +1360,82 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 		// System.out.println("got " + progressItems.size() + " progress objects.");
 	}
 	
+	/**	Lists in the status area every file and folder the backup could not copy, and how many were copied
+	 * only after a retry.
+	 * 
+	 * @see core.FileOpsMessageHandler#handleFailures(core.FailureReport)
+	 */
+	@Override public void handleFailures(FailureReport failures) {
+		mFailureCount = failures.getFailures().size();
+		for (FailureReport.Failure failure : failures.getFailures()) {
+			mStatusLog.append("Not copied: " + failure);
+		}
+		if (failures.getRecovered() > 0) {
+			mStatusLog.append(failures.getRecovered() + " file(s) copied after a retry.");
+		}
+	}
+
+	/**	Notes in the status area where the performance report of the backup was saved.
+	 * 
+	 * @see core.FileOpsMessageHandler#handleReport(core.PerformanceReport)
+	 */
+	@Override public void handleReport(PerformanceReport report) {
+		if (report.getFile() == null) return;
+		mStatusLog.append("Performance report saved to " + report.getFile());
+	}
+
+	/**	Notes in the status area each old backup removed after the backup completed. Called off the Event
+	 * Dispatch Thread; the status log takes lines from any thread.
+	 * 
+	 * @see core.FileOpsMessageHandler#handlePruned(java.nio.file.Path, long, java.io.IOException)
+	 */
+	@Override public void handlePruned(Path oldBackup, long removed, IOException error) {
+		if (error != null) {
+			mStatusLog.append("Unable to remove old backup " + oldBackup + ": " + error.getMessage());
+		} else {
+			mStatusLog.append("Removed old backup " + oldBackup + ".");
+		}
+	}
+
 	/**
 	 * Receives the completion notice from {@code FileOpsMessageHandler}.
 	 * @see core.FileOpsMessageHandler
 	 * @see core.FileOps#done()
 	 */
 	@Override public void handleCompletion() {
+		btnRun.setText("RUN");
 		btnRun.setEnabled(true);
-		txtStatus.setCaretPosition(doc.getLength());
-		try {
-			doc.insertString(doc.getLength(), "\nBackup complete.", null);
-			panelProgress.remove(progressCirc);
-			panelProgress.revalidate();
-			panelProgress.repaint();
+		boolean cancelled = worker != null && worker.isCancelled();
+		String error = null;
+		if (worker != null && !cancelled) {
+			try {
+				worker.get();
+			} catch (ExecutionException e) {
+				error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+			} catch (InterruptedException e) {
+				error = e.getMessage();
+			}
+		}
+		if (cancelled) {
+			mStatusLog.append("Backup cancelled; the files copied so far are kept.");
+		} else if (error != null) {
+			mStatusLog.append("Backup failed: " + error);
+		} else if (mFailureCount > 0) {
+			mStatusLog.append("Backup complete, but " + mFailureCount + " file(s) or folder(s) could not be copied.");
+		} else {
+			mStatusLog.append("Backup complete.");
+		}
+		mStatusLog.closeFile();
+		panelProgress.remove(progressCirc);
+		panelProgress.revalidate();
+		panelProgress.repaint();
+		if (mFailureCount == 0 && !cancelled && error == null) {
+			// the check mark promises a complete backup
 			panelProgress.add(lblCheck);
-			panelProgress.revalidate();
-			panelProgress.repaint();
-		} catch (BadLocationException e) {
-			System.err.println("Bad caret position; cannot insert string.");
-		} finally {
-			System.out.println("got completion notice from FileOps");
 		}
+		panelProgress.revalidate();
+		panelProgress.repaint();
+		System.out.println("got completion notice from FileOps");
 	}
 
 	// Variables declaration - do not modify//GEN-BEGIN:variables
@@ -1064,6 +1488,14 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 	private JMenuItem menuItemLog;
 	/** The menu item for the user's manual. */
 	private JMenuItem menuItemManual;
+	/** The "Settings" menu. */
+	private JMenu menuSettings;
+	/** The menu item for the bandwidth limit dialog. */
+	private JMenuItem menuItemThrottle;
+	private JMenuItem menuItemFilters;
+	private JMenuItem menuItemDestinations;
+	private JCheckBoxMenuItem menuItemEncrypt;
+	private JMenuItem menuItemRetention;
 	/** The settings panel. */
 	private JPanel panelSettings;
 	/** The backup panel. */
@@ -1096,16 +1528,21 @@ public class UIViewController extends JFrame implements FileOpsMessageHandler {
 	private JTextField txtDestination;
 	/** The text field that contains the backup name. */
 	private JTextField txtNameBackup;
-	/** The text pane that contains status message text. */
-	private JTextPane txtStatus;
+	/** The list that shows the most recent status messages. */
+	private JList<String> listStatus;
 	/** The {@code SwingX} date picker. */
 	private JXDatePicker jXDatePicker;
+	/** Takes the place of {@link #jXDatePicker} until SwingX is loaded. */
+	private JTextField txtDatePlaceholder;
 }
 
 /**
  * An inner class of {@code UIViewController} that paints a circular progress bar by subclassing {@code BasicProgressBarUI}.
  */
 class ProgressCircle extends BasicProgressBarUI {
+
+	/** Client property of the progress bar holding the lines of detail painted below the percentage, as a {@code String[]}. */
+	static final String DETAIL_PROPERTY = "ProgressCircle.detail";
 	
 	/**   
 	 * Returns the preferred size of the circular progress bar.
@@ -1172,6 +1609,32 @@ class ProgressCircle extends BasicProgressBarUI {
 		// deal with possible text painting
 		if (progressBar.isStringPainted()) {
 			paintString(g, b.left, b.top, barRectWidth, barRectHeight, 0, b);
+			paintDetail(g, cx, cy);
 		}
 	}
+
+	/**
+	 * Paints the lines of detail, such as the transfer rate and time left, below the percentage.
+	 * 
+	 * @param g the object that allows the application to draw onto a component
+	 * @param cx the horizontal centre of the circle
+	 * @param cy the vertical centre of the circle
+	 */
+	private void paintDetail(Graphics g, double cx, double cy) {
+		Object detail = progressBar.getClientProperty(DETAIL_PROPERTY);
+		if (!(detail instanceof String[])) {
+			return;
+		}
+		Graphics2D g2 = (Graphics2D) g.create();
+		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g2.setFont(progressBar.getFont().deriveFont(Font.PLAIN, 9f));
+		g2.setColor(Color.GRAY);
+		FontMetrics metrics = g2.getFontMetrics();
+		double y = cy + progressBar.getFontMetrics(progressBar.getFont()).getAscent() / 2.0 + metrics.getHeight();
+		for (String line : (String[]) detail) {
+			g2.drawString(line, (float) (cx - metrics.stringWidth(line) / 2.0), (float) y);
+			y += metrics.getHeight();
+		}
+		g2.dispose();
+	}
 }
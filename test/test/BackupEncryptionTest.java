@@ -0,0 +1,193 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.BackupEncryption;
+import core.FileOps;
+import core.FileSet;
+
+/**
+ * Tests for the {@link BackupEncryption} class and encrypted backups.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class BackupEncryptionTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final char[] PASSPHRASE = "correct horse battery staple".toCharArray();
+
+	private static byte[] encrypt(BackupEncryption encryption, byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encrypted = encryption.encrypt(out);
+		encrypted.write(data);
+		encrypted.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] decrypt(BackupEncryption encryption, byte[] data) throws IOException {
+		InputStream in = encryption.decrypt(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[10000];
+		int length;
+		while ((length = in.read(buffer)) > 0) {
+			out.write(buffer, 0, length);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Files of every size around the chunk boundaries decrypt to what was encrypted.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Contents_when_EncryptedAndDecrypted_then_Unchanged() throws Exception {
+		BackupEncryption encryption = BackupEncryption.create(PASSPHRASE, 1000);
+		Random random = new Random(42);
+		int chunk = BackupEncryption.CHUNK_SIZE;
+		for (int size : new int[] { 0, 1, chunk - 1, chunk, chunk + 1, 3 * chunk + 7 }) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			byte[] encrypted = encrypt(encryption, data);
+			assertEquals(BackupEncryption.encryptedSize(size), encrypted.length);
+			assertArrayEquals(data, decrypt(encryption, encrypted));
+		}
+	}
+
+	/**
+	 * A changed byte, a file cut at a chunk boundary and a wrong passphrase are all detected.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_TamperedFileOrWrongPassphrase_when_Decrypted_then_Refused() throws Exception {
+		Path backupDir = tempFolder.newFolder("backup").toPath();
+		BackupEncryption encryption = BackupEncryption.create(PASSPHRASE, 1000);
+		encryption.writeManifest(backupDir);
+		byte[] data = new byte[2 * BackupEncryption.CHUNK_SIZE + 100];
+		new Random(7).nextBytes(data);
+		byte[] encrypted = encrypt(encryption, data);
+
+		byte[] changed = encrypted.clone();
+		changed[BackupEncryption.HEADER_BYTES + 10] ^= 1;
+		byte[] truncated = Arrays.copyOf(encrypted,
+				BackupEncryption.HEADER_BYTES + 2 * (BackupEncryption.CHUNK_SIZE + 16));
+		for (byte[] damaged : new byte[][] { changed, truncated }) {
+			try {
+				decrypt(encryption, damaged);
+				fail("A damaged file was decrypted");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+
+		try {
+			BackupEncryption.open(backupDir, "wrong".toCharArray());
+			fail("A wrong passphrase was accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Wrong passphrase"));
+		}
+		assertArrayEquals(data, decrypt(BackupEncryption.open(backupDir, PASSPHRASE), encrypted));
+	}
+
+	/**
+	 * An encrypted backup holds no plaintext at any destination and restores with the passphrase.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_EncryptedFileSet_when_BackedUp_then_EveryDestinationEncrypted() throws Exception {
+		File source = tempFolder.newFile("secret.txt");
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 400000) {
+			text.append("account 1234-5678 balance 42\n");
+		}
+		byte[] data = text.toString().getBytes("UTF-8");
+		Files.write(source.toPath(), data);
+
+		FileSet files = new FileSet("Sealed", tempFolder.newFolder("local").toString());
+		files.addDestination(tempFolder.newFolder("removable").toString());
+		files.addElement(source.getAbsolutePath());
+		files.setEncrypted(true);
+		files.setPackThreshold(1 << 20);
+
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+		try {
+			ops.get();
+			fail("An encrypted backup ran without a passphrase");
+		} catch (java.util.concurrent.ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("passphrase"));
+		}
+		assertFalse(Files.exists(Paths.get(files.getDestination(), "Sealed")));
+
+		ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setPassphrase(PASSPHRASE);
+		ops.run();
+		ops.get();
+		assertEquals(0, ops.getMetrics().getErrors());
+
+		for (String destination : files.getDestinations()) {
+			Path backupDir = Paths.get(destination, "Sealed");
+			Path copy = backupDir.resolve(FileOps.relativePath(source.toPath()));
+			byte[] stored = Files.readAllBytes(copy);
+			assertEquals(BackupEncryption.encryptedSize(data.length), stored.length);
+			assertFalse(new String(stored, "ISO-8859-1").contains("account"));
+			assertArrayEquals(data, decrypt(BackupEncryption.open(backupDir, PASSPHRASE), stored));
+		}
+	}
+
+	/**
+	 * A file spanning many chunks, written in the copy loop's blocks while the chunks are encrypted in parallel,
+	 * is stored at its predicted size and decrypts to the original in order.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LargeFile_when_EncryptedInParallelChunks_then_DecryptsToOriginal() throws Exception {
+		byte[] data = new byte[16 * 1024 * 1024 + 5];
+		new Random(3).nextBytes(data);
+		Path encryptedFile = tempFolder.getRoot().toPath().resolve("encrypted.bin");
+		BackupEncryption encryption = BackupEncryption.create(PASSPHRASE, 1000);
+
+		copy(data, encryption.encrypt(Files.newOutputStream(encryptedFile)));
+
+		byte[] stored = Files.readAllBytes(encryptedFile);
+		assertEquals(BackupEncryption.encryptedSize(data.length), stored.length);
+		assertArrayEquals(data, decrypt(encryption, stored));
+	}
+
+	/**
+	 * Writes the data in the copy loop's 64 KB blocks and closes the stream.
+	 */
+	private static void copy(byte[] data, OutputStream out) throws IOException {
+		try {
+			for (int offset = 0; offset < data.length; offset += 64 * 1024) {
+				out.write(data, offset, Math.min(64 * 1024, data.length - offset));
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.BackupPlan;
+import core.BackupPlanner;
+import core.FileOps;
+import core.FileSet;
+import core.PerformanceReport;
+import core.RetentionPolicy;
+
+/**
+ * Tests for the {@link BackupPlanner} and {@link BackupPlan} classes, including a benchmark of planning with
+ * several threads against one.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class BackupPlannerTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * The plan lists exactly the files a backup copies, without writing anything, and reports the sources
+	 * that cannot be read and a destination that already holds the backup.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FileSet_when_Planned_then_PlanMatchesBackupAndNothingWritten() throws Exception {
+		Path source = tempFolder.newFolder("source").toPath();
+		TestTrees.makeTree(source, 2, 3, 5);
+		Files.createDirectories(source.resolve("node_modules"));
+		Files.write(source.resolve("node_modules").resolve("skipped.js"), new byte[10]);
+		Files.write(source.resolve("notes.tmp"), new byte[10]);
+		File single = tempFolder.newFile("single.txt");
+		Files.write(single.toPath(), "single".getBytes(StandardCharsets.UTF_8));
+		Path destination = tempFolder.newFolder("dest").toPath();
+
+		FileSet files = new FileSet("Planned", destination.toString());
+		files.addElement(source.toString());
+		files.addElement(single.getAbsolutePath());
+		// listed twice, through its folder and on its own
+		files.addElement(source.resolve("file0").toString());
+		files.addExclude("node_modules");
+		files.addExclude("*.tmp");
+
+		BackupPlanner planner = new BackupPlanner();
+		planner.setReportDirectory(null);
+		BackupPlan plan = planner.plan(files);
+		assertEquals(0, destination.toFile().list().length);
+		assertTrue(plan.getProblems().isEmpty());
+		assertTrue(plan.getUnreadable().isEmpty());
+		assertTrue(plan.getPredictedSeconds() < 0);
+
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+		ops.get();
+		Path backup = destination.resolve("Planned");
+		Set<String> copied = filesBelow(backup);
+		Set<String> planned = new HashSet<String>();
+		for (BackupPlan.Entry entry : plan.getEntries()) {
+			planned.add(backup.resolve(entry.relativePath).toString());
+		}
+		assertEquals(copied, planned);
+		assertEquals(copied.size(), plan.getEntries().size());
+		for (String directory : plan.getDirectories()) {
+			assertTrue(Files.isDirectory(backup.resolve(directory)));
+		}
+
+		File gone = tempFolder.newFile("gone.txt");
+		files.addElement(gone.getAbsolutePath());
+		Files.delete(gone.toPath());
+		plan = planner.plan(files);
+		assertEquals(2, plan.getProblems().size());
+		assertEquals(1, plan.getUnreadable().size());
+	}
+
+	/**
+	 * A saved plan is copied as planned without scanning the sources again, and is refused for a FileSet whose
+	 * sources or rules changed.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SavedPlan_when_Run_then_PlannedFilesCopiedWithoutRescan() throws Exception {
+		Path source = tempFolder.newFolder("source").toPath();
+		TestTrees.makeTree(source, 1, 2, 4);
+		Path destination = tempFolder.newFolder("dest").toPath();
+		FileSet files = new FileSet("First", destination.toString());
+		files.addElement(source.toString());
+
+		BackupPlanner planner = new BackupPlanner(2);
+		planner.setReportDirectory(null);
+		Path saved = tempFolder.getRoot().toPath().resolve("backup.plan");
+		planner.plan(files).save(saved);
+		BackupPlan plan = BackupPlan.load(saved);
+		// added after planning, so only a scan would find it
+		Files.write(source.resolve("late.txt"), new byte[3]);
+
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setPlan(plan);
+		ops.run();
+		ops.get();
+		Path backup = destination.resolve("First");
+		assertEquals(plan.getEntries().size(), filesBelow(backup).size());
+		assertFalse(Files.exists(backup.resolve(FileOps.relativePath(source.resolve("late.txt")))));
+
+		files.setName("Second");
+		files.addExclude("*.txt");
+		ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setPlan(plan);
+		ops.run();
+		try {
+			ops.get();
+			fail("A plan for other rules was used");
+		} catch (Exception e) {
+			assertTrue(e.getMessage().contains("plan"));
+		}
+
+		Files.write(saved, "not a plan".getBytes(StandardCharsets.UTF_8));
+		try {
+			BackupPlan.load(saved);
+			fail("A damaged plan was read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The duration is fitted to a cost per file and per byte from saved reports, ignoring runs with errors, and
+	 * is never below what the limits allow.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_EarlierReports_when_Predicted_then_CostPerFileAndByteUsed() throws Exception {
+		Path reports = tempFolder.newFolder("reports").toPath();
+		// 10 ms per file and 10 s per GB
+		writeReport(reports, "a", 1000, 0, 10.0, 0);
+		writeReport(reports, "b", 10, 1000000000L, 10.1, 0);
+		writeReport(reports, "c", 500, 500000000L, 10.0, 0);
+		writeReport(reports, "d", 1, 1, 999.0, 3);
+		List<PerformanceReport.Summary> history = PerformanceReport.summaries(reports, 10);
+		assertEquals(4, history.size());
+
+		double predicted = BackupPlanner.predictSeconds(history, 2000, 2000000000L, null);
+		assertEquals(40.0, predicted, 0.5);
+		assertEquals(-1, BackupPlanner.predictSeconds(new ArrayList<PerformanceReport.Summary>(), 10, 10, null), 0);
+
+		FileSet limited = new FileSet();
+		limited.setBytesPerSecond(10000000L);
+		assertEquals(200.0, BackupPlanner.predictSeconds(history, 2000, 2000000000L, limited), 0.5);
+	}
+
+	private static void writeReport(Path directory, String name, long files, long bytes, double seconds, long errors)
+			throws IOException {
+		String text = String.format(java.util.Locale.ROOT,
+				"Performance report for %s%nCopied %d file(s), %d byte(s) in %.1f s (1.00 MB/s, 1.0 files/s); %d error(s)%n",
+				name, files, bytes, seconds, errors);
+		Files.write(directory.resolve(name + ".txt"), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Several threads plan a wide tree into the same entries, in the same order, as one thread.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WideTree_when_PlannedInParallel_then_SameEntriesAsOneThread() throws Exception {
+		Path source = tempFolder.newFolder("large").toPath();
+		int count = TestTrees.makeTree(source, 2, 12, 100);
+		FileSet files = new FileSet("Large", tempFolder.newFolder("dest").getAbsolutePath());
+		files.addElement(source.toString());
+
+		BackupPlanner serial = new BackupPlanner(1);
+		serial.setReportDirectory(null);
+		BackupPlanner parallel = new BackupPlanner();
+		parallel.setReportDirectory(null);
+		BackupPlan one = serial.plan(files);
+		BackupPlan several = parallel.plan(files);
+
+		assertEquals(count, several.getEntries().size());
+		assertEquals(one.getTotalBytes(), several.getTotalBytes());
+		for (int i = 0; i < count; i++) {
+			assertEquals(one.getEntries().get(i).source, several.getEntries().get(i).source);
+			assertEquals(one.getEntries().get(i).size, several.getEntries().get(i).size);
+		}
+	}
+
+	/**
+	 * Lists the files of a backup, leaving out the marker of a completed backup.
+	 */
+	private static Set<String> filesBelow(Path dir) throws IOException {
+		final Set<String> found = new HashSet<String>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!file.getFileName().toString().equals(RetentionPolicy.MARKER_FILE)) {
+					found.add(file.toString());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return found;
+	}
+}
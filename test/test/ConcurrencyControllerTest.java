@@ -0,0 +1,121 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import core.ConcurrencyController;
+
+/**
+ * Tests for the {@link ConcurrencyController} class. These tests feed throughput and latency measurements
+ * straight into the AIMD rule and check the resulting number of workers.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class ConcurrencyControllerTest {
+
+	private static final double MB = 1024 * 1024;
+
+	/**
+	 * While throughput keeps rising strongly the number of workers doubles, up to the maximum.
+	 */
+	@Test
+	public void given_RisingThroughput_when_Adjusting_then_SlowStartDoubles() {
+		ConcurrencyController controller = new ConcurrencyController(null);
+		controller.setMaxWorkers(8);
+		assertEquals(1, controller.getActiveLimit());
+		controller.adjust(10 * MB, 1e6);
+		assertEquals(2, controller.getActiveLimit());
+		controller.adjust(20 * MB, 1e6);
+		assertEquals(4, controller.getActiveLimit());
+		controller.adjust(40 * MB, 1e6);
+		assertEquals(8, controller.getActiveLimit());
+		controller.adjust(80 * MB, 1e6);
+		assertEquals(8, controller.getActiveLimit());
+	}
+
+	/**
+	 * A drop in throughput halves the number of workers, after which it grows by one per interval.
+	 */
+	@Test
+	public void given_ThroughputDrop_when_Adjusting_then_MultiplicativeDecrease() {
+		ConcurrencyController controller = new ConcurrencyController(null);
+		controller.setMaxWorkers(16);
+		controller.adjust(10 * MB, 1e6);
+		controller.adjust(20 * MB, 1e6);
+		controller.adjust(40 * MB, 1e6);
+		assertEquals(8, controller.getActiveLimit());
+		String decision = controller.adjust(20 * MB, 1e6);
+		assertEquals(4, controller.getActiveLimit());
+		assertTrue(decision.startsWith("decrease"));
+		controller.adjust(20 * MB, 1e6);
+		assertEquals(5, controller.getActiveLimit());
+		controller.adjust(21 * MB, 1e6);
+		assertEquals(6, controller.getActiveLimit());
+	}
+
+	/**
+	 * On a device whose throughput grows with the number of workers, one congested interval halves the
+	 * workers once; the smaller throughput of fewer workers that follows is not taken for more congestion,
+	 * so the number of workers climbs back instead of collapsing to one.
+	 */
+	@Test
+	public void given_ThroughputScalingWithWorkers_when_OneIntervalCongested_then_WorkersRecover() {
+		ConcurrencyController controller = new ConcurrencyController(null);
+		controller.setMaxWorkers(8);
+		int lowest = Integer.MAX_VALUE;
+		for (int interval = 0; interval < 12; interval++) {
+			// 10 MB/s per worker, and 15% less during the congested interval
+			double throughput = controller.getActiveLimit() * 10 * MB * (interval == 4 ? 0.85 : 1.0);
+			controller.adjust(throughput, 1e6);
+			if (interval >= 4) {
+				lowest = Math.min(lowest, controller.getActiveLimit());
+			}
+		}
+		assertEquals(4, lowest);
+		assertEquals(8, controller.getActiveLimit());
+	}
+
+	/**
+	 * A sharp rise in write latency counts as congestion even when throughput holds.
+	 */
+	@Test
+	public void given_LatencySpike_when_Adjusting_then_WorkersHalved() {
+		ConcurrencyController controller = new ConcurrencyController(null);
+		controller.setMaxWorkers(4);
+		controller.adjust(10 * MB, 1e6);
+		controller.adjust(20 * MB, 1e6);
+		assertEquals(4, controller.getActiveLimit());
+		controller.adjust(20 * MB, 5e6);
+		assertEquals(2, controller.getActiveLimit());
+	}
+
+	/**
+	 * Workers beyond the active limit wait until one of the active workers releases.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LimitReached_when_Acquiring_then_WorkerWaits() throws Exception {
+		final ConcurrencyController controller = new ConcurrencyController(null);
+		controller.setMaxWorkers(4);
+		controller.acquire();
+		Thread waiting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					controller.acquire();
+					controller.release();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		waiting.start();
+		Thread.sleep(100);
+		assertTrue(waiting.isAlive());
+		controller.release();
+		waiting.join(1000);
+		assertFalse(waiting.isAlive());
+	}
+}
@@ -0,0 +1,90 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.CopyEvents;
+import core.FileOps;
+import core.FileSet;
+
+/**
+ * Tests for the Flight Recorder events emitted through {@link CopyEvents}. A backup runs inside a recording
+ * and the recording is read back with the standard JFR consumer API.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class CopyEventsTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * A backup emits one file copy event per file, a directory event and one backup event with the totals.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Recording_when_BackupRuns_then_CopyEventsRecorded() throws Exception {
+		if (!CopyEvents.isAvailable()) return;
+
+		File sourceDir = tempFolder.newFolder("source");
+		File first = new File(sourceDir, "first.bin");
+		Files.write(first.toPath(), new byte[3000]);
+		File second = new File(sourceDir, "second.bin");
+		Files.write(second.toPath(), new byte[5000]);
+		FileSet files = new FileSet("Recorded", tempFolder.newFolder("dest").toString());
+		files.addElement(first.getAbsolutePath());
+		files.addElement(second.getAbsolutePath());
+
+		Path jfr = tempFolder.getRoot().toPath().resolve("backup.jfr");
+		Recording recording = new Recording();
+		recording.enable("core.FileCopy");
+		recording.enable("core.DirectoryCreate");
+		recording.enable("core.Backup");
+		recording.start();
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+		recording.stop();
+		recording.dump(jfr);
+		recording.close();
+
+		List<String> copied = new ArrayList<String>();
+		int directories = 0;
+		RecordedEvent backup = null;
+		for (RecordedEvent event : RecordingFile.readAllEvents(jfr)) {
+			String type = event.getEventType().getName();
+			if (type.equals("core.FileCopy")) {
+				copied.add(event.getString("path") + "=" + event.getLong("bytes"));
+				assertFalse(event.getBoolean("packed"));
+			} else if (type.equals("core.DirectoryCreate")) {
+				directories++;
+			} else if (type.equals("core.Backup")) {
+				backup = event;
+			}
+		}
+		assertEquals(2, copied.size());
+		assertTrue(copied.contains(first.getAbsolutePath() + "=3000"));
+		assertTrue(copied.contains(second.getAbsolutePath() + "=5000"));
+		assertEquals(1, directories);
+		assertNotNull(backup);
+		assertEquals("Recorded", backup.getString("fileSet"));
+		assertEquals(2, backup.getLong("files"));
+		assertEquals(8000, backup.getLong("bytes"));
+	}
+}
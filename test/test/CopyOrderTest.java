@@ -0,0 +1,264 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.CopyOrder;
+import core.CopyScheduler;
+import core.CopyTask;
+import core.FileSet;
+
+/**
+ * Tests for the {@link CopyOrder} strategies, including a makespan benchmark that runs the
+ * {@link CopyScheduler} over a mixed-size dataset on a simulated clock, with a copy time proportional to file
+ * size, and a benchmark of the seek time of each order on a simulated rotational disk.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class CopyOrderTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static CopyTask task(String name, long size, long lastModified) {
+		return task(Paths.get("/source"), name, size, lastModified);
+	}
+
+	private static CopyTask task(Path sourceDir, String name, long size, long lastModified) {
+		return new CopyTask(sourceDir.resolve(name), name, Paths.get("/dest", name), size, lastModified);
+	}
+
+	/**
+	 * Insertion order leaves the tasks untouched.
+	 */
+	@Test
+	public void given_Tasks_when_SortedByInsertion_then_OrderUnchanged() {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		tasks.add(task("a", 5, 3));
+		tasks.add(task("b", 50, 1));
+		tasks.add(task("c", 1, 2));
+		assertEquals(tasks, CopyOrder.INSERTION.sort(tasks));
+	}
+
+	/**
+	 * Largest first puts the biggest files at the front.
+	 */
+	@Test
+	public void given_Tasks_when_SortedLargestFirst_then_DescendingSize() {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		tasks.add(task("a", 5, 3));
+		tasks.add(task("b", 50, 1));
+		tasks.add(task("c", 1, 2));
+		List<CopyTask> sorted = CopyOrder.LARGEST_FIRST.sort(tasks);
+		assertEquals("b", sorted.get(0).relativePath);
+		assertEquals("a", sorted.get(1).relativePath);
+		assertEquals("c", sorted.get(2).relativePath);
+		// the input list is left alone
+		assertEquals("a", tasks.get(0).relativePath);
+	}
+
+	/**
+	 * Newest first puts the most recently modified files at the front.
+	 */
+	@Test
+	public void given_Tasks_when_SortedNewestFirst_then_DescendingModificationTime() {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		tasks.add(task("a", 5, 3));
+		tasks.add(task("b", 50, 1));
+		tasks.add(task("c", 1, 2));
+		List<CopyTask> sorted = CopyOrder.NEWEST_FIRST.sort(tasks);
+		assertEquals("a", sorted.get(0).relativePath);
+		assertEquals("c", sorted.get(1).relativePath);
+		assertEquals("b", sorted.get(2).relativePath);
+	}
+
+	/**
+	 * Physical order keeps each folder together, places the folders by their lowest inode and their files by
+	 * inode, reading the inode from a key saved in a plan as well; files without one keep their path order.
+	 */
+	@Test
+	public void given_Tasks_when_SortedPhysically_then_FoldersTogetherByInode() {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		tasks.add(keyed(Paths.get("/b"), "x", "(dev=803,ino=30)"));
+		tasks.add(keyed(Paths.get("/a"), "y", "(dev=803,ino=52)"));
+		tasks.add(keyed(Paths.get("/b"), "z", "(dev=803,ino=12)"));
+		tasks.add(keyed(Paths.get("/a"), "w", "(dev=803,ino=51)"));
+		tasks.add(keyed(Paths.get("/c"), "v", null));
+		tasks.add(keyed(Paths.get("/c"), "u", null));
+		List<CopyTask> sorted = CopyOrder.PHYSICAL.sort(tasks);
+		StringBuilder names = new StringBuilder();
+		for (CopyTask task : sorted) {
+			names.append(task.relativePath);
+		}
+		assertEquals("zxwyuv", names.toString());
+	}
+
+	/**
+	 * Benchmark: on a simulated rotational disk, where a file costs a seek unless it starts where the last one
+	 * ended, physical order spends a fraction of the seek time of a list in no particular order, with one
+	 * worker and with several sharing the disk.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ScatteredList_when_CopiedPhysically_then_SeekTimeDrops() throws Exception {
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		for (int folder = 0; folder < 20; folder++) {
+			Path sourceDir = tempFolder.newFolder("folder" + folder).toPath();
+			for (int file = 0; file < 30; file++) {
+				tasks.add(keyed(sourceDir, "file" + file, "(dev=803,ino=" + (folder * 1000 + file) + ")"));
+			}
+		}
+		Collections.shuffle(tasks, new Random(50));
+
+		for (int workers : new int[] { 1, 4 }) {
+			double insertion = seekMillis(tasks, CopyOrder.INSERTION, workers);
+			double physical = seekMillis(tasks, CopyOrder.PHYSICAL, workers);
+			assertTrue(workers + " worker(s): insertion " + insertion + " ms, physical " + physical + " ms",
+					physical < insertion * 0.75);
+		}
+	}
+
+	/**
+	 * Runs the scheduler over the tasks with a copier that moves a single simulated disk head to each file,
+	 * which lies at its inode number, and adds up the time spent seeking.
+	 * @return the simulated seek time in milliseconds.
+	 */
+	private double seekMillis(List<CopyTask> tasks, CopyOrder order, int workers) throws Exception {
+		FileSet files = new FileSet();
+		files.setCopyOrder(order);
+		files.setRotationalConcurrency(workers);
+		files.setSolidStateConcurrency(workers);
+		final double[] disk = new double[2];
+		CopyScheduler scheduler = new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				String key = task.fileKey.toString();
+				long position = Long.parseLong(key.substring(key.indexOf("ino=") + 4, key.length() - 1));
+				synchronized (disk) {
+					if (position != disk[0]) {
+						// 2 ms to settle and up to 10 ms more to cross the whole disk
+						disk[1] += 2 + 10 * Math.abs(position - disk[0]) / 20000.0;
+					}
+					disk[0] = position + 1;
+				}
+				// let the other workers take their turn at the disk
+				Thread.yield();
+			}
+		});
+		scheduler.run(tasks, null);
+		return disk[1];
+	}
+
+	private static CopyTask keyed(Path sourceDir, String name, String fileKey) {
+		return new CopyTask(sourceDir.resolve(name), name, Paths.get("/dest", name), 1, 0, fileKey);
+	}
+
+	/**
+	 * Benchmark: with a few large files at the end of the list, largest-first scheduling with work
+	 * stealing finishes noticeably sooner than insertion order.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_MixedSizeDataset_when_LargestFirst_then_MakespanImproves() throws Exception {
+		// the scheduler groups tasks by the store of their parent directory, so it has to exist
+		Path sourceDir = tempFolder.getRoot().toPath();
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		Random random = new Random(478);
+		for (int i = 0; i < 40; i++) {
+			tasks.add(task(sourceDir, "small" + i, 1 + random.nextInt(8), i));
+		}
+		for (int i = 0; i < 3; i++) {
+			tasks.add(task(sourceDir, "large" + i, 150, 100 + i));
+		}
+
+		long insertion = makespan(tasks, CopyOrder.INSERTION, 2);
+		long largestFirst = makespan(tasks, CopyOrder.LARGEST_FIRST, 2);
+		assertTrue("insertion " + insertion + ", largest first " + largestFirst, largestFirst < insertion * 0.9);
+	}
+
+	/**
+	 * Runs the scheduler over the tasks on a {@link SimulatedClock}, where copying a file takes as many time
+	 * units as its size.
+	 * @return the simulated time until the last copy ends.
+	 */
+	private long makespan(List<CopyTask> tasks, CopyOrder order, int workers) throws Exception {
+		FileSet files = new FileSet();
+		files.setCopyOrder(order);
+		files.setRotationalConcurrency(workers);
+		files.setSolidStateConcurrency(workers);
+		final SimulatedClock clock = new SimulatedClock(Math.min(workers, tasks.size()), tasks.size());
+		CopyScheduler scheduler = new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				try {
+					clock.copy(task.size);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		scheduler.run(tasks, tempFolder.getRoot().toPath());
+		return clock.now;
+	}
+
+	/**
+	 * Lets the workers of a scheduler copy in simulated time, so the outcome does not depend on how busy the
+	 * machine is. Only one worker runs at a time: every worker waits in {@link #copy(long)} until all others
+	 * are waiting too, and the one whose copy ends first goes on to take its next task.
+	 */
+	private static final class SimulatedClock {
+		/** Time the copy of each waiting worker ends. */
+		private final Map<Thread, Long> mEnds = new HashMap<Thread, Long>();
+		/** Time each worker last finished a copy. */
+		private final Map<Thread, Long> mFree = new HashMap<Thread, Long>();
+		private int mWorkers;
+		private int mRemaining;
+		long now;
+
+		SimulatedClock(int workers, int tasks) {
+			mWorkers = workers;
+			mRemaining = tasks;
+		}
+
+		synchronized void copy(long duration) throws InterruptedException {
+			Thread worker = Thread.currentThread();
+			Long free = mFree.get(worker);
+			mEnds.put(worker, (free != null ? free : 0) + duration);
+			mRemaining--;
+			notifyAll();
+			while (mEnds.size() < mWorkers || !isFirst(worker)) {
+				wait();
+			}
+			now = mEnds.remove(worker);
+			mFree.put(worker, now);
+			if (mRemaining == 0) {
+				// every task is taken, so this worker finds none and stops
+				mWorkers--;
+			}
+			notifyAll();
+		}
+
+		private boolean isFirst(Thread worker) {
+			long end = mEnds.get(worker);
+			for (Map.Entry<Thread, Long> other : mEnds.entrySet()) {
+				if (other.getValue() < end || (other.getValue() == end && other.getKey().getId() < worker.getId())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
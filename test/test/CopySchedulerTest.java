@@ -0,0 +1,227 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.CopyScheduler;
+import core.CopyTask;
+import core.FileSet;
+import core.StoreLimits;
+import core.WorkerBudget;
+
+/**
+ * Tests for the {@link CopyScheduler} class. These tests ensure every task is copied exactly once and that
+ * the per-device concurrency limits are respected.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class CopySchedulerTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private List<CopyTask> createTasks(int count) throws Exception {
+		Path sourceDir = tempFolder.newFolder("source").toPath();
+		List<CopyTask> tasks = new ArrayList<CopyTask>();
+		for (int i = 0; i < count; i++) {
+			Path source = Files.write(sourceDir.resolve("file" + i), new byte[i]);
+			tasks.add(new CopyTask(source, "file" + i, tempFolder.getRoot().toPath().resolve("file" + i), i));
+		}
+		return tasks;
+	}
+
+	/**
+	 * Every task is handed to the copier exactly once.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Tasks_when_Run_then_EachTaskCopiedOnce() throws Exception {
+		List<CopyTask> tasks = createTasks(50);
+		FileSet files = new FileSet();
+		files.setRotationalConcurrency(3);
+		files.setSolidStateConcurrency(3);
+		final List<CopyTask> copied = Collections.synchronizedList(new ArrayList<CopyTask>());
+		new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				copied.add(task);
+			}
+		}).run(tasks, tempFolder.getRoot().toPath());
+
+		assertEquals(tasks.size(), copied.size());
+		assertEquals(new HashSet<CopyTask>(tasks), new HashSet<CopyTask>(copied));
+	}
+
+	/**
+	 * No more tasks run at once on a device than its concurrency limit allows.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ConcurrencyLimit_when_Run_then_LimitNeverExceeded() throws Exception {
+		List<CopyTask> tasks = createTasks(20);
+		FileSet files = new FileSet();
+		files.setRotationalConcurrency(2);
+		files.setSolidStateConcurrency(2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				int now = running.incrementAndGet();
+				synchronized (maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), now));
+				}
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+			}
+		}).run(tasks, tempFolder.getRoot().toPath());
+
+		assertTrue(maxRunning.get() <= 2);
+	}
+
+	/**
+	 * Cancelling stops workers from taking further tasks.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_CancelledScheduler_when_Run_then_RemainingTasksSkipped() throws Exception {
+		List<CopyTask> tasks = createTasks(20);
+		FileSet files = new FileSet();
+		final Set<CopyTask> copied = Collections.synchronizedSet(new HashSet<CopyTask>());
+		final CopyScheduler[] scheduler = new CopyScheduler[1];
+		scheduler[0] = new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				copied.add(task);
+				scheduler[0].cancel();
+			}
+		});
+		scheduler[0].run(tasks, tempFolder.getRoot().toPath());
+
+		assertTrue(copied.size() < tasks.size());
+	}
+
+	/**
+	 * A worker waiting in the middle of a file, as while its backup is paused, gives its budget slot to
+	 * another backup and takes it back afterwards.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SharedBudget_when_WorkerWaitsMidFile_then_OtherBackupCopies() throws Exception {
+		List<CopyTask> tasks = createTasks(2);
+		FileSet files = new FileSet();
+		final WorkerBudget budget = new WorkerBudget(1);
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final CountDownLatch otherDone = new CountDownLatch(1);
+		final int[] inUse = new int[2];
+		final CopyScheduler[] paused = new CopyScheduler[1];
+		paused[0] = new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				try {
+					paused[0].releaseWhile(new CopyScheduler.Wait() {
+						public void await() throws InterruptedException {
+							inUse[0] = budget.getInUse();
+							waiting.countDown();
+							otherDone.await(10, TimeUnit.SECONDS);
+						}
+					});
+					inUse[1] = budget.getInUse();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		paused[0].setWorkerBudget(budget);
+		final List<CopyTask> first = tasks.subList(0, 1);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					paused[0].run(first, null);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		thread.start();
+		assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+		final List<CopyTask> copied = Collections.synchronizedList(new ArrayList<CopyTask>());
+		CopyScheduler other = new CopyScheduler(files, new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				copied.add(task);
+				otherDone.countDown();
+			}
+		});
+		other.setWorkerBudget(budget);
+		other.run(tasks.subList(1, 2), null);
+		thread.join(10000);
+
+		assertEquals(tasks.subList(1, 2), copied);
+		assertEquals(0, inUse[0]);
+		assertEquals(1, inUse[1]);
+		assertEquals(0, budget.getInUse());
+	}
+
+	/**
+	 * Two schedulers sharing the store limits together stay within the limit of a device.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SharedStoreLimits_when_TwoSchedulersRun_then_LimitNeverExceeded() throws Exception {
+		List<CopyTask> tasks = createTasks(20);
+		FileSet files = new FileSet();
+		files.setRotationalConcurrency(1);
+		files.setSolidStateConcurrency(1);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		CopyScheduler.Copier copier = new CopyScheduler.Copier() {
+			public void copy(CopyTask task) {
+				int now = active.incrementAndGet();
+				maxActive.set(Math.max(maxActive.get(), now));
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				active.decrementAndGet();
+			}
+		};
+		StoreLimits storeLimits = new StoreLimits();
+		final CopyScheduler first = new CopyScheduler(files, copier);
+		first.setStoreLimits(storeLimits);
+		CopyScheduler second = new CopyScheduler(files, copier);
+		second.setStoreLimits(storeLimits);
+		final List<CopyTask> firstTasks = tasks.subList(0, 10);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					first.run(firstTasks, tempFolder.getRoot().toPath());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		thread.start();
+		second.run(tasks.subList(10, 20), tempFolder.getRoot().toPath());
+		thread.join(10000);
+
+		assertEquals(1, maxActive.get());
+	}
+}
@@ -0,0 +1,184 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.DeltaCopier;
+
+/**
+ * Tests for the {@link DeltaCopier} class. These tests ensure a changed file is brought up to date by
+ * rewriting only the blocks that differ.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class DeltaCopierTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final long MODIFIED = 1500000000000L;
+
+	private static byte[] randomBytes(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) length += part.length;
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the old contents as the copy and the new contents as the source, and updates the copy.
+	 */
+	private DeltaCopier.Result update(byte[] oldContents, byte[] newContents) throws IOException {
+		Path copy = tempFolder.getRoot().toPath().resolve("copy.bin");
+		Path source = tempFolder.getRoot().toPath().resolve("source.bin");
+		Files.deleteIfExists(DeltaCopier.signatureFile(copy));
+		Files.write(copy, oldContents);
+		Files.write(source, newContents);
+		DeltaCopier.Result result = DeltaCopier.update(source, copy, MODIFIED);
+		assertArrayEquals(newContents, Files.readAllBytes(copy));
+		assertEquals(MODIFIED, Files.getLastModifiedTime(copy).toMillis());
+		assertEquals(result.bytesWritten + result.bytesUnchanged, newContents.length);
+		return result;
+	}
+
+	/**
+	 * Changes, insertions, deletions and a change of length all leave the copy equal to the source, and a
+	 * change in one place rewrites no more than the blocks around it.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ModifiedSource_when_Updated_then_CopyEqualsSourceAndOnlyChangesWritten() throws Exception {
+		int size = 3 * 1024 * 1024 + 123;
+		byte[] original = randomBytes(size, 1);
+		int block = DeltaCopier.blockSizeFor(size);
+
+		DeltaCopier.Result same = update(original, original);
+		assertEquals(0, same.bytesWritten);
+
+		byte[] changed = original.clone();
+		changed[size / 2] ^= 0x55;
+		changed[size / 2 + 1] ^= 0x55;
+		assertTrue(update(original, changed).bytesWritten <= 2 * block);
+
+		byte[] lastByte = original.clone();
+		lastByte[size - 1] ^= 1;
+		assertTrue(update(original, lastByte).bytesWritten <= block);
+
+		byte[] appended = concat(original, randomBytes(5000, 2));
+		assertTrue(update(original, appended).bytesWritten <= block + 5000);
+
+		byte[] truncated = Arrays.copyOf(original, size - 70000);
+		assertTrue(update(original, truncated).bytesWritten <= block);
+
+		// shifted data must be rewritten in place, but the blocks before the insertion are not
+		byte[] inserted = concat(Arrays.copyOf(original, size / 2), randomBytes(10, 3),
+				Arrays.copyOfRange(original, size / 2, size));
+		DeltaCopier.Result shifted = update(original, inserted);
+		assertTrue(shifted.bytesUnchanged >= size / 2 - block);
+
+		byte[] removed = concat(Arrays.copyOf(original, 1000), Arrays.copyOfRange(original, 2000, size));
+		update(original, removed);
+		update(original, new byte[0]);
+		update(new byte[0], original);
+		update(new byte[100], new byte[100000]);
+	}
+
+	/**
+	 * The signature kept next to the copy is used instead of reading the copy, as long as the copy's length and
+	 * modification time are those it records.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_KeptSignature_when_UpdatedAgain_then_SignatureUsedUntilCopyChanges() throws Exception {
+		byte[] original = randomBytes(1024 * 1024, 4);
+		update(new byte[0], original);
+		Path copy = tempFolder.getRoot().toPath().resolve("copy.bin");
+		Path sidecar = DeltaCopier.signatureFile(copy);
+		assertTrue(Files.exists(sidecar));
+		DeltaCopier.Signature signature = DeltaCopier.signatureOf(copy);
+		assertEquals(original.length, signature.getLength());
+		assertEquals(MODIFIED, signature.getLastModified());
+
+		// a change behind the signature's back, keeping length and time, goes unnoticed...
+		Files.copy(sidecar, sidecar.resolveSibling("kept"), StandardCopyOption.REPLACE_EXISTING);
+		RandomAccessFile file = new RandomAccessFile(copy.toFile(), "rw");
+		try {
+			file.seek(0);
+			file.write(0);
+		} finally {
+			file.close();
+		}
+		Files.setLastModifiedTime(copy, java.nio.file.attribute.FileTime.fromMillis(MODIFIED));
+		Path source = tempFolder.getRoot().toPath().resolve("source.bin");
+		assertEquals(0, DeltaCopier.update(source, copy, MODIFIED).bytesWritten);
+
+		// ...while a different modification time has the copy read again
+		Files.move(sidecar.resolveSibling("kept"), sidecar, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(copy, java.nio.file.attribute.FileTime.fromMillis(MODIFIED + 1000));
+		DeltaCopier.Result result = DeltaCopier.update(source, copy, MODIFIED);
+		assertTrue(result.bytesWritten > 0);
+		assertArrayEquals(original, Files.readAllBytes(copy));
+	}
+
+	/**
+	 * A large file changed in a few places is brought up to date by writing those places only, first against
+	 * the copy and then against the signature kept from the first update.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LargeFileChangedInPlaces_when_DeltaUpdated_then_OnlyChangedBlocksWritten() throws Exception {
+		int size = 32 * 1024 * 1024;
+		byte[] original = randomBytes(size, 5);
+		Path source = tempFolder.getRoot().toPath().resolve("large.bin");
+		Path copy = tempFolder.getRoot().toPath().resolve("large-copy.bin");
+		Files.write(copy, original);
+		Random random = new Random(6);
+		for (int i = 0; i < 8; i++) {
+			int at = random.nextInt(size - 64 * 1024);
+			System.arraycopy(randomBytes(64 * 1024, i), 0, original, at, 64 * 1024);
+		}
+		Files.write(source, original);
+
+		DeltaCopier.Result first = DeltaCopier.update(source, copy, MODIFIED);
+		assertArrayEquals(original, Files.readAllBytes(copy));
+
+		// the second update reads the kept signature instead of the copy
+		RandomAccessFile file = new RandomAccessFile(source.toFile(), "rw");
+		try {
+			file.seek(size / 3);
+			file.write(randomBytes(100, 7));
+		} finally {
+			file.close();
+		}
+		DeltaCopier.Result second = DeltaCopier.update(source, copy, MODIFIED);
+
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(copy));
+		int block = DeltaCopier.blockSizeFor(size);
+		assertTrue(first.bytesWritten <= 8 * (64 * 1024 + 2 * block));
+		assertTrue(second.bytesWritten <= 2 * block);
+	}
+}
@@ -2,8 +2,14 @@ package test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -13,9 +19,12 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import core.BackupEncryption;
 import core.FileSet;
 import core.FileOps;
 import core.FileOpsMessageHandler;
+import core.PackReader;
+import core.PerformanceReport;
 import core.Progress;
 
 /**
@@ -36,6 +45,7 @@ public class FileOpsTest implements FileOpsMessageHandler {
 
 	private int progressReceived = 0;
 	private Boolean completionReceived = false;
+	private PerformanceReport reportReceived;
 	final CountDownLatch latch = new CountDownLatch(1);
 
 
@@ -68,6 +78,14 @@ public class FileOpsTest implements FileOpsMessageHandler {
 		latch.countDown();
 	}
 
+	/* (non-Javadoc)
+	 * @see core.FileOpsMessageHandler#handleReport(core.PerformanceReport)
+	 */
+	@Override
+	public void handleReport(PerformanceReport report) {
+		reportReceived = report;
+	}
+
 
 	/**
 	 * Test run() completes successfully when given a valid FileSet with a file
@@ -106,6 +124,285 @@ public class FileOpsTest implements FileOpsMessageHandler {
 	}
 
 
+	/**
+	 * Test files below the pack threshold end up in pack files and can be restored
+	 * (Requirement 1.1.4.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_FileSetWithPackThreshold_when_TestRun_then_SmallFilesArePacked() throws Exception {
+		File sourceDir = tempFolder.newFolder("source");
+		File small = new File(sourceDir, "small.txt");
+		Files.write(small.toPath(), "small".getBytes("UTF-8"));
+		File large = new File(sourceDir, "large.bin");
+		Files.write(large.toPath(), new byte[4096]);
+
+		FileSet files = new FileSet("Packed", tempFolder.newFolder("dest").toString());
+		files.addElement(small.getAbsolutePath());
+		files.addElement(large.getAbsolutePath());
+		files.setPackThreshold(1024);
+
+		FileOps testOps = new FileOps(files, this);
+		testOps.setReportDirectory(null);
+		testOps.setStateFile(null);
+		testOps.run();
+		latch.await();
+		assertTrue(completionReceived);
+
+		Path backupDir = Paths.get(files.getDestination()).resolve(files.getName());
+		assertTrue(PackReader.isPacked(backupDir));
+		PackReader reader = new PackReader(backupDir);
+		assertEquals(1, reader.list().size());
+		Path restored = tempFolder.getRoot().toPath().resolve("restored.txt");
+		reader.restore(reader.list().get(0).path, restored);
+		assertEquals("small", new String(Files.readAllBytes(restored), "UTF-8"));
+	}
+
+	/**
+	 * Test a FileSet with a further destination gets identical copies at both destinations while each
+	 * source file is read only once
+	 * (Requirement 1.1.2.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_FileSetWithTwoDestinations_when_TestRun_then_BothCopiesIdentical() throws Exception {
+		File sourceDir = tempFolder.newFolder("source");
+		File small = new File(sourceDir, "small.txt");
+		Files.write(small.toPath(), "small".getBytes("UTF-8"));
+		File large = new File(sourceDir, "large.bin");
+		byte[] data = new byte[300000];
+		new java.util.Random(40).nextBytes(data);
+		Files.write(large.toPath(), data);
+
+		FileSet files = new FileSet("Twice", tempFolder.newFolder("local").toString());
+		files.addDestination(tempFolder.newFolder("removable").toString());
+		files.addElement(small.getAbsolutePath());
+		files.addElement(large.getAbsolutePath());
+		files.setPackThreshold(1024);
+		assertEquals(2, files.getDestinations().size());
+
+		FileOps testOps = new FileOps(files, this);
+		testOps.setReportDirectory(null);
+		testOps.setStateFile(null);
+		testOps.run();
+		latch.await();
+		assertTrue(completionReceived);
+
+		for (String destination : files.getDestinations()) {
+			Path backupDir = Paths.get(destination).resolve(files.getName());
+			Path copy = backupDir.resolve(FileOps.relativePath(large.toPath()));
+			assertArrayEquals(data, Files.readAllBytes(copy));
+			assertEquals(large.lastModified(), copy.toFile().lastModified());
+			PackReader reader = new PackReader(backupDir);
+			Path restored = tempFolder.getRoot().toPath().resolve("restored-" + backupDir.getParent().getFileName());
+			reader.restore(reader.list().get(0).path, restored);
+			assertEquals("small", new String(Files.readAllBytes(restored), "UTF-8"));
+		}
+		assertEquals(0, testOps.getMetrics().getErrors());
+		assertEquals(300005, testOps.getMetrics().getBytesCopied());
+		assertEquals(5, testOps.getMetrics().getHistogram(core.Metrics.Phase.READ).getCount());
+	}
+
+	/**
+	 * Test a performance report with per-phase timings and the slowest files is delivered before
+	 * completion and saved to the report directory
+	 * (Requirement 1.1.5.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_FileSet_when_TestRun_then_PerformanceReportSaved() throws Exception {
+		File sourceDir = tempFolder.newFolder("source");
+		File source = new File(sourceDir, "data.bin");
+		Files.write(source.toPath(), new byte[200000]);
+
+		FileSet files = new FileSet("Reported", tempFolder.newFolder("dest").toString());
+		files.addElement(source.getAbsolutePath());
+		files.setSyncFiles(true);
+
+		Path reports = tempFolder.getRoot().toPath().resolve("reports");
+		FileOps testOps = new FileOps(files, this);
+		testOps.setReportDirectory(reports);
+		testOps.run();
+		latch.await();
+		assertTrue(completionReceived);
+
+		assertNotNull(reportReceived);
+		String text = reportReceived.toString();
+		assertTrue(text.contains("Copied 1 file(s), 200000 byte(s)"));
+		assertTrue(text.contains("FSYNC"));
+		assertTrue(text.contains(source.getAbsolutePath()));
+		assertEquals(text, new String(Files.readAllBytes(reportReceived.getFile()), "UTF-8"));
+		assertEquals(reports, reportReceived.getFile().getParent());
+		assertEquals(1, testOps.getMetrics().getHistogram(core.Metrics.Phase.FSYNC).getCount());
+		assertEquals(4, testOps.getMetrics().getHistogram(core.Metrics.Phase.READ).getCount());
+	}
+
+
+	/**
+	 * Test a paused backup copies nothing until it is resumed, and then completes
+	 * (Requirement 1.1.4.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_RunningBackup_when_Paused_then_NothingCopiedUntilResumed() throws Exception {
+		File source = tempFolder.newFile("paused.bin");
+		byte[] data = new byte[8 * 1024 * 1024];
+		new java.util.Random(48).nextBytes(data);
+		Files.write(source.toPath(), data);
+		FileSet files = new FileSet("Paused", tempFolder.newFolder("dest").toString());
+		files.addElement(source.getAbsolutePath());
+		files.setBytesPerSecond(4 * 1024 * 1024);
+
+		FileOps testOps = new FileOps(files);
+		testOps.setReportDirectory(null);
+		testOps.setStateFile(null);
+		testOps.execute();
+		while (testOps.getMetrics().getBytesCopied() == 0) {
+			Thread.sleep(1);
+		}
+		testOps.pause();
+		assertTrue(testOps.isPaused());
+		// the chunk being copied when the pause came still completes
+		Thread.sleep(100);
+		long pausedAt = testOps.getMetrics().getBytesCopied();
+		Thread.sleep(500);
+		assertEquals(pausedAt, testOps.getMetrics().getBytesCopied());
+		assertTrue(pausedAt < data.length);
+
+		testOps.resume();
+		testOps.get();
+		assertArrayEquals(data, Files.readAllBytes(Paths.get(files.getDestination()).resolve("Paused")
+				.resolve(FileOps.relativePath(source.toPath()))));
+		assertEquals(0, testOps.getMetrics().getErrors());
+	}
+
+	/**
+	 * Test cancelling stops a backup within a chunk of the file being copied, removes its partial copy, and
+	 * keeps the files already copied together with their state, so that a later run can carry on
+	 * (Requirement 1.1.4.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_LargeFileCopying_when_Cancelled_then_StopsWithinChunkAndPartialRemoved() throws Exception {
+		File sourceDir = tempFolder.newFolder("source");
+		File small = new File(sourceDir, "a-small.txt");
+		Files.write(small.toPath(), "small".getBytes("UTF-8"));
+		File large = new File(sourceDir, "b-large.bin");
+		Files.write(large.toPath(), new byte[64 * 1024 * 1024]);
+		FileSet files = new FileSet("Cancelled", tempFolder.newFolder("dest").toString());
+		files.addElement(small.getAbsolutePath());
+		files.addElement(large.getAbsolutePath());
+		// one worker, so the small file is copied before the large one
+		files.setRotationalConcurrency(1);
+		files.setSolidStateConcurrency(1);
+		files.setBytesPerSecond(8 * 1024 * 1024);
+		Path stateFile = tempFolder.getRoot().toPath().resolve("state");
+
+		FileOps testOps = new FileOps(files);
+		testOps.setReportDirectory(null);
+		testOps.setStateFile(stateFile);
+		testOps.execute();
+		while (testOps.getMetrics().getBytesCopied() < 1024 * 1024) {
+			Thread.sleep(1);
+		}
+		testOps.cancel(true);
+		assertTrue(testOps.awaitStopped(60000));
+		// the large file takes 8 s at this rate, so the copy stopped part way through it
+		assertTrue(testOps.getMetrics().getBytesCopied() < small.length() + large.length());
+
+		Path backupDir = Paths.get(files.getDestination()).resolve("Cancelled");
+		assertTrue(Files.exists(backupDir.resolve(FileOps.relativePath(small.toPath()))));
+		assertFalse(Files.exists(backupDir.resolve(FileOps.relativePath(large.toPath()))));
+		assertNotNull(core.FileStateCache.load(stateFile).get(small.getAbsolutePath()));
+		assertNull(core.FileStateCache.load(stateFile).get(large.getAbsolutePath()));
+		assertTrue(testOps.getFailureReport().isEmpty());
+	}
+
+	/**
+	 * Test cancelling a backup whose worker is waiting out a very low byte rate stops it at once instead of
+	 * after the wait, and removes its partial copy (Requirement 1.1.4.1)
+	 * @throws Exception if the testOps operation fails for any reason.
+	 */
+	@Test
+	public void given_ThrottledCopy_when_Cancelled_then_WorkerStopsWaiting() throws Exception {
+		File source = tempFolder.newFile("throttled.bin");
+		Files.write(source.toPath(), new byte[1024 * 1024]);
+		FileSet files = new FileSet("Throttled", tempFolder.newFolder("dest").toString());
+		files.addElement(source.getAbsolutePath());
+		// the first chunk leaves a debt of about a minute at this rate
+		files.setBytesPerSecond(1024);
+
+		FileOps testOps = new FileOps(files);
+		testOps.setReportDirectory(null);
+		testOps.setStateFile(null);
+		testOps.execute();
+		while (testOps.getMetrics().getBytesCopied() == 0) {
+			Thread.sleep(1);
+		}
+		testOps.cancel(true);
+		assertTrue(testOps.awaitStopped(10000));
+
+		Path backupDir = Paths.get(files.getDestination()).resolve("Throttled");
+		assertFalse(Files.exists(backupDir.resolve(FileOps.relativePath(source.toPath()))));
+		assertTrue(testOps.getFailureReport().isEmpty());
+	}
+
+	/**
+	 * A large copy is created at its full length before it is written and ends at exactly the size of the data,
+	 * plain or encrypted, and a destination without room for the backup is reported before anything is copied.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LargeFile_when_BackedUp_then_PreallocatedCopyExactAndFreeSpaceChecked() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		new Random(5).nextBytes(data);
+		File large = tempFolder.newFile("large.bin");
+		Files.write(large.toPath(), data);
+		char[] passphrase = "preallocated".toCharArray();
+
+		for (boolean encrypted : new boolean[] { false, true }) {
+			String name = encrypted ? "Encrypted" : "Plain";
+			FileSet files = new FileSet(name, tempFolder.newFolder(name).toString());
+			files.addElement(large.getAbsolutePath());
+			files.setEncrypted(encrypted);
+			FileOps testOps = new FileOps(files);
+			testOps.setReportDirectory(null);
+			testOps.setStateFile(null);
+			testOps.setPassphrase(passphrase);
+			testOps.run();
+			testOps.get();
+
+			Path backupDir = Paths.get(files.getDestination(), name);
+			byte[] stored = Files.readAllBytes(backupDir.resolve(FileOps.relativePath(large.toPath())));
+			if (encrypted) {
+				assertEquals(BackupEncryption.encryptedSize(data.length), stored.length);
+				InputStream in = BackupEncryption.open(backupDir, passphrase).decrypt(new java.io.ByteArrayInputStream(stored));
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[65536];
+				for (int read; (read = in.read(buffer)) > 0;) {
+					out.write(buffer, 0, read);
+				}
+				stored = out.toByteArray();
+			}
+			assertArrayEquals(data, stored);
+		}
+
+		assertEquals(FileOps.ALLOCATION_UNIT, FileOps.storedSize(1, false, false));
+		assertEquals(1, FileOps.storedSize(1, false, true));
+		assertEquals(2 * FileOps.ALLOCATION_UNIT, FileOps.storedSize(FileOps.ALLOCATION_UNIT + 1, false, false));
+		assertTrue(FileOps.storedSize(data.length, true, false) >= BackupEncryption.encryptedSize(data.length));
+
+		FileSet files = new FileSet("Huge", tempFolder.newFolder("first").toString());
+		files.addDestination(tempFolder.newFolder("second").toString());
+		files.addElement(large.getAbsolutePath());
+		assertTrue(FileOps.checkFreeSpace(files, data.length).isEmpty());
+		long usable = Files.getFileStore(tempFolder.getRoot().toPath()).getUsableSpace();
+		// both destinations are on the one file store, so each copy needs room of its own
+		List<String> problems = FileOps.checkFreeSpace(files, usable / 2 + 64 * 1024 * 1024);
+		assertEquals(1, problems.size());
+		assertTrue(problems.get(0).contains("Not enough space"));
+	}
+
 	/**
 	 * Test exception thrown if calling run() on empty fileset
 	 * (Requirement 1.1.4.1)
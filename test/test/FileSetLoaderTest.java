@@ -0,0 +1,180 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import app.FileSetLoader;
+import core.FileSet;
+
+/**
+ * Tests for the {@link FileSetLoader} class. These tests ensure a saved {@link FileSet} is read in the
+ * background and handed to the event dispatch thread in order.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class FileSetLoaderTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Records what a {@link FileSetLoader} hands over, and in what order.
+	 */
+	private static class Recorder implements FileSetLoader.Listener {
+		final CountDownLatch finished = new CountDownLatch(1);
+		final List<String> shown = new ArrayList<String>();
+		boolean sourcesBeforeSettings;
+		int batches;
+		FileSet fileSet;
+		List<String> missing;
+		Exception error;
+
+		public void fileSetLoaded(FileSet fileSet) {
+			assertTrue(SwingUtilities.isEventDispatchThread());
+			assertEquals(0, fileSet.getSize());
+			this.fileSet = fileSet;
+		}
+
+		public void sourcesAdded(FileSet fileSet, int added) {
+			assertTrue(SwingUtilities.isEventDispatchThread());
+			batches++;
+			if (this.fileSet == null) {
+				sourcesBeforeSettings = true;
+			}
+			for (int i = fileSet.getSize() - added; i < fileSet.getSize(); i++) {
+				shown.add(fileSet.getElementAt(i));
+			}
+		}
+
+		public void loadingFinished(FileSet fileSet, List<String> missing, Exception error) {
+			this.missing = missing;
+			this.error = error;
+			finished.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(finished.await(60, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Sources are handed over in order and in batches, the ones that no longer exist are kept and reported,
+	 * and the size of the remaining files is counted.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SavedFileSet_when_Loaded_then_AllSourcesKeptAndMissingReported() throws Exception {
+		Path saved = tempFolder.getRoot().toPath().resolve("Saved");
+		FileSet files = new FileSet("Saved", tempFolder.newFolder("dest").getAbsolutePath());
+		files.setEncrypted(true);
+		List<String> all = new ArrayList<String>();
+		List<String> expected = new ArrayList<String>();
+		List<String> gone = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			File file = tempFolder.newFile("file" + i + ".txt");
+			Files.write(file.toPath(), new byte[i]);
+			files.addElement(file.getAbsolutePath());
+			all.add(file.getAbsolutePath());
+			if (i % 10 == 3) {
+				gone.add(file.getAbsolutePath());
+			} else {
+				expected.add(file.getAbsolutePath());
+			}
+		}
+		FileSet.save(saved.toString(), files);
+		long bytes = 0;
+		for (String path : gone) {
+			Files.delete(new File(path).toPath());
+		}
+		for (String path : expected) {
+			bytes += new File(path).length();
+		}
+
+		Recorder recorder = new Recorder();
+		new FileSetLoader(saved, recorder).execute();
+		recorder.await();
+
+		assertNull(recorder.error);
+		assertEquals(all, recorder.shown);
+		assertEquals(gone, recorder.missing);
+		assertEquals(all.size(), recorder.fileSet.getSize());
+		assertEquals(bytes, recorder.fileSet.getTotalBytes());
+		assertTrue(recorder.fileSet.isEncrypted());
+	}
+
+	/**
+	 * A missing saved file gives a new FileSet, and an unreadable one a new FileSet and the error.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_NoOrBrokenSavedFileSet_when_Loaded_then_NewFileSetGiven() throws Exception {
+		Recorder recorder = new Recorder();
+		new FileSetLoader(tempFolder.getRoot().toPath().resolve("None"), recorder).execute();
+		recorder.await();
+		assertNull(recorder.error);
+		assertEquals(0, recorder.fileSet.getSize());
+		assertTrue(recorder.missing.isEmpty());
+
+		File broken = tempFolder.newFile("Broken");
+		Files.write(broken.toPath(), "not a FileSet".getBytes("UTF-8"));
+		recorder = new Recorder();
+		new FileSetLoader(broken.toPath(), recorder).execute();
+		recorder.await();
+		assertNotNull(recorder.error);
+		assertNotNull(recorder.fileSet);
+		assertEquals(0, recorder.fileSet.getSize());
+	}
+
+	/**
+	 * The event dispatch thread only starts the loader; the settings are handed over before any source, and
+	 * many sources arrive in several batches, in the order they were saved.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ManySources_when_LoadedInBackground_then_SettingsFirstAndSourcesInBatches() throws Exception {
+		final Path saved = tempFolder.getRoot().toPath().resolve("Large");
+		File folder = tempFolder.newFolder("sources");
+		FileSet files = new FileSet("Large", tempFolder.newFolder("dest").getAbsolutePath());
+		List<String> all = new ArrayList<String>();
+		for (int i = 0; i < 20000; i++) {
+			File file = new File(folder, "file" + i);
+			Files.write(file.toPath(), new byte[] { (byte) i });
+			files.addElement(file.getAbsolutePath());
+			all.add(file.getAbsolutePath());
+		}
+		FileSet.save(saved.toString(), files);
+
+		final Recorder recorder = new Recorder();
+		final boolean[] loadedWhileStarting = new boolean[1];
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				new FileSetLoader(saved, recorder).execute();
+				// whatever the loader reads is handed to this thread later, never while it waits
+				loadedWhileStarting[0] = recorder.fileSet != null;
+			}
+		});
+		recorder.await();
+
+		assertFalse(loadedWhileStarting[0]);
+		assertNull(recorder.error);
+		assertTrue(recorder.missing.isEmpty());
+		assertTrue(recorder.batches > 1);
+		assertEquals(all, recorder.shown);
+		assertFalse(recorder.sourcesBeforeSettings);
+	}
+}
@@ -0,0 +1,186 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.FileOps;
+import core.FileSet;
+import core.FileStateCache;
+
+/**
+ * Tests for the {@link FileStateCache} class.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class FileStateCacheTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static String path(int i) {
+		return "/home/user/Pictures/2016/" + (i / 1000) + "/IMG_" + i + ".jpg";
+	}
+
+	/**
+	 * Saved entries are found again after loading, including those added on top of a loaded cache.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SavedCache_when_Loaded_then_EntriesFound() throws Exception {
+		Path file = tempFolder.getRoot().toPath().resolve("test.state");
+		FileStateCache cache = FileStateCache.load(file);
+		assertEquals(0, cache.size());
+		for (int i = 0; i < 1000; i++) {
+			cache.put(path(i), new FileStateCache.Entry(i, 1000L * i, "(dev=1,ino=" + i + ")", i));
+		}
+		cache.save();
+
+		cache = FileStateCache.load(file);
+		assertEquals(1000, cache.size());
+		for (int i = 0; i < 1000; i++) {
+			FileStateCache.Entry entry = cache.get(path(i));
+			assertNotNull(path(i), entry);
+			assertEquals(i, entry.size);
+			assertEquals(1000L * i, entry.lastModified);
+			assertEquals("(dev=1,ino=" + i + ")", entry.fileKey);
+			assertEquals(i, entry.checksum);
+		}
+		assertNull(cache.get("/home/user/Pictures/2016/0/IMG_0.png"));
+		assertNull(cache.get("/"));
+		assertNull(cache.get("~"));
+
+		// replace one entry and add another
+		cache.put(path(500), new FileStateCache.Entry(1, 2, null, -1));
+		cache.put("/etc/hosts", new FileStateCache.Entry(3, 4, null, -1));
+		cache.save();
+		cache = FileStateCache.load(file);
+		assertEquals(1001, cache.size());
+		assertEquals(1, cache.get(path(500)).size);
+		assertEquals(-1, cache.get(path(500)).checksum);
+		assertEquals(3, cache.get("/etc/hosts").size);
+		assertEquals(499, cache.get(path(499)).size);
+	}
+
+	/**
+	 * Paths sharing long prefixes are stored in a few bytes each.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ManyEntries_when_Saved_then_FileIsCompact() throws Exception {
+		Path file = tempFolder.getRoot().toPath().resolve("test.state");
+		FileStateCache cache = FileStateCache.load(file);
+		int count = 100000;
+		for (int i = 0; i < count; i++) {
+			cache.put(path(i), new FileStateCache.Entry(3000000 + i, 1450000000000L + i, "(dev=803,ino=" + (7000000 + i) + ")", 0xFFFFFFFFL - i));
+		}
+		cache.save();
+		long perEntry = Files.size(file) / count;
+		assertTrue("bytes per entry: " + perEntry, perEntry < 48);
+		assertEquals(3000000 + 12345, FileStateCache.load(file).get(path(12345)).size);
+	}
+
+	/**
+	 * A damaged cache is ignored rather than trusted, and a half-written save leaves the old cache in place.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_DamagedCache_when_Loaded_then_Ignored() throws Exception {
+		Path file = tempFolder.getRoot().toPath().resolve("test.state");
+		FileStateCache cache = FileStateCache.load(file);
+		cache.put("/a", new FileStateCache.Entry(1, 1, null, -1));
+		cache.save();
+
+		// an interrupted save only leaves its temporary file behind
+		Files.write(file.resolveSibling("test.state.tmp"), new byte[] { 1, 2, 3 });
+		assertEquals(1, FileStateCache.load(file).get("/a").size);
+
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		raf.seek(13);
+		raf.write(0x55);
+		raf.close();
+		assertNull(FileStateCache.load(file).get("/a"));
+
+		Files.write(file, new byte[] { 0, 1 });
+		assertEquals(0, FileStateCache.load(file).size());
+	}
+
+	/**
+	 * A backup records every copied file with its checksum, and the cache tells unchanged files from changed ones.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Backup_when_SourceChanged_then_CacheDetectsChange() throws Exception {
+		File same = tempFolder.newFile("same.txt");
+		Files.write(same.toPath(), "unchanged".getBytes("UTF-8"));
+		File edited = tempFolder.newFile("edited.txt");
+		Files.write(edited.toPath(), "before".getBytes("UTF-8"));
+		FileSet files = new FileSet("Cached", tempFolder.newFolder("dest").toString());
+		files.addElement(same.getAbsolutePath());
+		files.addElement(edited.getAbsolutePath());
+		Path file = tempFolder.getRoot().toPath().resolve("Cached.state");
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(file);
+		ops.run();
+
+		FileStateCache cache = FileStateCache.load(file);
+		CRC32 crc = new CRC32();
+		crc.update("unchanged".getBytes("UTF-8"));
+		assertEquals(crc.getValue(), cache.get(same.getAbsolutePath()).checksum);
+
+		Files.write(edited.toPath(), "after, and longer".getBytes("UTF-8"));
+		assertTrue(cache.isUnchanged(same.getAbsolutePath(), Files.readAttributes(same.toPath(), BasicFileAttributes.class)));
+		assertFalse(cache.isUnchanged(edited.getAbsolutePath(), Files.readAttributes(edited.toPath(), BasicFileAttributes.class)));
+	}
+
+	/**
+	 * The same cache saves again and again, each save replacing the file it has mapped, and keeps reading it.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LoadedCache_when_SavedRepeatedly_then_FileReplacedAndEntriesKept() throws Exception {
+		Path file = tempFolder.getRoot().toPath().resolve("test.state");
+		FileStateCache cache = FileStateCache.load(file);
+		for (int round = 0; round < 3; round++) {
+			cache.put(path(round), new FileStateCache.Entry(round, round, null, -1));
+			cache.save();
+			assertFalse(Files.exists(file.resolveSibling("test.state.tmp")));
+			assertEquals(round + 1, cache.size());
+			for (int i = 0; i <= round; i++) {
+				assertEquals(i, cache.get(path(i)).size);
+			}
+		}
+		assertEquals(3, FileStateCache.load(file).size());
+	}
+
+	/**
+	 * A backup that will not be watched leaves no cache behind that nothing would read.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Backup_when_NotWatched_then_NoCacheWritten() throws Exception {
+		File source = tempFolder.newFile("source.txt");
+		Files.write(source.toPath(), "content".getBytes("UTF-8"));
+		String name = "Unwatched" + System.nanoTime();
+		FileSet files = new FileSet(name, tempFolder.newFolder("dest").toString());
+		files.addElement(source.getAbsolutePath());
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.run();
+
+		assertTrue(FileOps.backupExists(files));
+		assertFalse(Files.exists(FileStateCache.fileFor(name)));
+	}
+}
@@ -0,0 +1,125 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.FileSet;
+import core.JobManager;
+import core.WorkerBudget;
+
+/**
+ * Tests for the {@link JobManager} and {@link WorkerBudget} classes.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class JobManagerTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * The bandwidth budget is split equally, except for jobs whose own limit is lower.
+	 */
+	@Test
+	public void given_Budget_when_Shared_then_MaxMinFair() {
+		assertEquals(Arrays.toString(new long[] { 100, 100, 100 }), Arrays.toString(JobManager.fairShares(300, new long[] { 0, 0, 0 })));
+		assertEquals(Arrays.toString(new long[] { 10, 145, 145 }), Arrays.toString(JobManager.fairShares(300, new long[] { 10, 0, 0 })));
+		assertEquals(Arrays.toString(new long[] { 10, 50, 240 }), Arrays.toString(JobManager.fairShares(300, new long[] { 10, 50, 0 })));
+		assertEquals(Arrays.toString(new long[] { 5, 0 }), Arrays.toString(JobManager.fairShares(0, new long[] { 5, 0 })));
+	}
+
+	/**
+	 * A free slot goes to the waiting owner holding the fewest, not to whoever asked first.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_BusyBudget_when_SlotFreed_then_OwnerWithFewestGetsIt() throws Exception {
+		final WorkerBudget budget = new WorkerBudget(2);
+		final Object greedy = "greedy", modest = "modest";
+		budget.acquire(greedy);
+		budget.acquire(greedy);
+
+		final CountDownLatch greedyGotThird = new CountDownLatch(1);
+		final CountDownLatch modestGotOne = new CountDownLatch(1);
+		Thread greedyWaiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					budget.acquire(greedy);
+					greedyGotThird.countDown();
+				} catch (InterruptedException e) {
+					// test over
+				}
+			}
+		});
+		greedyWaiter.start();
+		Thread.sleep(100);
+		Thread modestWaiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					budget.acquire(modest);
+					modestGotOne.countDown();
+				} catch (InterruptedException e) {
+					// test over
+				}
+			}
+		});
+		modestWaiter.start();
+		Thread.sleep(100);
+
+		budget.release(greedy);
+		assertTrue(modestGotOne.await(5, TimeUnit.SECONDS));
+		assertFalse(greedyGotThird.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, budget.getInUse());
+		budget.release(modest);
+		assertTrue(greedyGotThird.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Saved profiles run as concurrent jobs, each into its own backup.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_TwoProfiles_when_Submitted_then_BothBackedUp() throws Exception {
+		Path profiles = tempFolder.newFolder("profiles").toPath();
+		File dest = tempFolder.newFolder("dest");
+		JobManager manager = new JobManager(profiles, 2, 2);
+		manager.setReportDirectory(null);
+		manager.setKeepState(false);
+		manager.setBandwidthBudget(64 * 1024 * 1024, 0);
+		for (String name : Arrays.asList("photos", "documents")) {
+			File source = tempFolder.newFile(name + ".dat");
+			Files.write(source.toPath(), new byte[4096]);
+			FileSet files = new FileSet(name, dest.toString());
+			files.addElement(source.getAbsolutePath());
+			manager.saveProfile(name, files);
+		}
+		assertEquals(Arrays.asList("documents", "photos"), manager.getProfileNames());
+
+		JobManager.Job photos = manager.submit("photos");
+		JobManager.Job documents = manager.submit("documents");
+		manager.shutdown();
+		assertTrue(photos.await(10000));
+		assertTrue(documents.await(10000));
+		assertEquals(JobManager.State.SUCCEEDED, photos.getState());
+		assertEquals(JobManager.State.SUCCEEDED, documents.getState());
+		for (JobManager.Job job : manager.getJobs()) {
+			FileSet files = job.getFileSet();
+			assertTrue(files.getName().startsWith(job.getName() + "-"));
+			assertEquals(1, job.getMetrics().getFilesCopied());
+			assertTrue(Files.isDirectory(Paths.get(files.getDestination(), files.getName())));
+		}
+	}
+}
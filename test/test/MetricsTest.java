@@ -0,0 +1,94 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import core.LatencyHistogram;
+import core.Metrics;
+
+/**
+ * Tests for the {@link Metrics} registry and its {@link LatencyHistogram}.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class MetricsTest {
+
+	/**
+	 * Percentile estimates fall within the histogram's 12.5% bucket resolution.
+	 */
+	@Test
+	public void given_UniformDurations_when_Percentile_then_WithinBucketResolution() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertEquals(500500, histogram.getMeanNanos(), 0.001);
+		long p50 = histogram.getPercentileNanos(50);
+		long p99 = histogram.getPercentileNanos(99);
+		assertTrue("p50 was " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+		assertTrue("p99 was " + p99, p99 >= 990000 && p99 <= 1000000);
+	}
+
+	/**
+	 * An empty histogram reports zero for every statistic.
+	 */
+	@Test
+	public void given_EmptyHistogram_when_Percentile_then_Zero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileNanos(99));
+		assertEquals(0, histogram.getMeanNanos(), 0);
+	}
+
+	/**
+	 * Counters, gauges and latencies show up in the JSON rendering and over JMX while registered.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_RecordedMetrics_when_Registered_then_VisibleOverJmxAndJson() throws Exception {
+		Metrics metrics = new Metrics("Metrics \"test\"");
+		metrics.setWorkerCount(2);
+		metrics.setQueueDepth(3);
+		metrics.taskStarted();
+		metrics.recordBytes(4096);
+		metrics.recordFile();
+		metrics.recordError();
+		metrics.record(Metrics.Phase.WRITE, 2000000);
+
+		metrics.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.getObjectName();
+		// a second backup of a FileSet with the same name is published next to the first
+		Metrics other = new Metrics("Metrics \"test\"");
+		other.register();
+		try {
+			assertTrue(server.isRegistered(name));
+			assertEquals(ObjectName.quote("Metrics \"test\""), name.getKeyProperty("name"));
+			assertEquals(4096L, server.getAttribute(name, "BytesCopied"));
+			assertEquals(2, server.getAttribute(name, "QueueDepth"));
+			assertEquals(1, server.getAttribute(name, "BusyWorkers"));
+			assertFalse(name.equals(other.getObjectName()));
+			assertEquals(0L, server.getAttribute(other.getObjectName(), "BytesCopied"));
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+		assertTrue(server.isRegistered(other.getObjectName()));
+		other.unregister();
+
+		String json = metrics.toJson();
+		assertTrue(json.contains("\"fileSet\": \"Metrics \\\"test\\\"\""));
+		assertTrue(json.contains("\"bytesCopied\": 4096"));
+		assertTrue(json.contains("\"errors\": 1"));
+		assertTrue(json.contains("\"write\": {\"count\": 1"));
+	}
+}
@@ -0,0 +1,224 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.FailureReport;
+import core.FileOps;
+import core.FileSet;
+import core.MirrorClient;
+import core.MirrorReceiver;
+
+/**
+ * Tests for the {@link MirrorClient} and {@link MirrorReceiver} classes, over loopback with a receiver
+ * started by the test.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class MirrorReceiverTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final String TOKEN = "shared-secret";
+
+	private Path root;
+	private MirrorReceiver receiver;
+
+	@Before
+	public void startReceiver() throws Exception {
+		root = tempFolder.newFolder("receiver").toPath();
+		Files.createDirectories(root.resolve("backups"));
+		receiver = new MirrorReceiver(root, 0, TOKEN);
+		receiver.start();
+	}
+
+	@After
+	public void stopReceiver() {
+		receiver.stop();
+	}
+
+	private String address(String options) {
+		return "mirror://127.0.0.1:" + receiver.getPort() + "/backups?" + (options.isEmpty() ? "" : options + "&")
+				+ "token=" + TOKEN;
+	}
+
+	/**
+	 * A backup to a mirror address arrives intact, compressed or not, with the sources' timestamps.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_MirrorDestination_when_BackedUp_then_ReceiverHoldsIdenticalCopies() throws Exception {
+		File sourceDir = tempFolder.newFolder("source");
+		Map<File, byte[]> contents = new HashMap<File, byte[]>();
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 500000) {
+			text.append("the same line over and over again\n");
+		}
+		contents.put(new File(sourceDir, "text.txt"), text.toString().getBytes("UTF-8"));
+		byte[] random = new byte[200000];
+		new Random(41).nextBytes(random);
+		contents.put(new File(sourceDir, "random.bin"), random);
+		contents.put(new File(sourceDir, "empty"), new byte[0]);
+
+		FileSet files = new FileSet("Remote", tempFolder.getRoot().getAbsolutePath());
+		files.setDestination(address("compress"));
+		for (Map.Entry<File, byte[]> entry : contents.entrySet()) {
+			Files.write(entry.getKey().toPath(), entry.getValue());
+			files.addElement(entry.getKey().getAbsolutePath());
+		}
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+		ops.get();
+
+		Path backup = root.resolve("backups").resolve("Remote");
+		for (Map.Entry<File, byte[]> entry : contents.entrySet()) {
+			Path copy = backup.resolve(FileOps.relativePath(entry.getKey().toPath()));
+			assertArrayEquals(entry.getValue(), Files.readAllBytes(copy));
+			assertEquals(entry.getKey().lastModified(), copy.toFile().lastModified());
+		}
+		assertEquals(0, ops.getMetrics().getErrors());
+		assertEquals(3, ops.getMetrics().getFilesCopied());
+
+		// the same backup again is refused, as it would be locally
+		FileOps again = new FileOps(files);
+		again.setReportDirectory(null);
+		again.setStateFile(null);
+		again.run();
+		try {
+			again.get();
+			fail("An existing backup was overwritten");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("already exists"));
+		}
+	}
+
+	/**
+	 * A file the receiver cannot write is retried and, once given up, reported with the receiver it is missing
+	 * from, so the backup does not look complete.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ReceiverFailingFile_when_BackedUp_then_ReportedForReceiver() throws Exception {
+		Path source = tempFolder.newFolder("source").toPath();
+		Path first = source.resolve("a-first.bin");
+		Path blocked = source.resolve("b-blocked.txt");
+		Files.write(first, new byte[1024 * 1024]);
+		Files.write(blocked, "blocked".getBytes("UTF-8"));
+		FileSet files = new FileSet("Refused", tempFolder.getRoot().getAbsolutePath());
+		files.setDestination(address(""));
+		files.addElement(first.toString());
+		files.addElement(blocked.toString());
+		// one worker at 1 MB/s, so the first file leaves time to block the second at the receiver
+		files.setRotationalConcurrency(1);
+		files.setSolidStateConcurrency(1);
+		files.setBytesPerSecond(1024 * 1024);
+
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setRetryPolicy(2, 50);
+		ops.execute();
+		Path backup = root.resolve("backups").resolve("Refused");
+		while (!Files.isDirectory(backup) && !ops.isDone()) {
+			Thread.sleep(1);
+		}
+		// a folder that is not empty where the file should go cannot be written over
+		Files.createDirectories(backup.resolve(FileOps.relativePath(blocked)).resolve("in-the-way"));
+		ops.get();
+
+		assertTrue(Files.isRegularFile(backup.resolve(FileOps.relativePath(first))));
+		FailureReport report = ops.getFailureReport();
+		assertEquals(1, report.getFailures().size());
+		FailureReport.Failure failure = report.getFailures().get(0);
+		assertEquals(blocked, failure.source);
+		assertEquals(MirrorClient.describe(files.getDestination()), failure.destination);
+		assertFalse(report.toString().contains(TOKEN));
+		assertEquals(2, failure.attempts);
+		assertEquals(1, ops.getMetrics().getErrors());
+	}
+
+	/**
+	 * The receiver listens on the loopback interface unless told otherwise, and refuses a client without its
+	 * token before creating anything.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WrongToken_when_Connected_then_RefusedAndNothingCreated() throws Exception {
+		assertTrue(receiver.getAddress().isLoopbackAddress());
+		for (String address : new String[] {
+				"mirror://127.0.0.1:" + receiver.getPort() + "/backups?token=guessed",
+				"mirror://127.0.0.1:" + receiver.getPort() + "/backups" }) {
+			MirrorClient client = new MirrorClient(address);
+			try {
+				client.connect("Intruder");
+				fail("A client without the token was served");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("token"));
+			}
+		}
+		assertFalse(Files.exists(root.resolve("backups").resolve("Intruder")));
+		try {
+			new MirrorReceiver(root, 0, "");
+			fail("A receiver without a token was started");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Files are pipelined without waiting for each other, and a path leading out of the backup is refused
+	 * without affecting the files around it.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_PathOutsideBackup_when_Sent_then_OnlyThatFileRefused() throws Exception {
+		final Map<Object, IOException> answers = Collections.synchronizedMap(new HashMap<Object, IOException>());
+		MirrorClient client = new MirrorClient(address(""));
+		client.setListener(new MirrorClient.Listener() {
+			public void acknowledged(Object tag, long checksum, IOException error) {
+				answers.put(tag, error);
+			}
+		});
+		client.connect("Escape");
+		OutputStream first = client.open("a/first.txt", 5, 0, "first");
+		OutputStream escape = client.open("../../escaped.txt", 5, 0, "escape");
+		OutputStream last = client.open("last.txt", 4, 0, "last");
+		first.write("first".getBytes("UTF-8"));
+		escape.write("nasty".getBytes("UTF-8"));
+		last.write("last".getBytes("UTF-8"));
+		last.close();
+		escape.close();
+		first.close();
+		client.finish();
+
+		assertEquals(3, answers.size());
+		assertNull(answers.get("first"));
+		assertNull(answers.get("last"));
+		assertNotNull(answers.get("escape"));
+		assertFalse(Files.exists(root.resolve("escaped.txt")));
+		Path backup = root.resolve("backups").resolve("Escape");
+		assertEquals("first", new String(Files.readAllBytes(backup.resolve("a/first.txt")), "UTF-8"));
+		assertEquals("last", new String(Files.readAllBytes(backup.resolve("last.txt")), "UTF-8"));
+	}
+}
@@ -0,0 +1,262 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.DeltaCopier;
+import core.FileOps;
+import core.FileSet;
+import core.MirrorWatcher;
+
+/**
+ * Tests for the {@link MirrorWatcher} class. A backup is taken, the watcher is started on a background
+ * thread and the sources are changed underneath it.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class MirrorWatcherTest implements MirrorWatcher.Listener {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private final BlockingQueue<List<Path>> batches = new LinkedBlockingQueue<List<Path>>();
+	private MirrorWatcher watcher;
+	private Thread watching;
+	private Path stateFile;
+
+	@Override
+	public void mirrored(List<Path> copied) {
+		batches.add(new ArrayList<Path>(copied));
+	}
+
+	@Override
+	public void mirrorFailed(Path source, Exception error) {
+		fail("Mirroring " + source + " failed: " + error);
+	}
+
+	@After
+	public void stopWatching() throws Exception {
+		if (watcher != null) {
+			watcher.stop();
+			watching.join(5000);
+		}
+	}
+
+	private FileSet backup(File... sources) throws Exception {
+		FileSet files = new FileSet("Mirrored", tempFolder.newFolder("dest").toString());
+		for (File source : sources) {
+			files.addElement(source.getAbsolutePath());
+		}
+		stateFile = tempFolder.getRoot().toPath().resolve("Mirrored.state");
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(stateFile);
+		ops.run();
+		return files;
+	}
+
+	private void startWatching(FileSet files) {
+		watcher = new MirrorWatcher(files, this, 200);
+		watcher.setStateFile(stateFile);
+		watching = new Thread(new Runnable() {
+			public void run() {
+				try {
+					watcher.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		watching.start();
+	}
+
+	private static Path copyOf(FileSet files, File source) {
+		return Paths.get(files.getDestination(), files.getName()).resolve(FileOps.relativePath(source.toPath()));
+	}
+
+	/**
+	 * A burst of writes to a watched file is mirrored once, after the writes stop.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WatchedFile_when_ModifiedRepeatedly_then_MirroredOnceInOneBatch() throws Exception {
+		File source = tempFolder.newFile("watched.txt");
+		Files.write(source.toPath(), "version 0".getBytes("UTF-8"));
+		File other = tempFolder.newFile("unwatched.txt");
+		FileSet files = backup(source);
+		startWatching(files);
+		Thread.sleep(300);
+
+		for (int i = 1; i <= 5; i++) {
+			Files.write(source.toPath(), ("version " + i).getBytes("UTF-8"));
+			Files.write(other.toPath(), ("noise " + i).getBytes("UTF-8"));
+			Thread.sleep(50);
+		}
+		List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no batch was mirrored", batch);
+		assertEquals(1, batch.size());
+		assertEquals(source.toPath(), batch.get(0));
+		assertEquals("version 5", new String(Files.readAllBytes(copyOf(files, source)), "UTF-8"));
+		assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Changes made while nobody was watching are found by the start-up rescan.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ChangeBeforeWatching_when_Started_then_RescanMirrorsIt() throws Exception {
+		File changed = tempFolder.newFile("changed.txt");
+		Files.write(changed.toPath(), "old".getBytes("UTF-8"));
+		File unchanged = tempFolder.newFile("unchanged.txt");
+		Files.write(unchanged.toPath(), "same".getBytes("UTF-8"));
+		FileSet files = backup(changed, unchanged);
+
+		Files.write(changed.toPath(), "new contents".getBytes("UTF-8"));
+		Files.setLastModifiedTime(changed.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		startWatching(files);
+
+		List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no batch was mirrored", batch);
+		assertEquals(1, batch.size());
+		assertEquals(changed.toPath(), batch.get(0));
+		assertEquals("new contents", new String(Files.readAllBytes(copyOf(files, changed)), "UTF-8"));
+	}
+
+	/**
+	 * Files the state cache knows to be unchanged are skipped by the rescan without looking at the backup.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_StateCache_when_Started_then_UnchangedCopiesNotChecked() throws Exception {
+		File changed = tempFolder.newFile("changed.txt");
+		Files.write(changed.toPath(), "old".getBytes("UTF-8"));
+		File unchanged = tempFolder.newFile("unchanged.txt");
+		Files.write(unchanged.toPath(), "same".getBytes("UTF-8"));
+		FileSet files = backup(changed, unchanged);
+		assertTrue(Files.exists(stateFile));
+
+		// without the cache, the missing copy would be mirrored again
+		Files.delete(copyOf(files, unchanged));
+		Files.write(changed.toPath(), "new contents".getBytes("UTF-8"));
+		Files.setLastModifiedTime(changed.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		startWatching(files);
+
+		List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no batch was mirrored", batch);
+		assertEquals(1, batch.size());
+		assertEquals(changed.toPath(), batch.get(0));
+		assertFalse(Files.exists(copyOf(files, unchanged)));
+	}
+
+	/**
+	 * With updating in place, a large file changed in one spot is patched into the same copy instead of being
+	 * replaced by a new one.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_UpdateInPlace_when_LargeFileChanged_then_CopyPatchedInPlace() throws Exception {
+		File large = tempFolder.newFile("large.bin");
+		byte[] data = new byte[(int) DeltaCopier.MIN_FILE_SIZE + 1000];
+		new Random(9).nextBytes(data);
+		Files.write(large.toPath(), data);
+		FileSet files = backup(large);
+		files.setUpdateInPlace(true);
+		Path copy = copyOf(files, large);
+		Object identity = Files.readAttributes(copy, BasicFileAttributes.class).fileKey();
+
+		RandomAccessFile file = new RandomAccessFile(large, "rw");
+		try {
+			file.seek(data.length / 2);
+			file.write("changed".getBytes("UTF-8"));
+		} finally {
+			file.close();
+		}
+		Files.setLastModifiedTime(large.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		startWatching(files);
+
+		List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no batch was mirrored", batch);
+		assertArrayEquals(Files.readAllBytes(large.toPath()), Files.readAllBytes(copy));
+		assertEquals(large.lastModified(), copy.toFile().lastModified());
+		assertEquals(identity, Files.readAttributes(copy, BasicFileAttributes.class).fileKey());
+		assertTrue(Files.exists(DeltaCopier.signatureFile(copy)));
+	}
+
+	/**
+	 * Files added to a folder source while watching, in new subfolders too, are mirrored when the rules accept
+	 * them.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FolderSource_when_FilesAndFoldersAdded_then_AcceptedOnesMirrored() throws Exception {
+		File folder = tempFolder.newFolder("folder");
+		Files.write(folder.toPath().resolve("existing.txt"), "existing".getBytes("UTF-8"));
+		Files.createDirectories(folder.toPath().resolve("empty"));
+		FileSet files = backup(folder);
+		files.addExclude("*.tmp");
+		startWatching(files);
+		Thread.sleep(300);
+
+		File added = folder.toPath().resolve("added.txt").toFile();
+		Files.write(added.toPath(), "added".getBytes("UTF-8"));
+		Files.write(folder.toPath().resolve("skipped.tmp"), "skipped".getBytes("UTF-8"));
+		File inEmpty = folder.toPath().resolve("empty").resolve("inside.txt").toFile();
+		Files.write(inEmpty.toPath(), "inside".getBytes("UTF-8"));
+		Path newFolder = Files.createDirectories(folder.toPath().resolve("new").resolve("deeper"));
+		File deep = newFolder.resolve("deep.txt").toFile();
+		Files.write(deep.toPath(), "deep".getBytes("UTF-8"));
+
+		List<Path> mirrored = new ArrayList<Path>();
+		while (mirrored.size() < 3) {
+			List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+			assertNotNull("mirrored only " + mirrored, batch);
+			mirrored.addAll(batch);
+		}
+		assertTrue(mirrored.contains(added.toPath()));
+		assertTrue(mirrored.contains(inEmpty.toPath()));
+		assertTrue(mirrored.contains(deep.toPath()));
+		assertEquals("deep", new String(Files.readAllBytes(copyOf(files, deep)), "UTF-8"));
+
+		// a file written into the new folder after it was registered is watched as well
+		Files.write(deep.toPath(), "deeper".getBytes("UTF-8"));
+		List<Path> batch = batches.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no batch was mirrored", batch);
+		assertEquals(deep.toPath(), batch.get(0));
+		assertEquals("deeper", new String(Files.readAllBytes(copyOf(files, deep)), "UTF-8"));
+		assertFalse(Files.exists(copyOf(files, folder.toPath().resolve("skipped.tmp").toFile())));
+	}
+
+	/**
+	 * A packed backup keeps its small files in pack files, so it cannot be watched.
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void given_PackedFileSet_when_Watched_then_Exception() throws Exception {
+		File source = tempFolder.newFile("packed.txt");
+		FileSet files = new FileSet("Packed", tempFolder.newFolder("packed-dest").toString());
+		files.addElement(source.getAbsolutePath());
+		files.setPackThreshold(64 * 1024);
+		new MirrorWatcher(files, this, 200);
+	}
+}
@@ -0,0 +1,152 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.PackIndex;
+import core.PackReader;
+import core.PackWriter;
+
+/**
+ * Tests for the {@link PackWriter}, {@link PackIndex} and {@link PackReader} classes. These tests
+ * ensure small files written into pack files can be listed and restored byte for byte.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class PackTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Appending files records consecutive offsets in the index.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SmallFiles_when_Appended_then_IndexRecordsOffsets() throws Exception {
+		Path backupDir = tempFolder.newFolder("backup").toPath();
+		PackWriter writer = new PackWriter(backupDir);
+		PackIndex.Entry first = writer.append("home/user/a.txt", new ByteArrayInputStream("hello".getBytes("UTF-8")));
+		PackIndex.Entry second = writer.append("home/user/b.txt", new ByteArrayInputStream("world!".getBytes("UTF-8")));
+		writer.close();
+
+		assertEquals(0, first.offset);
+		assertEquals(5, first.length);
+		assertEquals(5, second.offset);
+		assertEquals(6, second.length);
+		assertEquals(first.pack, second.pack);
+		assertTrue(PackReader.isPacked(backupDir));
+	}
+
+	/**
+	 * The index read back from disk lists every file and restores its exact contents.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_PackedBackup_when_Restored_then_ContentsMatch() throws Exception {
+		Path backupDir = tempFolder.newFolder("backup").toPath();
+		PackWriter writer = new PackWriter(backupDir);
+		writer.append("docs/one.txt", new ByteArrayInputStream("first file".getBytes("UTF-8")));
+		writer.append("docs/nested/two.txt", new ByteArrayInputStream("second file".getBytes("UTF-8")));
+		writer.append("empty.txt", new ByteArrayInputStream(new byte[0]));
+		writer.close();
+
+		PackReader reader = new PackReader(backupDir);
+		List<PackIndex.Entry> entries = reader.list();
+		assertEquals(3, entries.size());
+		assertEquals("docs/one.txt", entries.get(0).path);
+
+		Path restoreDir = tempFolder.newFolder("restore").toPath();
+		reader.restoreAll(restoreDir);
+		assertEquals("first file", new String(Files.readAllBytes(restoreDir.resolve("docs/one.txt")), "UTF-8"));
+		assertEquals("second file", new String(Files.readAllBytes(restoreDir.resolve("docs/nested/two.txt")), "UTF-8"));
+		assertEquals(0, Files.size(restoreDir.resolve("empty.txt")));
+	}
+
+	/**
+	 * A backup without pack files is not reported as packed.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_PlainBackup_when_Checked_then_NotPacked() throws Exception {
+		Path backupDir = tempFolder.newFolder("plain").toPath();
+		assertFalse(PackReader.isPacked(backupDir));
+	}
+
+	/**
+	 * A backup that stops before its index is written can still list and restore every file written to the
+	 * journal, ignoring an entry cut short by the crash.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_UnclosedPackWriter_when_Read_then_JournaledFilesRestored() throws Exception {
+		Path backupDir = tempFolder.newFolder("crashed").toPath();
+		PackWriter writer = new PackWriter(backupDir);
+		for (int i = 0; i < PackWriter.JOURNAL_ENTRIES + 1; i++) {
+			writer.append("files/" + i + ".txt", new ByteArrayInputStream(("file " + i).getBytes("UTF-8")));
+		}
+		// no close(): the index is never written, and the last entry only exists in memory
+		Path journal = backupDir.resolve(PackWriter.PACK_DIRECTORY).resolve(PackWriter.JOURNAL_FILE);
+		FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(channel.size() - 3);
+		} finally {
+			channel.close();
+		}
+
+		assertTrue(PackReader.isPacked(backupDir));
+		PackReader reader = new PackReader(backupDir);
+		List<PackIndex.Entry> entries = reader.list();
+		assertEquals(PackWriter.JOURNAL_ENTRIES - 1, entries.size());
+
+		Path restoreDir = tempFolder.newFolder("restore").toPath();
+		reader.restoreAll(restoreDir);
+		assertEquals("file 0", new String(Files.readAllBytes(restoreDir.resolve("files/0.txt")), "UTF-8"));
+		assertEquals("file 254", new String(Files.readAllBytes(restoreDir.resolve("files/254.txt")), "UTF-8"));
+	}
+
+	/**
+	 * Closing the writer replaces the journal with the index.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ClosedPackWriter_when_Checked_then_JournalRemoved() throws Exception {
+		Path backupDir = tempFolder.newFolder("backup").toPath();
+		PackWriter writer = new PackWriter(backupDir);
+		writer.append("a.txt", new ByteArrayInputStream("a".getBytes("UTF-8")));
+		writer.close();
+
+		Path packDir = backupDir.resolve(PackWriter.PACK_DIRECTORY);
+		assertTrue(Files.isRegularFile(packDir.resolve(PackWriter.INDEX_FILE)));
+		assertFalse(Files.exists(packDir.resolve(PackWriter.JOURNAL_FILE)));
+	}
+
+	/**
+	 * Pack file names use ASCII digits whatever the default locale, so a backup written under one locale is
+	 * read under any other.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_LocaleWithOwnDigits_when_PackNamed_then_AsciiDigits() throws Exception {
+		Locale saved = Locale.getDefault();
+		try {
+			Locale.setDefault(Locale.forLanguageTag("th-TH-u-nu-thai"));
+			assertEquals("pack-00003", PackWriter.packFileName(3));
+		} finally {
+			Locale.setDefault(saved);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.FileOps;
+import core.FileSet;
+import core.PathFilter;
+
+/**
+ * Tests for the {@link PathFilter} class and folder sources of a {@link FileSet}.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class PathFilterTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static PathFilter filter(List<String> includes, String... excludes) {
+		return new PathFilter(includes, Arrays.asList(excludes));
+	}
+
+	/**
+	 * Names, extensions, path globs and regular expressions each match what they should.
+	 */
+	@Test
+	public void given_Rules_when_Matched_then_NamesExtensionsAndPathsHonoured() {
+		PathFilter filter = filter(Collections.<String>emptyList(),
+				"node_modules", "*.tmp", "cache-*", "build/out/**", "regex:logs/.*\\.log");
+		assertFalse(filter.acceptsDirectory(Paths.get("web/node_modules")));
+		assertTrue(filter.acceptsDirectory(Paths.get("web/node_modules_old")));
+		assertFalse(filter.acceptsFile(Paths.get("a/b/scratch.tmp")));
+		assertTrue(filter.acceptsFile(Paths.get("a/b/scratch.tmpl")));
+		assertFalse(filter.acceptsDirectory(Paths.get("x/cache-2016")));
+		assertFalse(filter.acceptsFile(Paths.get("build/out/classes/A.class")));
+		assertTrue(filter.acceptsFile(Paths.get("src/build/out/A.class")));
+		assertFalse(filter.acceptsFile(Paths.get("logs/server.log")));
+		assertTrue(filter.acceptsFile(Paths.get("logs/server.txt")));
+
+		PathFilter photos = filter(Arrays.asList("*.jpg", "*.png"), "thumbs");
+		assertTrue(photos.acceptsFile(Paths.get("2016/IMG_1.jpg")));
+		assertFalse(photos.acceptsFile(Paths.get("2016/notes.txt")));
+		assertTrue("includes never prune folders", photos.acceptsDirectory(Paths.get("2016")));
+		assertFalse(photos.acceptsFile(Paths.get("thumbs")));
+	}
+
+	/**
+	 * Rules that cannot be compiled are refused when they are added.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_InvalidRegex_when_Added_then_Exception() throws Exception {
+		FileSet files = new FileSet("Filtered");
+		try {
+			files.addExclude("regex:([unclosed");
+			fail("An invalid rule was accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(files.getExcludes().isEmpty());
+		}
+	}
+
+	/**
+	 * Excluded folders are skipped without being entered.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ExcludedFolder_when_Walked_then_SubtreePruned() throws Exception {
+		File root = tempFolder.newFolder("project");
+		Files.createDirectories(root.toPath().resolve("node_modules/lib/deep"));
+		Files.write(root.toPath().resolve("node_modules/lib/deep/index.js"), new byte[10]);
+		Files.createDirectories(root.toPath().resolve("src"));
+		Files.write(root.toPath().resolve("src/main.js"), new byte[10]);
+		Files.write(root.toPath().resolve("src/main.js.tmp"), new byte[10]);
+
+		final List<Path> visited = new ArrayList<Path>();
+		int skipped = filter(Collections.<String>emptyList(), "node_modules", "*.tmp").walk(root.toPath(),
+				new PathFilter.Visitor() {
+			public void visitFile(Path file, BasicFileAttributes attrs) {
+				visited.add(file);
+			}
+		});
+		assertEquals(1, skipped);
+		assertEquals(Arrays.asList(root.toPath().resolve("src/main.js")), visited);
+	}
+
+	/**
+	 * A folder source backs up the files below it that pass the rules.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FolderSource_when_BackedUp_then_OnlyAcceptedFilesCopied() throws Exception {
+		File root = tempFolder.newFolder("data");
+		Files.createDirectories(root.toPath().resolve("cache"));
+		Files.write(root.toPath().resolve("cache/blob"), new byte[100]);
+		Files.write(root.toPath().resolve("keep.txt"), "keep".getBytes("UTF-8"));
+		Files.write(root.toPath().resolve("drop.tmp"), "drop".getBytes("UTF-8"));
+
+		FileSet files = new FileSet("Folder", tempFolder.newFolder("dest").toString());
+		files.addElement(root.getAbsolutePath());
+		files.addExclude("cache");
+		files.addExclude("*.tmp");
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+
+		Path backup = Paths.get(files.getDestination(), files.getName());
+		Path copy = backup.resolve(FileOps.relativePath(root.toPath()));
+		assertEquals("keep", new String(Files.readAllBytes(copy.resolve("keep.txt")), "UTF-8"));
+		assertFalse(Files.exists(copy.resolve("drop.tmp")));
+		assertFalse(Files.exists(copy.resolve("cache")));
+		assertEquals(1, ops.getMetrics().getFilesCopied());
+	}
+}
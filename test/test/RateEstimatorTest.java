@@ -0,0 +1,127 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import core.Progress;
+import core.RateEstimator;
+
+/**
+ * Tests for the {@link RateEstimator} class. Samples are fed with synthetic timestamps, so the expected
+ * rates and estimates are known exactly.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class RateEstimatorTest {
+
+	private static final long SECOND = 1000000000L;
+	private static final long MB = 1024 * 1024;
+
+	/**
+	 * A steady rate is reported unchanged, both instantaneous and smoothed.
+	 */
+	@Test
+	public void given_SteadyRate_when_Sampled_then_RatesMatch() {
+		RateEstimator estimator = new RateEstimator();
+		for (int i = 0; i <= 10; i++) {
+			estimator.sample(i * SECOND, i * 10 * MB, i * 5);
+		}
+		assertEquals(10 * MB, estimator.getBytesPerSecond(), 1);
+		assertEquals(10 * MB, estimator.getSmoothedBytesPerSecond(), 1);
+		assertEquals(5, estimator.getSmoothedFilesPerSecond(), 0.001);
+	}
+
+	/**
+	 * After a sudden slowdown the instantaneous rate follows at once while the smoothed rate moves part of
+	 * the way, set by the time constant.
+	 */
+	@Test
+	public void given_RateDrop_when_Sampled_then_SmoothedRateLags() {
+		RateEstimator estimator = new RateEstimator(5);
+		long bytes = 0;
+		estimator.sample(0, 0, 0);
+		for (int i = 1; i <= 20; i++) {
+			bytes += 10 * MB;
+			estimator.sample(i * SECOND, bytes, i);
+		}
+		bytes += MB;
+		estimator.sample(21 * SECOND, bytes, 21);
+		assertEquals(MB, estimator.getBytesPerSecond(), 1);
+		double expected = 10 * MB + (1 - Math.exp(-1 / 5.0)) * (MB - 10 * MB);
+		assertEquals(expected, estimator.getSmoothedBytesPerSecond(), 1);
+	}
+
+	/**
+	 * Samples closer together than the minimum interval are ignored.
+	 */
+	@Test
+	public void given_RapidSamples_when_Sampled_then_IgnoredUntilIntervalPasses() {
+		RateEstimator estimator = new RateEstimator();
+		estimator.sample(0, 0, 0);
+		estimator.sample(RateEstimator.MIN_INTERVAL_NANOS / 2, 5 * MB, 1);
+		assertEquals(0, estimator.getBytesPerSecond(), 0);
+		assertEquals(-1, estimator.getEtaSeconds(10 * MB, 2));
+		estimator.sample(RateEstimator.MIN_INTERVAL_NANOS, 5 * MB, 1);
+		assertEquals(50 * MB, estimator.getBytesPerSecond(), 1);
+	}
+
+	/**
+	 * With a mix of small-file and large-file intervals, the fit separates per-file overhead from bandwidth,
+	 * so a tail of many small files is not estimated from the byte rate of the large files.
+	 */
+	@Test
+	public void given_MixedFileSizes_when_Estimating_then_PerFileOverheadCounted() {
+		// every file costs 10 ms, every MB costs 1/50 s
+		double perFile = 0.010;
+		double perMB = 1 / 50.0;
+		RateEstimator estimator = new RateEstimator();
+		long now = 0, bytes = 0, files = 0;
+		estimator.sample(now, bytes, files);
+		for (int i = 0; i < 20; i++) {
+			long intervalFiles = i % 2 == 0 ? 80 : 2;
+			long intervalBytes = i % 2 == 0 ? 1 * MB : 40 * MB;
+			now += (long) ((intervalFiles * perFile + intervalBytes / (double) MB * perMB) * SECOND);
+			bytes += intervalBytes;
+			files += intervalFiles;
+			estimator.sample(now, bytes, files);
+		}
+		assertEquals(perFile, estimator.getPerFileSeconds(), 1e-4);
+		assertEquals(50 * MB, estimator.getFittedBytesPerSecond(), MB / 10.0);
+
+		// 10,000 tiny files: the overhead dominates
+		long eta = estimator.getEtaSeconds(10 * MB, 10000);
+		assertEquals(Math.round(10000 * perFile + 10 * perMB), eta);
+		double byteRateOnly = 10 * MB / estimator.getSmoothedBytesPerSecond();
+		assertTrue(eta > byteRateOnly * 10);
+	}
+
+	/**
+	 * When every interval has the same file size the costs cannot be separated, and the smoothed byte rate
+	 * gives the estimate.
+	 */
+	@Test
+	public void given_UniformFiles_when_Estimating_then_FallsBackToByteRate() {
+		RateEstimator estimator = new RateEstimator();
+		for (int i = 0; i <= 10; i++) {
+			estimator.sample(i * SECOND, i * 20 * MB, i * 10);
+		}
+		assertEquals(-1, estimator.getPerFileSeconds(), 0);
+		assertEquals(5, estimator.getEtaSeconds(100 * MB, 50));
+		assertEquals(0, estimator.getEtaSeconds(0, 0));
+	}
+
+	/**
+	 * Rates and times are formatted for display.
+	 */
+	@Test
+	public void given_Values_when_Formatted_then_Readable() {
+		assertEquals("512 B/s", Progress.formatRate(512));
+		assertEquals("12.5 MB/s", Progress.formatRate(12.5 * MB));
+		assertEquals("1:05", Progress.formatEta(65));
+		assertEquals("2:00:05", Progress.formatEta(7205));
+		assertEquals("--:--", Progress.formatEta(-1));
+	}
+}
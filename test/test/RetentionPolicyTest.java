@@ -0,0 +1,257 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.FileOps;
+import core.FileOpsMessageHandler;
+import core.FileSet;
+import core.Progress;
+import core.RetentionPolicy;
+import core.Throttle;
+import core.TreeRemover;
+
+/**
+ * Tests for the {@link RetentionPolicy} and {@link TreeRemover} classes, including a benchmark of parallel
+ * removal against a recursive delete.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class RetentionPolicyTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static long time(int year, int month, int day, int hour) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static Set<Long> expiredTimes(RetentionPolicy policy, List<RetentionPolicy.Backup> backups) {
+		Set<Long> times = new HashSet<Long>();
+		for (RetentionPolicy.Backup backup : policy.expired(backups)) {
+			times.add(backup.completed);
+		}
+		return times;
+	}
+
+	/**
+	 * Each rule keeps the newest backup of its periods, and a backup kept by any rule stays.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_BackupsOverMonths_when_Thinned_then_NewestOfEachPeriodKept() throws Exception {
+		List<RetentionPolicy.Backup> backups = new ArrayList<RetentionPolicy.Backup>();
+		// four a day on the last three days of March, plus one on each of the first days of January and February
+		for (int day = 29; day <= 31; day++) {
+			for (int hour = 6; hour < 24; hour += 6) {
+				backups.add(new RetentionPolicy.Backup(null, time(2021, 3, day, hour)));
+			}
+		}
+		backups.add(new RetentionPolicy.Backup(null, time(2021, 1, 1, 12)));
+		backups.add(new RetentionPolicy.Backup(null, time(2021, 2, 1, 12)));
+
+		assertTrue(new RetentionPolicy(0, 0, 0, 0).expired(backups).isEmpty());
+
+		Set<Long> lastTwo = expiredTimes(new RetentionPolicy(2, 0, 0, 0), backups);
+		assertEquals(backups.size() - 2, lastTwo.size());
+		assertFalse(lastTwo.contains(time(2021, 3, 31, 18)));
+		assertFalse(lastTwo.contains(time(2021, 3, 31, 12)));
+
+		Set<Long> daily = expiredTimes(new RetentionPolicy(0, 2, 0, 0), backups);
+		assertEquals(backups.size() - 2, daily.size());
+		assertFalse(daily.contains(time(2021, 3, 31, 18)));
+		assertFalse(daily.contains(time(2021, 3, 30, 18)));
+
+		Set<Long> monthly = expiredTimes(new RetentionPolicy(1, 0, 0, 3), backups);
+		assertEquals(backups.size() - 3, monthly.size());
+		assertFalse(monthly.contains(time(2021, 3, 31, 18)));
+		assertFalse(monthly.contains(time(2021, 2, 1, 12)));
+		assertFalse(monthly.contains(time(2021, 1, 1, 12)));
+
+		// oldest first, so an interrupted pruning has removed the least valuable backups
+		List<RetentionPolicy.Backup> expired = new RetentionPolicy(1, 0, 0, 0).expired(backups);
+		assertEquals(time(2021, 1, 1, 12), expired.get(0).completed);
+	}
+
+	/**
+	 * After each backup, older backups of the same FileSet beyond the policy are removed, while the backups of
+	 * other FileSets, even of the same sources, and unmarked folders in the destination stay.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_KeepLastTwo_when_ThirdBackupRuns_then_OldestOfSameSourcesRemoved() throws Exception {
+		File source = tempFolder.newFile("source.txt");
+		Files.write(source.toPath(), "contents".getBytes("UTF-8"));
+		File other = tempFolder.newFile("other.txt");
+		Path destination = tempFolder.newFolder("dest").toPath();
+		Files.createDirectories(destination.resolve("Unmarked"));
+
+		FileSet otherFiles = new FileSet("Other", destination.toString());
+		otherFiles.addElement(other.getAbsolutePath());
+		otherFiles.setRetentionPolicy(new RetentionPolicy(1, 0, 0, 0));
+		run(otherFiles);
+
+		FileSet sameSources = new FileSet("Photos-1", destination.toString());
+		sameSources.addElement(source.getAbsolutePath());
+		sameSources.setRetentionPolicy(new RetentionPolicy(1, 0, 0, 0));
+		run(sameSources);
+
+		FileSet files = new FileSet("Docs-1", destination.toString());
+		files.addElement(source.getAbsolutePath());
+		files.setRetentionPolicy(new RetentionPolicy(2, 0, 0, 0));
+		for (String name : new String[] { "Docs-1", "Docs-2", "Docs-3" }) {
+			files.setName(name);
+			run(files);
+			Thread.sleep(5);
+		}
+		assertFalse(Files.exists(destination.resolve("Docs-1")));
+		assertTrue(Files.exists(destination.resolve("Docs-2")));
+		assertTrue(Files.exists(destination.resolve("Docs-3")));
+		assertTrue(Files.exists(destination.resolve("Photos-1")));
+		assertTrue(Files.exists(destination.resolve("Other")));
+		assertTrue(Files.exists(destination.resolve("Unmarked")));
+		assertTrue(Files.exists(destination.resolve("Docs-3").resolve(RetentionPolicy.MARKER_FILE)));
+	}
+
+	/**
+	 * Runs of one FileSet share a fingerprint whatever date or time ends their names, while the same sources
+	 * under another name or sent to another destination get one of their own.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SameSources_when_NameOrDestinationDiffers_then_FingerprintDiffers() throws Exception {
+		String source = tempFolder.newFolder("docs").getAbsolutePath();
+		FileSet files = new FileSet("Docs-20210331-180000", tempFolder.newFolder("backups").getAbsolutePath());
+		files.addElement(source);
+		String fingerprint = RetentionPolicy.fingerprint(files);
+
+		files.setName("Docs-20210401-180000");
+		assertEquals(fingerprint, RetentionPolicy.fingerprint(files));
+
+		files.setName("Photos-20210401-180000");
+		assertFalse(fingerprint.equals(RetentionPolicy.fingerprint(files)));
+
+		FileSet elsewhere = new FileSet("Docs-20210331-180000", tempFolder.newFolder("other").getAbsolutePath());
+		elsewhere.addElement(source);
+		assertFalse(fingerprint.equals(RetentionPolicy.fingerprint(elsewhere)));
+
+		assertEquals("Backup", RetentionPolicy.seriesOf("Backup03.31.21-18.00"));
+	}
+
+	private static void run(FileSet files) throws Exception {
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.run();
+		ops.get();
+		assertTrue(ops.awaitPruned(10000));
+	}
+
+	/**
+	 * Old backups are removed only after completion is reported, at the prune rate of the FileSet, and each
+	 * removal is reported to the handler.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_KeepLastOne_when_SecondBackupCompletes_then_PrunedAfterCompletionAndReported() throws Exception {
+		File source = tempFolder.newFile("source.txt");
+		Files.write(source.toPath(), "contents".getBytes("UTF-8"));
+		Path destination = tempFolder.newFolder("dest").toPath();
+		FileSet files = new FileSet("Docs-1", destination.toString());
+		files.addElement(source.getAbsolutePath());
+		files.setRetentionPolicy(new RetentionPolicy(1, 0, 0, 0));
+		files.setPruneFilesPerSecond(5);
+		run(files);
+		TestTrees.makeTree(destination.resolve("Docs-1").resolve("extra"), 1, 1, 8);
+
+		files.setName("Docs-2");
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		FileOps ops = new FileOps(files, new FileOpsMessageHandler() {
+			public void handleProgress(List<Progress> progressItems) {
+			}
+
+			public void handleCompletion() {
+				events.add("completed");
+			}
+
+			@Override
+			public void handlePruned(Path oldBackup, long removed, IOException error) {
+				events.add("pruned " + oldBackup.getFileName() + " " + removed + " " + error);
+			}
+		});
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		long start = System.nanoTime();
+		ops.run();
+		ops.get();
+		assertTrue(ops.awaitPruned(10000));
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(2, events.size());
+		assertEquals("completed", events.get(0));
+		assertTrue(events.get(1), events.get(1).startsWith("pruned Docs-1 ") && events.get(1).endsWith(" null"));
+		assertFalse(Files.exists(destination.resolve("Docs-1")));
+		// about 14 entries at 5 per second, after a burst of 5
+		assertTrue("took " + millis + " ms", millis >= 1000);
+	}
+
+	/**
+	 * A tree is removed entirely, through its symbolic links but never beyond them, and an interrupted removal
+	 * is finished by {@link TreeRemover#removeLeftovers(Path)}.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_Tree_when_Removed_then_NothingLeftAndLinksNotFollowed() throws Exception {
+		Path outside = tempFolder.newFolder("outside").toPath();
+		Files.write(outside.resolve("keep.txt"), "keep".getBytes("UTF-8"));
+		Path parent = tempFolder.newFolder("parent").toPath();
+		Path tree = parent.resolve("old");
+		int entries = TestTrees.makeTree(tree, 3, 4, 300) + TestTrees.directories(3, 4);
+		Files.createSymbolicLink(tree.resolve("link"), outside);
+
+		TreeRemover remover = new TreeRemover(3, new Throttle());
+		assertEquals(entries + 1, remover.remove(tree));
+		assertFalse(Files.exists(tree));
+		assertTrue(Files.exists(outside.resolve("keep.txt")));
+		assertEquals(0, parent.toFile().list().length);
+
+		Path leftover = parent.resolve(TreeRemover.REMOVING_PREFIX + "cut-short");
+		TestTrees.makeTree(leftover, 1, 2, 10);
+		assertTrue(remover.removeLeftovers(parent) > 0);
+		assertEquals(0, parent.toFile().list().length);
+	}
+
+	/**
+	 * Several threads remove a wide tree completely and count every entry they removed.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WideTree_when_RemovedInParallel_then_EveryEntryRemovedAndCounted() throws Exception {
+		Path parent = tempFolder.newFolder("large").toPath();
+		Path tree = parent.resolve("tree");
+		int entries = TestTrees.makeTree(tree, 2, 10, 200) + TestTrees.directories(2, 10);
+
+		assertEquals(entries, new TreeRemover(TreeRemover.DEFAULT_THREADS, new Throttle()).remove(tree));
+		assertFalse(Files.exists(tree));
+		assertEquals(0, parent.toFile().list().length);
+	}
+}
@@ -0,0 +1,268 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import core.BackupPlan;
+import core.BackupPlanner;
+import core.CopyTask;
+import core.FailureReport;
+import core.FileOps;
+import core.FileSet;
+import core.RetryQueue;
+
+/**
+ * Tests for the {@link RetryQueue} and {@link FailureReport} classes, and for a {@link FileOps} operation
+ * that carries on past files it cannot copy.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class RetryQueueTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * A file is retried until it copies or runs out of attempts, each wait twice the one before, and errors a
+	 * retry cannot cure are not retried at all.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FailingCopies_when_Offered_then_RetriedWithGrowingDelays() throws Exception {
+		final Map<String, List<Long>> attempts = new HashMap<String, List<Long>>();
+		final List<String> givenUp = new ArrayList<String>();
+		final long start = System.nanoTime();
+		final RetryQueue[] queue = new RetryQueue[1];
+		queue[0] = new RetryQueue(new RetryQueue.Retrier() {
+			public void retry(CopyTask task, int attempt) {
+				synchronized (attempts) {
+					attempts.get(task.relativePath).add((System.nanoTime() - start) / 1000000);
+				}
+				// the flaky file copies on its third attempt, the broken one never
+				if (task.relativePath.equals("broken") || attempt < 3) {
+					if (!queue[0].offer(task, new IOException("Input/output error"), attempt)) {
+						synchronized (givenUp) {
+							givenUp.add(task.relativePath + " " + attempt);
+						}
+					}
+				}
+			}
+		}, 3, 50);
+		assertEquals(50, queue[0].delayMillis(1));
+		assertEquals(100, queue[0].delayMillis(2));
+		assertEquals(200, queue[0].delayMillis(3));
+
+		for (String name : new String[] { "flaky", "broken" }) {
+			attempts.put(name, new ArrayList<Long>());
+			assertTrue(queue[0].offer(task(name), new IOException("Input/output error"), 1));
+		}
+		assertFalse(queue[0].offer(task("denied"), new AccessDeniedException("denied"), 1));
+		assertFalse(queue[0].offer(task("interrupted"), new InterruptedException(), 1));
+		queue[0].finish();
+
+		assertEquals(0, queue[0].getPending());
+		assertEquals(2, attempts.get("flaky").size());
+		assertEquals(2, attempts.get("broken").size());
+		List<Long> times = attempts.get("broken");
+		assertTrue(times.get(0) >= 50);
+		assertTrue(times.get(1) - times.get(0) >= 100);
+		assertEquals(1, givenUp.size());
+		assertEquals("broken 3", givenUp.get(0));
+		assertFalse(queue[0].offer(task("late"), new IOException("late"), 1));
+	}
+
+	/**
+	 * Handing over a file returns at once even while another file is being retried slowly, so a worker never
+	 * waits on a retry.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_SlowRetry_when_Offered_then_OfferDoesNotWait() throws Exception {
+		final CountDownLatch retrying = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final int[] retried = new int[1];
+		RetryQueue queue = new RetryQueue(new RetryQueue.Retrier() {
+			public void retry(CopyTask task, int attempt) {
+				retrying.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				synchronized (retried) {
+					retried[0]++;
+				}
+			}
+		}, 2, 0);
+		assertTrue(queue.offer(task("first"), new IOException("busy"), 1));
+		assertTrue(retrying.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			assertTrue(queue.offer(task("file" + i), new IOException("busy"), 1));
+		}
+		// every offer returned while the first retry was still held
+		synchronized (retried) {
+			assertEquals(0, retried[0]);
+		}
+		assertEquals(101, queue.getPending());
+		queue.cancel();
+		release.countDown();
+		assertEquals(0, queue.getPending());
+		assertFalse(queue.offer(task("after"), new IOException("busy"), 1));
+		synchronized (retried) {
+			assertTrue(retried[0] <= 1);
+		}
+	}
+
+	/**
+	 * A backup copies every file it can: a source that no longer exists is reported instead of stopping the
+	 * backup, a file that is back by the time it is retried is copied, and a file that stays gone is reported
+	 * with the attempts made.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_UnreadableAndFlakyFiles_when_BackedUp_then_OthersCopiedAndFailuresReported() throws Exception {
+		Path source = tempFolder.newFolder("source").toPath();
+		for (int i = 0; i < 20; i++) {
+			Files.write(source.resolve("file" + i), new byte[100 + i]);
+		}
+		Path flaky = source.resolve("flaky");
+		Path broken = source.resolve("broken");
+		Files.write(flaky, "flaky".getBytes("UTF-8"));
+		Files.write(broken, "broken".getBytes("UTF-8"));
+		File gone = tempFolder.newFile("gone.txt");
+		Path destination = tempFolder.newFolder("dest").toPath();
+		FileSet files = new FileSet("Planned", destination.toString());
+		files.addElement(source.toString());
+		files.addElement(gone.getAbsolutePath());
+		Files.delete(gone.toPath());
+
+		// the plan lists both files, so the copy is the first to find them gone
+		BackupPlanner planner = new BackupPlanner();
+		planner.setReportDirectory(null);
+		BackupPlan plan = planner.plan(files);
+		Files.delete(flaky);
+		Files.delete(broken);
+
+		final FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setPlan(plan);
+		ops.setRetryPolicy(3, 300);
+		Thread backup = new Thread(new Runnable() {
+			public void run() {
+				ops.run();
+			}
+		});
+		backup.start();
+		long deadline = System.currentTimeMillis() + 30000;
+		while (ops.getFailureReport().getRetries() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		// back before its first retry
+		Files.write(flaky, "flaky".getBytes("UTF-8"));
+		backup.join(60000);
+		ops.get();
+
+		Path backupDir = destination.resolve("Planned");
+		assertTrue(Files.exists(backupDir.resolve(FileOps.relativePath(flaky))));
+		for (int i = 0; i < 20; i++) {
+			assertTrue(Files.exists(backupDir.resolve(FileOps.relativePath(source.resolve("file" + i)))));
+		}
+		FailureReport report = ops.getFailureReport();
+		assertEquals(1, report.getRecovered());
+		assertEquals(3, report.getRetries());
+		List<FailureReport.Failure> failures = report.getFailures();
+		assertEquals(2, failures.size());
+		Map<Path, Integer> attempts = new HashMap<Path, Integer>();
+		for (FailureReport.Failure failure : failures) {
+			attempts.put(failure.source, failure.attempts);
+		}
+		assertEquals(Integer.valueOf(0), attempts.get(gone.toPath()));
+		assertEquals(Integer.valueOf(3), attempts.get(broken));
+		assertEquals(2, ops.getMetrics().getErrors());
+		assertTrue(report.toString().contains(broken.toString()));
+
+		// without a plan the missing source is found while listing the files
+		files.setName("Scanned");
+		FileOps scanned = new FileOps(files);
+		scanned.setReportDirectory(null);
+		scanned.setStateFile(null);
+		scanned.setRetryPolicy(1, 0);
+		scanned.run();
+		scanned.get();
+		assertEquals(1, scanned.getFailureReport().getFailures().size());
+		assertEquals(gone.toPath(), scanned.getFailureReport().getFailures().get(0).source);
+		assertTrue(Files.exists(destination.resolve("Scanned").resolve(FileOps.relativePath(flaky))));
+	}
+
+	/**
+	 * A file a further destination cannot write is retried for that destination alone and, once given up,
+	 * reported with the destination it is missing from, while the first destination keeps its copy.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FurtherDestinationFailingFile_when_BackedUp_then_ReportedForThatDestination() throws Exception {
+		Path source = tempFolder.newFolder("source").toPath();
+		Path first = source.resolve("a-first.bin");
+		Path blocked = source.resolve("b-blocked.txt");
+		Files.write(first, new byte[1024 * 1024]);
+		Files.write(blocked, "blocked".getBytes("UTF-8"));
+		Path destination = tempFolder.newFolder("dest").toPath();
+		Path further = tempFolder.newFolder("further").toPath();
+		FileSet files = new FileSet("Teed", destination.toString());
+		files.addDestination(further.toString());
+		files.addElement(first.toString());
+		files.addElement(blocked.toString());
+		// one worker at 1 MB/s, so the first file leaves time to block the second at the further destination
+		files.setRotationalConcurrency(1);
+		files.setSolidStateConcurrency(1);
+		files.setBytesPerSecond(1024 * 1024);
+
+		FileOps ops = new FileOps(files);
+		ops.setReportDirectory(null);
+		ops.setStateFile(null);
+		ops.setRetryPolicy(3, 50);
+		ops.execute();
+		Path furtherDir = further.resolve("Teed");
+		while (!Files.isDirectory(furtherDir) && !ops.isDone()) {
+			Thread.sleep(1);
+		}
+		// a folder that is not empty where the file should go cannot be written over
+		Files.createDirectories(furtherDir.resolve(FileOps.relativePath(blocked)).resolve("in-the-way"));
+		ops.get();
+
+		assertTrue(Files.exists(destination.resolve("Teed").resolve(FileOps.relativePath(blocked))));
+		assertTrue(Files.isRegularFile(furtherDir.resolve(FileOps.relativePath(first))));
+		FailureReport report = ops.getFailureReport();
+		List<FailureReport.Failure> failures = report.getFailures();
+		assertEquals(1, failures.size());
+		assertEquals(blocked, failures.get(0).source);
+		assertEquals(furtherDir.toString(), failures.get(0).destination);
+		assertEquals(3, failures.get(0).attempts);
+		assertEquals(2, report.getRetries());
+		assertEquals(1, ops.getMetrics().getErrors());
+		assertTrue(report.toString().contains(furtherDir.toString()));
+	}
+
+	private static CopyTask task(String name) {
+		return new CopyTask(Paths.get(name), name, Paths.get(name), 0, 0, null);
+	}
+}
@@ -0,0 +1,113 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ui.StatusLog;
+
+/**
+ * Tests for the {@link StatusLog} class, the bounded model behind the status messages of a backup.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class StatusLogTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static void flush(final StatusLog log) throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				log.flush();
+			}
+		});
+	}
+
+	/**
+	 * Only the newest lines are kept once the capacity is reached, oldest first.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_MoreLinesThanCapacity_when_Flushed_then_OnlyNewestKept() throws Exception {
+		StatusLog log = new StatusLog(3);
+		for (int i = 1; i <= 5; i++) {
+			log.append("line " + i);
+		}
+		flush(log);
+		assertEquals(3, log.getSize());
+		assertEquals("line 3", log.getElementAt(0));
+		assertEquals("line 5", log.getElementAt(2));
+
+		log.append("line 6");
+		flush(log);
+		assertEquals(3, log.getSize());
+		assertEquals("line 4", log.getElementAt(0));
+		assertEquals("line 6", log.getElementAt(2));
+	}
+
+	/**
+	 * Appends are shown in batches of one frame each on the Event Dispatch Thread, not one by one.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ManyAppends_when_BatchTimerFires_then_AppendsBatchedIntoFewEvents() throws Exception {
+		final StatusLog log = new StatusLog(100);
+		final int[] added = new int[1];
+		log.addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent e) {
+				assertTrue(SwingUtilities.isEventDispatchThread());
+				added[0]++;
+			}
+			public void intervalRemoved(ListDataEvent e) {
+			}
+			public void contentsChanged(ListDataEvent e) {
+			}
+		});
+		for (int i = 0; i < 10000; i++) {
+			log.append("file " + i);
+		}
+		Thread.sleep(StatusLog.BATCH_MILLIS * 10);
+		flush(log);
+		assertEquals(100, log.getSize());
+		assertEquals("file 9999", log.getElementAt(99));
+		assertTrue("events: " + added[0], added[0] >= 1 && added[0] < 100);
+	}
+
+	/**
+	 * Every line, including those no longer held in memory, is streamed to the log file.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_OpenFile_when_LinesAppended_then_FullLogWritten() throws Exception {
+		StatusLog log = new StatusLog(2);
+		Path file = tempFolder.getRoot().toPath().resolve("logs").resolve("Backup.log");
+		log.openFile(file);
+		for (int i = 1; i <= 5; i++) {
+			log.append("line " + i);
+		}
+		flush(log);
+		log.append("line 6");
+		log.closeFile();
+		log.awaitFile(5000);
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(6, lines.size());
+		assertTrue(lines.get(0).endsWith("  line 1"));
+		assertTrue(lines.get(5).endsWith("  line 6"));
+		assertEquals(2, log.getSize());
+	}
+}
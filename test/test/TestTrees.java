@@ -0,0 +1,46 @@
+package test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Builds directory trees for the tests that plan, copy or remove whole backups.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+final class TestTrees {
+
+	private TestTrees() {
+	}
+
+	/**
+	 * Creates a tree of directories <code>depth</code> levels deep with <code>fanOut</code> directories and
+	 * <code>perDirectory</code> files in each. File <code>i</code> of a directory holds <code>i + 1</code> bytes.
+	 *
+	 * @return the number of files created.
+	 */
+	static int makeTree(Path dir, int depth, int fanOut, int perDirectory) throws IOException {
+		Files.createDirectories(dir);
+		int count = 0;
+		for (int i = 0; i < perDirectory; i++) {
+			Files.write(dir.resolve("file" + i), new byte[i + 1]);
+			count++;
+		}
+		if (depth > 0) {
+			for (int i = 0; i < fanOut; i++) {
+				count += makeTree(dir.resolve("dir" + i), depth - 1, fanOut, perDirectory);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of directories {@link #makeTree(Path, int, int, int)} creates, the root included.
+	 */
+	static int directories(int depth, int fanOut) {
+		return depth > 0 ? 1 + fanOut * directories(depth - 1, fanOut) : 1;
+	}
+}
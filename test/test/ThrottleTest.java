@@ -0,0 +1,154 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import core.FileSet;
+import core.Throttle;
+
+/**
+ * Tests for the {@link Throttle} class. These tests ensure the token buckets hold copies to the
+ * configured rates and that limits can be changed while workers are waiting.
+ *
+ * @author Greg Palen
+ * @version 1.0.0
+ *
+ */
+public class ThrottleTest {
+
+	/**
+	 * An unlimited Throttle never blocks.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_UnlimitedThrottle_when_Acquiring_then_NoDelay() throws Exception {
+		Throttle throttle = new Throttle();
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			throttle.acquireBytes(1024 * 1024);
+			throttle.acquireFile();
+		}
+		assertTrue((System.nanoTime() - start) / 1000000 < 500);
+	}
+
+	/**
+	 * Once the burst is used up, bytes are released at the configured rate.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_ByteLimit_when_BurstExhausted_then_RateIsEnforced() throws Exception {
+		Throttle throttle = new Throttle(100000, 0, 10000);
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			throttle.acquireBytes(10000);
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		// 10000 bytes come from the burst; the remaining 40000 need roughly 400ms
+		assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 300);
+	}
+
+	/**
+	 * Files are released at the configured rate.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FileLimit_when_Acquiring_then_RateIsEnforced() throws Exception {
+		Throttle throttle = new Throttle(0, 10, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 15; i++) {
+			throttle.acquireFile();
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		// 10 files come from the bucket; the remaining 5 need roughly 500ms
+		assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 400);
+	}
+
+	/**
+	 * Lifting the limit releases a worker that is waiting for tokens.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WaitingWorker_when_LimitRemoved_then_WorkerContinues() throws Exception {
+		final Throttle throttle = new Throttle(1, 0, 1);
+		throttle.acquireBytes(1000000);
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					throttle.acquireBytes(1);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		worker.start();
+		Thread.sleep(100);
+		assertTrue(worker.isAlive());
+		throttle.setBytesPerSecond(0);
+		worker.join(1000);
+		assertFalse(worker.isAlive());
+	}
+
+	/**
+	 * Limits are taken from the FileSet settings.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_FileSetWithLimits_when_ThrottleCreated_then_LimitsMatch() throws Exception {
+		FileSet files = new FileSet();
+		files.setBytesPerSecond(2048);
+		files.setFilesPerSecond(5);
+		files.setBurstBytes(4096);
+		Throttle throttle = new Throttle(files);
+		assertEquals(2048, throttle.getBytesPerSecond());
+		assertEquals(5, throttle.getFilesPerSecond());
+		assertEquals(4096, throttle.getBurstBytes());
+	}
+
+	/**
+	 * Negative limits are rejected.
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void given_NegativeLimit_when_Set_then_Exception() throws Exception {
+		new Throttle().setBytesPerSecond(-1);
+	}
+
+	/**
+	 * Cancelling the work releases a worker that is waiting to repay its token debt.
+	 * @throws Exception
+	 */
+	@Test
+	public void given_WaitingWorker_when_Cancelled_then_WorkerStops() throws Exception {
+		final Throttle throttle = new Throttle(1, 0, 1);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		throttle.setCancellation(new Throttle.Cancellation() {
+			public boolean isCancelled() {
+				return cancelled.get();
+			}
+		});
+		throttle.acquireBytes(1000000);
+		final AtomicReference<Exception> stopped = new AtomicReference<Exception>();
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					throttle.acquireBytes(1);
+				} catch (Exception e) {
+					stopped.set(e);
+				}
+			}
+		});
+		worker.start();
+		Thread.sleep(100);
+		assertTrue(worker.isAlive());
+		cancelled.set(true);
+		// the debt alone would keep the worker waiting for days
+		worker.join(5000);
+		assertFalse(worker.isAlive());
+		assertTrue(stopped.get() instanceof CancellationException);
+	}
+}